@@ -819,11 +819,6 @@ public class AndroidBinaryRule extends AbstractCachingBuildRule implements
       secondaryInputsDir = Optional.absent();
     }
 
-    // Stores checksum information from each invocation to intelligently decide when dx needs
-    // to be re-run.
-    String successDir = getBinPath("__smart_dex__/%s/.success");
-    commands.add(new MkdirStep(successDir));
-
     // Add the smart dexing tool that is capable of avoiding the external dx invocation(s) if
     // it can be shown that the inputs have not changed.  It also parallelizes dx invocations
     // where applicable.
@@ -839,7 +834,9 @@ public class AndroidBinaryRule extends AbstractCachingBuildRule implements
         primaryInputsToDex,
         secondaryDexDir,
         secondaryInputsDir,
-        successDir,
+        // Stores checksum information from each invocation to intelligently decide when dx needs
+        // to be re-run.
+        Optional.fromNullable(getBuildMetadataStore()),
         Optional.<Integer>absent(),
         dexSplitMode.getDexStore());
     commands.add(smartDexingCommand);
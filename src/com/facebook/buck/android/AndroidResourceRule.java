@@ -195,6 +195,14 @@ public class AndroidResourceRule extends AbstractCachingBuildRule implements Has
     }
   }
 
+  /** The R.java files that are generated next to R.txt are cached with it. */
+  @Override
+  protected ImmutableSortedSet<String> getPathsToCachedOutputs() {
+    return pathToTextSymbolsDir == null
+        ? ImmutableSortedSet.<String>of()
+        : ImmutableSortedSet.of(pathToTextSymbolsDir);
+  }
+
   @Override
   @Nullable
   public String getPathToTextSymbolsFile() {
@@ -235,6 +243,8 @@ public class AndroidResourceRule extends AbstractCachingBuildRule implements Has
     ImmutableSortedSet.Builder<String> assetsFiles = ImmutableSortedSet.naturalOrder();
     addAssetsContents(assetsFiles);
 
+    addInputDirectory(builder, res);
+    addInputDirectory(builder, assets);
     return super.appendToRuleKey(builder)
         .set("res", resFiles.build())
         .set("assets", assetsFiles.build());
@@ -97,9 +97,7 @@ public class FilterResourcesStep implements Step {
     // Create a filter that removes drawables not of desired density.
     Predicate<File> densityFilter = Filters.createImageDensityFilter(drawables, resourceFilter);
     // Create filtered copies of all resource directories. These will be passed to aapt instead.
-    filteredDirectoryCopier.copyDirs(originalToFiltered,
-        densityFilter,
-        context.getProcessExecutor());
+    filteredDirectoryCopier.copyDirs(originalToFiltered, densityFilter);
     return 0;
   }
 
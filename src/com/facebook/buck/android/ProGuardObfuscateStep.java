@@ -19,6 +19,7 @@ package com.facebook.buck.android;
 import com.facebook.buck.step.ExecutionContext;
 import com.facebook.buck.shell.ShellStep;
 import com.facebook.buck.util.AndroidPlatformTarget;
+import com.facebook.buck.util.DeterministicZipOutputStream;
 import com.facebook.buck.util.Functions;
 import com.facebook.buck.util.HumanReadableException;
 import com.google.common.annotations.VisibleForTesting;
@@ -159,7 +160,7 @@ public final class ProGuardObfuscateStep extends ShellStep {
   @VisibleForTesting
   static void createEmptyZip(File file) throws IOException {
     Files.createParentDirs(file);
-    ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file));
+    ZipOutputStream out = new DeterministicZipOutputStream(new FileOutputStream(file));
     // Sun's java 6 runtime doesn't allow us to create a truly empty zip, but this should be enough
     // to pass through dx/split-zip without any issue.
     // ...and Sun's java 7 runtime doesn't let us use an empty string for the zip entry name.
@@ -15,13 +15,13 @@
  */
 package com.facebook.buck.android;
 
+import com.facebook.buck.rules.BuildMetadataStore;
 import com.facebook.buck.step.CompositeStep;
 import com.facebook.buck.step.DefaultStepRunner;
 import com.facebook.buck.step.ExecutionContext;
 import com.facebook.buck.step.Step;
 import com.facebook.buck.step.StepFailedException;
 import com.facebook.buck.step.fs.RepackZipEntriesStep;
-import com.facebook.buck.step.fs.WriteFileStep;
 import com.facebook.buck.step.fs.XzStep;
 import com.facebook.buck.step.fs.ZipStep;
 import com.facebook.buck.util.ClasspathTraversal;
@@ -31,20 +31,18 @@ import com.facebook.buck.util.FileLike;
 import com.facebook.buck.util.MoreFiles;
 import com.facebook.buck.util.Paths;
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.base.Charsets;
 import com.google.common.base.Joiner;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableMultimap;
 import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Multimap;
 import com.google.common.hash.Hasher;
 import com.google.common.hash.Hashing;
-import com.google.common.io.Files;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
 
@@ -54,8 +52,6 @@ import java.util.List;
 import java.util.Set;
 import java.util.concurrent.Executors;
 
-import javax.annotation.Nullable;
-
 /**
  * Optimized dx command runner which can invoke multiple dx commands in parallel and also avoid
  * doing unnecessary dx invocations in the first place.
@@ -67,7 +63,7 @@ import javax.annotation.Nullable;
  */
 public class SmartDexingStep implements Step {
   private final InputResolver inputResolver;
-  private final String successDir;
+  private final Optional<BuildMetadataStore> buildMetadataStore;
   private final Optional<Integer> numThreads;
   private final DexStore dexStore;
   private ListeningExecutorService dxExecutor;
@@ -84,7 +80,8 @@ public class SmartDexingStep implements Step {
    * @param secondaryInputsDir Directory path containing input jar files to use as dx input.
    *     Note that for each file in this directory, a separate dx invocation will be started with
    *     that file as input.  Do not pass a directory that contains non-dexable artifacts!
-   * @param successDir Directory where success artifacts are written.
+   * @param buildMetadataStore where the hash of the inputs of each dx invocation is recorded, so
+   *     that it is skipped the next time if they are unchanged.
    * @param numThreads Number of threads to use when invoking dx commands.  If absent, a
    *     reasonable default will be selected based on the number of available processors.
    * @param dexStore Specify the way secondary dexes are to be stored in the APK (e.g.
@@ -95,14 +92,14 @@ public class SmartDexingStep implements Step {
       Set<String> primaryInputsToDex,
       Optional<String> secondaryOutputDir,
       Optional<String> secondaryInputsDir,
-      String successDir,
+      Optional<BuildMetadataStore> buildMetadataStore,
       Optional<Integer> numThreads,
       DexStore dexStore) {
     this.inputResolver = new InputResolver(primaryOutputPath,
         primaryInputsToDex,
         secondaryOutputDir,
         secondaryInputsDir);
-    this.successDir = Preconditions.checkNotNull(successDir);
+    this.buildMetadataStore = Preconditions.checkNotNull(buildMetadataStore);
     this.numThreads = Preconditions.checkNotNull(numThreads);
     this.dexStore = Preconditions.checkNotNull(dexStore);
   }
@@ -146,8 +143,7 @@ public class SmartDexingStep implements Step {
       if (inputResolver.hasSecondaryOutput()) {
         removeExtraneousSecondaryArtifacts(
             inputResolver.getSecondaryOutputDir(),
-            outputToInputs.keySet(),
-            context);
+            outputToInputs.keySet());
       }
       return 0;
     } catch (StepFailedException e) {
@@ -179,11 +175,10 @@ public class SmartDexingStep implements Step {
    */
   private void removeExtraneousSecondaryArtifacts(
       File secondaryOutputDir,
-      Set<File> producedArtifacts,
-      ExecutionContext context) throws IOException {
+      Set<File> producedArtifacts) throws IOException {
     for (File secondaryOutput : secondaryOutputDir.listFiles()) {
       if (!producedArtifacts.contains(secondaryOutput)) {
-        MoreFiles.rmdir(secondaryOutput.getAbsolutePath(), context.getProcessExecutor());
+        MoreFiles.rmdir(secondaryOutput.toPath());
       }
     }
   }
@@ -227,7 +222,7 @@ public class SmartDexingStep implements Step {
       pseudoRules.add(new DxPseudoRule(context,
           ImmutableSet.copyOf(Paths.transformFileToAbsolutePath(outputToInputs.get(outputFile))),
           outputFile.getPath(),
-          new File(successDir, outputFile.getName()).getPath()));
+          buildMetadataStore));
     }
 
     ImmutableList.Builder<Step> commands = ImmutableList.builder();
@@ -314,50 +309,36 @@ public class SmartDexingStep implements Step {
    * Internally designed to simulate a dexing buck rule so that once refactored more broadly as
    * such it should be straightforward to convert this code.
    * <p>
-   * This pseudo rule does not use the normal .success file model but instead checksums its
+   * This pseudo rule does not use the RuleKey of a build rule but instead checksums its
    * inputs.  This is because the input zip files are guaranteed to have changed on the
    * filesystem (ZipSplitter will always write them out even if the same), but the contents
-   * contained in the zip may not have changed.
+   * contained in the zip may not have changed.  The checksum is recorded in the
+   * {@link BuildMetadataStore}, along with the last-modified time of the output that it produced.
    */
   @VisibleForTesting
   static class DxPseudoRule {
+    private static final String INPUTS_HASH_METADATA = "inputs_hash";
+    private static final String OUTPUT_LAST_MODIFIED_METADATA = "output_last_modified";
+
     private final ExecutionContext context;
     private final Set<String> srcs;
     private final String outputPath;
-    private final String outputHashPath;
+    private final Optional<BuildMetadataStore> buildMetadataStore;
     private String newInputsHash;
 
     public DxPseudoRule(ExecutionContext context,
         Set<String> srcs,
         String outputPath,
-        String outputHashPath) {
+        Optional<BuildMetadataStore> buildMetadataStore) {
       this.context = Preconditions.checkNotNull(context);
       this.srcs = ImmutableSet.copyOf(srcs);
       this.outputPath = Preconditions.checkNotNull(outputPath);
-      this.outputHashPath = Preconditions.checkNotNull(outputHashPath);
+      this.buildMetadataStore = Preconditions.checkNotNull(buildMetadataStore);
     }
 
-    /**
-     * Read the previous run's hash from the filesystem.
-     *
-     * @return Previous hash if there was one; null otherwise.
-     */
-    @Nullable
-    private String getPreviousInputsHash() {
-      File outputHashFile = new File(outputHashPath);
-      if (outputHashFile.exists()) {
-        try {
-          return Iterables.getFirst(
-              Files.readLines(outputHashFile, Charsets.UTF_8),
-              null);
-        } catch (IOException e) {
-          context.getStdErr().println(context.getAnsi().asWarningText(
-              String.format("Error reading success file: %s", outputHashPath)));
-          // Fall through, this is not fatal...
-        }
-      }
-      // This will trigger the dx command to run again.
-      return null;
+    /** @return the key under which the metadata of this dx invocation is recorded. */
+    private String getMetadataKey() {
+      return "smart_dex:" + outputPath;
     }
 
     @VisibleForTesting
@@ -393,16 +374,35 @@ public class SmartDexingStep implements Step {
     public boolean checkIsCached() throws IOException {
       newInputsHash = hashInputs();
 
-      // Make sure the output dex file isn't newer than the output hash file.
-      long outputHashFileModTime = new File(outputHashPath).lastModified();
+      if (!buildMetadataStore.isPresent()) {
+        return false;
+      }
+      ImmutableMap<String, String> metadata =
+          buildMetadataStore.get().get(getMetadataKey());
+
+      // Make sure the output dex file is the one that was written when the hash was recorded.
       long outputFileModTime = new File(outputPath).lastModified();
-      if (outputFileModTime > outputHashFileModTime) {
+      if (outputFileModTime == 0 ||
+          !String.valueOf(outputFileModTime).equals(metadata.get(OUTPUT_LAST_MODIFIED_METADATA))) {
         return false;
       }
 
       // Verify input hashes.
-      String currentInputsHash = getPreviousInputsHash();
-      return newInputsHash.equals(currentInputsHash);
+      return newInputsHash.equals(metadata.get(INPUTS_HASH_METADATA));
+    }
+
+    /**
+     * Records the hash of the inputs, along with the last-modified time of the output that dx
+     * has written from them.
+     */
+    @VisibleForTesting
+    void recordInputsHash() throws IOException {
+      Preconditions.checkState(newInputsHash != null, "Must call checkIsCached first!");
+      if (buildMetadataStore.isPresent()) {
+        buildMetadataStore.get().put(getMetadataKey(), ImmutableMap.of(
+            INPUTS_HASH_METADATA, newInputsHash,
+            OUTPUT_LAST_MODIFIED_METADATA, String.valueOf(new File(outputPath).lastModified())));
+      }
     }
 
     /**
@@ -435,12 +435,42 @@ public class SmartDexingStep implements Step {
       } else {
         steps.add(new DxStep(outputPath, srcs));
       }
-      steps.add(new WriteFileStep(newInputsHash, outputHashPath));
+      steps.add(new RecordInputsHashStep(this));
 
       // Use a composite step to ensure that runDxSteps can still make use of
       // runStepsInParallelAndWait.  This is necessary to keep the DxStep and
-      // WriteFileStep dependent in series.
+      // RecordInputsHashStep dependent in series.
       return ImmutableList.<Step>of(new CompositeStep(steps));
     }
   }
+
+  /** Records the hash of the inputs of a {@link DxPseudoRule} once its output has been written. */
+  private static class RecordInputsHashStep implements Step {
+    private final DxPseudoRule pseudoRule;
+
+    RecordInputsHashStep(DxPseudoRule pseudoRule) {
+      this.pseudoRule = Preconditions.checkNotNull(pseudoRule);
+    }
+
+    @Override
+    public int execute(ExecutionContext context) {
+      try {
+        pseudoRule.recordInputsHash();
+        return 0;
+      } catch (IOException e) {
+        e.printStackTrace(context.getStdErr());
+        return 1;
+      }
+    }
+
+    @Override
+    public String getShortName(ExecutionContext context) {
+      return "record_dex_inputs_hash";
+    }
+
+    @Override
+    public String getDescription(ExecutionContext context) {
+      return String.format("record inputs hash of %s", pseudoRule.outputPath);
+    }
+  }
 }
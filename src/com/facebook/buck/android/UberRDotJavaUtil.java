@@ -145,6 +145,13 @@ public class UberRDotJavaUtil {
         );
   }
 
+  /**
+   * @return whether {@link #getAndroidResourceDeps(BuildRule, DependencyGraph)} would return a
+   *     non-empty list for {@code rule}.
+   */
+  public static boolean hasAndroidResourceDeps(BuildRule rule) {
+    return !findAllAndroidResourceDeps(rule).isEmpty();
+  }
 
   private static Function<BuildRule, HasAndroidResourceDeps> CAST_TO_ANDROID_RESOURCE_RULE =
       new Function<BuildRule, HasAndroidResourceDeps>() {
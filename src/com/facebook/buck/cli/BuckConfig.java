@@ -25,6 +25,7 @@ import com.facebook.buck.rules.ArtifactCache;
 import com.facebook.buck.rules.BuildDependencies;
 import com.facebook.buck.rules.CassandraArtifactCache;
 import com.facebook.buck.rules.DirArtifactCache;
+import com.facebook.buck.rules.HttpArtifactCache;
 import com.facebook.buck.rules.MultiArtifactCache;
 import com.facebook.buck.rules.NoopArtifactCache;
 import com.facebook.buck.util.Ansi;
@@ -59,9 +60,13 @@ import java.io.File;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.StringReader;
+import java.net.MalformedURLException;
+import java.net.URL;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import javax.annotation.Nullable;
@@ -87,7 +92,18 @@ class BuckConfig {
   static final String BUCK_BUCKD_DIR_KEY = "buck.buckd_dir";
 
   private static final String DEFAULT_CACHE_DIR = "buck-cache";
+
+  /** A number of bytes, optionally followed by a unit, such as {@code 512MB} or {@code 10 GB}. */
+  private static final Pattern SIZE_PATTERN =
+      Pattern.compile("(\\d+)\\s*([kmgt]?)b?", Pattern.CASE_INSENSITIVE);
   private static final String DEFAULT_CASSANDRA_PORT = "9160";
+  private static final String DEFAULT_CASSANDRA_CONNECTIONS_PER_HOST = "4";
+  private static final String DEFAULT_CACHE_MISS_TTL_SECONDS = "300";
+  private static final String DEFAULT_HTTP_CACHE_URL = "http://localhost:8080";
+  private static final String DEFAULT_HTTP_CACHE_TIMEOUT_SECONDS = "3";
+  private static final String DEFAULT_CACHE_UPLOAD_THREADS = "2";
+  private static final String DEFAULT_CACHE_UPLOAD_MAX_PENDING_SIZE = "256MB";
+  private static final String DEFAULT_CACHE_UPLOAD_TIMEOUT_SECONDS = "60";
 
   private final ImmutableMap<String, ImmutableMap<String, String>> sectionsToEntries;
 
@@ -98,7 +114,8 @@ class BuckConfig {
 
   private enum ArtifactCacheNames {
     dir,
-    cassandra
+    cassandra,
+    http
   }
 
   @VisibleForTesting
@@ -437,6 +454,30 @@ class BuckConfig {
     }
   }
 
+  /**
+   * @return whether rules on the critical path of the build, as estimated from how long each rule
+   *     took in previous builds, should be built ahead of other rules that are ready to be built.
+   */
+  boolean isCriticalPathSchedulingEnabled() {
+    return Boolean.parseBoolean(getValue("build", "critical_path_scheduling").or("true"));
+  }
+
+  /**
+   * @return whether the requested rules should be fetched from the artifact cache before any of
+   *     their deps are built, so that deps are only built if a rule that needs them is not cached.
+   */
+  boolean isTopDownBuildEnabled() {
+    return Boolean.parseBoolean(getValue("build", "top_down").or("false"));
+  }
+
+  /**
+   * @return whether a java_library should only recompile the sources that have changed since it
+   *     was last built, and those that they affect, rather than all of its sources.
+   */
+  boolean isIncrementalJavacEnabled() {
+    return Boolean.parseBoolean(getValue("java", "incremental").or("false"));
+  }
+
   List<String> getInitialTargets() {
     Optional<String> initialTargets = getValue("project", "initial_targets");
     return initialTargets.isPresent()
@@ -477,18 +518,23 @@ class BuckConfig {
             builder.add(cassandraArtifactCache);
           }
           break;
+        case http:
+          builder.add(createHttpArtifactCache());
+          break;
         }
       }
     } catch (IllegalArgumentException e) {
       throw new HumanReadableException("Unusable cache.mode: '%s'", cacheMode);
     }
-    ImmutableList<ArtifactCache> artifactCaches = builder.build();
-    if (artifactCaches.size() == 1) {
-      // Don't bother wrapping a single artifact cache in MultiArtifactCache.
-      return artifactCaches.get(0);
-    } else {
-      return new MultiArtifactCache(artifactCaches);
-    }
+    // Even a single artifact cache is wrapped, so that its misses are remembered.
+    return new MultiArtifactCache(builder.build(), getArtifactCacheMissTtlMillis());
+  }
+
+  /** @return how long a miss in one of the artifact caches is remembered. */
+  @VisibleForTesting
+  long getArtifactCacheMissTtlMillis() {
+    return parseSecondsAsMillis("cache.miss_ttl_seconds",
+        getValue("cache", "miss_ttl_seconds").or(DEFAULT_CACHE_MISS_TTL_SECONDS));
   }
 
   @VisibleForTesting
@@ -496,11 +542,84 @@ class BuckConfig {
     return getValue("cache", "dir").or(DEFAULT_CACHE_DIR);
   }
 
+  /**
+   * @return the size beyond which the least recently used entries of the directory-based cache are
+   *     evicted, if the cache is bounded.
+   */
+  @VisibleForTesting
+  Optional<Long> getCacheDirMaxSizeBytes() {
+    Optional<String> maxSize = getValue("cache", "dir_max_size");
+    if (!maxSize.isPresent()) {
+      return Optional.absent();
+    }
+    return Optional.of(parseSize("cache.dir_max_size", maxSize.get()));
+  }
+
+  /**
+   * @return the number of threads that upload the outputs of the rules to the artifact cache in
+   *     the background, or 0 if they are uploaded before the rules count as built.
+   */
+  int getNumArtifactCacheUploadThreads() {
+    String numThreads = getValue("cache", "upload_threads").or(DEFAULT_CACHE_UPLOAD_THREADS);
+    int value;
+    try {
+      value = Integer.parseInt(numThreads);
+    } catch (NumberFormatException e) {
+      value = -1;
+    }
+    if (value < 0) {
+      throw new HumanReadableException("Unusable cache.upload_threads: '%s'", numThreads);
+    }
+    return value;
+  }
+
+  /**
+   * @return the total size of the outputs that may be waiting to be uploaded to the artifact cache
+   *     before the build has to wait for the uploads to catch up.
+   */
+  long getArtifactCacheUploadMaxPendingBytes() {
+    long maxPendingBytes = parseSize("cache.upload_max_pending_size",
+        getValue("cache", "upload_max_pending_size").or(DEFAULT_CACHE_UPLOAD_MAX_PENDING_SIZE));
+    return Math.max(maxPendingBytes, 1);
+  }
+
+  /** @return how long the end of a build waits for the uploads to the artifact cache to finish. */
+  long getArtifactCacheUploadTimeoutMillis() {
+    return parseSecondsAsMillis("cache.upload_timeout_seconds",
+        getValue("cache", "upload_timeout_seconds").or(DEFAULT_CACHE_UPLOAD_TIMEOUT_SECONDS));
+  }
+
+  /** Parses a non-negative number of seconds into a number of milliseconds. */
+  private static long parseSecondsAsMillis(String property, String seconds) {
+    long value;
+    try {
+      value = Long.parseLong(seconds.trim());
+    } catch (NumberFormatException e) {
+      value = -1;
+    }
+    if (value < 0) {
+      throw new HumanReadableException("Unusable %s: '%s'", property, seconds);
+    }
+    return TimeUnit.SECONDS.toMillis(value);
+  }
+
+  /** Parses a size such as {@code 512MB} into a number of bytes. */
+  private static long parseSize(String property, String size) {
+    Matcher matcher = SIZE_PATTERN.matcher(size.trim());
+    if (!matcher.matches()) {
+      throw new HumanReadableException("Unusable %s: '%s'", property, size);
+    }
+    long value = Long.parseLong(matcher.group(1));
+    String unit = matcher.group(2).toLowerCase();
+    int exponent = unit.isEmpty() ? 0 : "kmgt".indexOf(unit) + 1;
+    return value << (10 * exponent);
+  }
+
   private ArtifactCache createDirArtifactCache() {
     String cacheDir = getCacheDir();
     File dir = new File(cacheDir);
     try {
-      return new DirArtifactCache(dir);
+      return new DirArtifactCache(dir, getCacheDirMaxSizeBytes());
     } catch (IOException e) {
       throw new HumanReadableException("Failure initializing artifact cache directory: %s", dir);
     }
@@ -512,9 +631,11 @@ class BuckConfig {
     String cacheHosts = getValue("cache", "hosts").or("");
     // cache.port
     int port = Integer.parseInt(getValue("cache", "port").or(DEFAULT_CASSANDRA_PORT));
+    // cache.connections_per_host
+    int connectionsPerHost = getCassandraConnectionsPerHost();
 
     try {
-      return new CassandraArtifactCache(cacheHosts, port);
+      return new CassandraArtifactCache(cacheHosts, port, connectionsPerHost);
     } catch (ConnectionException e) {
       console.getStdErr().println(String.format("Cassandra cache connection failure: %s",
           e.getMessage()));
@@ -522,6 +643,49 @@ class BuckConfig {
     }
   }
 
+  private ArtifactCache createHttpArtifactCache() {
+    return new HttpArtifactCache(getHttpCacheUrl(), getHttpCacheTimeoutMillis());
+  }
+
+  /** @return the connect and read timeout of the requests to the HTTP artifact cache. */
+  @VisibleForTesting
+  int getHttpCacheTimeoutMillis() {
+    String timeout =
+        getValue("cache", "http_timeout_seconds").or(DEFAULT_HTTP_CACHE_TIMEOUT_SECONDS);
+    long timeoutMillis = parseSecondsAsMillis("cache.http_timeout_seconds", timeout);
+    if (timeoutMillis > Integer.MAX_VALUE) {
+      throw new HumanReadableException("Unusable cache.http_timeout_seconds: '%s'", timeout);
+    }
+    return (int) timeoutMillis;
+  }
+
+  @VisibleForTesting
+  URL getHttpCacheUrl() {
+    String url = getValue("cache", "http_url").or(DEFAULT_HTTP_CACHE_URL);
+    try {
+      return new URL(url);
+    } catch (MalformedURLException e) {
+      throw new HumanReadableException("Unusable cache.http_url: '%s'", url);
+    }
+  }
+
+  @VisibleForTesting
+  int getCassandraConnectionsPerHost() {
+    String connectionsPerHost = getValue("cache", "connections_per_host")
+        .or(DEFAULT_CASSANDRA_CONNECTIONS_PER_HOST);
+    int value;
+    try {
+      value = Integer.parseInt(connectionsPerHost);
+    } catch (NumberFormatException e) {
+      value = 0;
+    }
+    if (value <= 0) {
+      throw new HumanReadableException("Unusable cache.connections_per_host: '%s'",
+          connectionsPerHost);
+    }
+    return value;
+  }
+
   private Optional<String> getValue(String sectionName, String propertyName) {
     ImmutableMap<String, String> properties = this.getEntriesForSection(sectionName);
     String value = properties.get(propertyName);
@@ -19,29 +19,50 @@ package com.facebook.buck.cli;
 import com.facebook.buck.command.Build;
 import com.facebook.buck.model.BuildTarget;
 import com.facebook.buck.parser.NoSuchBuildTargetException;
+import com.facebook.buck.parser.ParseFinished;
+import com.facebook.buck.parser.ParseStarted;
+import com.facebook.buck.rules.ArtifactCache;
 import com.facebook.buck.rules.BuildEvents;
 import com.facebook.buck.rules.BuildRule;
+import com.facebook.buck.rules.BuildRuleDurations;
+import com.facebook.buck.rules.CriticalPathScheduler;
 import com.facebook.buck.rules.DependencyGraph;
 import com.facebook.buck.rules.JavaUtilsLoggingBuildListener;
+import com.facebook.buck.rules.MultiArtifactCache;
+import com.facebook.buck.rules.MultiArtifactCache.TierStats;
 import com.facebook.buck.step.StepFailedException;
 import com.facebook.buck.util.Console;
 import com.facebook.buck.util.ExceptionWithHumanReadableMessage;
+import com.facebook.buck.util.FileHashCache;
 import com.facebook.buck.util.HumanReadableException;
+import com.facebook.buck.util.ProjectFilesystem;
 import com.facebook.buck.util.Verbosity;
 import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
 import com.google.common.eventbus.AsyncEventBus;
 import com.google.common.eventbus.EventBus;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class BuildCommand extends AbstractCommandRunner<BuildCommandOptions> {
 
+  private static final long EVENT_BUS_KEEP_ALIVE_SECONDS = 10L;
+
+  private static final long EVENT_DELIVERY_TIMEOUT_SECONDS = 30L;
+
   private Build build;
 
   private ImmutableList<BuildTarget> buildTargets = ImmutableList.of();
@@ -74,14 +95,30 @@ public class BuildCommand extends AbstractCommandRunner<BuildCommandOptions> {
       return 1;
     }
 
+    ExecutorService busExecutor = createEventBusExecutor();
+    ChromeTraceBuildListener traceListener = new ChromeTraceBuildListener(getProjectFilesystem());
+    EventBus events = createEventBus(busExecutor, traceListener);
+    try {
+      return parseAndBuild(options, events, busExecutor);
+    } finally {
+      writeTrace(busExecutor, traceListener, console);
+    }
+  }
+
+  private int parseAndBuild(BuildCommandOptions options,
+      EventBus events,
+      ExecutorService busExecutor) throws IOException {
     // Parse the build files to create a DependencyGraph.
     DependencyGraph dependencyGraph;
+    events.post(new ParseStarted(buildTargets));
     try {
       dependencyGraph = getParser().parseBuildFilesForTargets(buildTargets,
           options.getDefaultIncludes());
     } catch (NoSuchBuildTargetException e) {
       console.printBuildFailureWithoutStacktrace(e);
       return 1;
+    } finally {
+      events.post(new ParseFinished());
     }
 
     // Create and execute the build.
@@ -90,9 +127,13 @@ public class BuildCommand extends AbstractCommandRunner<BuildCommandOptions> {
         dependencyGraph,
         getProjectFilesystem(),
         getArtifactCache(),
-        console);
+        console,
+        events);
     getStdErr().printf("BUILDING %s\n", Joiner.on(' ').join(buildTargets));
-    int exitCode = executeBuildAndPrintAnyFailuresToConsole(build, console);
+    int exitCode = executeBuildAndPrintAnyFailuresToConsole(build,
+        getArtifactCache(),
+        busExecutor,
+        console);
 
     if (exitCode != 0) {
       return exitCode;
@@ -102,17 +143,77 @@ public class BuildCommand extends AbstractCommandRunner<BuildCommandOptions> {
     return 0;
   }
 
-  static int executeBuildAndPrintAnyFailuresToConsole(Build build, Console console) {
-    ExecutorService busExecutor = Executors.newCachedThreadPool();
-    EventBus events = new AsyncEventBus("buck-events", busExecutor);
-    addEventListeners(events);
+  /**
+   * @param busExecutor the executor of the {@link AsyncEventBus} of {@code build}, which is drained
+   *     before the build is summarized, as the listeners that time the rules are fed by events.
+   */
+  static int executeBuildAndPrintAnyFailuresToConsole(Build build,
+      ArtifactCache artifactCache,
+      ExecutorService busExecutor,
+      Console console) {
+    // Hashes of unchanged files from the previous run can be reused for RuleKeys and OutputKeys.
+    ProjectFilesystem projectFilesystem = build.getExecutionContext().getProjectFilesystem();
+    File fileHashCacheFile =
+        projectFilesystem.getFileForRelativePath(FileHashCache.PATH_TO_CACHE_FILE);
+    FileHashCache fileHashCache = FileHashCache.getInstance();
+    fileHashCache.load(fileHashCacheFile);
+    long initialHitCount = fileHashCache.getHitCount();
+    long initialMissCount = fileHashCache.getMissCount();
+
+    // How long each rule took in previous builds determines the order in which rules are built.
+    File buildRuleDurationsFile =
+        projectFilesystem.getFileForRelativePath(BuildRuleDurations.PATH_TO_DURATIONS_FILE);
+    BuildRuleDurations.getInstance().load(buildRuleDurationsFile);
+
+    // The artifact cache outlives the build in the daemon, so only this build's lookups are reported.
+    ImmutableList<TierStats> initialTierStats = getTierStats(artifactCache);
+
+    long startTime = System.currentTimeMillis();
+    try {
+      return executeBuild(build, console);
+    } finally {
+      long buildTimeMillis = System.currentTimeMillis() - startTime;
+      if (!awaitEventDelivery(busExecutor)) {
+        console.getStdErr().println("Gave up waiting for the build events to be delivered.");
+      }
+      printCriticalPath(build.getCriticalPathScheduler(),
+          buildTimeMillis,
+          console);
+      printArtifactCacheStats(initialTierStats, getTierStats(artifactCache), console);
+      saveBuildRuleDurations(buildRuleDurationsFile, console);
+      saveFileHashCache(fileHashCache,
+          fileHashCacheFile,
+          fileHashCache.getHitCount() - initialHitCount,
+          fileHashCache.getMissCount() - initialMissCount,
+          console);
+    }
+  }
 
+  private static int executeBuild(Build build, Console console) {
+    EventBus events = build.getEventBus();
     Set<BuildRule> rulesToBuild = build.getDependencyGraph().getNodesWithNoIncomingEdges();
     events.post(BuildEvents.buildStarted(rulesToBuild));
+    int exitCode;
+    try {
+      exitCode = awaitBuild(build, rulesToBuild, console);
+    } finally {
+      // The uploads were overlapped with the rest of the build, but they should not be lost
+      // because Buck exits as soon as it is done, even if the build failed. Both `buck build` and
+      // `buck test` get here.
+      if (!build.flushArtifactCache()) {
+        console.getStdErr().println("Gave up waiting for the artifact cache uploads to finish.");
+      }
+    }
+
+    events.post(BuildEvents.buildFinished(exitCode));
+    return exitCode;
+  }
+
+  private static int awaitBuild(Build build, Set<BuildRule> rulesToBuild, Console console) {
     int exitCode;
     try {
       // Get the Future representing the build and then block until everything is built.
-      build.executeBuild(events, rulesToBuild).get();
+      build.executeBuild(rulesToBuild).get();
       exitCode = 0;
     } catch (IOException e) {
       console.printBuildFailureWithoutStacktrace(e);
@@ -140,14 +241,153 @@ public class BuildCommand extends AbstractCommandRunner<BuildCommandOptions> {
       console.printBuildFailureWithoutStacktrace(e);
       exitCode = 1;
     }
-
-    events.post(BuildEvents.buildFinished(exitCode));
     return exitCode;
   }
 
-  private static void addEventListeners(EventBus events) {
+  private static void saveFileHashCache(FileHashCache fileHashCache,
+      File fileHashCacheFile,
+      long hitCount,
+      long missCount,
+      Console console) {
+    if (console.getVerbosity().shouldPrintCommand()) {
+      console.getStdErr().printf("File hash cache: %d hits, %d misses\n", hitCount, missCount);
+    }
+    try {
+      fileHashCache.save(fileHashCacheFile);
+    } catch (IOException e) {
+      // The cache is only an optimization, so failing to save it should not fail the build.
+      console.getStdErr().printf("Unable to save file hash cache: %s\n", e.getMessage());
+    }
+  }
+
+  private static ImmutableList<TierStats> getTierStats(ArtifactCache artifactCache) {
+    if (artifactCache instanceof MultiArtifactCache) {
+      return ((MultiArtifactCache) artifactCache).getTierStats();
+    } else {
+      return ImmutableList.of();
+    }
+  }
+
+  private static void printArtifactCacheStats(ImmutableList<TierStats> initialTierStats,
+      ImmutableList<TierStats> tierStats,
+      Console console) {
+    if (!console.getVerbosity().shouldPrintCommand()) {
+      return;
+    }
+    for (int i = 0; i < tierStats.size(); i++) {
+      console.getStdErr().printf("Artifact cache tier %d, %s\n",
+          i,
+          tierStats.get(i).minus(initialTierStats.get(i)));
+    }
+  }
+
+  private static void printCriticalPath(CriticalPathScheduler criticalPathScheduler,
+      long buildTimeMillis,
+      Console console) {
+    if (!console.getVerbosity().shouldPrintCommand()) {
+      return;
+    }
+
+    List<BuildRule> criticalPath = criticalPathScheduler.getCriticalPath();
+    long criticalPathMillis = 0;
+    List<String> rulesThatTookTime = Lists.newArrayList();
+    for (BuildRule rule : criticalPath) {
+      long elapsedTime = criticalPathScheduler.getElapsedTime(rule);
+      if (elapsedTime > 0) {
+        criticalPathMillis += elapsedTime;
+        rulesThatTookTime.add(
+            String.format("%s (%d ms)", rule.getFullyQualifiedName(), elapsedTime));
+      }
+    }
+    console.getStdErr().printf("Critical path: %d ms of %d ms (%d%%)%s%s\n",
+        criticalPathMillis,
+        buildTimeMillis,
+        buildTimeMillis > 0 ? criticalPathMillis * 100 / buildTimeMillis : 0,
+        rulesThatTookTime.isEmpty() ? "" : ": ",
+        Joiner.on(" -> ").join(rulesThatTookTime));
+  }
+
+  private static void saveBuildRuleDurations(File buildRuleDurationsFile, Console console) {
+    try {
+      BuildRuleDurations.getInstance().save(buildRuleDurationsFile);
+    } catch (IOException e) {
+      // The durations only affect the order in which rules are built, so this is not fatal.
+      console.getStdErr().printf("Unable to save build rule durations: %s\n", e.getMessage());
+    }
+  }
+
+  /**
+   * @return an executor for an {@link AsyncEventBus} that delivers events one at a time, in the
+   *     order in which they were posted, so that listeners see the events for a rule or step in
+   *     order and see {@link com.facebook.buck.rules.BuildFinished} last. Its thread is released
+   *     when there are no more events to deliver.
+   */
+  static ExecutorService createEventBusExecutor() {
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(
+        /* corePoolSize */ 1,
+        /* maximumPoolSize */ 1,
+        EVENT_BUS_KEEP_ALIVE_SECONDS,
+        TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>());
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  static EventBus createEventBus(ExecutorService busExecutor,
+      ChromeTraceBuildListener traceListener) {
+    EventBus events = new AsyncEventBus("buck-events", busExecutor);
     events.register(new JavaUtilsLoggingBuildListener());
     JavaUtilsLoggingBuildListener.ensureLogFileIsWritten();
+    events.register(traceListener);
+    return events;
+  }
+
+  /**
+   * Waits for the events that have already been posted to be delivered, such as those from which
+   * the {@link CriticalPathScheduler} and {@link BuildRuleDurations} learn how long each rule took.
+   * @return whether they were delivered in time.
+   */
+  static boolean awaitEventDelivery(ExecutorService busExecutor) {
+    // The executor runs one task at a time in order, so this runs after every pending delivery.
+    Future<?> barrier = busExecutor.submit(new Runnable() {
+      @Override
+      public void run() {
+        // Only marks the point up to which the events have been delivered.
+      }
+    });
+    try {
+      barrier.get(EVENT_DELIVERY_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+      return true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    } catch (ExecutionException | TimeoutException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Waits for the events that have already been posted to be delivered, then writes the trace of
+   * the build. Failing to write the trace does not fail the build.
+   */
+  static void writeTrace(ExecutorService busExecutor,
+      final ChromeTraceBuildListener traceListener,
+      Console console) {
+    // The executor runs one task at a time in order, so this runs after every pending delivery.
+    Future<Void> writeTrace = busExecutor.submit(new Callable<Void>() {
+      @Override
+      public Void call() throws IOException {
+        traceListener.writeTrace();
+        return null;
+      }
+    });
+    try {
+      writeTrace.get(EVENT_DELIVERY_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException | TimeoutException e) {
+      console.getStdErr().printf("Unable to write build trace: %s\n", e.getMessage());
+    }
   }
 
   Build getBuild() {
@@ -18,6 +18,7 @@ package com.facebook.buck.cli;
 
 import com.facebook.buck.command.Build;
 import com.facebook.buck.rules.ArtifactCache;
+import com.facebook.buck.rules.AsyncArtifactCache;
 import com.facebook.buck.rules.BuildDependencies;
 import com.facebook.buck.rules.DependencyGraph;
 import com.facebook.buck.util.Console;
@@ -28,6 +29,7 @@ import com.google.common.base.Supplier;
 import com.google.common.base.Suppliers;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
+import com.google.common.eventbus.EventBus;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
 
@@ -106,6 +108,14 @@ public class BuildCommandOptions extends AbstractCommandOptions {
     return false;
   }
 
+  /**
+   * @return whether rules should be fetched from the artifact cache before their deps are built.
+   * @see BuckConfig#isTopDownBuildEnabled()
+   */
+  public boolean isTopDownBuild() {
+    return getBuckConfig().isTopDownBuildEnabled();
+  }
+
   @VisibleForTesting
   int getNumThreads() {
     return numThreads;
@@ -127,18 +137,28 @@ public class BuildCommandOptions extends AbstractCommandOptions {
       DependencyGraph graph,
       ProjectFilesystem projectFilesystem,
       ArtifactCache artifactCache,
-      Console console) {
+      Console console,
+      EventBus eventBus) {
     return new Build(graph,
         findAndroidSdkDir(),
         findAndroidNdkDir(),
         projectFilesystem,
-        artifactCache,
+        new AsyncArtifactCache(artifactCache,
+            eventBus,
+            buckConfig.getNumArtifactCacheUploadThreads(),
+            buckConfig.getArtifactCacheUploadMaxPendingBytes(),
+            buckConfig.getArtifactCacheUploadTimeoutMillis()),
         getListeningExecutorService(),
         getBuckConfig().createDefaultJavaPackageFinder(),
         console,
+        eventBus,
         buckConfig.getDefaultTestTimeoutMillis(),
         isCodeCoverageEnabled(),
         isDebugEnabled(),
-        getBuildDependencies());
+        getBuildDependencies(),
+        getNumThreads(),
+        buckConfig.isCriticalPathSchedulingEnabled(),
+        isTopDownBuild(),
+        buckConfig.isIncrementalJavacEnabled());
   }
 }
@@ -0,0 +1,256 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.cli;
+
+import com.facebook.buck.parser.ParseFinished;
+import com.facebook.buck.parser.ParseStarted;
+import com.facebook.buck.rules.ArtifactCacheFetched;
+import com.facebook.buck.rules.ArtifactCacheStored;
+import com.facebook.buck.rules.BuildFinished;
+import com.facebook.buck.rules.BuildRuleFinished;
+import com.facebook.buck.rules.BuildRuleStarted;
+import com.facebook.buck.rules.BuildStarted;
+import com.facebook.buck.rules.RuleKeyCalculated;
+import com.facebook.buck.step.StepEvent;
+import com.facebook.buck.step.StepFinished;
+import com.facebook.buck.step.StepStarted;
+import com.facebook.buck.util.BuckConstant;
+import com.facebook.buck.util.ProjectFilesystem;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.eventbus.Subscribe;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records the events of a build in the
+ * <a href="https://code.google.com/p/trace-viewer/">Trace Event Format</a>, which can be loaded
+ * into {@code chrome://tracing} to see what each thread was doing throughout the build: parsing,
+ * computing RuleKeys, waiting on the {@link com.facebook.buck.rules.ArtifactCache}, running the
+ * steps of each rule, and uploading the outputs of rules in the background.
+ */
+public class ChromeTraceBuildListener {
+
+  /** Path, relative to the project root, of the trace of the most recent build. */
+  public static final String PATH_TO_TRACE_FILE = BuckConstant.BIN_DIR + "/build.trace";
+
+  private static final String PHASE_BEGIN = "B";
+  private static final String PHASE_END = "E";
+  private static final String PHASE_COMPLETE = "X";
+
+  private final ProjectFilesystem projectFilesystem;
+
+  /** Trace events in the order in which they were received, guarded by {@code this}. */
+  private final List<ImmutableMap<String, Object>> traceEvents;
+
+  public ChromeTraceBuildListener(ProjectFilesystem projectFilesystem) {
+    this.projectFilesystem = Preconditions.checkNotNull(projectFilesystem);
+    this.traceEvents = Lists.newArrayList();
+  }
+
+  @Subscribe
+  public void buildStarted(BuildStarted started) {
+    addEvent("build",
+        "buck",
+        PHASE_BEGIN,
+        started.getNanoTime(),
+        started.getThreadId(),
+        ImmutableMap.<String, Object>of());
+  }
+
+  @Subscribe
+  public void buildFinished(BuildFinished finished) {
+    addEvent("build",
+        "buck",
+        PHASE_END,
+        finished.getNanoTime(),
+        finished.getThreadId(),
+        ImmutableMap.<String, Object>of("exit_code", finished.getExitCode()));
+  }
+
+  @Subscribe
+  public void parseStarted(ParseStarted started) {
+    addEvent("parse",
+        "buck",
+        PHASE_BEGIN,
+        started.getNanoTime(),
+        started.getThreadId(),
+        ImmutableMap.<String, Object>of());
+  }
+
+  @Subscribe
+  public void parseFinished(ParseFinished finished) {
+    addEvent("parse",
+        "buck",
+        PHASE_END,
+        finished.getNanoTime(),
+        finished.getThreadId(),
+        ImmutableMap.<String, Object>of());
+  }
+
+  @Subscribe
+  public void ruleStarted(BuildRuleStarted started) {
+    addEvent(started.getBuildRule().getFullyQualifiedName(),
+        started.getBuildRule().getType().getName(),
+        PHASE_BEGIN,
+        started.getNanoTime(),
+        started.getThreadId(),
+        ImmutableMap.<String, Object>of());
+  }
+
+  @Subscribe
+  public void ruleFinished(BuildRuleFinished finished) {
+    addEvent(finished.getBuildRule().getFullyQualifiedName(),
+        finished.getBuildRule().getType().getName(),
+        PHASE_END,
+        finished.getNanoTime(),
+        finished.getThreadId(),
+        ImmutableMap.<String, Object>of(
+            "status", finished.getStatus().toString(),
+            "cache_result", finished.getCacheResult().toString()));
+  }
+
+  @Subscribe
+  public void ruleKeyCalculated(RuleKeyCalculated calculated) {
+    addCompleteEvent("rule_key",
+        calculated.getNanoTime(),
+        calculated.getElapsedNanos(),
+        calculated.getThreadId(),
+        ImmutableMap.<String, Object>of(
+            "rule", calculated.getBuildRule().getFullyQualifiedName(),
+            "rule_key", calculated.getRuleKey().toString()));
+  }
+
+  @Subscribe
+  public void artifactCacheFetched(ArtifactCacheFetched fetched) {
+    addCompleteEvent("artifact_cache_fetch",
+        fetched.getNanoTime(),
+        fetched.getElapsedNanos(),
+        fetched.getThreadId(),
+        ImmutableMap.<String, Object>of(
+            "rule", fetched.getBuildRule().getFullyQualifiedName(),
+            "cache_result", fetched.getCacheResult().toString()));
+  }
+
+  @Subscribe
+  public void artifactCacheStored(ArtifactCacheStored stored) {
+    addCompleteEvent("artifact_cache_store",
+        stored.getNanoTime(),
+        stored.getElapsedNanos(),
+        stored.getThreadId(),
+        ImmutableMap.<String, Object>of(
+            "rule_key", stored.getRuleKey().toString(),
+            "size_bytes", stored.getSizeBytes(),
+            "queued_ms", TimeUnit.NANOSECONDS.toMillis(stored.getQueuedNanos())));
+  }
+
+  @Subscribe
+  public void stepStarted(StepStarted started) {
+    addEvent(started.getShortName(),
+        "step",
+        PHASE_BEGIN,
+        started.getNanoTime(),
+        started.getThreadId(),
+        getStepArgs(started));
+  }
+
+  @Subscribe
+  public void stepFinished(StepFinished finished) {
+    addEvent(finished.getShortName(),
+        "step",
+        PHASE_END,
+        finished.getNanoTime(),
+        finished.getThreadId(),
+        ImmutableMap.<String, Object>of("exit_code", finished.getExitCode()));
+  }
+
+  private static ImmutableMap<String, Object> getStepArgs(StepEvent event) {
+    if (event.getBuildTarget().isPresent()) {
+      return ImmutableMap.<String, Object>of(
+          "rule", event.getBuildTarget().get().getFullyQualifiedName());
+    } else {
+      return ImmutableMap.of();
+    }
+  }
+
+  /**
+   * Adds an event that covers the {@code elapsedNanos} before {@code endNanoTime}, for work that is
+   * only reported once it is done.
+   */
+  private void addCompleteEvent(String name,
+      long endNanoTime,
+      long elapsedNanos,
+      long threadId,
+      ImmutableMap<String, Object> args) {
+    ImmutableMap<String, Object> traceEvent = ImmutableMap.<String, Object>builder()
+        .put("name", name)
+        .put("cat", "buck")
+        .put("ph", PHASE_COMPLETE)
+        .put("ts", TimeUnit.NANOSECONDS.toMicros(endNanoTime - elapsedNanos))
+        .put("dur", TimeUnit.NANOSECONDS.toMicros(elapsedNanos))
+        .put("pid", 0)
+        .put("tid", threadId)
+        .put("args", args)
+        .build();
+    synchronized (this) {
+      traceEvents.add(traceEvent);
+    }
+  }
+
+  private void addEvent(String name,
+      String category,
+      String phase,
+      long nanoTime,
+      long threadId,
+      ImmutableMap<String, Object> args) {
+    ImmutableMap<String, Object> traceEvent = ImmutableMap.<String, Object>builder()
+        .put("name", name)
+        .put("cat", category)
+        .put("ph", phase)
+        .put("ts", TimeUnit.NANOSECONDS.toMicros(nanoTime))
+        .put("pid", 0)
+        .put("tid", threadId)
+        .put("args", args)
+        .build();
+    synchronized (this) {
+      traceEvents.add(traceEvent);
+    }
+  }
+
+  @VisibleForTesting
+  synchronized ImmutableList<ImmutableMap<String, Object>> getTraceEvents() {
+    return ImmutableList.copyOf(traceEvents);
+  }
+
+  /**
+   * Writes the events received so far to {@link #PATH_TO_TRACE_FILE}, replacing the trace of the
+   * previous build.
+   */
+  public void writeTrace() throws IOException {
+    File traceFile = projectFilesystem.getFileForRelativePath(PATH_TO_TRACE_FILE);
+    Files.createParentDirs(traceFile);
+    new ObjectMapper().writeValue(traceFile, getTraceEvents());
+  }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.cli;
+
+import com.facebook.buck.rules.HttpArtifactCacheServer;
+import com.google.common.base.Optional;
+
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Entry point of {@code bin/buck-cache-server}, which runs an {@link HttpArtifactCacheServer}.
+ */
+public class HttpArtifactCacheServerMain {
+
+  private HttpArtifactCacheServerMain() {}
+
+  private static class Arguments {
+    @Option(name = "--dir", required = true, usage = "Directory in which to keep the artifacts.")
+    private File dir;
+
+    @Option(name = "--port", usage = "Port on which to listen. Defaults to 8080.")
+    private int port = 8080;
+
+    @Option(name = "--max-size-mb",
+        usage = "Size in megabytes beyond which the least recently used artifacts are evicted.")
+    private long maxSizeMegabytes = -1;
+
+    @Option(name = "--threads", usage = "Number of requests to serve at once. Defaults to 16.")
+    private int numThreads = 16;
+  }
+
+  public static void main(String[] args) throws IOException {
+    Arguments arguments = new Arguments();
+    CmdLineParser parser = new CmdLineParser(arguments);
+    try {
+      parser.parseArgument(args);
+    } catch (CmdLineException e) {
+      System.err.println(e.getMessage());
+      parser.printUsage(System.err);
+      System.exit(1);
+    }
+
+    Optional<Long> maxCacheSizeBytes = arguments.maxSizeMegabytes >= 0
+        ? Optional.of(arguments.maxSizeMegabytes << 20)
+        : Optional.<Long>absent();
+    final HttpArtifactCacheServer server = new HttpArtifactCacheServer(arguments.port,
+        arguments.dir,
+        maxCacheSizeBytes,
+        arguments.numThreads);
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+      @Override
+      public void run() {
+        server.stop();
+      }
+    });
+    server.start();
+    System.err.printf("Serving artifacts from %s on port %d\n",
+        arguments.dir.getAbsolutePath(),
+        server.getPort());
+  }
+}
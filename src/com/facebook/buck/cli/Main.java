@@ -17,6 +17,7 @@
 package com.facebook.buck.cli;
 
 import com.facebook.buck.parser.Parser;
+import com.facebook.buck.rules.ArtifactCache;
 import com.facebook.buck.rules.KnownBuildRuleTypes;
 import com.facebook.buck.util.Ansi;
 import com.facebook.buck.util.Console;
@@ -59,6 +60,9 @@ public final class Main {
     private final ProjectFilesystemWatcher filesystemWatcher;
     private final BuckConfig config;
 
+    /** Created when it is first needed, as it may connect to a remote cache. */
+    @Nullable private ArtifactCache artifactCache;
+
     public Daemon(ProjectFilesystem projectFilesystem,
         BuckConfig config,
         Console console) throws IOException {
@@ -85,6 +89,17 @@ public final class Main {
       return config;
     }
 
+    /**
+     * @return the artifact cache that every command uses, so that the misses that it remembers are
+     *     remembered across builds.
+     */
+    private ArtifactCache getArtifactCache(Console console) {
+      if (artifactCache == null) {
+        artifactCache = config.createArtifactCache(console);
+      }
+      return artifactCache;
+    }
+
     @Override
     public void close() throws IOException {
       filesystemWatcher.close();
@@ -182,8 +197,9 @@ public final class Main {
 
     // Create or get and invalidate cached command parameters.
     Parser parser;
+    @Nullable Daemon daemon = null;
     if (isDaemon()) {
-      Daemon daemon = getDaemon(projectFilesystem, config, console);
+      daemon = getDaemon(projectFilesystem, config, console);
       daemon.watchFileSystem();
       parser = daemon.getParser();
     } else {
@@ -199,7 +215,7 @@ public final class Main {
           console,
           projectFilesystem,
           new KnownBuildRuleTypes(),
-          config.createArtifactCache(console),
+          daemon != null ? daemon.getArtifactCache(console) : config.createArtifactCache(console),
           parser));
     } else {
       int exitCode = new GenericBuckOptions(stdOut, stdErr).execute(args);
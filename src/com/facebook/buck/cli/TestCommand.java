@@ -26,6 +26,8 @@ import com.facebook.buck.java.JavaLibraryRule;
 import com.facebook.buck.java.JavaTestRule;
 import com.facebook.buck.model.BuildTarget;
 import com.facebook.buck.parser.NoSuchBuildTargetException;
+import com.facebook.buck.parser.ParseFinished;
+import com.facebook.buck.parser.ParseStarted;
 import com.facebook.buck.parser.PartialGraph;
 import com.facebook.buck.parser.RawRulePredicate;
 import com.facebook.buck.rules.BuildContext;
@@ -58,6 +60,7 @@ import com.google.common.collect.ImmutableSortedSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
+import com.google.common.eventbus.EventBus;
 import com.google.common.io.Closeables;
 import com.google.common.io.Files;
 import com.google.common.util.concurrent.FutureCallback;
@@ -71,6 +74,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 
 public class TestCommand extends AbstractCommandRunner<TestCommandOptions> {
 
@@ -238,6 +242,19 @@ public class TestCommand extends AbstractCommandRunner<TestCommandOptions> {
       NoSuchBuildTargetException {
     Logging.setLoggingLevelForVerbosity(console.getVerbosity());
 
+    ExecutorService busExecutor = BuildCommand.createEventBusExecutor();
+    ChromeTraceBuildListener traceListener = new ChromeTraceBuildListener(getProjectFilesystem());
+    EventBus events = BuildCommand.createEventBus(busExecutor, traceListener);
+    try {
+      return parseAndRunAllTests(options, events, busExecutor);
+    } finally {
+      BuildCommand.writeTrace(busExecutor, traceListener, console);
+    }
+  }
+
+  private int parseAndRunAllTests(TestCommandOptions options,
+      EventBus events,
+      ExecutorService busExecutor) throws IOException, NoSuchBuildTargetException {
     // The first step is to parse all of the build files. This will populate the parser and find all
     // of the test rules.
     RawRulePredicate predicate = new RawRulePredicate() {
@@ -249,10 +266,16 @@ public class TestCommand extends AbstractCommandRunner<TestCommandOptions> {
         return buildRuleType.isTestRule();
       }
     };
-    PartialGraph partialGraph = PartialGraph.createPartialGraph(predicate,
-        getProjectFilesystem(),
-        options.getDefaultIncludes(),
-        getParser());
+    PartialGraph partialGraph;
+    events.post(new ParseStarted(ImmutableList.<BuildTarget>of()));
+    try {
+      partialGraph = PartialGraph.createPartialGraph(predicate,
+          getProjectFilesystem(),
+          options.getDefaultIncludes(),
+          getParser());
+    } finally {
+      events.post(new ParseFinished());
+    }
 
     final DependencyGraph graph = partialGraph.getDependencyGraph();
 
@@ -271,8 +294,13 @@ public class TestCommand extends AbstractCommandRunner<TestCommandOptions> {
         graph,
         getProjectFilesystem(),
         getArtifactCache(),
+        console,
+        events);
+    // This also waits for the uploads to the artifact cache to finish before the tests run.
+    int exitCode = BuildCommand.executeBuildAndPrintAnyFailuresToConsole(build,
+        getArtifactCache(),
+        busExecutor,
         console);
-    int exitCode = BuildCommand.executeBuildAndPrintAnyFailuresToConsole(build, console);
     if (exitCode != 0) {
       return exitCode;
     }
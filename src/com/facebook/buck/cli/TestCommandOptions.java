@@ -116,6 +116,15 @@ public class TestCommandOptions extends BuildCommandOptions {
     return isDebugEnabled;
   }
 
+  /**
+   * Tests read the outputs of the transitive deps of the rules under test when they run, so those
+   * must always be built.
+   */
+  @Override
+  public boolean isTopDownBuild() {
+    return false;
+  }
+
   public ImmutableSet<String> getIncludedLabels() {
     return includedLabelsSupplier.get();
   }
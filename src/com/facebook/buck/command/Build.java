@@ -18,12 +18,14 @@ package com.facebook.buck.command;
 
 import com.facebook.buck.android.HasAndroidPlatformTarget;
 import com.facebook.buck.graph.AbstractBottomUpTraversal;
-import com.facebook.buck.rules.ArtifactCache;
+import com.facebook.buck.rules.AsyncArtifactCache;
 import com.facebook.buck.rules.BuildContext;
 import com.facebook.buck.rules.BuildDependencies;
 import com.facebook.buck.rules.BuildRule;
+import com.facebook.buck.rules.BuildRuleDurations;
 import com.facebook.buck.rules.BuildRuleSuccess;
 import com.facebook.buck.rules.Builder;
+import com.facebook.buck.rules.CriticalPathScheduler;
 import com.facebook.buck.rules.DependencyGraph;
 import com.facebook.buck.rules.JavaPackageFinder;
 import com.facebook.buck.step.DefaultStepRunner;
@@ -53,7 +55,7 @@ public class Build {
 
   private final ExecutionContext executionContext;
 
-  private final ArtifactCache artifactCache;
+  private final AsyncArtifactCache artifactCache;
 
   private final StepRunner stepRunner;
 
@@ -61,28 +63,52 @@ public class Build {
 
   private final BuildDependencies buildDependencies;
 
-  /** Not set until {@link #executeBuild(EventBus)} is invoked. */
+  private final CriticalPathScheduler criticalPathScheduler;
+
+  private final EventBus eventBus;
+
+  private final boolean isTopDownBuild;
+
+  private final boolean isIncrementalJavac;
+
+  /** Not set until {@link #executeBuild(Set)} is invoked. */
   @Nullable
   private BuildContext buildContext;
 
   /**
    * @param androidSdkDir where the user's Android SDK is installed.
+   * @param artifactCache to which the outputs of the rules are uploaded in the background, so
+   *     {@link #flushArtifactCache()} must be called once the build is done.
+   * @param eventBus where the events for the build, and for each step that it runs, are posted.
    * @param buildDependencies How to include dependencies when building rules.
+   * @param numThreads number of threads in {@code listeningExecutorService}.
+   * @param isCriticalPathSchedulingEnabled whether rules on the critical path should be built
+   *     ahead of other rules that are ready to be built.
+   * @param isTopDownBuild whether rules should be fetched from the artifact cache before their deps
+   *     are built, in which case deps are only built if they are needed to build a rule.
+   * @param isIncrementalJavac whether java_library rules should only recompile the sources that
+   *     have changed, and those affected by them.
    */
   public Build(
       DependencyGraph dependencyGraph,
       Optional<File> androidSdkDir,
       Optional<File> ndkRoot,
       ProjectFilesystem projectFilesystem,
-      ArtifactCache artifactCache,
+      AsyncArtifactCache artifactCache,
       ListeningExecutorService listeningExecutorService,
       JavaPackageFinder javaPackageFinder,
       Console console,
+      EventBus eventBus,
       long defaultTestTimeoutMillis,
       boolean isCodeCoverageEnabled,
       boolean isDebugEnabled,
-      BuildDependencies buildDependencies) {
+      BuildDependencies buildDependencies,
+      int numThreads,
+      boolean isCriticalPathSchedulingEnabled,
+      boolean isTopDownBuild,
+      boolean isIncrementalJavac) {
     this.dependencyGraph = Preconditions.checkNotNull(dependencyGraph);
+    this.eventBus = Preconditions.checkNotNull(eventBus);
 
     Optional<AndroidPlatformTarget> androidPlatformTarget = findAndroidPlatformTarget(
         dependencyGraph, androidSdkDir, console.getStdErr());
@@ -94,11 +120,19 @@ public class Build {
         .setDefaultTestTimeoutMillis(defaultTestTimeoutMillis)
         .setCodeCoverageEnabled(isCodeCoverageEnabled)
         .setDebugEnabled(isDebugEnabled)
+        .setEventBus(eventBus)
         .build();
     this.artifactCache = Preconditions.checkNotNull(artifactCache);
     this.stepRunner = new DefaultStepRunner(executionContext, listeningExecutorService);
     this.javaPackageFinder = Preconditions.checkNotNull(javaPackageFinder);
     this.buildDependencies = Preconditions.checkNotNull(buildDependencies);
+    this.criticalPathScheduler = new CriticalPathScheduler(dependencyGraph,
+        BuildRuleDurations.getInstance(),
+        listeningExecutorService,
+        numThreads,
+        isCriticalPathSchedulingEnabled);
+    this.isTopDownBuild = isTopDownBuild;
+    this.isIncrementalJavac = isIncrementalJavac;
   }
 
   public DependencyGraph getDependencyGraph() {
@@ -113,12 +147,28 @@ public class Build {
     return stepRunner;
   }
 
-  /** Returns null until {@link #executeBuild(EventBus, Set)} is invoked. */
+  public CriticalPathScheduler getCriticalPathScheduler() {
+    return criticalPathScheduler;
+  }
+
+  public EventBus getEventBus() {
+    return eventBus;
+  }
+
+  /** Returns null until {@link #executeBuild(Set)} is invoked. */
   @Nullable
   public BuildContext getBuildContext() {
     return buildContext;
   }
 
+  /**
+   * Waits for the outputs of the rules that were built to be uploaded to the artifact cache.
+   * @return whether every upload finished before the configured timeout.
+   */
+  public boolean flushArtifactCache() {
+    return artifactCache.flush();
+  }
+
   public static Optional<AndroidPlatformTarget> findAndroidPlatformTarget(
       DependencyGraph dependencyGraph, Optional<File> androidSdkDirOption, PrintStream stdErr) {
     if (androidSdkDirOption.isPresent()) {
@@ -191,9 +241,9 @@ public class Build {
     return traversal.getResult();
   }
 
-  public ListenableFuture<List<BuildRuleSuccess>> executeBuild(EventBus events,
-                                                               Set<BuildRule> rulesToBuild)
+  public ListenableFuture<List<BuildRuleSuccess>> executeBuild(Set<BuildRule> rulesToBuild)
       throws IOException, StepFailedException {
+    eventBus.register(criticalPathScheduler);
     buildContext = BuildContext.builder()
         .setProjectRoot(executionContext.getProjectDirectoryRoot())
         .setDependencyGraph(dependencyGraph)
@@ -201,13 +251,18 @@ public class Build {
         .setProjectFilesystem(executionContext.getProjectFilesystem())
         .setArtifactCache(artifactCache)
         .setJavaPackageFinder(javaPackageFinder)
-        .setEventBus(events)
+        .setEventBus(eventBus)
         .setAndroidBootclasspathForAndroidPlatformTarget(
             executionContext.getAndroidPlatformTargetOptional())
         .setBuildDependencies(buildDependencies)
         .setConsole(executionContext.getConsole())
+        .setCriticalPathScheduler(criticalPathScheduler)
+        .setTopDownBuild(isTopDownBuild)
+        .setIncrementalJavac(isIncrementalJavac)
         .build();
 
-    return Builder.getInstance().buildRules(rulesToBuild, buildContext);
+    Builder builder = Builder.getInstance();
+    builder.prefetchFromArtifactCache(dependencyGraph.getNodes(), buildContext);
+    return builder.buildRules(rulesToBuild, buildContext);
   }
 }
@@ -66,6 +66,7 @@ public class PrebuiltNativeLibraryBuildRule extends AbstractCachingBuildRule {
 
   @Override
   protected RuleKey.Builder appendToRuleKey(RuleKey.Builder builder) {
+    addInputDirectory(builder, nativeLibs);
     return super.appendToRuleKey(builder)
         .set("nativeLibs", nativeLibs);
   }
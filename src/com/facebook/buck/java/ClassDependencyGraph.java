@@ -0,0 +1,295 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.java;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.SetMultimap;
+import com.google.common.collect.Sets;
+import com.google.common.io.Closer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+/**
+ * Which classes each source of a java_library defines and which of those classes each source
+ * refers to, as of the compilation that wrote the jar that it describes. It is what an incremental
+ * compilation uses to find the sources that a change to some of them may affect.
+ */
+final class ClassDependencyGraph {
+
+  private static final String HEADER = "buck-class-dependency-graph-1";
+
+  /** Longest string that is read, so that a corrupt graph is not mistaken for a huge one. */
+  private static final int MAX_STRING_LENGTH = 64 * 1024 * 1024;
+
+  private final String key;
+  private final String jarHash;
+  private final ImmutableMap<String, String> dependencyFile;
+  private final ImmutableSortedMap<String, Source> sources;
+
+  /**
+   * @param key identifies the options and classpath of the compilation, which must be the same for
+   *     an incremental compilation to use this graph.
+   * @param jarHash the SHA-1 of the jar that the compilation wrote.
+   * @param dependencyFile the {@link DependencyFile} of the classes in that jar.
+   * @param sources each source of the compilation, keyed by its path.
+   */
+  ClassDependencyGraph(String key,
+      String jarHash,
+      ImmutableMap<String, String> dependencyFile,
+      ImmutableSortedMap<String, Source> sources) {
+    this.key = Preconditions.checkNotNull(key);
+    this.jarHash = Preconditions.checkNotNull(jarHash);
+    this.dependencyFile = Preconditions.checkNotNull(dependencyFile);
+    this.sources = Preconditions.checkNotNull(sources);
+  }
+
+  String getKey() {
+    return key;
+  }
+
+  String getJarHash() {
+    return jarHash;
+  }
+
+  ImmutableMap<String, String> getDependencyFile() {
+    return dependencyFile;
+  }
+
+  ImmutableSortedMap<String, Source> getSources() {
+    return sources;
+  }
+
+  /**
+   * @param sourceHashes the SHA-1 of each source that is to be compiled now, keyed by its path.
+   * @return the sources that have changed since this graph was recorded, along with every source
+   *     that refers to a class that one of them defines, directly or through other sources. This is
+   *     absent if the sources are not the same ones, as then which classes a name refers to may
+   *     have changed.
+   */
+  Optional<ImmutableSortedSet<String>> getSourcesToRecompile(Map<String, String> sourceHashes) {
+    if (!sources.keySet().equals(sourceHashes.keySet())) {
+      return Optional.absent();
+    }
+
+    Map<String, String> sourcesOfClassFiles = Maps.newHashMap();
+    for (Map.Entry<String, Source> entry : sources.entrySet()) {
+      for (String classFile : entry.getValue().getClassFiles()) {
+        sourcesOfClassFiles.put(classFile, entry.getKey());
+      }
+    }
+    SetMultimap<String, String> referringSources = HashMultimap.create();
+    for (Map.Entry<String, Source> entry : sources.entrySet()) {
+      for (String classFile : entry.getValue().getReferencedClassFiles()) {
+        String source = sourcesOfClassFiles.get(classFile);
+        if (source != null) {
+          referringSources.put(source, entry.getKey());
+        }
+      }
+    }
+
+    Set<String> sourcesToRecompile = Sets.newHashSet();
+    List<String> queue = Lists.newArrayList();
+    for (Map.Entry<String, Source> entry : sources.entrySet()) {
+      if (!entry.getValue().getHash().equals(sourceHashes.get(entry.getKey()))) {
+        queue.add(entry.getKey());
+      }
+    }
+    while (!queue.isEmpty()) {
+      String source = queue.remove(queue.size() - 1);
+      if (sourcesToRecompile.add(source)) {
+        queue.addAll(referringSources.get(source));
+      }
+    }
+    return Optional.of(ImmutableSortedSet.copyOf(sourcesToRecompile));
+  }
+
+  /** @return the graph stored at {@code file}, or {@code null} if it cannot be read. */
+  @Nullable
+  static ClassDependencyGraph read(File file) {
+    if (!file.isFile()) {
+      return null;
+    }
+    try {
+      Closer closer = Closer.create();
+      try {
+        DataInputStream input = closer.register(
+            new DataInputStream(new BufferedInputStream(new FileInputStream(file))));
+        if (!HEADER.equals(readString(input))) {
+          return null;
+        }
+        String key = readString(input);
+        String jarHash = readString(input);
+
+        ImmutableMap.Builder<String, String> dependencyFile = ImmutableMap.builder();
+        for (int i = input.readInt(); i > 0; i--) {
+          dependencyFile.put(readString(input), readString(input));
+        }
+
+        ImmutableSortedMap.Builder<String, Source> sources = ImmutableSortedMap.naturalOrder();
+        for (int i = input.readInt(); i > 0; i--) {
+          String path = readString(input);
+          sources.put(path, new Source(readString(input),
+              readStrings(input),
+              readStrings(input),
+              readStrings(input),
+              readStrings(input)));
+        }
+        return new ClassDependencyGraph(key, jarHash, dependencyFile.build(), sources.build());
+      } finally {
+        closer.close();
+      }
+    } catch (IOException | RuntimeException e) {
+      // A graph that cannot be read only costs a full compilation.
+      return null;
+    }
+  }
+
+  void write(File file) throws IOException {
+    Closer closer = Closer.create();
+    try {
+      DataOutputStream output = closer.register(
+          new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file))));
+      writeString(output, HEADER);
+      writeString(output, key);
+      writeString(output, jarHash);
+
+      output.writeInt(dependencyFile.size());
+      for (Map.Entry<String, String> entry : dependencyFile.entrySet()) {
+        writeString(output, entry.getKey());
+        writeString(output, entry.getValue());
+      }
+
+      output.writeInt(sources.size());
+      for (Map.Entry<String, Source> entry : sources.entrySet()) {
+        Source source = entry.getValue();
+        writeString(output, entry.getKey());
+        writeString(output, source.getHash());
+        writeStrings(output, source.getClassFiles());
+        writeStrings(output, source.getReferencedClassFiles());
+        writeStrings(output, source.getAbiSummaries());
+        writeStrings(output, source.getConstants());
+      }
+    } finally {
+      closer.close();
+    }
+  }
+
+  /** Unlike {@link DataOutputStream#writeUTF(String)}, this writes strings of any length. */
+  private static void writeString(DataOutputStream output, String string) throws IOException {
+    byte[] bytes = string.getBytes(Charsets.UTF_8);
+    output.writeInt(bytes.length);
+    output.write(bytes);
+  }
+
+  private static String readString(DataInputStream input) throws IOException {
+    int length = input.readInt();
+    if (length < 0 || length > MAX_STRING_LENGTH) {
+      throw new IOException("Bad string length: " + length);
+    }
+    byte[] bytes = new byte[length];
+    input.readFully(bytes);
+    return new String(bytes, Charsets.UTF_8);
+  }
+
+  private static void writeStrings(DataOutputStream output, Collection<String> strings)
+      throws IOException {
+    output.writeInt(strings.size());
+    for (String string : strings) {
+      writeString(output, string);
+    }
+  }
+
+  private static ImmutableSortedSet<String> readStrings(DataInputStream input) throws IOException {
+    ImmutableSortedSet.Builder<String> strings = ImmutableSortedSet.naturalOrder();
+    for (int i = input.readInt(); i > 0; i--) {
+      strings.add(readString(input));
+    }
+    return strings.build();
+  }
+
+  /** What the graph records about a single source file. */
+  static final class Source {
+    private final String hash;
+    private final ImmutableSortedSet<String> classFiles;
+    private final ImmutableSortedSet<String> referencedClassFiles;
+    private final ImmutableSortedSet<String> abiSummaries;
+    private final ImmutableSortedSet<String> constants;
+
+    /**
+     * @param hash the SHA-1 of the contents of the source.
+     * @param classFiles the paths in the jar of the class files compiled from the source.
+     * @param referencedClassFiles the paths of the class files compiled from other sources of the
+     *     library that those class files refer to.
+     * @param abiSummaries the ABI summaries of the top-level types of the source.
+     * @param constants the compile-time constants that the source declares, which other sources
+     *     may have copied.
+     * @see ClassFileReferences
+     */
+    Source(String hash,
+        ImmutableSortedSet<String> classFiles,
+        ImmutableSortedSet<String> referencedClassFiles,
+        ImmutableSortedSet<String> abiSummaries,
+        ImmutableSortedSet<String> constants) {
+      this.hash = Preconditions.checkNotNull(hash);
+      this.classFiles = Preconditions.checkNotNull(classFiles);
+      this.referencedClassFiles = Preconditions.checkNotNull(referencedClassFiles);
+      this.abiSummaries = Preconditions.checkNotNull(abiSummaries);
+      this.constants = Preconditions.checkNotNull(constants);
+    }
+
+    String getHash() {
+      return hash;
+    }
+
+    ImmutableSortedSet<String> getClassFiles() {
+      return classFiles;
+    }
+
+    ImmutableSortedSet<String> getReferencedClassFiles() {
+      return referencedClassFiles;
+    }
+
+    ImmutableSortedSet<String> getAbiSummaries() {
+      return abiSummaries;
+    }
+
+    ImmutableSortedSet<String> getConstants() {
+      return constants;
+    }
+  }
+}
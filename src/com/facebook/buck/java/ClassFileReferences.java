@@ -0,0 +1,212 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.java;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedSet;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * What a class file refers to, as read from its constant pool, and the compile-time constants that
+ * it declares, which javac copies into the classes that use them rather than referring to them.
+ */
+final class ClassFileReferences {
+
+  private static final int MAGIC = 0xCAFEBABE;
+
+  private static final int CONSTANT_UTF8 = 1;
+  private static final int CONSTANT_INTEGER = 3;
+  private static final int CONSTANT_FLOAT = 4;
+  private static final int CONSTANT_LONG = 5;
+  private static final int CONSTANT_DOUBLE = 6;
+  private static final int CONSTANT_CLASS = 7;
+  private static final int CONSTANT_STRING = 8;
+  private static final int CONSTANT_FIELDREF = 9;
+  private static final int CONSTANT_METHODREF = 10;
+  private static final int CONSTANT_INTERFACE_METHODREF = 11;
+  private static final int CONSTANT_NAME_AND_TYPE = 12;
+  private static final int CONSTANT_METHOD_HANDLE = 15;
+  private static final int CONSTANT_METHOD_TYPE = 16;
+  private static final int CONSTANT_INVOKE_DYNAMIC = 18;
+
+  private static final int ACC_PRIVATE = 0x0002;
+
+  /**
+   * A class type in a descriptor or signature, such as the {@code com/example/Foo} of
+   * {@code (Lcom/example/Foo;)V} or of {@code Lcom/example/Foo<TT;>;}.
+   */
+  private static final Pattern CLASS_TYPE = Pattern.compile("L([^;<>()\\[]+)[;<]");
+
+  private final ImmutableSet<String> referencedClasses;
+  private final ImmutableSortedSet<String> constants;
+
+  private ClassFileReferences(ImmutableSet<String> referencedClasses,
+      ImmutableSortedSet<String> constants) {
+    this.referencedClasses = Preconditions.checkNotNull(referencedClasses);
+    this.constants = Preconditions.checkNotNull(constants);
+  }
+
+  /**
+   * @return the internal names, such as {@code com/example/Foo$Bar}, of the classes that the class
+   *     file refers to. This may include names that are not classes, but never misses a class.
+   */
+  ImmutableSet<String> getReferencedClasses() {
+    return referencedClasses;
+  }
+
+  /**
+   * @return each compile-time constant that the class declares and that another class could use,
+   *     as its name, descriptor and value.
+   */
+  ImmutableSortedSet<String> getConstants() {
+    return constants;
+  }
+
+  /** @throws IOException if {@code classFile} is not a class file that this can read. */
+  static ClassFileReferences read(byte[] classFile) throws IOException {
+    DataInputStream input = new DataInputStream(new ByteArrayInputStream(classFile));
+    if (input.readInt() != MAGIC) {
+      throw new IOException("Not a class file.");
+    }
+    input.readUnsignedShort(); // minor_version
+    input.readUnsignedShort(); // major_version
+
+    // Every entry of the constant pool is read, as the values of constants are among them.
+    int constantPoolCount = input.readUnsignedShort();
+    String[] utf8s = new String[constantPoolCount];
+    String[] values = new String[constantPoolCount];
+    int[] stringIndexes = new int[constantPoolCount];
+    int[] classNameIndexes = new int[constantPoolCount];
+    int numClasses = 0;
+    for (int i = 1; i < constantPoolCount; i++) {
+      int tag = input.readUnsignedByte();
+      switch (tag) {
+        case CONSTANT_UTF8:
+          utf8s[i] = input.readUTF();
+          break;
+        case CONSTANT_INTEGER:
+          values[i] = "I" + input.readInt();
+          break;
+        case CONSTANT_FLOAT:
+          values[i] = "F" + Integer.toHexString(input.readInt());
+          break;
+        case CONSTANT_LONG:
+          values[i] = "J" + input.readLong();
+          // A long takes up two entries.
+          i++;
+          break;
+        case CONSTANT_DOUBLE:
+          values[i] = "D" + Long.toHexString(input.readLong());
+          i++;
+          break;
+        case CONSTANT_CLASS:
+          classNameIndexes[numClasses++] = input.readUnsignedShort();
+          break;
+        case CONSTANT_STRING:
+          stringIndexes[i] = input.readUnsignedShort();
+          break;
+        case CONSTANT_METHOD_TYPE:
+          input.readUnsignedShort();
+          break;
+        case CONSTANT_FIELDREF:
+        case CONSTANT_METHODREF:
+        case CONSTANT_INTERFACE_METHODREF:
+        case CONSTANT_NAME_AND_TYPE:
+        case CONSTANT_INVOKE_DYNAMIC:
+          input.readInt();
+          break;
+        case CONSTANT_METHOD_HANDLE:
+          input.readUnsignedByte();
+          input.readUnsignedShort();
+          break;
+        default:
+          throw new IOException("Unknown constant pool tag: " + tag);
+      }
+    }
+    for (int i = 1; i < constantPoolCount; i++) {
+      if (stringIndexes[i] != 0) {
+        values[i] = "S" + getUtf8(utf8s, stringIndexes[i]);
+      }
+    }
+
+    ImmutableSet.Builder<String> referencedClasses = ImmutableSet.builder();
+    for (int i = 0; i < numClasses; i++) {
+      String name = getUtf8(utf8s, classNameIndexes[i]);
+      // The name of an array class is its descriptor, whose class types are matched below.
+      if (name.charAt(0) != '[') {
+        referencedClasses.add(name);
+      }
+    }
+    // Types that only appear in descriptors and signatures, such as those of the parameters of a
+    // method or of an annotation, are only named by them.
+    for (String utf8 : utf8s) {
+      if (utf8 != null && utf8.indexOf(';') >= 0) {
+        Matcher matcher = CLASS_TYPE.matcher(utf8);
+        while (matcher.find()) {
+          referencedClasses.add(matcher.group(1));
+        }
+      }
+    }
+
+    input.readUnsignedShort(); // access_flags
+    input.readUnsignedShort(); // this_class
+    input.readUnsignedShort(); // super_class
+    int interfacesCount = input.readUnsignedShort();
+    for (int i = 0; i < interfacesCount; i++) {
+      input.readUnsignedShort();
+    }
+
+    ImmutableSortedSet.Builder<String> constants = ImmutableSortedSet.naturalOrder();
+    int fieldsCount = input.readUnsignedShort();
+    for (int i = 0; i < fieldsCount; i++) {
+      int accessFlags = input.readUnsignedShort();
+      String name = getUtf8(utf8s, input.readUnsignedShort());
+      String descriptor = getUtf8(utf8s, input.readUnsignedShort());
+      int attributesCount = input.readUnsignedShort();
+      for (int j = 0; j < attributesCount; j++) {
+        String attributeName = getUtf8(utf8s, input.readUnsignedShort());
+        int length = input.readInt();
+        if (attributeName.equals("ConstantValue") && (accessFlags & ACC_PRIVATE) == 0) {
+          int valueIndex = input.readUnsignedShort();
+          String value = valueIndex < values.length ? values[valueIndex] : null;
+          if (value == null) {
+            throw new IOException("Bad constant value index: " + valueIndex);
+          }
+          constants.add(String.format("%s:%s=%s", name, descriptor, value));
+          input.skipBytes(length - 2);
+        } else {
+          input.skipBytes(length);
+        }
+      }
+    }
+
+    return new ClassFileReferences(referencedClasses.build(), constants.build());
+  }
+
+  private static String getUtf8(String[] utf8s, int index) throws IOException {
+    if (index <= 0 || index >= utf8s.length || utf8s[index] == null) {
+      throw new IOException("Bad constant pool index: " + index);
+    }
+    return utf8s[index];
+  }
+}
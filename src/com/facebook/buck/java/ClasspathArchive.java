@@ -0,0 +1,314 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.java;
+
+import com.facebook.buck.util.FileStamp;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.Maps;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import javax.annotation.Nullable;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+
+/**
+ * Jar on the classpath of a compilation, opened once and indexed by package, so that javac can
+ * list the classes of a package without reading the central directory of the jar again. Instances
+ * are shared by every compilation that has the jar on its classpath, so they are immutable once
+ * opened; {@link ClasspathArchiveCache} replaces an instance when its jar changes.
+ * <p>
+ * The {@link ZipFile} is left open for as long as the instance is in use, and is closed when it is
+ * garbage collected, as a compilation may still be reading from a jar that has been replaced.
+ */
+final class ClasspathArchive {
+
+  private final File file;
+  private final FileStamp stamp;
+  private final boolean isStampTrusted;
+  private final HashCode hash;
+  private final ZipFile zipFile;
+
+  /** Names of the class files in each package, which is the path of its directory in the jar. */
+  private final ImmutableSortedMap<String, ImmutableList<String>> classFilesByPackage;
+
+  private ClasspathArchive(File file,
+      FileStamp stamp,
+      boolean isStampTrusted,
+      HashCode hash,
+      ZipFile zipFile,
+      ImmutableSortedMap<String, ImmutableList<String>> classFilesByPackage) {
+    this.file = Preconditions.checkNotNull(file);
+    this.stamp = Preconditions.checkNotNull(stamp);
+    this.isStampTrusted = isStampTrusted;
+    this.hash = Preconditions.checkNotNull(hash);
+    this.zipFile = Preconditions.checkNotNull(zipFile);
+    this.classFilesByPackage = Preconditions.checkNotNull(classFilesByPackage);
+  }
+
+  /** Opens and indexes {@code file}. */
+  static ClasspathArchive open(File file) throws IOException {
+    // Read the stamp before the contents, so that a change while this reads the jar is noticed.
+    FileStamp stamp = FileStamp.of(file.toPath());
+    long readTimeMillis = System.currentTimeMillis();
+    HashCode hash = Files.hash(file, Hashing.sha1());
+    return open(file, stamp, isTrusted(file, stamp, readTimeMillis), hash);
+  }
+
+  /**
+   * @return whether {@code stamp}, read just before the contents of {@code file} started to be read
+   *     at {@code readTimeMillis}, is enough to tell that the contents are unchanged later on. That
+   *     is not the case if the jar was modified while it was read, or so recently that it could be
+   *     modified again without its last-modified time changing.
+   */
+  private static boolean isTrusted(File file, FileStamp stamp, long readTimeMillis)
+      throws IOException {
+    return stamp.isTrustedAt(readTimeMillis) && stamp.equals(FileStamp.of(file.toPath()));
+  }
+
+  private static ClasspathArchive open(File file,
+      FileStamp stamp,
+      boolean isStampTrusted,
+      HashCode hash) throws IOException {
+    ZipFile zipFile = new ZipFile(file);
+    boolean success = false;
+    try {
+      SortedMap<String, ImmutableList.Builder<String>> builders = Maps.newTreeMap();
+      for (Enumeration<? extends ZipEntry> entries = zipFile.entries();
+           entries.hasMoreElements(); ) {
+        ZipEntry entry = entries.nextElement();
+        String name = entry.getName();
+        if (entry.isDirectory() || !name.endsWith(JavaFileObject.Kind.CLASS.extension)) {
+          continue;
+        }
+        int lastSlash = name.lastIndexOf('/');
+        String packagePath = lastSlash < 0 ? "" : name.substring(0, lastSlash);
+        ImmutableList.Builder<String> builder = builders.get(packagePath);
+        if (builder == null) {
+          builder = ImmutableList.builder();
+          builders.put(packagePath, builder);
+        }
+        builder.add(name);
+      }
+
+      ImmutableSortedMap.Builder<String, ImmutableList<String>> classFilesByPackage =
+          ImmutableSortedMap.naturalOrder();
+      for (Map.Entry<String, ImmutableList.Builder<String>> entry : builders.entrySet()) {
+        classFilesByPackage.put(entry.getKey(), entry.getValue().build());
+      }
+      ClasspathArchive archive = new ClasspathArchive(file,
+          stamp,
+          isStampTrusted,
+          hash,
+          zipFile,
+          classFilesByPackage.build());
+      success = true;
+      return archive;
+    } finally {
+      if (!success) {
+        zipFile.close();
+      }
+    }
+  }
+
+  /**
+   * @return whether the stamp of {@link #file} is unchanged, and was read long enough after the jar
+   *     was last modified for that to mean that its contents are unchanged.
+   */
+  boolean isUpToDate() {
+    if (!isStampTrusted) {
+      return false;
+    }
+    try {
+      return stamp.equals(FileStamp.of(file.toPath()));
+    } catch (IOException e) {
+      // The jar was deleted: refresh() reports why it cannot be opened.
+      return false;
+    }
+  }
+
+  /**
+   * @return this archive if {@link #file} is unchanged since it was opened, otherwise an archive
+   *     for its current contents. The jar is hashed again unless its stamp can be trusted, and if
+   *     only the stamp changed, such as when a rule wrote the same jar again, the index is kept.
+   *     {@code currentStamp} must be of the same file as this archive, as an archive of a jar that
+   *     was replaced by another one must be opened from scratch.
+   */
+  ClasspathArchive refresh(FileStamp currentStamp) throws IOException {
+    Preconditions.checkArgument(currentStamp.isSameFile(stamp));
+    if (isStampTrusted && currentStamp.equals(stamp)) {
+      return this;
+    }
+    long readTimeMillis = System.currentTimeMillis();
+    HashCode currentHash = Files.hash(file, Hashing.sha1());
+    boolean isCurrentStampTrusted = isTrusted(file, currentStamp, readTimeMillis);
+    if (!currentHash.equals(hash)) {
+      return open(file, currentStamp, isCurrentStampTrusted, currentHash);
+    }
+    return new ClasspathArchive(file,
+        currentStamp,
+        isCurrentStampTrusted,
+        hash,
+        currentStamp.equals(stamp) ? zipFile : new ZipFile(file),
+        classFilesByPackage);
+  }
+
+  File getFile() {
+    return file;
+  }
+
+  FileStamp getStamp() {
+    return stamp;
+  }
+
+  HashCode getHash() {
+    return hash;
+  }
+
+  /**
+   * Adds the class files of the package {@code packageName}, and of its subpackages if
+   * {@code recurse} is set, to {@code files}.
+   */
+  void list(String packageName, boolean recurse, List<JavaFileObject> files) {
+    String packagePath = packageName.replace('.', '/');
+    if (!recurse) {
+      addClassFiles(classFilesByPackage.get(packagePath), files);
+      return;
+    }
+    for (Map.Entry<String, ImmutableList<String>> entry :
+        classFilesByPackage.tailMap(packagePath).entrySet()) {
+      String path = entry.getKey();
+      if (!packagePath.isEmpty() &&
+          !path.equals(packagePath) &&
+          !path.startsWith(packagePath + '/')) {
+        break;
+      }
+      addClassFiles(entry.getValue(), files);
+    }
+  }
+
+  private void addClassFiles(List<String> entryNames, List<JavaFileObject> files) {
+    if (entryNames == null) {
+      return;
+    }
+    for (String entryName : entryNames) {
+      files.add(new ArchiveFile(entryName));
+    }
+  }
+
+  /** @return the entry {@code entryName} of this archive, or {@code null} if there is none. */
+  @Nullable
+  JavaFileObject getFile(String entryName) {
+    ZipEntry entry = zipFile.getEntry(entryName);
+    if (entry == null || entry.isDirectory()) {
+      return null;
+    }
+    return new ArchiveFile(entryName);
+  }
+
+  /** File in this archive, which reads its contents from the {@link ZipFile} that is kept open. */
+  private class ArchiveFile extends SimpleJavaFileObject
+      implements ClasspathFileManager.ClasspathFile {
+    private final String entryName;
+
+    private ArchiveFile(String entryName) {
+      super(createUri(file, entryName),
+          entryName.endsWith(Kind.CLASS.extension) ? Kind.CLASS : Kind.OTHER);
+      this.entryName = entryName;
+    }
+
+    @Override
+    public File getClasspathEntry() {
+      return file;
+    }
+
+    @Override
+    public String getRelativePath() {
+      return entryName;
+    }
+
+    @Override
+    public InputStream openInputStream() throws IOException {
+      ZipEntry entry = zipFile.getEntry(entryName);
+      if (entry == null) {
+        throw new IOException(String.format("%s is no longer in %s", entryName, file));
+      }
+      return zipFile.getInputStream(entry);
+    }
+
+    @Override
+    public long getLastModified() {
+      return stamp.getLastModifiedMillis();
+    }
+
+    /** The same format as javac uses for the class files in a jar, as it appears in diagnostics. */
+    @Override
+    public String getName() {
+      return String.format("%s(%s)", file.getPath(), entryName);
+    }
+
+    @Override
+    public String toString() {
+      return getName();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof ArchiveFile)) {
+        return false;
+      }
+      ArchiveFile that = (ArchiveFile) obj;
+      return getArchive() == that.getArchive() && entryName.equals(that.entryName);
+    }
+
+    @Override
+    public int hashCode() {
+      return entryName.hashCode();
+    }
+
+    private ClasspathArchive getArchive() {
+      return ClasspathArchive.this;
+    }
+  }
+
+  private static URI createUri(File file, String entryName) {
+    try {
+      // Hierarchical, so that SimpleJavaFileObject#isNameCompatible() can read its path.
+      return new URI("jar",
+          /* host */ null,
+          file.getAbsoluteFile().toURI().getPath() + "!/" + entryName,
+          /* fragment */ null);
+    } catch (URISyntaxException e) {
+      throw new IllegalArgumentException(e);
+    }
+  }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.java;
+
+import com.facebook.buck.util.FileStamp;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Striped;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * The {@link ClasspathArchive}s of the jars on the classpaths of compilations, shared by all of
+ * them. An archive is reused for as long as the {@link FileStamp} of its jar is unchanged and can
+ * be trusted, and its index is reused for as long as the SHA-1 hash of the jar is unchanged and the
+ * jar has not been replaced by another file.
+ */
+class ClasspathArchiveCache {
+
+  /**
+   * Once this many jars are cached, the cache is emptied, so that the daemon does not keep the jars
+   * of rules that have since been removed open forever.
+   */
+  private static final int MAX_ARCHIVES = 4096;
+
+  private final ConcurrentMap<File, ClasspathArchive> archives;
+
+  /** Ensures that each jar is only indexed once when several compilations need it at once. */
+  private final Striped<Lock> locks;
+
+  private final AtomicLong hitCount;
+  private final AtomicLong missCount;
+
+  ClasspathArchiveCache() {
+    this.archives = Maps.newConcurrentMap();
+    this.locks = Striped.lock(64);
+    this.hitCount = new AtomicLong();
+    this.missCount = new AtomicLong();
+  }
+
+  /** @return the archive for the current contents of the jar {@code file}. */
+  ClasspathArchive get(File file) throws IOException {
+    File key = file.getAbsoluteFile();
+    ClasspathArchive archive = archives.get(key);
+    if (archive != null && archive.isUpToDate()) {
+      hitCount.incrementAndGet();
+      return archive;
+    }
+
+    Lock lock = locks.get(key);
+    lock.lock();
+    try {
+      archive = archives.get(key);
+      FileStamp currentStamp = FileStamp.of(key.toPath());
+      if (archive != null && !archive.getStamp().isSameFile(currentStamp)) {
+        // The jar was replaced by another file, so nothing read from the old one can be reused.
+        archives.remove(key);
+        archive = null;
+      }
+      if (archive == null) {
+        archive = ClasspathArchive.open(key);
+        missCount.incrementAndGet();
+      } else {
+        ClasspathArchive refreshed = archive.refresh(currentStamp);
+        if (refreshed.getHash().equals(archive.getHash())) {
+          hitCount.incrementAndGet();
+        } else {
+          missCount.incrementAndGet();
+        }
+        archive = refreshed;
+      }
+      if (archives.size() >= MAX_ARCHIVES) {
+        archives.clear();
+      }
+      archives.put(key, archive);
+      return archive;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** @return how many times a jar was found in this cache with the same contents. */
+  long getHitCount() {
+    return hitCount.get();
+  }
+
+  /** @return how many times a jar had to be indexed. */
+  long getMissCount() {
+    return missCount.get();
+  }
+}
@@ -0,0 +1,297 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.java;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.ZipException;
+
+import javax.annotation.Nullable;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardLocation;
+
+/**
+ * {@link JavaFileManager} that serves {@link StandardLocation#CLASS_PATH} itself, from jars that
+ * are opened and indexed once in a {@link ClasspathArchiveCache} and shared by every compilation,
+ * and from directories. Every other location is handled by the file manager that it wraps.
+ * <p>
+ * Only class files and, for annotation processors, resources are looked up on the classpath:
+ * source files on it are not compiled implicitly, as they never are in a build.
+ */
+class ClasspathFileManager extends ForwardingJavaFileManager<JavaFileManager> {
+
+  private static final Logger logger = Logger.getLogger(ClasspathFileManager.class.getName());
+
+  /**
+   * File read from the classpath by this file manager, which knows the entry of the classpath that
+   * it was found in.
+   */
+  interface ClasspathFile extends JavaFileObject {
+    /** @return the jar or directory on the classpath that contains this file. */
+    File getClasspathEntry();
+
+    /** @return the path of this file relative to its classpath entry, separated by slashes. */
+    String getRelativePath();
+  }
+
+  /** Entries of the classpath in order, which are either jars or directories. */
+  private final ImmutableList<File> classpath;
+
+  /** The opened jars of {@link #classpath}. */
+  private final ImmutableMap<File, ClasspathArchive> archives;
+
+  private ClasspathFileManager(JavaFileManager fileManager,
+      ImmutableList<File> classpath,
+      ImmutableMap<File, ClasspathArchive> archives) {
+    super(fileManager);
+    this.classpath = Preconditions.checkNotNull(classpath);
+    this.archives = Preconditions.checkNotNull(archives);
+  }
+
+  /**
+   * @param classpath absolute paths of the jars and directories on the classpath, in order. Like
+   *     javac, entries that do not exist or are not jars are skipped.
+   */
+  static ClasspathFileManager create(JavaFileManager fileManager,
+      Iterable<File> classpath,
+      ClasspathArchiveCache archiveCache) throws IOException {
+    ImmutableList.Builder<File> entries = ImmutableList.builder();
+    Map<File, ClasspathArchive> archives = Maps.newHashMap();
+    for (File entry : classpath) {
+      if (entry.isDirectory()) {
+        entries.add(entry);
+      } else if (entry.isFile() && !archives.containsKey(entry)) {
+        try {
+          archives.put(entry, archiveCache.get(entry));
+          entries.add(entry);
+        } catch (ZipException e) {
+          logger.log(Level.FINE, "Skipping classpath entry that is not a jar: " + entry, e);
+        }
+      }
+    }
+    return new ClasspathFileManager(fileManager, entries.build(), ImmutableMap.copyOf(archives));
+  }
+
+  @Override
+  public Iterable<JavaFileObject> list(Location location,
+      String packageName,
+      Set<JavaFileObject.Kind> kinds,
+      boolean recurse) throws IOException {
+    if (location != StandardLocation.CLASS_PATH) {
+      return super.list(location, packageName, kinds, recurse);
+    }
+    List<JavaFileObject> files = Lists.newArrayList();
+    if (!kinds.contains(JavaFileObject.Kind.CLASS)) {
+      return files;
+    }
+    String packagePath = packageName.replace('.', '/');
+    for (File entry : classpath) {
+      ClasspathArchive archive = archives.get(entry);
+      if (archive != null) {
+        archive.list(packageName, recurse, files);
+      } else {
+        listDirectory(entry, packagePath, recurse, files);
+      }
+    }
+    return files;
+  }
+
+  private static void listDirectory(File root,
+      String relativePath,
+      boolean recurse,
+      List<JavaFileObject> files) {
+    File[] children = new File(root, relativePath).listFiles();
+    if (children == null) {
+      return;
+    }
+    // Sorted, so that the classes are listed in the same order as from a jar.
+    Arrays.sort(children);
+    String prefix = relativePath.isEmpty() ? "" : relativePath + '/';
+    for (File child : children) {
+      String childPath = prefix + child.getName();
+      if (child.isDirectory()) {
+        if (recurse) {
+          listDirectory(root, childPath, recurse, files);
+        }
+      } else if (child.getName().endsWith(JavaFileObject.Kind.CLASS.extension)) {
+        files.add(new DirectoryFile(root, childPath));
+      }
+    }
+  }
+
+  @Override
+  public String inferBinaryName(Location location, JavaFileObject file) {
+    if (file instanceof ClasspathFile) {
+      String path = ((ClasspathFile) file).getRelativePath();
+      return path.substring(0, path.length() - JavaFileObject.Kind.CLASS.extension.length())
+          .replace('/', '.');
+    }
+    return super.inferBinaryName(location, file);
+  }
+
+  @Override
+  public boolean isSameFile(FileObject a, FileObject b) {
+    if (a instanceof ClasspathFile || b instanceof ClasspathFile) {
+      return a.equals(b);
+    }
+    return super.isSameFile(a, b);
+  }
+
+  @Override
+  public boolean hasLocation(Location location) {
+    return location == StandardLocation.CLASS_PATH || super.hasLocation(location);
+  }
+
+  @Override
+  public JavaFileObject getJavaFileForInput(Location location,
+      String className,
+      JavaFileObject.Kind kind) throws IOException {
+    if (location != StandardLocation.CLASS_PATH) {
+      return super.getJavaFileForInput(location, className, kind);
+    }
+    if (kind != JavaFileObject.Kind.CLASS) {
+      return null;
+    }
+    return findFile(className.replace('.', '/') + kind.extension);
+  }
+
+  @Override
+  public FileObject getFileForInput(Location location,
+      String packageName,
+      String relativeName) throws IOException {
+    if (location != StandardLocation.CLASS_PATH) {
+      return super.getFileForInput(location, packageName, relativeName);
+    }
+    return findFile(packageName.isEmpty()
+        ? relativeName
+        : packageName.replace('.', '/') + '/' + relativeName);
+  }
+
+  /** @return the first file on the classpath at {@code relativePath}, if any. */
+  @Nullable
+  private JavaFileObject findFile(String relativePath) {
+    for (File entry : classpath) {
+      ClasspathArchive archive = archives.get(entry);
+      if (archive != null) {
+        JavaFileObject file = archive.getFile(relativePath);
+        if (file != null) {
+          return file;
+        }
+      } else if (new File(entry, relativePath).isFile()) {
+        return new DirectoryFile(entry, relativePath);
+      }
+    }
+    return null;
+  }
+
+  /** Loads annotation processors from the classpath when there is no processor path. */
+  @Override
+  public ClassLoader getClassLoader(Location location) {
+    if (location != StandardLocation.CLASS_PATH) {
+      return super.getClassLoader(location);
+    }
+    URL[] urls = new URL[classpath.size()];
+    for (int i = 0; i < urls.length; i++) {
+      try {
+        urls[i] = classpath.get(i).toURI().toURL();
+      } catch (MalformedURLException e) {
+        throw new IllegalArgumentException(e);
+      }
+    }
+    return new URLClassLoader(urls, getClass().getClassLoader());
+  }
+
+  /** File under a directory on the classpath. */
+  private static class DirectoryFile extends SimpleJavaFileObject implements ClasspathFile {
+    private final File root;
+    private final String relativePath;
+    private final File file;
+
+    private DirectoryFile(File root, String relativePath) {
+      this(root, relativePath, new File(root, relativePath));
+    }
+
+    private DirectoryFile(File root, String relativePath, File file) {
+      super(file.toURI(),
+          relativePath.endsWith(Kind.CLASS.extension) ? Kind.CLASS : Kind.OTHER);
+      this.root = root;
+      this.relativePath = relativePath;
+      this.file = file;
+    }
+
+    @Override
+    public File getClasspathEntry() {
+      return root;
+    }
+
+    @Override
+    public String getRelativePath() {
+      return relativePath;
+    }
+
+    @Override
+    public InputStream openInputStream() throws IOException {
+      return new FileInputStream(file);
+    }
+
+    @Override
+    public long getLastModified() {
+      return file.lastModified();
+    }
+
+    @Override
+    public String getName() {
+      return file.getPath();
+    }
+
+    @Override
+    public String toString() {
+      return getName();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      return obj instanceof DirectoryFile && file.equals(((DirectoryFile) obj).file);
+    }
+
+    @Override
+    public int hashCode() {
+      return file.hashCode();
+    }
+  }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.java;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.collect.ImmutableSortedSet;
+
+/**
+ * What a compilation read from its classpath, as recorded by a
+ * {@link ClasspathUsageTrackingFileManager}.
+ */
+final class ClasspathUsage {
+
+  private final ImmutableSetMultimap<String, String> filesReadByClasspathEntry;
+  private final ImmutableSortedSet<String> listedPackages;
+
+  ClasspathUsage(ImmutableSetMultimap<String, String> filesReadByClasspathEntry,
+      ImmutableSortedSet<String> listedPackages) {
+    this.filesReadByClasspathEntry = Preconditions.checkNotNull(filesReadByClasspathEntry);
+    this.listedPackages = Preconditions.checkNotNull(listedPackages);
+  }
+
+  /**
+   * @return the paths, relative to their classpath entry, of the files that javac read from the
+   *     classpath, keyed by that entry as it was given to the compilation.
+   */
+  ImmutableSetMultimap<String, String> getFilesReadByClasspathEntry() {
+    return filesReadByClasspathEntry;
+  }
+
+  /**
+   * @return the packages whose classes javac listed, which it does to find the classes that a
+   *     simple name may refer to, so adding a class to one of them may change the compilation.
+   */
+  ImmutableSortedSet<String> getListedPackages() {
+    return listedPackages;
+  }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.java;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.SetMultimap;
+import com.google.common.collect.Sets;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Set;
+
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.ForwardingJavaFileObject;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardLocation;
+
+/**
+ * {@link JavaFileManager} that records which files javac reads from each entry of the classpath,
+ * which must be served by a {@link ClasspathFileManager}. As javac only reads the class files of
+ * the types that it needs, the entries that it reads from are the ones that a compilation depends
+ * on, even when it is given more of them.
+ */
+class ClasspathUsageTrackingFileManager extends ForwardingJavaFileManager<JavaFileManager> {
+
+  /** Paths of the files that have been read, keyed by the classpath entry that contains them. */
+  private final SetMultimap<File, String> filesReadByClasspathEntry;
+
+  /** Packages of the classpath that javac has listed the classes of. */
+  private final Set<String> listedPackages;
+
+  ClasspathUsageTrackingFileManager(JavaFileManager fileManager) {
+    super(fileManager);
+    this.filesReadByClasspathEntry = HashMultimap.create();
+    this.listedPackages = Sets.newHashSet();
+  }
+
+  /**
+   * @return the paths, relative to their classpath entry, of the files that javac has read from
+   *     the classpath, keyed by that entry.
+   */
+  synchronized ImmutableSetMultimap<File, String> getFilesReadByClasspathEntry() {
+    return ImmutableSetMultimap.copyOf(filesReadByClasspathEntry);
+  }
+
+  /** @return the packages of the classpath that javac has listed the classes of. */
+  synchronized ImmutableSortedSet<String> getListedPackages() {
+    return ImmutableSortedSet.copyOf(listedPackages);
+  }
+
+  private synchronized void recordList(String packageName) {
+    listedPackages.add(packageName);
+  }
+
+  private synchronized void recordRead(ClasspathFileManager.ClasspathFile file) {
+    filesReadByClasspathEntry.put(file.getClasspathEntry(), file.getRelativePath());
+  }
+
+  @Override
+  public Iterable<JavaFileObject> list(Location location,
+      String packageName,
+      Set<JavaFileObject.Kind> kinds,
+      boolean recurse) throws IOException {
+    Iterable<JavaFileObject> files = super.list(location, packageName, kinds, recurse);
+    if (location != StandardLocation.CLASS_PATH) {
+      return files;
+    }
+    recordList(packageName);
+    List<JavaFileObject> trackedFiles = Lists.newArrayList();
+    for (JavaFileObject file : files) {
+      trackedFiles.add(track(file));
+    }
+    return trackedFiles;
+  }
+
+  @Override
+  public JavaFileObject getJavaFileForInput(Location location,
+      String className,
+      JavaFileObject.Kind kind) throws IOException {
+    return track(super.getJavaFileForInput(location, className, kind));
+  }
+
+  @Override
+  public FileObject getFileForInput(Location location,
+      String packageName,
+      String relativeName) throws IOException {
+    FileObject file = super.getFileForInput(location, packageName, relativeName);
+    return file instanceof JavaFileObject ? track((JavaFileObject) file) : file;
+  }
+
+  @Override
+  public String inferBinaryName(Location location, JavaFileObject file) {
+    return super.inferBinaryName(location, untrack(file));
+  }
+
+  @Override
+  public boolean isSameFile(FileObject a, FileObject b) {
+    return super.isSameFile(untrack(a), untrack(b));
+  }
+
+  private JavaFileObject track(JavaFileObject file) {
+    if (file instanceof ClasspathFileManager.ClasspathFile) {
+      return new TrackedFile((ClasspathFileManager.ClasspathFile) file);
+    }
+    return file;
+  }
+
+  private static FileObject untrack(FileObject file) {
+    return file instanceof TrackedFile ? ((TrackedFile) file).getClasspathFile() : file;
+  }
+
+  private static JavaFileObject untrack(JavaFileObject file) {
+    return file instanceof TrackedFile ? ((TrackedFile) file).getClasspathFile() : file;
+  }
+
+  /** File on the classpath that is recorded when javac reads it. */
+  private class TrackedFile extends ForwardingJavaFileObject<ClasspathFileManager.ClasspathFile>
+      implements ClasspathFileManager.ClasspathFile {
+
+    private TrackedFile(ClasspathFileManager.ClasspathFile file) {
+      super(file);
+    }
+
+    private ClasspathFileManager.ClasspathFile getClasspathFile() {
+      return fileObject;
+    }
+
+    @Override
+    public File getClasspathEntry() {
+      return fileObject.getClasspathEntry();
+    }
+
+    @Override
+    public String getRelativePath() {
+      return fileObject.getRelativePath();
+    }
+
+    @Override
+    public InputStream openInputStream() throws IOException {
+      recordRead(fileObject);
+      return super.openInputStream();
+    }
+
+    @Override
+    public CharSequence getCharContent(boolean ignoreEncodingErrors) throws IOException {
+      recordRead(fileObject);
+      return super.getCharContent(ignoreEncodingErrors);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      return obj instanceof TrackedFile && fileObject.equals(((TrackedFile) obj).fileObject);
+    }
+
+    @Override
+    public int hashCode() {
+      return fileObject.hashCode();
+    }
+
+    @Override
+    public String toString() {
+      return fileObject.toString();
+    }
+  }
+}
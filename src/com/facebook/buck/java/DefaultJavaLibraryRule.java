@@ -19,9 +19,11 @@ package com.facebook.buck.java;
 import com.facebook.buck.android.HasAndroidResourceDeps;
 import com.facebook.buck.android.UberRDotJavaUtil;
 import com.facebook.buck.graph.TopologicalSort;
+import com.facebook.buck.java.abi.AbiWriter;
 import com.facebook.buck.model.AnnotationProcessingData;
 import com.facebook.buck.model.BuildTarget;
 import com.facebook.buck.model.BuildTargetPattern;
+import com.facebook.buck.rules.AbiRule;
 import com.facebook.buck.rules.AbstractBuildRuleBuilder;
 import com.facebook.buck.rules.AbstractBuildRuleBuilderParams;
 import com.facebook.buck.rules.AbstractCachingBuildRule;
@@ -31,6 +33,7 @@ import com.facebook.buck.rules.BuildRule;
 import com.facebook.buck.rules.BuildRuleParams;
 import com.facebook.buck.rules.BuildRuleResolver;
 import com.facebook.buck.rules.BuildRuleType;
+import com.facebook.buck.rules.DependencyFileRule;
 import com.facebook.buck.rules.JavaPackageFinder;
 import com.facebook.buck.rules.ResourcesAttributeBuilder;
 import com.facebook.buck.rules.RuleKey;
@@ -38,9 +41,10 @@ import com.facebook.buck.rules.SourcePath;
 import com.facebook.buck.rules.SrcsAttributeBuilder;
 import com.facebook.buck.step.Step;
 import com.facebook.buck.step.fs.MakeCleanDirectoryStep;
-import com.facebook.buck.step.fs.MkdirAndSymlinkFileStep;
+import com.facebook.buck.step.fs.MkdirStep;
 import com.facebook.buck.util.BuckConstant;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
 import com.google.common.base.Function;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
@@ -48,18 +52,18 @@ import com.google.common.base.Predicate;
 import com.google.common.base.Supplier;
 import com.google.common.base.Suppliers;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.collect.ImmutableSortedMap;
 import com.google.common.collect.ImmutableSortedSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Sets;
-import com.google.common.reflect.ClassPath;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 
 import java.io.File;
 import java.io.IOException;
-import java.net.URL;
-import java.net.URLClassLoader;
-import java.util.Collections;
 import java.util.List;
 import java.util.Set;
 import java.util.SortedSet;
@@ -83,7 +87,7 @@ import javax.annotation.Nullable;
  * from the {@code //src/com/facebook/feed/model:model} rule.
  */
 public class DefaultJavaLibraryRule extends AbstractCachingBuildRule
-    implements JavaLibraryRule, HasJavaSrcs, HasClasspathEntries {
+    implements JavaLibraryRule, DependencyFileRule, HasJavaSrcs, HasClasspathEntries {
 
   private final ImmutableSortedSet<String> srcs;
 
@@ -109,38 +113,16 @@ public class DefaultJavaLibraryRule extends AbstractCachingBuildRule
   protected final JavacOptions javacOptions;
 
   /**
-   * Function for opening a JAR and returning all symbols that can be referenced from inside of that
-   * jar.
+   * The step that compiles {@link #srcs}, which computes the ABI of the output of this rule. This is
+   * set in {@link #buildInternal(BuildContext)}, so it is {@code null} unless this rule was built
+   * locally.
    */
-  @VisibleForTesting
-  static interface JarResolver extends
-      Function<String, ImmutableSet<String>> {}
+  @Nullable
+  private volatile JavacInMemoryStep javacStep;
 
-  private final JarResolver JAR_RESOLVER =
-      new JarResolver() {
-    @Override
-    public ImmutableSet<String> apply(String classPath) {
-      ImmutableSet.Builder<String> topLevelSymbolsBuilder = ImmutableSet.builder();
-      try {
-        ClassLoader loader = URLClassLoader.newInstance(
-            new URL[]{new File(classPath).toURI().toURL()},
-          /* parent */ null);
-
-        // For every class contained in that jar, check to see if the package name
-        // (e.g. com.facebook.foo), the simple name (e.g. ImmutableSet) or the name
-        // (e.g com.google.common.collect.ImmutableSet) is one of the missing symbols.
-        for (ClassPath.ClassInfo classInfo : ClassPath.from(loader).getTopLevelClasses()) {
-          topLevelSymbolsBuilder.add(classInfo.getPackageName(),
-              classInfo.getSimpleName(),
-              classInfo.getName());
-        }
-      } catch (IOException e) {
-        // Since this simply is a heuristic, return an empty set if we fail to load a jar.
-        return topLevelSymbolsBuilder.build();
-      }
-      return topLevelSymbolsBuilder.build();
-    }
-  };
+  /** Memoized result of {@link #readAbiKeyFromBuildMetadata()}, once this rule has been built. */
+  @Nullable
+  private Optional<String> abiKeyOnDisk;
 
   /**
    * This is set in {@link #buildInternal(com.facebook.buck.rules.BuildContext)} and is available to subclasses.
@@ -243,39 +225,44 @@ public class DefaultJavaLibraryRule extends AbstractCachingBuildRule
   }
 
   /**
-   * @param outputDirectory Directory to write class files to
+   * @param pathToOutputJar Jar to write class files and resources to
+   * @param resourcesToJar Resources to add to the jar, keyed by the name of their entry
    * @param javaSourceFilePaths .java files to compile: may be empty
    * @param transitiveClasspathEntries Classpaths of all transitive dependencies.
    * @param declaredClasspathEntries Classpaths of all declared dependencies.
    * @param javacOptions options to use when compiling code.
-   * @param suggestBuildRules Function to convert from missing symbols to the suggested rules.
+   * @param suggestBuildRules Function to convert from classpath entries that javac read from but
+   *     that are not declared to the suggested rules.
+   * @param pathToClassDependencyGraph if present, only the sources that have changed since the last
+   *     compilation, and those affected by them, are compiled.
    * @return commands to compile the specified inputs
    */
   private static ImmutableList<Step> createCommandsForJavac(
-      String outputDirectory,
+      String pathToOutputJar,
+      ImmutableSortedMap<String, String> resourcesToJar,
       final SortedSet<String> javaSourceFilePaths,
       ImmutableSet<String> transitiveClasspathEntries,
-      ImmutableSet<String> declaredClasspathEntries,
+      ImmutableSetMultimap<BuildRule, String> declaredClasspathEntries,
       JavacOptions javacOptions,
       Optional<String> invokingRule,
       BuildDependencies buildDependencies,
-      Optional<DependencyCheckingJavacStep.SuggestBuildRules> suggestBuildRules) {
+      Optional<DependencyCheckingJavacStep.SuggestBuildRules> suggestBuildRules,
+      Optional<String> pathToClassDependencyGraph) {
     ImmutableList.Builder<Step> commands = ImmutableList.builder();
 
-    // Only run javac if there are .java files to compile.
-    if (!javaSourceFilePaths.isEmpty()) {
-      Step javac = new DependencyCheckingJavacStep(
-          outputDirectory,
-          javaSourceFilePaths,
-          transitiveClasspathEntries,
-          declaredClasspathEntries,
-          javacOptions,
-          invokingRule,
-          buildDependencies,
-          suggestBuildRules);
-
-      commands.add(javac);
-    }
+    // Even if there are no .java files to compile, the step writes the resources to the jar.
+    Step javac = new DependencyCheckingJavacStep(
+        pathToOutputJar,
+        resourcesToJar,
+        javaSourceFilePaths,
+        transitiveClasspathEntries,
+        declaredClasspathEntries,
+        javacOptions,
+        invokingRule,
+        buildDependencies,
+        suggestBuildRules,
+        pathToClassDependencyGraph);
+    commands.add(javac);
 
     return commands.build();
   }
@@ -288,25 +275,25 @@ public class DefaultJavaLibraryRule extends AbstractCachingBuildRule
         target.getShortName());
   }
 
-  private static String getOutputJarPath(BuildTarget target) {
-    return String.format(
-        "%s/%s.jar",
-        getOutputJarDirPath(target),
-        target.getShortName());
-  }
-
   /**
-   * @return directory path relative to the project root where .class files will be generated.
-   *     The return value does not end with a slash.
+   * @return where the {@link ClassDependencyGraph} of the output jar is kept between builds. It is
+   *     not an output of the rule, so it is not in the directory of the jar.
    */
-  private static String getClassesDir(BuildTarget target) {
+  private static String getClassDependencyGraphDirPath(BuildTarget target) {
     return String.format(
-        "%s/%slib__%s__classes",
+        "%s/%slib__%s__incremental",
         BuckConstant.BIN_DIR,
         target.getBasePathWithSlash(),
         target.getShortName());
   }
 
+  private static String getOutputJarPath(BuildTarget target) {
+    return String.format(
+        "%s/%s.jar",
+        getOutputJarDirPath(target),
+        target.getShortName());
+  }
+
   @Override
   public boolean isAndroidRule() {
     return false;
@@ -373,9 +360,146 @@ public class DefaultJavaLibraryRule extends AbstractCachingBuildRule
     return exportDeps;
   }
 
+  @Override
+  @Nullable
+  public RuleKey getRuleKeyWithoutDeps() {
+    return createRuleKeyWithoutDeps();
+  }
+
+  @Override
+  @Nullable
+  public RuleKey getRuleKeyWithoutDepsOnDisk() {
+    return readRuleKeyWithoutDepsFromBuildMetadata();
+  }
+
+  /**
+   * Every rule whose output is on the classpath when compiling this rule contributes to the ABI key,
+   * as does every first-order dep, because a dep such as a genrule may provide resources. Rules
+   * that are not {@link AbiRule}s contribute their {@link RuleKey}, as the ABI of their output is
+   * unknown.
+   *
+   * @return {@code null} if the ABI of a dep is unknown, or if the output of this rule depends on
+   *     more than the ABI of its deps, which is the case when annotation processors are run or
+   *     R.java files must be generated.
+   */
+  @Override
+  @Nullable
+  public String getAbiKeyForDeps() {
+    if (!isOutputDeterminedByClasspath()) {
+      return null;
+    }
+
+    ImmutableSortedSet<BuildRule> rules = ImmutableSortedSet.<BuildRule>naturalOrder()
+        .addAll(getTransitiveClasspathEntries().keySet())
+        .addAll(getDeps())
+        .build();
+    Hasher hasher = Hashing.sha1().newHasher();
+    for (BuildRule rule : rules) {
+      if (rule == this) {
+        continue;
+      }
+
+      String key;
+      if (rule instanceof AbiRule) {
+        key = ((AbiRule)rule).getAbiKey();
+        if (key == null) {
+          return null;
+        }
+      } else {
+        key = rule.getRuleKey().toString();
+      }
+      hasher.putString(rule.getFullyQualifiedName(), Charsets.UTF_8);
+      hasher.putString(key, Charsets.UTF_8);
+    }
+    return hasher.hash().toString();
+  }
+
+  @Override
+  @Nullable
+  public String getAbiKeyForDepsOnDisk() {
+    return readAbiKeyForDepsFromBuildMetadata();
+  }
+
+  @Override
+  @Nullable
+  public synchronized String getAbiKey() {
+    if (srcs.isEmpty()) {
+      return AbiWriter.EMPTY_ABI_KEY;
+    }
+
+    // If this rule was built locally, then javac reported the ABI of its output.
+    JavacInMemoryStep javacStep = this.javacStep;
+    if (javacStep != null) {
+      return javacStep.getAbiKey();
+    }
+
+    // Otherwise, the output on disk is unchanged since the last time the ABI was recorded.
+    if (abiKeyOnDisk != null) {
+      return abiKeyOnDisk.orNull();
+    }
+    Optional<String> abiKey = Optional.fromNullable(readAbiKeyFromBuildMetadata());
+    if (isRuleBuilt()) {
+      abiKeyOnDisk = abiKey;
+    }
+    return abiKey.orNull();
+  }
+
+  /**
+   * @return the files that javac read from the classpath, with the hashes of their contents, and
+   *     the packages whose classes it listed.
+   * @see DependencyFile
+   */
+  @Override
+  public ImmutableMap<String, String> getDependencyFile() {
+    if (!isOutputDeterminedByClasspath()) {
+      return ImmutableMap.of();
+    }
+    JavacInMemoryStep javacStep = this.javacStep;
+    if (javacStep != null) {
+      return javacStep.getDependencyFile();
+    }
+    return readDependencyFileFromBuildMetadata();
+  }
+
+  @Override
+  public boolean isDependencyFileUnchanged(BuildContext context,
+      ImmutableMap<String, String> dependencyFile) {
+    if (!isOutputDeterminedByClasspath()) {
+      return false;
+    }
+
+    // The same classpath that the DependencyCheckingJavacStep would compile against, which leaves
+    // out the output jar of this rule.
+    Set<String> classpathEntries = context.getBuildDependencies() ==
+        BuildDependencies.FIRST_ORDER_ONLY
+        ? ImmutableSet.copyOf(getDeclaredClasspathEntries().values())
+        : ImmutableSet.copyOf(getTransitiveClasspathEntries().values());
+    Function<String, String> pathRelativizer =
+        context.getProjectFilesystem().getPathRelativizer();
+    ImmutableList.Builder<File> classpath = ImmutableList.builder();
+    for (String entry : classpathEntries) {
+      if (!outputJar.isPresent() || !entry.equals(outputJar.get())) {
+        classpath.add(new File(pathRelativizer.apply(entry)));
+      }
+    }
+    return DependencyFile.isUnchanged(dependencyFile,
+        classpath.build(),
+        JavacService.getInstance().getArchiveCache());
+  }
+
+  /**
+   * @return whether the output of this rule depends on nothing but its inputs and the classes that
+   *     javac reads from the classpath, which is not the case when annotation processors are run or
+   *     R.java files must be generated.
+   */
+  private boolean isOutputDeterminedByClasspath() {
+    return javacOptions.getAnnotationProcessingData().isEmpty() &&
+        !UberRDotJavaUtil.hasAndroidResourceDeps(this);
+  }
+
   /**
    * Building a java_library() rule entails compiling the .java files specified in the srcs
-   * attribute. They are compiled into a directory under {@link BuckConstant#BIN_DIR}.
+   * attribute. They are compiled straight into the output jar, along with the resources.
    */
   @Override
   protected final List<Step> buildInternal(BuildContext context) throws IOException {
@@ -434,90 +558,54 @@ public class DefaultJavaLibraryRule extends AbstractCachingBuildRule
       commands.add(mkdirGeneratedSources);
     }
 
-    // Always create the output directory, even if there are no .java files to compile because there
-    // might be resources that need to be copied there.
-    String outputDirectory = getClassesDir(getBuildTarget());
-    commands.add(new MakeCleanDirectoryStep(outputDirectory));
-
-    Optional<DependencyCheckingJavacStep.SuggestBuildRules> suggestBuildRule =
-        createSuggestBuildFunction(context,
-            transitiveClasspathEntries,
-            declaredClasspathEntries,
-            JAR_RESOLVER);
-
-    // This adds the javac command, along with any supporting commands.
-    List<Step> javac = createCommandsForJavac(
-        outputDirectory,
-        srcs,
-        ImmutableSet.copyOf(transitiveClasspathEntries.values()),
-        ImmutableSet.copyOf(declaredClasspathEntries.values()),
-        javacOptions,
-        Optional.of(getFullyQualifiedName()),
-        context.getBuildDependencies(),
-        suggestBuildRule);
-    commands.addAll(javac);
-
+    // There is only an output jar if there are .java files to compile or resources to jar.
+    if (outputJar.isPresent()) {
+      // An incremental compilation reads the previous jar, so its directory is not cleaned.
+      Optional<String> pathToClassDependencyGraph = Optional.absent();
+      if (context.isIncrementalJavac() && isOutputDeterminedByClasspath()) {
+        String graphDir = getClassDependencyGraphDirPath(buildTarget);
+        commands.add(new MkdirStep(getOutputJarDirPath(buildTarget)));
+        commands.add(new MkdirStep(graphDir));
+        pathToClassDependencyGraph = Optional.of(graphDir + "/classes.graph");
+      } else {
+        commands.add(new MakeCleanDirectoryStep(getOutputJarDirPath(buildTarget)));
+      }
 
-    // If there are resources, then link them to the appropriate place in the classes directory.
-    addResourceCommands(context, commands, outputDirectory, context.getJavaPackageFinder());
+      Optional<DependencyCheckingJavacStep.SuggestBuildRules> suggestBuildRule =
+          createSuggestBuildFunction(context,
+              transitiveClasspathEntries,
+              declaredClasspathEntries);
 
-    if (outputJar.isPresent()) {
-      commands.add(new MakeCleanDirectoryStep(getOutputJarDirPath(getBuildTarget())));
-      commands.add(new JarDirectoryStep(
+      // This adds the javac command, along with any supporting commands. The class files and the
+      // resources are written straight into the output jar.
+      List<Step> javac = createCommandsForJavac(
           outputJar.get(),
-          Collections.singleton(outputDirectory),
-          /* mainClass */ null,
-          /* manifestFile */ null));
+          getResourcesToJar(context, context.getJavaPackageFinder()),
+          srcs,
+          ImmutableSet.copyOf(transitiveClasspathEntries.values()),
+          declaredClasspathEntries,
+          javacOptions,
+          Optional.of(getFullyQualifiedName()),
+          context.getBuildDependencies(),
+          suggestBuildRule,
+          pathToClassDependencyGraph);
+      commands.addAll(javac);
+      javacStep = Iterables.getOnlyElement(Iterables.filter(javac, JavacInMemoryStep.class), null);
     }
 
     return commands.build();
   }
 
   /**
-   *  @param transitiveNotDeclaredDep A {@link BuildRule} that is contained in the transitive
-   *      dependency list but is not declared as a dependency.
-   *  @param failedImports A Set of remaining failed imports.  This function will mutate this set
-   *      and remove any imports satisfied by {@code transitiveNotDeclaredDep}.
-   *  @return whether or not adding {@code transitiveNotDeclaredDep} as a dependency to this build
-   *      rule would have satisfied one of the {@code failedImports}.
-   */
-  private boolean isMissingBuildRule(BuildRule transitiveNotDeclaredDep,
-      Set<String> failedImports,
-      JarResolver jarResolver) {
-    ImmutableSet<String> classPaths = getTransitiveClasspathEntries().get(transitiveNotDeclaredDep);
-    boolean containsMissingBuildRule = false;
-    // Open the output jar for every jar contained as the output of transitiveNotDeclaredDep.  With
-    // the exception of rules that export their dependencies, this will result in a single
-    // classpath.
-    for (String classPath : classPaths) {
-      ImmutableSet<String> topLevelSymbols;
-      topLevelSymbols = jarResolver.apply(classPath);
-
-      for (String symbolName : topLevelSymbols) {
-        if (failedImports.contains(symbolName)) {
-          failedImports.remove(symbolName);
-          containsMissingBuildRule = true;
-
-          // If we've found all of the missing imports, bail out early.
-          if (failedImports.isEmpty()) {
-            return true;
-          }
-        }
-      }
-    }
-    return containsMissingBuildRule;
-  }
-
-  /**
-   * @return A function that takes a list of failed imports from a javac invocation and returns a
-   *    set of rules to suggest that the developer import to satisfy those imports.
+   * @return A function that takes the classpath entries that javac read classes from but that are
+   *    not declared, and returns the rules that provide them, to suggest that the developer add them
+   *    as deps.
    */
   @VisibleForTesting
   Optional<DependencyCheckingJavacStep.SuggestBuildRules> createSuggestBuildFunction(
       BuildContext context,
-      ImmutableSetMultimap<BuildRule, String> transitiveClasspathEntries,
-      ImmutableSetMultimap<BuildRule, String> declaredClasspathEntries,
-      final JarResolver jarResolver) {
+      final ImmutableSetMultimap<BuildRule, String> transitiveClasspathEntries,
+      ImmutableSetMultimap<BuildRule, String> declaredClasspathEntries) {
     if (context.getBuildDependencies() != BuildDependencies.WARN_ON_TRANSITIVE) {
       return Optional.absent();
     }
@@ -537,22 +625,18 @@ public class DefaultJavaLibraryRule extends AbstractCachingBuildRule
     DependencyCheckingJavacStep.SuggestBuildRules suggestBuildRuleFn =
         new DependencyCheckingJavacStep.SuggestBuildRules() {
       @Override
-      public ImmutableSet<String> apply(ImmutableSet<String> failedImports) {
+      public ImmutableSet<String> apply(ImmutableSet<String> undeclaredClasspathEntries) {
         ImmutableSet.Builder<String> suggestedDeps = ImmutableSet.builder();
-
-        Set<String> remainingImports = Sets.newHashSet(failedImports);
-
         for (BuildRule transitiveNotDeclaredDep : sortedTransitiveNotDeclaredDeps) {
           boolean ruleCanSeeDep = transitiveNotDeclaredDep.isVisibleTo(
               DefaultJavaLibraryRule.this.getBuildTarget());
-          if (ruleCanSeeDep &&
-              isMissingBuildRule(transitiveNotDeclaredDep, remainingImports, jarResolver)) {
+          // With the exception of rules that export their dependencies, each rule has a single
+          // classpath entry.
+          if (ruleCanSeeDep && !Sets.intersection(
+                  transitiveClasspathEntries.get(transitiveNotDeclaredDep),
+                  undeclaredClasspathEntries).isEmpty()) {
             suggestedDeps.add(transitiveNotDeclaredDep.getFullyQualifiedName());
           }
-          // If we've wiped out all remaining imports, break the loop looking for them.
-          if (remainingImports.isEmpty()) {
-            break;
-          }
         }
         return suggestedDeps.build();
       }
@@ -561,11 +645,14 @@ public class DefaultJavaLibraryRule extends AbstractCachingBuildRule
   }
 
 
+  /**
+   * @return the path, relative to the project root, of each resource of this rule, keyed by the
+   *     name of its entry in the output jar.
+   */
   @VisibleForTesting
-  void addResourceCommands(BuildContext context,
-                           ImmutableList.Builder<Step> commands,
-                           String outputDirectory,
-                           JavaPackageFinder javaPackageFinder) {
+  ImmutableSortedMap<String, String> getResourcesToJar(BuildContext context,
+      JavaPackageFinder javaPackageFinder) {
+    ImmutableSortedMap.Builder<String, String> resourcesToJar = ImmutableSortedMap.naturalOrder();
     if (!resources.isEmpty()) {
       String targetPackageDir = javaPackageFinder.findJavaPackageForPath(
           getBuildTarget().getBasePathWithSlash())
@@ -581,7 +668,7 @@ public class DefaultJavaLibraryRule extends AbstractCachingBuildRule
         // Then javaPackageAsPath would be:
         // "com/facebook/orca/protocol/base/"
         //
-        // And the path that we would want to copy to the classes directory would be:
+        // And the name of the entry that we would want to add to the jar would be:
         // "com/facebook/orca/protocol/base/batch_exception1.txt"
         //
         // Therefore, some path-wrangling is required to produce the correct string.
@@ -612,11 +699,10 @@ public class DefaultJavaLibraryRule extends AbstractCachingBuildRule
 
           relativeSymlinkPath = resource.substring(lastIndex);
         }
-        String target = outputDirectory + '/' + relativeSymlinkPath;
-        MkdirAndSymlinkFileStep link = new MkdirAndSymlinkFileStep(resource, target);
-        commands.add(link);
+        resourcesToJar.put(relativeSymlinkPath, resource);
       }
     }
+    return resourcesToJar.build();
   }
 
   @Override
@@ -624,6 +710,19 @@ public class DefaultJavaLibraryRule extends AbstractCachingBuildRule
     return outputJar.orNull();
   }
 
+  /** The sources generated by annotation processors are cached with the jar. */
+  @Override
+  protected ImmutableSortedSet<String> getPathsToCachedOutputs() {
+    ImmutableSortedSet.Builder<String> outputs = ImmutableSortedSet.naturalOrder();
+    outputs.addAll(super.getPathsToCachedOutputs());
+    String annotationGenFolder =
+        javacOptions.getAnnotationProcessingData().getGeneratedSourceFolderName();
+    if (annotationGenFolder != null) {
+      outputs.add(annotationGenFolder);
+    }
+    return outputs.build();
+  }
+
   public static Builder newJavaLibraryRuleBuilder(AbstractBuildRuleBuilderParams params) {
     return new Builder(params);
   }
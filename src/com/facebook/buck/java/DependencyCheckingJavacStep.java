@@ -17,22 +17,24 @@
 package com.facebook.buck.java;
 
 import com.facebook.buck.rules.BuildDependencies;
+import com.facebook.buck.rules.BuildRule;
 import com.facebook.buck.step.ExecutionContext;
-import com.facebook.buck.util.CapturingPrintStream;
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.base.Charsets;
 import com.google.common.base.Function;
 import com.google.common.base.Joiner;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
-import com.google.common.base.Splitter;
-import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.collect.ImmutableSortedMap;
 import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.Sets;
 
+import java.io.PrintStream;
+import java.util.Map;
 import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+
+import javax.tools.JavaFileObject;
 
 /**
  * Command used to compile java libraries with a variety of ways to handle dependencies.
@@ -42,13 +44,13 @@ import java.util.regex.Pattern;
  * If {@code buildDependencies} is set to {@link BuildDependencies#TRANSITIVE}, this class will
  * invoke javac using {@code transitiveClasspathEntries} for the classpath.
  * If {@code buildDependencies} is set to {@link BuildDependencies#WARN_ON_TRANSITIVE}, this class
- * will first compile using {@code declaredClasspathEntries}, and should that fail fall back to
- * {@code transitiveClasspathEntries} but warn the developer about which dependencies were in
- * the transitive classpath but not in the declared classpath.
+ * will compile once using {@code transitiveClasspathEntries}, keeping track of the classpath
+ * entries that javac reads classes from, and warn the developer about the classes that were only
+ * found in the transitive classpath and not in the declared classpath.
  */
 public class DependencyCheckingJavacStep extends JavacInMemoryStep {
 
-  private final ImmutableSet<String> declaredClasspathEntries;
+  private final ImmutableSetMultimap<BuildRule, String> declaredClasspathEntries;
 
   private final Optional<String> invokingRule;
 
@@ -56,45 +58,38 @@ public class DependencyCheckingJavacStep extends JavacInMemoryStep {
 
   private final Optional<SuggestBuildRules> suggestBuildRules;
 
-  private static final Pattern IMPORT_FAILURE =
-      Pattern.compile("import ([\\w\\.\\*]*);");
-
-  private static final Pattern PACKAGE_FAILURE =
-      Pattern.compile(".*?package ([\\w\\.\\*]*) does not exist");
-
-  private static final Pattern ACCESS_FAILURE =
-      Pattern.compile(".*?error: cannot access ([\\w\\.\\*]*)");
-
-  private static final Pattern CLASS_NOT_FOUND =
-      Pattern.compile(".*?class file for ([\\w\\.\\*]*) not found");
-
-  private static final Pattern CLASS_SYMBOL_NOT_FOUND =
-      Pattern.compile(".*?symbol:\\s*class\\s*([\\w\\.\\*]*)");
-
-  private static final ImmutableList<Pattern> MISSING_IMPORT_PATTERNS =
-      ImmutableList.of(IMPORT_FAILURE,
-          PACKAGE_FAILURE,
-          ACCESS_FAILURE,
-          CLASS_NOT_FOUND,
-          CLASS_SYMBOL_NOT_FOUND);
-
   private static final String LINE_SEPARATOR = System.getProperty("line.separator");
 
   public static interface SuggestBuildRules extends
       Function<ImmutableSet<String>,ImmutableSet<String>> {}
 
+  /**
+   * @param pathToOutputJar the jar into which the classes are compiled, along with
+   *     {@code resourcesToJar}.
+   * @param declaredClasspathEntries the classpath entries of each declared dependency.
+   * @param pathToClassDependencyGraph if present, the compilation is incremental.
+   * @see JavacInMemoryStep#JavacInMemoryStep(String, ImmutableSortedMap, Set, Set, JavacOptions,
+   *     Optional)
+   */
   public DependencyCheckingJavacStep(
-      String outputDirectory,
+      String pathToOutputJar,
+      ImmutableSortedMap<String, String> resourcesToJar,
       Set<String> javaSourceFilePaths,
       Set<String> transitiveClasspathEntries,
-      Set<String> declaredClasspathEntries,
+      ImmutableSetMultimap<BuildRule, String> declaredClasspathEntries,
       JavacOptions javacOptions,
       Optional<String> invokingRule,
       BuildDependencies buildDependencies,
-      Optional<SuggestBuildRules> suggestBuildRules) {
-    super(outputDirectory, javaSourceFilePaths, transitiveClasspathEntries, javacOptions);
-
-    this.declaredClasspathEntries = ImmutableSet.copyOf(declaredClasspathEntries);
+      Optional<SuggestBuildRules> suggestBuildRules,
+      Optional<String> pathToClassDependencyGraph) {
+    super(pathToOutputJar,
+        resourcesToJar,
+        javaSourceFilePaths,
+        transitiveClasspathEntries,
+        javacOptions,
+        pathToClassDependencyGraph);
+
+    this.declaredClasspathEntries = Preconditions.checkNotNull(declaredClasspathEntries);
     this.invokingRule = Preconditions.checkNotNull(invokingRule);
     this.buildDependencies = Preconditions.checkNotNull(buildDependencies);
     this.suggestBuildRules = Preconditions.checkNotNull(suggestBuildRules);
@@ -103,68 +98,106 @@ public class DependencyCheckingJavacStep extends JavacInMemoryStep {
   @Override
   public int executeBuild(ExecutionContext context) {
     // Build up the compilation task.
+    // The classpath usage is always tracked, so that the owning rule can record its dependency
+    // file.
     if (buildDependencies == BuildDependencies.FIRST_ORDER_ONLY) {
       return buildWithClasspath(context,
-          ImmutableSet.copyOf(declaredClasspathEntries));
+          ImmutableSet.copyOf(declaredClasspathEntries.values()),
+          /* trackClasspathUsage */ true);
     } else if (buildDependencies == BuildDependencies.WARN_ON_TRANSITIVE) {
-      return tryBuildWithFirstOrderDeps(context);
+      return buildAndCheckDependencies(context);
     } else {
       return buildWithClasspath(context,
-          ImmutableSet.copyOf(classpathEntries));
+          ImmutableSet.copyOf(classpathEntries),
+          /* trackClasspathUsage */ true);
     }
   }
 
-  private int tryBuildWithFirstOrderDeps(ExecutionContext context) {
-    CapturingPrintStream stdout = new CapturingPrintStream();
-    CapturingPrintStream stderr = new CapturingPrintStream();
-    ExecutionContext firstOrderContext = context.createSubContext(stdout, stderr);
-
-    int declaredDepsResult = buildWithClasspath(firstOrderContext,
-        ImmutableSet.copyOf(declaredClasspathEntries));
-
-    String firstOrderStdout = stdout.getContentsAsString(Charsets.UTF_8);
-    String firstOrderStderr = stderr.getContentsAsString(Charsets.UTF_8);
-
-    if (declaredDepsResult != 0) {
-      int transitiveResult = buildWithClasspath(context,
-          ImmutableSet.copyOf(classpathEntries));
-      if (transitiveResult == 0) {
-        ImmutableSet<String> failedImports = findFailedImports(firstOrderStderr);
-
-        context.getStdErr().println(String.format("Rule %s builds with its transitive " +
-            "dependencies but not with its first order dependencies.", invokingRule.or("")));
-        context.getStdErr().println("The following packages were missing:");
-        context.getStdErr().println(Joiner.on(LINE_SEPARATOR).join(failedImports));
-        if (suggestBuildRules.isPresent()) {
-          context.getStdErr().println("Try adding the following deps:");
-          context.getStdErr().println(Joiner.on(LINE_SEPARATOR)
-              .join(suggestBuildRules.get().apply(failedImports)));
-        }
-        context.getStdErr().println();
-        context.getStdErr().println();
+  /**
+   * Compiles with the transitive classpath, which javac only reads the classes that it needs from,
+   * so the classes that it read from entries that are not declared are the ones that it would not
+   * have found with the declared classpath.
+   */
+  private int buildAndCheckDependencies(ExecutionContext context) {
+    int result = buildWithClasspath(context,
+        ImmutableSet.copyOf(classpathEntries),
+        /* trackClasspathUsage */ true);
+    ClasspathUsage usage = getClasspathUsage();
+    if (result != 0 || usage == null) {
+      return result;
+    }
+    ImmutableSetMultimap<String, String> classpathUsage = usage.getFilesReadByClasspathEntry();
+
+    ImmutableSet<String> declaredEntries = ImmutableSet.copyOf(declaredClasspathEntries.values());
+    ImmutableSet<String> undeclaredClasses =
+        findUndeclaredClasses(classpathUsage, declaredEntries);
+    if (!undeclaredClasses.isEmpty()) {
+      PrintStream stdErr = context.getStdErr();
+      stdErr.println(String.format("Rule %s builds with its transitive " +
+          "dependencies but not with its first order dependencies.", invokingRule.or("")));
+      stdErr.println("The following classes were missing:");
+      stdErr.println(Joiner.on(LINE_SEPARATOR).join(undeclaredClasses));
+      if (suggestBuildRules.isPresent()) {
+        stdErr.println("Try adding the following deps:");
+        stdErr.println(Joiner.on(LINE_SEPARATOR)
+            .join(suggestBuildRules.get().apply(ImmutableSet.copyOf(
+                Sets.difference(classpathUsage.keySet(), declaredEntries)))));
       }
-      return transitiveResult;
-    } else {
-      context.getStdOut().print(firstOrderStdout);
-      context.getStdErr().print(firstOrderStderr);
+      stdErr.println();
+      stdErr.println();
     }
 
-    return declaredDepsResult;
+    if (context.getVerbosity().shouldPrintCommand()) {
+      ImmutableSet<String> unusedDeps = findUnusedDeps(classpathUsage);
+      if (!unusedDeps.isEmpty()) {
+        context.getStdErr().println(String.format(
+            "Rule %s does not use any classes from the following deps:%s%s",
+            invokingRule.or(""),
+            LINE_SEPARATOR,
+            Joiner.on(LINE_SEPARATOR).join(unusedDeps)));
+      }
+    }
+    return result;
   }
 
+  /**
+   * @return the names of the top-level classes that javac read from classpath entries that are not
+   *     in {@code declaredEntries}, in sorted order.
+   */
   @VisibleForTesting
-  static ImmutableSet<String> findFailedImports(String output) {
-    Iterable<String> lines = Splitter.on(LINE_SEPARATOR).split(output);
-    ImmutableSortedSet.Builder<String> failedImports = ImmutableSortedSet.naturalOrder();
-    for (String line : lines) {
-      for (Pattern missingImportPattern : MISSING_IMPORT_PATTERNS) {
-        Matcher lineMatch = missingImportPattern.matcher(line);
-        if (lineMatch.matches()) {
-          failedImports.add(lineMatch.group(1));
-          break;
-        }
+  static ImmutableSet<String> findUndeclaredClasses(
+      ImmutableSetMultimap<String, String> classpathUsage,
+      Set<String> declaredEntries) {
+    ImmutableSortedSet.Builder<String> undeclaredClasses = ImmutableSortedSet.naturalOrder();
+    for (Map.Entry<String, String> entry : classpathUsage.entries()) {
+      String path = entry.getValue();
+      if (declaredEntries.contains(entry.getKey()) ||
+          !path.endsWith(JavaFileObject.Kind.CLASS.extension)) {
+        continue;
+      }
+      String binaryName = path
+          .substring(0, path.length() - JavaFileObject.Kind.CLASS.extension.length())
+          .replace('/', '.');
+      int dollar = binaryName.indexOf('$');
+      undeclaredClasses.add(dollar < 0 ? binaryName : binaryName.substring(0, dollar));
+    }
+    return undeclaredClasses.build();
+  }
+
+  /**
+   * @return the names of the declared dependencies, other than the invoking rule itself, that javac
+   *     did not read anything from.
+   */
+  private ImmutableSet<String> findUnusedDeps(ImmutableSetMultimap<String, String> classpathUsage) {
+    ImmutableSortedSet.Builder<String> unusedDeps = ImmutableSortedSet.naturalOrder();
+    for (BuildRule dep : declaredClasspathEntries.keySet()) {
+      String name = dep.getFullyQualifiedName();
+      if (!name.equals(invokingRule.orNull()) &&
+          Sets.intersection(declaredClasspathEntries.get(dep), classpathUsage.keySet())
+              .isEmpty()) {
+        unusedDeps.add(name);
       }
     }
-    return failedImports.build();
+    return unusedDeps.build();
   }
 }
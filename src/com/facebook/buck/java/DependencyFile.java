@@ -0,0 +1,185 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.java;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+
+import javax.annotation.Nullable;
+import javax.tools.JavaFileObject;
+
+/**
+ * The files that a compilation read from its classpath, each with the hash of its contents, and the
+ * packages whose classes it listed, each with the hash of the names of those classes. If every hash
+ * is the same for a later classpath, then compiling the same sources against it produces the same
+ * output, even if other classes on it have changed.
+ * <p>
+ * The hashes are of whatever javac would find on the classpath, which is the first entry that has
+ * the file, so that a file that has moved from one entry to another is still matched.
+ */
+final class DependencyFile {
+
+  /** Prefix of the key of a file, which is followed by its path relative to its entry. */
+  static final String FILE_PREFIX = "file:";
+
+  /** Prefix of the key of a package, which is followed by its name. */
+  static final String PACKAGE_PREFIX = "package:";
+
+  /** Hash of a file or package that is not on the classpath. */
+  private static final String MISSING = "missing";
+
+  /** Utility class: do not instantiate. */
+  private DependencyFile() {}
+
+  /**
+   * @param classpath the classpath that the compilation that recorded {@code usage} was given, in
+   *     order.
+   */
+  static ImmutableMap<String, String> create(ClasspathUsage usage,
+      List<File> classpath,
+      ClasspathArchiveCache archiveCache) throws IOException {
+    SortedSet<String> paths = Sets.newTreeSet(usage.getFilesReadByClasspathEntry().values());
+    ImmutableMap.Builder<String, String> dependencyFile = ImmutableMap.builder();
+    for (String path : paths) {
+      dependencyFile.put(FILE_PREFIX + path, hashFile(path, classpath, archiveCache));
+    }
+    for (String packageName : usage.getListedPackages()) {
+      dependencyFile.put(PACKAGE_PREFIX + packageName,
+          hashPackage(packageName, classpath, archiveCache));
+    }
+    return dependencyFile.build();
+  }
+
+  /**
+   * @return whether every hash in {@code dependencyFile} is the same for {@code classpath}. This is
+   *     {@code false} if {@code dependencyFile} is empty, as then what was read is not known.
+   */
+  static boolean isUnchanged(Map<String, String> dependencyFile,
+      List<File> classpath,
+      ClasspathArchiveCache archiveCache) {
+    if (dependencyFile.isEmpty()) {
+      return false;
+    }
+    try {
+      for (Map.Entry<String, String> entry : dependencyFile.entrySet()) {
+        String key = entry.getKey();
+        String hash;
+        if (key.startsWith(FILE_PREFIX)) {
+          hash = hashFile(key.substring(FILE_PREFIX.length()), classpath, archiveCache);
+        } else if (key.startsWith(PACKAGE_PREFIX)) {
+          hash = hashPackage(key.substring(PACKAGE_PREFIX.length()), classpath, archiveCache);
+        } else {
+          return false;
+        }
+        if (!hash.equals(entry.getValue())) {
+          return false;
+        }
+      }
+      return true;
+    } catch (IOException e) {
+      // Whatever cannot be read is treated as having changed, so the rule is built again.
+      return false;
+    }
+  }
+
+  private static String hashFile(String path,
+      List<File> classpath,
+      ClasspathArchiveCache archiveCache) throws IOException {
+    for (File entry : classpath) {
+      HashCode hash = hashFile(path, entry, archiveCache);
+      if (hash != null) {
+        return hash.toString();
+      }
+    }
+    return MISSING;
+  }
+
+  /** @return the hash of the file at {@code path} in {@code entry}, or {@code null} if none. */
+  @Nullable
+  private static HashCode hashFile(String path, File entry, ClasspathArchiveCache archiveCache)
+      throws IOException {
+    if (entry.isDirectory()) {
+      File file = new File(entry, path);
+      return file.isFile() ? Files.hash(file, Hashing.sha1()) : null;
+    } else if (!entry.isFile()) {
+      return null;
+    }
+
+    JavaFileObject file = archiveCache.get(entry).getFile(path);
+    if (file == null) {
+      return null;
+    }
+    InputStream input = file.openInputStream();
+    try {
+      return Hashing.sha1().hashBytes(ByteStreams.toByteArray(input));
+    } finally {
+      input.close();
+    }
+  }
+
+  /**
+   * @return the hash of the names of the class files of {@code packageName} across
+   *     {@code classpath}, which changes when a class is added to or removed from the package.
+   */
+  private static String hashPackage(String packageName,
+      List<File> classpath,
+      ClasspathArchiveCache archiveCache) throws IOException {
+    String packagePath = packageName.replace('.', '/');
+    SortedSet<String> classFiles = Sets.newTreeSet();
+    for (File entry : classpath) {
+      if (entry.isDirectory()) {
+        String[] names = new File(entry, packagePath).list();
+        if (names == null) {
+          continue;
+        }
+        for (String name : names) {
+          if (name.endsWith(JavaFileObject.Kind.CLASS.extension)) {
+            classFiles.add(name);
+          }
+        }
+      } else if (entry.isFile()) {
+        List<JavaFileObject> files = Lists.newArrayList();
+        archiveCache.get(entry).list(packageName, /* recurse */ false, files);
+        for (JavaFileObject file : files) {
+          String path = ((ClasspathFileManager.ClasspathFile) file).getRelativePath();
+          classFiles.add(path.substring(path.lastIndexOf('/') + 1));
+        }
+      }
+    }
+    if (classFiles.isEmpty()) {
+      return MISSING;
+    }
+    Hasher hasher = Hashing.sha1().newHasher();
+    hasher.putString(Joiner.on('\n').join(classFiles), Charsets.UTF_8);
+    return hasher.hash().toString();
+  }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.java;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.Maps;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Map;
+import java.util.SortedMap;
+
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+
+/**
+ * {@link javax.tools.JavaFileManager} that keeps the class files written by javac, and any other
+ * files that annotation processors write alongside them, in memory rather than in an output
+ * directory, so that they can be written straight into a jar. Every other location is handled by
+ * the {@link StandardJavaFileManager} that it wraps.
+ * <p>
+ * Each compilation must use its own instance, as the output is only safe to read once javac has
+ * finished.
+ */
+class InMemoryJavaFileManager extends ForwardingJavaFileManager<StandardJavaFileManager> {
+
+  /** Contents of the output files, keyed by their path in the jar. */
+  private final SortedMap<String, byte[]> outputs;
+
+  /** The source file that each class file was compiled from, keyed by the path of the latter. */
+  private final Map<String, URI> sourcesOfClassFiles;
+
+  InMemoryJavaFileManager(StandardJavaFileManager fileManager) {
+    super(fileManager);
+    this.outputs = Maps.newTreeMap();
+    this.sourcesOfClassFiles = Maps.newHashMap();
+  }
+
+  @Override
+  public JavaFileObject getJavaFileForOutput(Location location,
+      String className,
+      JavaFileObject.Kind kind,
+      FileObject sibling) throws IOException {
+    if (location != StandardLocation.CLASS_OUTPUT) {
+      return super.getJavaFileForOutput(location, className, kind, sibling);
+    }
+    String path = className.replace('.', '/') + kind.extension;
+    // javac passes the source file that a class is compiled from as its sibling.
+    if (kind == JavaFileObject.Kind.CLASS && sibling != null) {
+      putSourceOfClassFile(path, sibling.toUri());
+    }
+    return new OutputFileObject(path, kind);
+  }
+
+  @Override
+  public FileObject getFileForOutput(Location location,
+      String packageName,
+      String relativeName,
+      FileObject sibling) throws IOException {
+    if (location != StandardLocation.CLASS_OUTPUT) {
+      return super.getFileForOutput(location, packageName, relativeName, sibling);
+    }
+    String path = packageName.isEmpty()
+        ? relativeName
+        : packageName.replace('.', '/') + '/' + relativeName;
+    return new OutputFileObject(path, JavaFileObject.Kind.OTHER);
+  }
+
+  /**
+   * @return the contents of each file written to {@link StandardLocation#CLASS_OUTPUT}, keyed by
+   *     its path relative to the root of the output, in sorted order.
+   */
+  synchronized ImmutableSortedMap<String, byte[]> getOutputs() {
+    return ImmutableSortedMap.copyOfSorted(outputs);
+  }
+
+  /**
+   * @return the {@link URI} of the source file that each class file was compiled from, keyed by
+   *     the path of the class file.
+   */
+  synchronized ImmutableMap<String, URI> getSourcesOfClassFiles() {
+    return ImmutableMap.copyOf(sourcesOfClassFiles);
+  }
+
+  private synchronized void putSourceOfClassFile(String path, URI source) {
+    sourcesOfClassFiles.put(path, source);
+  }
+
+  private synchronized void putOutput(String path, byte[] contents) {
+    outputs.put(path, contents);
+  }
+
+  private static URI createUri(String path) {
+    try {
+      return new URI("mem", /* host */ null, "/" + path, /* fragment */ null);
+    } catch (URISyntaxException e) {
+      throw new IllegalArgumentException(e);
+    }
+  }
+
+  private class OutputFileObject extends SimpleJavaFileObject {
+    private final String path;
+
+    OutputFileObject(String path, JavaFileObject.Kind kind) {
+      super(createUri(path), kind);
+      this.path = path;
+    }
+
+    @Override
+    public OutputStream openOutputStream() {
+      return new ByteArrayOutputStream() {
+        @Override
+        public void close() throws IOException {
+          super.close();
+          putOutput(path, toByteArray());
+        }
+      };
+    }
+  }
+}
@@ -19,16 +19,26 @@ package com.facebook.buck.java;
 import com.facebook.buck.step.ExecutionContext;
 import com.facebook.buck.step.Step;
 import com.facebook.buck.util.DirectoryTraversal;
+import com.facebook.buck.util.MoreFutures;
 import com.facebook.buck.util.ProjectFilesystem;
+import com.facebook.buck.util.RawZipFile;
+import com.facebook.buck.util.RawZipWriter;
+import com.facebook.buck.util.RawZipWriter.CompressedEntry;
 import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.Sets;
+import com.google.common.collect.Maps;
 import com.google.common.io.ByteStreams;
 import com.google.common.io.Closeables;
 import com.google.common.io.Closer;
 import com.google.common.io.Files;
+import com.google.common.io.InputSupplier;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
@@ -39,14 +49,17 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Enumeration;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
 import java.util.jar.Attributes;
-import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
-import java.util.jar.JarOutputStream;
 import java.util.jar.Manifest;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
 import java.util.zip.ZipFile;
 
 import javax.annotation.Nullable;
@@ -56,6 +69,22 @@ import javax.annotation.Nullable;
  */
 public class JarDirectoryStep implements Step {
 
+  private static final int NUM_DEFLATE_THREADS = Runtime.getRuntime().availableProcessors();
+
+  /**
+   * Deflates the new entries of every jar that is written, so that the steps that run at once share
+   * one thread per core rather than each start as many.
+   */
+  private static final ListeningExecutorService DEFLATE_EXECUTOR =
+      MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(NUM_DEFLATE_THREADS,
+          new ThreadFactoryBuilder().setNameFormat("jar-deflate-%d").setDaemon(true).build()));
+
+  /**
+   * How many entries past the one that is being written may be compressed already, which bounds
+   * how much compressed data is held in memory.
+   */
+  private static final int COMPRESSION_WINDOW = 2 * NUM_DEFLATE_THREADS;
+
   /** Where to write the new JAR file. */
   private final String pathToOutputFile;
 
@@ -148,20 +177,18 @@ public class JarDirectoryStep implements Step {
     }
 
     Closer closer = Closer.create();
+    List<EntrySource> sources = ImmutableList.of();
     try {
-      JarOutputStream outputFile = closer.register(new JarOutputStream(
-          new BufferedOutputStream(new FileOutputStream(
-              filesystem.getFileForRelativePath(pathToOutputFile)))));
-
-      Set<String> directoryEntriesInsertedIntoOutputJar = Sets.newHashSet();
-      ProjectFilesystem projectFilesystem = context.getProjectFilesystem();
+      // The entries are collected before any is written, so that they can be written in sorted
+      // order, after the merged manifest.
+      SortedMap<String, EntrySource> entries = Maps.newTreeMap();
       for (String entry : entriesToJar) {
-        File file = projectFilesystem.getFileForRelativePath(entry);
+        File file = filesystem.getFileForRelativePath(entry);
         if (file.isFile()) {
           // Assume the file is a ZIP/JAR file.
-          copyZipEntriesToJar(file, outputFile, manifest, directoryEntriesInsertedIntoOutputJar);
+          collectZipEntries(file, manifest, entries, closer);
         } else if (file.isDirectory()) {
-          addFilesInDirectoryToJar(file, outputFile, directoryEntriesInsertedIntoOutputJar);
+          collectFilesInDirectory(file, manifest, entries);
         } else {
           throw new IllegalStateException("Must be a file or directory: " + file);
         }
@@ -173,49 +200,100 @@ public class JarDirectoryStep implements Step {
       if (mainClass != null) {
         manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, mainClass);
       }
+      ByteArrayOutputStream manifestContents = new ByteArrayOutputStream();
+      manifest.write(manifestContents);
+      CompressedEntry manifestEntry =
+          RawZipWriter.compress(JarFile.MANIFEST_NAME, manifestContents.toByteArray());
+
+      // The entries that have to be deflated are deflated on DEFLATE_EXECUTOR, up to
+      // COMPRESSION_WINDOW entries ahead of the one that this thread is writing, in order.
+      sources = ImmutableList.copyOf(entries.values());
+      for (int i = 0; i < Math.min(COMPRESSION_WINDOW, sources.size()); i++) {
+        sources.get(i).startCompressing(DEFLATE_EXECUTOR);
+      }
 
-      JarEntry manifestEntry = new JarEntry(JarFile.MANIFEST_NAME);
-      outputFile.putNextEntry(manifestEntry);
-      manifest.write(outputFile);
+      RawZipWriter outputFile = closer.register(new RawZipWriter(
+          new BufferedOutputStream(new FileOutputStream(
+              filesystem.getFileForRelativePath(pathToOutputFile)))));
+      outputFile.putEntry(manifestEntry);
+      for (int i = 0; i < sources.size(); i++) {
+        if (i + COMPRESSION_WINDOW < sources.size()) {
+          sources.get(i + COMPRESSION_WINDOW).startCompressing(DEFLATE_EXECUTOR);
+        }
+        sources.get(i).write(outputFile);
+      }
     } finally {
+      // If the jar could not be written, the compressions that are still running are not needed.
+      for (EntrySource source : sources) {
+        source.cancel();
+      }
       closer.close();
     }
   }
 
   /**
-   * @param file is assumed to be a zip file.
-   * @param jar is the file being written.
-   * @param manifest that should get a copy of (@code jar}'s manifest entries.
-   * @param directoryEntriesInsertedIntoOutputJar is used to avoid duplicate entries.
+   * @param file the ZIP/JAR file whose entries are added to {@code entries}. Its entries are copied
+   *     as they are, still compressed, unless it is an archive that {@link RawZipFile} cannot read.
+   * @param manifest that should get a copy of (@code file}'s manifest entries.
+   * @param entries the entries of the jar being written, keyed by their name.
+   * @param closer that closes {@code file} once the jar has been written.
    */
-  private void copyZipEntriesToJar(File file,
-      final JarOutputStream jar,
+  private void collectZipEntries(File file,
       Manifest manifest,
-      Set<String> directoryEntriesInsertedIntoOutputJar) throws IOException {
-    ZipFile zip = new ZipFile(file);
-    for (Enumeration<? extends ZipEntry> entries = zip.entries(); entries.hasMoreElements(); ) {
-      ZipEntry entry = entries.nextElement();
+      SortedMap<String, EntrySource> entries,
+      Closer closer) throws IOException {
+    RawZipFile rawZip;
+    try {
+      rawZip = closer.register(RawZipFile.open(file));
+    } catch (ZipException e) {
+      ZipFile zip = closer.register(new ZipFile(file));
+      collectZipEntries(zip, manifest, entries);
+      return;
+    }
+
+    for (RawZipFile.Entry entry : rawZip.getEntries()) {
       String entryName = entry.getName();
 
       if (entryName.equals(JarFile.MANIFEST_NAME)) {
-        Manifest readManifest = readManifest(zip, entry);
-        merge(manifest, readManifest);
+        InputStream stream = rawZip.getInputStream(entry);
+        try {
+          merge(manifest, new Manifest(stream));
+        } finally {
+          stream.close();
+        }
         continue;
       }
 
-      // The same directory entry cannot be added more than once.
-      if (directoryEntriesInsertedIntoOutputJar.contains(entryName)) {
-        continue;
-      }
+      putEntry(entries, entryName, new RawEntrySource(rawZip, entry));
+    }
+  }
 
-      jar.putNextEntry(entry);
-      InputStream inputStream = zip.getInputStream(entry);
-      ByteStreams.copy(inputStream, jar);
-      jar.closeEntry();
+  /**
+   * @param zip the ZIP/JAR file whose entries are added to {@code entries}, to be recompressed.
+   * @param manifest that should get a copy of (@code zip}'s manifest entries.
+   * @param entries the entries of the jar being written, keyed by their name.
+   */
+  private void collectZipEntries(final ZipFile zip,
+      Manifest manifest,
+      SortedMap<String, EntrySource> entries) throws IOException {
+    for (Enumeration<? extends ZipEntry> zipEntries = zip.entries();
+         zipEntries.hasMoreElements(); ) {
+      final ZipEntry entry = zipEntries.nextElement();
+      String entryName = entry.getName();
 
-      if (entryName.endsWith("/")) {
-        directoryEntriesInsertedIntoOutputJar.add(entryName);
+      if (entryName.equals(JarFile.MANIFEST_NAME)) {
+        Manifest readManifest = readManifest(zip, entry);
+        merge(manifest, readManifest);
+        continue;
       }
+
+      putEntry(entries, entryName, new DeflatedEntrySource(entryName,
+          new InputSupplier<InputStream>() {
+            @Override
+            public InputStream getInput() throws IOException {
+              return zip.getInputStream(entry);
+            }
+          }));
     }
   }
 
@@ -235,35 +313,59 @@ public class JarDirectoryStep implements Step {
 
   /**
    * @param directory that must not contain symlinks with loops.
-   * @param jar is the file being written.
+   * @param manifest that should get a copy of the entries of the manifest in {@code directory}, if
+   *     there is one.
+   * @param entries the entries of the jar being written, keyed by their name.
    */
-  private void addFilesInDirectoryToJar(File directory,
-      final JarOutputStream jar,
-      final Set<String> directoryEntriesInsertedIntoOutputJar) {
-    new DirectoryTraversal(directory) {
-
-      @Override
-      public void visit(File file, String relativePath) {
-        JarEntry entry = new JarEntry(relativePath);
-        String entryName = entry.getName();
-        entry.setTime(file.lastModified());
-        try {
-          if (directoryEntriesInsertedIntoOutputJar.contains(entryName)) {
-            return;
-          }
-          jar.putNextEntry(entry);
-          Files.copy(file, jar);
-          jar.closeEntry();
-
-          if (entryName.endsWith("/")) {
-            directoryEntriesInsertedIntoOutputJar.add(entryName);
+  private void collectFilesInDirectory(File directory,
+      final Manifest manifest,
+      final SortedMap<String, EntrySource> entries) throws IOException {
+    try {
+      new DirectoryTraversal(directory) {
+
+        @Override
+        public void visit(File file, String relativePath) {
+          try {
+            if (relativePath.equals(JarFile.MANIFEST_NAME)) {
+              merge(manifest, readManifest(file));
+              return;
+            }
+            putEntry(entries,
+                relativePath,
+                new DeflatedEntrySource(relativePath, Files.newInputStreamSupplier(file)));
+          } catch (IOException e) {
+            Throwables.propagate(e);
           }
-        } catch (IOException e) {
-          Throwables.propagate(e);
         }
-      }
 
-    }.traverse();
+      }.traverse();
+    } catch (RuntimeException e) {
+      Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+      throw e;
+    }
+  }
+
+  private static Manifest readManifest(File file) throws IOException {
+    InputStream stream = new FileInputStream(file);
+    try {
+      return new Manifest(stream);
+    } finally {
+      stream.close();
+    }
+  }
+
+  /**
+   * Adds an entry to {@code entries}. The same directory entry may come from several of
+   * {@link #entriesToJar}, in which case the first one is kept, but any other entry may not.
+   */
+  private static void putEntry(SortedMap<String, EntrySource> entries,
+      String entryName,
+      EntrySource source) throws ZipException {
+    if (!entries.containsKey(entryName)) {
+      entries.put(entryName, source);
+    } else if (!entryName.endsWith("/")) {
+      throw new ZipException("duplicate entry: " + entryName);
+    }
   }
 
   /**
@@ -273,7 +375,7 @@ public class JarDirectoryStep implements Step {
    * @param into The Manifest to modify.
    * @param from The Manifest to copy from.
    */
-  private void merge(Manifest into, Manifest from) {
+  private static void merge(Manifest into, Manifest from) {
     Preconditions.checkNotNull(into);
     Preconditions.checkNotNull(from);
 
@@ -292,4 +394,81 @@ public class JarDirectoryStep implements Step {
     }
   }
 
+  /** Where the contents of an entry of the jar come from, and how they are written to it. */
+  private abstract static class EntrySource {
+
+    /** Starts compressing the contents of the entry on {@code executor}, if they need to be. */
+    void startCompressing(ListeningExecutorService executor) {
+    }
+
+    /** Cancels the compression of the entry, if it is running. */
+    void cancel() {
+    }
+
+    abstract void write(RawZipWriter writer) throws IOException;
+  }
+
+  /** An entry of another archive, which is copied without being inflated and deflated again. */
+  private static class RawEntrySource extends EntrySource {
+    private final RawZipFile zip;
+    private final RawZipFile.Entry entry;
+
+    private RawEntrySource(RawZipFile zip, RawZipFile.Entry entry) {
+      this.zip = zip;
+      this.entry = entry;
+    }
+
+    @Override
+    void write(RawZipWriter writer) throws IOException {
+      InputStream rawData = zip.getRawInputStream(entry);
+      try {
+        writer.putRawEntry(entry.getName(),
+            entry.getMethod(),
+            entry.getCrc(),
+            entry.getSize(),
+            entry.getCompressedSize(),
+            rawData);
+      } finally {
+        rawData.close();
+      }
+    }
+  }
+
+  /** A file, or an entry of an archive that cannot be copied raw, which has to be deflated. */
+  private static class DeflatedEntrySource extends EntrySource {
+    private final String name;
+    private final InputSupplier<? extends InputStream> contents;
+    @Nullable
+    private ListenableFuture<CompressedEntry> compressedEntry;
+
+    private DeflatedEntrySource(String name, InputSupplier<? extends InputStream> contents) {
+      this.name = name;
+      this.contents = contents;
+    }
+
+    @Override
+    void startCompressing(ListeningExecutorService executor) {
+      compressedEntry = executor.submit(new Callable<CompressedEntry>() {
+        @Override
+        public CompressedEntry call() throws IOException {
+          return RawZipWriter.compress(name, ByteStreams.toByteArray(contents));
+        }
+      });
+    }
+
+    @Override
+    void cancel() {
+      if (compressedEntry != null) {
+        compressedEntry.cancel(/* mayInterruptIfRunning */ true);
+      }
+    }
+
+    @Override
+    void write(RawZipWriter writer) throws IOException {
+      writer.putEntry(MoreFutures.getUninterruptibly(
+          Preconditions.checkNotNull(compressedEntry)));
+      // The compressed contents are no longer needed once they have been written.
+      compressedEntry = null;
+    }
+  }
 }
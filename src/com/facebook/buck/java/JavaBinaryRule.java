@@ -85,6 +85,7 @@ public class JavaBinaryRule extends AbstractCachingBuildRule implements BinaryBu
     ImmutableSortedSet.Builder<String> metaInfFiles = ImmutableSortedSet.naturalOrder();
     addMetaInfContents(metaInfFiles);
 
+    addInputDirectory(builder, metaInfDirectory);
     return super.appendToRuleKey(builder)
         .set("mainClass", mainClass)
         .set("manifestFile", manifestFile)
@@ -16,48 +16,189 @@
 
 package com.facebook.buck.java;
 
+import com.facebook.buck.java.abi.AbiWriter;
 import com.facebook.buck.step.ExecutionContext;
 import com.facebook.buck.step.Step;
+import com.facebook.buck.util.DeterministicZipOutputStream;
+import com.facebook.buck.util.ProjectFilesystem;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
 import com.google.common.base.Function;
 import com.google.common.base.Joiner;
+import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.ImmutableSortedSet;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.SetMultimap;
+import com.google.common.collect.Sets;
+import com.google.common.collect.TreeMultimap;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Closer;
+import com.google.common.io.Files;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.Writer;
+import java.net.URI;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarInputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
+import javax.annotation.Nullable;
 import javax.tools.Diagnostic;
 import javax.tools.DiagnosticCollector;
 import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
 import javax.tools.JavaFileObject;
 import javax.tools.StandardJavaFileManager;
-import javax.tools.ToolProvider;
 
 public class JavacInMemoryStep implements Step {
 
+  /** Where javac writes class files, unless they are written to {@link #pathToOutputJar}. */
+  @Nullable
   private final String pathToOutputDirectory;
 
+  /**
+   * If specified, the class files are kept in memory and written straight into this jar, along
+   * with {@link #resourcesToJar}, rather than to an output directory.
+   */
+  @Nullable
+  private final String pathToOutputJar;
+
+  /** Paths of files to add to {@link #pathToOutputJar}, keyed by the name of their entry. */
+  private final ImmutableSortedMap<String, String> resourcesToJar;
+
   private final Set<String> javaSourceFilePaths;
 
   protected final ImmutableSet<String> classpathEntries;
   private final JavacOptions javacOptions;
 
+  /**
+   * If present, where the {@link ClassDependencyGraph} of {@link #pathToOutputJar} is kept, so that
+   * the next compilation only has to compile the sources that have changed and those they affect.
+   */
+  private final Optional<String> pathToClassDependencyGraph;
+
+  /** @see #getAbiKey() */
+  @Nullable
+  private volatile String abiKey;
+
+  /** @see #getClasspathUsage() */
+  @Nullable
+  private volatile ClasspathUsage classpathUsage;
+
+  /** @see #getDependencyFile() */
+  private volatile ImmutableMap<String, String> dependencyFile = ImmutableMap.of();
+
+  /** @see #getCompiledSources() */
+  private volatile ImmutableSortedSet<String> compiledSources = ImmutableSortedSet.of();
+
+  /**
+   * Compiles {@code javaSourceFilePaths} into the directory {@code pathToOutputDirectory}.
+   */
   public JavacInMemoryStep(
         String pathToOutputDirectory,
         Set<String> javaSourceFilePaths,
         Set<String> classpathEntries,
         JavacOptions javacOptions) {
-    Preconditions.checkNotNull(pathToOutputDirectory);
+    this(Preconditions.checkNotNull(pathToOutputDirectory),
+        /* pathToOutputJar */ null,
+        /* resourcesToJar */ ImmutableSortedMap.<String, String>of(),
+        javaSourceFilePaths,
+        classpathEntries,
+        javacOptions,
+        /* pathToClassDependencyGraph */ Optional.<String>absent());
+  }
+
+  /**
+   * Compiles {@code javaSourceFilePaths} straight into the jar {@code pathToOutputJar}: the class
+   * files are kept in memory and written to the jar, together with {@code resourcesToJar}, once
+   * javac succeeds, so no classes directory is written and read back. If there are no sources to
+   * compile, the jar only contains the resources.
+   * @param pathToOutputJar the directory that contains this path must exist before this step is
+   *     executed.
+   * @param resourcesToJar paths, relative to the project root, of the files to add to the jar,
+   *     keyed by the name of their entry in the jar.
+   */
+  public JavacInMemoryStep(
+      String pathToOutputJar,
+      ImmutableSortedMap<String, String> resourcesToJar,
+      Set<String> javaSourceFilePaths,
+      Set<String> classpathEntries,
+      JavacOptions javacOptions) {
+    this(pathToOutputJar,
+        resourcesToJar,
+        javaSourceFilePaths,
+        classpathEntries,
+        javacOptions,
+        /* pathToClassDependencyGraph */ Optional.<String>absent());
+  }
+
+  /**
+   * Like {@link #JavacInMemoryStep(String, ImmutableSortedMap, Set, Set, JavacOptions)}, but if
+   * {@code pathToClassDependencyGraph} is present, the compilation is incremental: only the sources
+   * that have changed since the last compilation, and those that may be affected by them, are
+   * compiled, and the other classes are copied from the previous jar. It falls back to compiling
+   * every source whenever it cannot tell that the result is the same.
+   * @param pathToClassDependencyGraph the directory that contains this path must exist before this
+   *     step is executed. Incremental compilation is not supported with annotation processors.
+   */
+  public JavacInMemoryStep(
+      String pathToOutputJar,
+      ImmutableSortedMap<String, String> resourcesToJar,
+      Set<String> javaSourceFilePaths,
+      Set<String> classpathEntries,
+      JavacOptions javacOptions,
+      Optional<String> pathToClassDependencyGraph) {
+    this(/* pathToOutputDirectory */ null,
+        Preconditions.checkNotNull(pathToOutputJar),
+        resourcesToJar,
+        javaSourceFilePaths,
+        classpathEntries,
+        javacOptions,
+        pathToClassDependencyGraph);
+  }
+
+  private JavacInMemoryStep(
+      @Nullable String pathToOutputDirectory,
+      @Nullable String pathToOutputJar,
+      ImmutableSortedMap<String, String> resourcesToJar,
+      Set<String> javaSourceFilePaths,
+      Set<String> classpathEntries,
+      JavacOptions javacOptions,
+      Optional<String> pathToClassDependencyGraph) {
     this.pathToOutputDirectory = pathToOutputDirectory;
+    this.pathToOutputJar = pathToOutputJar;
+    this.resourcesToJar = Preconditions.checkNotNull(resourcesToJar);
     this.javaSourceFilePaths = ImmutableSet.copyOf(javaSourceFilePaths);
     this.classpathEntries = ImmutableSet.copyOf(classpathEntries);
     this.javacOptions = Preconditions.checkNotNull(javacOptions);
+    this.pathToClassDependencyGraph = Preconditions.checkNotNull(pathToClassDependencyGraph);
+    Preconditions.checkArgument(!pathToClassDependencyGraph.isPresent() ||
+        javacOptions.getAnnotationProcessingData().isEmpty(),
+        "Incremental compilation is not supported with annotation processors.");
   }
 
   /**
@@ -79,9 +220,11 @@ public class JavacInMemoryStep implements Step {
       builder.add("-verbose");
     }
 
-    // Specify the output directory.
+    // Specify the output directory, unless the class files are kept in memory.
     Function<String, String> pathRelativizer = context.getProjectFilesystem().getPathRelativizer();
-    builder.add("-d").add(pathRelativizer.apply(pathToOutputDirectory));
+    if (pathToOutputDirectory != null) {
+      builder.add("-d").add(pathRelativizer.apply(pathToOutputDirectory));
+    }
 
     // Build up and set the classpath.
     if (!buildClasspathEntries.isEmpty()) {
@@ -104,38 +247,614 @@ public class JavacInMemoryStep implements Step {
 
   protected int buildWithClasspath(ExecutionContext context,
       Set<String> buildClasspathEntries) {
-    JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
-    Preconditions.checkNotNull(compiler,
-        "If using JRE instead of JDK, ToolProvider.getSystemJavaCompiler() may be null.");
-    StandardJavaFileManager fileManager = compiler.getStandardFileManager(null, null, null);
-    DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
-    List<String> options = getOptions(context, buildClasspathEntries);
-    List<String> classNamesForAnnotationProcessing = ImmutableList.of();
-    Iterable<? extends JavaFileObject> compilationUnits =
-        fileManager.getJavaFileObjectsFromStrings(
-            Iterables.transform(javaSourceFilePaths,
-                                context.getProjectFilesystem().getPathRelativizer()));
-
-    Writer compilerOutputWriter = new PrintWriter(context.getStdErr());
-    JavaCompiler.CompilationTask compilationTask = compiler.getTask(
-        compilerOutputWriter,
-        fileManager,
-        diagnostics,
-        options,
-        classNamesForAnnotationProcessing,
-        compilationUnits);
-    // Invoke the compilation and inspect the result.
-    boolean isSuccess = compilationTask.call();
-    if (isSuccess) {
+    return buildWithClasspath(context, buildClasspathEntries, /* trackClasspathUsage */ false);
+  }
+
+  /**
+   * @param trackClasspathUsage whether to record which files javac reads from each of
+   *     {@code buildClasspathEntries}, which are then returned by {@link #getClasspathUsage()}. It
+   *     is always recorded when this step compiles incrementally.
+   */
+  protected int buildWithClasspath(ExecutionContext context,
+      Set<String> buildClasspathEntries,
+      boolean trackClasspathUsage) {
+    if (javaSourceFilePaths.isEmpty() && pathToOutputJar != null) {
+      // There is nothing to compile, but the resources still have to be jarred.
+      if (pathToClassDependencyGraph.isPresent()) {
+        context.getProjectFilesystem()
+            .getFileForRelativePath(pathToClassDependencyGraph.get())
+            .delete();
+      }
+      return writeOutputJar(context, ImmutableSortedMap.<String, byte[]>of());
+    }
+
+    if (pathToClassDependencyGraph.isPresent()) {
+      return buildIncrementally(context, buildClasspathEntries);
+    }
+
+    Compilation compilation = compile(context,
+        buildClasspathEntries,
+        trackClasspathUsage,
+        javaSourceFilePaths,
+        /* previousOutputJar */ null);
+    if (compilation == null) {
+      return 1;
+    }
+    abiKey = compilation.getAbiKey();
+    dependencyFile = compilation.getDependencyFile();
+    if (pathToOutputJar != null) {
+      return writeOutputJar(context, compilation.getOutputs());
+    }
+    return 0;
+  }
+
+  /**
+   * Compiles the sources that have changed since the {@link ClassDependencyGraph} was recorded,
+   * and those that they affect, against the previous jar, and copies the other classes from it. If
+   * this cannot be done, such as when a source has been added or the classpath has changed, or if
+   * it is not safe, such as when a compile-time constant has changed, then every source is compiled
+   * instead.
+   */
+  private int buildIncrementally(ExecutionContext context, Set<String> buildClasspathEntries) {
+    Preconditions.checkNotNull(pathToOutputJar);
+    ProjectFilesystem filesystem = context.getProjectFilesystem();
+    File graphFile = filesystem.getFileForRelativePath(pathToClassDependencyGraph.get());
+    File jarFile = filesystem.getFileForRelativePath(pathToOutputJar);
+    String graphKey = getClassDependencyGraphKey(context, buildClasspathEntries);
+    ImmutableSortedMap<String, String> sourceHashes = hashSources(filesystem);
+
+    ClassDependencyGraph previousGraph = ClassDependencyGraph.read(graphFile);
+    if (sourceHashes != null &&
+        previousGraph != null &&
+        previousGraph.getKey().equals(graphKey) &&
+        DependencyFile.isUnchanged(previousGraph.getDependencyFile(),
+            getClasspath(context, buildClasspathEntries),
+            JavacService.getInstance().getArchiveCache())) {
+      ImmutableSortedMap<String, byte[]> previousClassFiles =
+          readPreviousClassFiles(jarFile, previousGraph.getJarHash());
+      Optional<ImmutableSortedSet<String>> sourcesToRecompile =
+          previousGraph.getSourcesToRecompile(sourceHashes);
+      if (!sourcesToRecompile.isPresent() && context.getVerbosity().shouldPrintCommand()) {
+        context.getStdErr().println(String.format(
+            "Sources have been added to or removed from %s, so all of them are compiled.",
+            pathToOutputJar));
+      }
+      if (previousClassFiles != null &&
+          sourcesToRecompile.isPresent() &&
+          sourcesToRecompile.get().size() < javaSourceFilePaths.size()) {
+        Integer exitCode = compileIncrementally(context,
+            buildClasspathEntries,
+            sourcesToRecompile.get(),
+            sourceHashes,
+            previousGraph,
+            previousClassFiles,
+            jarFile,
+            graphFile);
+        if (exitCode != null) {
+          return exitCode;
+        }
+        if (context.getVerbosity().shouldPrintCommand()) {
+          context.getStdErr().println(String.format(
+              "Could not compile %s incrementally, so all of its sources are compiled.",
+              pathToOutputJar));
+        }
+      }
+    }
+
+    Compilation compilation = compile(context,
+        buildClasspathEntries,
+        /* trackClasspathUsage */ true,
+        javaSourceFilePaths,
+        /* previousOutputJar */ null);
+    if (compilation == null) {
+      return 1;
+    }
+    abiKey = compilation.getAbiKey();
+    dependencyFile = compilation.getDependencyFile();
+    int exitCode = writeOutputJar(context, compilation.getOutputs());
+    if (exitCode != 0) {
+      return exitCode;
+    }
+
+    ImmutableSortedMap<String, ClassDependencyGraph.Source> sources =
+        sourceHashes == null ? null : createSources(compilation,
+            sourceHashes.keySet(),
+            sourceHashes,
+            compilation.getOutputs().keySet());
+    return writeClassDependencyGraph(context,
+        graphFile,
+        sources == null ? null : new ClassDependencyGraph(graphKey,
+            hashFile(jarFile),
+            dependencyFile,
+            sources));
+  }
+
+  /**
+   * @return the exit code of this step, or {@code null} if it could not tell whether compiling
+   *     only {@code sourcesToRecompile} produces the same classes as compiling every source.
+   */
+  @Nullable
+  private Integer compileIncrementally(ExecutionContext context,
+      Set<String> buildClasspathEntries,
+      ImmutableSortedSet<String> sourcesToRecompile,
+      ImmutableSortedMap<String, String> sourceHashes,
+      ClassDependencyGraph previousGraph,
+      ImmutableSortedMap<String, byte[]> previousClassFiles,
+      File jarFile,
+      File graphFile) {
+    Compilation compilation = compile(context,
+        buildClasspathEntries,
+        /* trackClasspathUsage */ true,
+        sourcesToRecompile,
+        jarFile);
+    if (compilation == null) {
+      // The errors are in the sources that were recompiled, which a full compilation would report
+      // as well.
+      return 1;
+    }
+
+    // The classes of the other sources are copied from the previous jar, so every class has to
+    // be where it was before, and no other class can have copied a constant that has changed.
+    SortedSet<String> classFiles = Sets.newTreeSet(previousClassFiles.keySet());
+    ImmutableSortedMap<String, ClassDependencyGraph.Source> recompiledSources =
+        createSources(compilation, sourcesToRecompile, sourceHashes, classFiles);
+    if (recompiledSources == null) {
+      return null;
+    }
+    Map<String, ClassDependencyGraph.Source> sources =
+        Maps.newHashMap(previousGraph.getSources());
+    for (Map.Entry<String, ClassDependencyGraph.Source> entry : recompiledSources.entrySet()) {
+      ClassDependencyGraph.Source previousSource = sources.put(entry.getKey(), entry.getValue());
+      if (!previousSource.getClassFiles().equals(entry.getValue().getClassFiles()) ||
+          !previousSource.getConstants().equals(entry.getValue().getConstants())) {
+        return null;
+      }
+    }
+    SortedMap<String, byte[]> outputs = Maps.newTreeMap(previousClassFiles);
+    outputs.putAll(compilation.getOutputs());
+
+    SortedSet<String> abiSummaries = Sets.newTreeSet();
+    for (ClassDependencyGraph.Source source : sources.values()) {
+      abiSummaries.addAll(source.getAbiSummaries());
+    }
+    abiKey = AbiWriter.computeAbiKey(abiSummaries);
+    // The previous dependency file is unchanged, and still describes the classes copied from the
+    // previous jar.
+    Map<String, String> mergedDependencyFile = Maps.newTreeMap();
+    mergedDependencyFile.putAll(previousGraph.getDependencyFile());
+    mergedDependencyFile.putAll(compilation.getDependencyFile());
+    dependencyFile = ImmutableMap.copyOf(mergedDependencyFile);
+
+    int exitCode = writeOutputJar(context, outputs);
+    if (exitCode != 0) {
+      return exitCode;
+    }
+    return writeClassDependencyGraph(context,
+        graphFile,
+        new ClassDependencyGraph(previousGraph.getKey(),
+            hashFile(jarFile),
+            dependencyFile,
+            ImmutableSortedMap.copyOf(sources)));
+  }
+
+  /**
+   * Compiles {@code sources}.
+   * @param previousOutputJar if not {@code null}, the jar that this step wrote the last time,
+   *     whose classes javac can read in place of those of the sources that are not compiled.
+   * @return the result of the compilation, or {@code null} if it failed.
+   */
+  @Nullable
+  private Compilation compile(ExecutionContext context,
+      Set<String> buildClasspathEntries,
+      boolean trackClasspathUsage,
+      Set<String> sources,
+      @Nullable File previousOutputJar) {
+    compiledSources = ImmutableSortedSet.copyOf(sources);
+    // The classpath is served by a ClasspathFileManager rather than passed as an option, so that
+    // the jars on it are shared with every other compilation.
+    List<String> options = getOptions(context, ImmutableSet.<String>of());
+    JavacService javacService = JavacService.getInstance();
+    StandardJavaFileManager standardFileManager;
+    try {
+      standardFileManager = javacService.borrowFileManager(options);
+    } catch (IOException e) {
+      e.printStackTrace(context.getStdErr());
+      return null;
+    }
+
+    boolean isSuccess = false;
+    try {
+      InMemoryJavaFileManager inMemoryFileManager = null;
+      JavaFileManager fileManager;
+      if (pathToOutputJar != null) {
+        inMemoryFileManager = new InMemoryJavaFileManager(standardFileManager);
+        fileManager = inMemoryFileManager;
+      } else {
+        fileManager = standardFileManager;
+      }
+      Map<File, String> classpath = getClasspathByFile(context, buildClasspathEntries);
+      List<File> fileManagerClasspath = Lists.newArrayList();
+      if (previousOutputJar != null) {
+        fileManagerClasspath.add(previousOutputJar);
+      }
+      fileManagerClasspath.addAll(classpath.keySet());
+      fileManager = ClasspathFileManager.create(fileManager,
+          fileManagerClasspath,
+          javacService.getArchiveCache());
+      ClasspathUsageTrackingFileManager usageTrackingFileManager = null;
+      if (trackClasspathUsage) {
+        usageTrackingFileManager = new ClasspathUsageTrackingFileManager(fileManager);
+        fileManager = usageTrackingFileManager;
+      }
+
+      DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
+      List<String> classNamesForAnnotationProcessing = ImmutableList.of();
+      Function<String, String> pathRelativizer =
+          context.getProjectFilesystem().getPathRelativizer();
+      Map<URI, String> sourcesByUri = Maps.newHashMap();
+      List<JavaFileObject> compilationUnits = Lists.newArrayList();
+      for (String source : sources) {
+        JavaFileObject compilationUnit = Iterables.getOnlyElement(
+            standardFileManager.getJavaFileObjects(pathRelativizer.apply(source)));
+        sourcesByUri.put(compilationUnit.toUri(), source);
+        compilationUnits.add(compilationUnit);
+      }
+
+      Writer compilerOutputWriter = new PrintWriter(context.getStdErr());
+      JavaCompiler.CompilationTask compilationTask = javacService.getCompiler().getTask(
+          compilerOutputWriter,
+          fileManager,
+          diagnostics,
+          options,
+          classNamesForAnnotationProcessing,
+          compilationUnits);
+
+      // Calling setProcessors() replaces any processors specified via the options, so the ABI can
+      // only be computed when the user has not asked for annotation processing.
+      AbiWriter abiWriter = null;
+      if (javacOptions.getAnnotationProcessingData().isEmpty()) {
+        abiWriter = new AbiWriter();
+        compilationTask.setProcessors(ImmutableList.of(abiWriter));
+      }
+
+      // Invoke the compilation and inspect the result.
+      isSuccess = compilationTask.call();
+      if (usageTrackingFileManager != null) {
+        classpathUsage = new ClasspathUsage(
+            getFilesReadByClasspathEntry(
+                usageTrackingFileManager.getFilesReadByClasspathEntry(),
+                classpath),
+            usageTrackingFileManager.getListedPackages());
+      }
+      if (!isSuccess) {
+        if (context.getVerbosity().shouldPrintStandardInformation()) {
+          for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+            context.getStdErr().println(diagnostic);
+          }
+        }
+        return null;
+      }
+
+      ImmutableMap.Builder<String, String> sourcesOfClassFiles = ImmutableMap.builder();
+      ImmutableSortedMap<String, byte[]> outputs = ImmutableSortedMap.of();
+      if (inMemoryFileManager != null) {
+        outputs = inMemoryFileManager.getOutputs();
+        for (Map.Entry<String, URI> entry :
+            inMemoryFileManager.getSourcesOfClassFiles().entrySet()) {
+          String source = sourcesByUri.get(entry.getValue());
+          if (source != null) {
+            sourcesOfClassFiles.put(entry.getKey(), source);
+          }
+        }
+      }
+      ClasspathUsage usage = usageTrackingFileManager == null ? null : classpathUsage;
+      return new Compilation(outputs,
+          sourcesOfClassFiles.build(),
+          abiWriter == null ? null : abiWriter.getSummariesByType(),
+          usage == null
+              ? ImmutableMap.<String, String>of()
+              : createDependencyFile(context,
+                  usage,
+                  ImmutableList.copyOf(classpath.keySet()),
+                  javacService.getArchiveCache()));
+    } catch (IOException e) {
+      e.printStackTrace(context.getStdErr());
+      return null;
+    } finally {
+      returnFileManager(context, javacService, options, standardFileManager, isSuccess);
+    }
+  }
+
+  /**
+   * @return the absolute path of each classpath entry, mapped to the entry as it was given. The jar
+   *     that this step writes may be on the classpath, as a rule's classpath includes its own
+   *     output, but it is about to be replaced, so it is left out.
+   */
+  private Map<File, String> getClasspathByFile(ExecutionContext context,
+      Set<String> buildClasspathEntries) {
+    Function<String, String> pathRelativizer = context.getProjectFilesystem().getPathRelativizer();
+    Map<File, String> classpath = Maps.newLinkedHashMap();
+    for (String entry : buildClasspathEntries) {
+      if (!entry.equals(pathToOutputJar)) {
+        classpath.put(new File(pathRelativizer.apply(entry)), entry);
+      }
+    }
+    return classpath;
+  }
+
+  private List<File> getClasspath(ExecutionContext context, Set<String> buildClasspathEntries) {
+    return ImmutableList.copyOf(getClasspathByFile(context, buildClasspathEntries).keySet());
+  }
+
+  /**
+   * @return what a {@link ClassDependencyGraph} can only be used with the same value of: the
+   *     compiler, its options and the classpath.
+   */
+  private String getClassDependencyGraphKey(ExecutionContext context,
+      Set<String> buildClasspathEntries) {
+    Hasher hasher = Hashing.sha1().newHasher();
+    hasher.putString(System.getProperty("java.version"), Charsets.UTF_8).putByte((byte) 0);
+    for (String option : getOptions(context, ImmutableSet.<String>of())) {
+      hasher.putString(option, Charsets.UTF_8).putByte((byte) 0);
+    }
+    hasher.putByte((byte) 0);
+    for (String entry : getClasspathByFile(context, buildClasspathEntries).values()) {
+      hasher.putString(entry, Charsets.UTF_8).putByte((byte) 0);
+    }
+    return hasher.hash().toString();
+  }
+
+  /**
+   * @return the SHA-1 of each of {@link #javaSourceFilePaths}, or {@code null} if one cannot be
+   *     read, in which case javac reports the error.
+   */
+  @Nullable
+  private ImmutableSortedMap<String, String> hashSources(ProjectFilesystem filesystem) {
+    ImmutableSortedMap.Builder<String, String> sourceHashes = ImmutableSortedMap.naturalOrder();
+    for (String source : javaSourceFilePaths) {
+      String hash = hashFile(filesystem.getFileForRelativePath(source));
+      if (hash == null) {
+        return null;
+      }
+      sourceHashes.put(source, hash);
+    }
+    return sourceHashes.build();
+  }
+
+  @Nullable
+  private static String hashFile(File file) {
+    try {
+      return Files.hash(file, Hashing.sha1()).toString();
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  /**
+   * @return the class files of the jar that this step wrote the last time, keyed by their path, or
+   *     {@code null} if it cannot be read or is not the one with {@code expectedHash}, such as when
+   *     it has been fetched from an artifact cache since.
+   */
+  @Nullable
+  private static ImmutableSortedMap<String, byte[]> readPreviousClassFiles(File jarFile,
+      String expectedHash) {
+    if (!jarFile.isFile()) {
+      return null;
+    }
+    try {
+      byte[] jar = Files.toByteArray(jarFile);
+      if (!Hashing.sha1().hashBytes(jar).toString().equals(expectedHash)) {
+        return null;
+      }
+      ImmutableSortedMap.Builder<String, byte[]> classFiles = ImmutableSortedMap.naturalOrder();
+      JarInputStream input = new JarInputStream(new ByteArrayInputStream(jar));
+      try {
+        for (JarEntry entry = input.getNextJarEntry();
+             entry != null;
+             entry = input.getNextJarEntry()) {
+          if (entry.getName().endsWith(JavaFileObject.Kind.CLASS.extension)) {
+            classFiles.put(entry.getName(), ByteStreams.toByteArray(input));
+          }
+        }
+      } finally {
+        input.close();
+      }
+      return classFiles.build();
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  /**
+   * @param compiledSources the sources that were compiled, each of which is recorded, even if it
+   *     produced no class file, such as a {@code package-info.java} without annotations.
+   * @param classFiles the paths of every class file of the library, which are the ones that the
+   *     sources can refer to.
+   * @return what the {@link ClassDependencyGraph} records about each source that was compiled, or
+   *     {@code null} if that cannot be told.
+   */
+  @Nullable
+  private static ImmutableSortedMap<String, ClassDependencyGraph.Source> createSources(
+      Compilation compilation,
+      Set<String> compiledSources,
+      Map<String, String> sourceHashes,
+      Set<String> classFiles) {
+    ImmutableSortedMap<String, String> abiSummariesByType = compilation.getAbiSummariesByType();
+    if (abiSummariesByType == null) {
+      return null;
+    }
+
+    SetMultimap<String, String> classFilesBySource = TreeMultimap.create();
+    SetMultimap<String, String> referencedClassFilesBySource = TreeMultimap.create();
+    SetMultimap<String, String> constantsBySource = TreeMultimap.create();
+    for (Map.Entry<String, byte[]> entry : compilation.getOutputs().entrySet()) {
+      String classFile = entry.getKey();
+      String source = compilation.getSourcesOfClassFiles().get(classFile);
+      if (source == null || !compiledSources.contains(source)) {
+        return null;
+      }
+      ClassFileReferences references;
+      try {
+        references = ClassFileReferences.read(entry.getValue());
+      } catch (IOException e) {
+        return null;
+      }
+      classFilesBySource.put(source, classFile);
+      for (String referencedClass : references.getReferencedClasses()) {
+        String referencedClassFile = referencedClass + JavaFileObject.Kind.CLASS.extension;
+        if (classFiles.contains(referencedClassFile) && !referencedClassFile.equals(classFile)) {
+          referencedClassFilesBySource.put(source, referencedClassFile);
+        }
+      }
+      constantsBySource.putAll(source, references.getConstants());
+    }
+    SetMultimap<String, String> abiSummariesBySource = TreeMultimap.create();
+    for (Map.Entry<String, String> entry : abiSummariesByType.entrySet()) {
+      String classFile = entry.getKey().replace('.', '/') + JavaFileObject.Kind.CLASS.extension;
+      String source = compilation.getSourcesOfClassFiles().get(classFile);
+      if (source == null) {
+        return null;
+      }
+      abiSummariesBySource.put(source, entry.getValue());
+    }
+
+    ImmutableSortedMap.Builder<String, ClassDependencyGraph.Source> sources =
+        ImmutableSortedMap.naturalOrder();
+    for (String source : compiledSources) {
+      String hash = sourceHashes.get(source);
+      if (hash == null) {
+        return null;
+      }
+      sources.put(source, new ClassDependencyGraph.Source(hash,
+          ImmutableSortedSet.copyOf(classFilesBySource.get(source)),
+          ImmutableSortedSet.copyOf(referencedClassFilesBySource.get(source)),
+          ImmutableSortedSet.copyOf(abiSummariesBySource.get(source)),
+          ImmutableSortedSet.copyOf(constantsBySource.get(source))));
+    }
+    return sources.build();
+  }
+
+  /**
+   * Writes {@code graph} to {@code graphFile}, or deletes the latter if {@code graph} is
+   * {@code null}, so that the next compilation is a full one.
+   * @return the exit code of this step.
+   */
+  private static int writeClassDependencyGraph(ExecutionContext context,
+      File graphFile,
+      @Nullable ClassDependencyGraph graph) {
+    if (graph == null) {
+      graphFile.delete();
+      return 0;
+    }
+    try {
+      graph.write(graphFile);
       return 0;
-    } else {
+    } catch (IOException e) {
+      graphFile.delete();
+      e.printStackTrace(context.getStdErr());
+      return 1;
+    }
+  }
+
+  /**
+   * @return {@code filesReadByClasspathEntry}, keyed by the classpath entries as they were given
+   *     to this step rather than by their absolute paths. What was read from the previous jar of an
+   *     incremental compilation, which is not one of them, is left out.
+   */
+  private static ImmutableSetMultimap<String, String> getFilesReadByClasspathEntry(
+      ImmutableSetMultimap<File, String> filesReadByClasspathEntry,
+      Map<File, String> classpath) {
+    ImmutableSetMultimap.Builder<String, String> usage = ImmutableSetMultimap.builder();
+    for (Map.Entry<File, String> entry : filesReadByClasspathEntry.entries()) {
+      String classpathEntry = classpath.get(entry.getKey());
+      if (classpathEntry != null) {
+        usage.put(classpathEntry, entry.getValue());
+      }
+    }
+    return usage.build();
+  }
+
+  /**
+   * @return the {@link DependencyFile} for {@code usage}, or an empty one if a classpath entry could
+   *     not be read, in which case the rule that owns this step cannot tell what it depends on.
+   */
+  private static ImmutableMap<String, String> createDependencyFile(ExecutionContext context,
+      ClasspathUsage usage,
+      List<File> classpath,
+      ClasspathArchiveCache archiveCache) {
+    try {
+      return DependencyFile.create(usage, classpath, archiveCache);
+    } catch (IOException e) {
       if (context.getVerbosity().shouldPrintStandardInformation()) {
-        for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
-          context.getStdErr().println(diagnostic);
+        e.printStackTrace(context.getStdErr());
+      }
+      return ImmutableMap.of();
+    }
+  }
+
+  /**
+   * Gives {@code fileManager} back to the {@link JavacService} for the next compilation, unless
+   * this one failed, in which case it is closed in case javac left it in a bad state.
+   */
+  private static void returnFileManager(ExecutionContext context,
+      JavacService javacService,
+      List<String> options,
+      StandardJavaFileManager fileManager,
+      boolean isSuccess) {
+    try {
+      if (isSuccess) {
+        javacService.returnFileManager(options, fileManager);
+      } else {
+        fileManager.close();
+      }
+    } catch (IOException e) {
+      e.printStackTrace(context.getStdErr());
+    }
+  }
+
+  /**
+   * Writes {@code classOutputs} and {@link #resourcesToJar} to {@link #pathToOutputJar}, in sorted
+   * order of their entries. If a resource has the same name as a class output, the latter wins.
+   * @return the exit code of this step.
+   */
+  private int writeOutputJar(ExecutionContext context, SortedMap<String, byte[]> classOutputs) {
+    Preconditions.checkNotNull(pathToOutputJar);
+    ProjectFilesystem filesystem = context.getProjectFilesystem();
+    Manifest manifest = new Manifest();
+    manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+
+    SortedSet<String> entryNames = Sets.newTreeSet(classOutputs.keySet());
+    entryNames.addAll(resourcesToJar.keySet());
+    // The previous jar may still be open in the ClasspathArchiveCache, which must not see it change
+    // underneath it, so a new file is written in its place.
+    File jarFile = filesystem.getFileForRelativePath(pathToOutputJar);
+    jarFile.delete();
+    try {
+      Closer closer = Closer.create();
+      try {
+        ZipOutputStream jar = closer.register(new DeterministicZipOutputStream(
+            new BufferedOutputStream(new FileOutputStream(jarFile))));
+        jar.putNextEntry(new ZipEntry(JarFile.MANIFEST_NAME));
+        manifest.write(jar);
+        jar.closeEntry();
+        for (String entryName : entryNames) {
+          jar.putNextEntry(new ZipEntry(entryName));
+          byte[] contents = classOutputs.get(entryName);
+          if (contents != null) {
+            jar.write(contents);
+          } else {
+            Files.copy(filesystem.getFileForRelativePath(resourcesToJar.get(entryName)), jar);
+          }
+          jar.closeEntry();
         }
+      } finally {
+        closer.close();
       }
+    } catch (IOException e) {
+      e.printStackTrace(context.getStdErr());
       return 1;
     }
+    return 0;
   }
 
   @Override
@@ -152,10 +871,98 @@ public class JavacInMemoryStep implements Step {
 
   @Override
   public String getShortName(ExecutionContext context) {
-    return String.format("javac %s", pathToOutputDirectory);
+    return String.format("javac %s",
+        pathToOutputDirectory != null ? pathToOutputDirectory : pathToOutputJar);
   }
 
   public Set<String> getSrcs() {
     return javaSourceFilePaths;
   }
+
+  /**
+   * @return a SHA-1 hash of the ABI of the classes produced by the last successful compilation, or
+   *     {@code null} if this step has not compiled successfully or the ABI could not be computed
+   *     because annotation processors were run.
+   * @see AbiWriter#getAbiKey()
+   */
+  @Nullable
+  public String getAbiKey() {
+    return abiKey;
+  }
+
+  /**
+   * @return what the last compilation read from the classpath, or {@code null} if it was not asked
+   *     to track it.
+   * @see #buildWithClasspath(ExecutionContext, Set, boolean)
+   */
+  @Nullable
+  ClasspathUsage getClasspathUsage() {
+    return classpathUsage;
+  }
+
+  /**
+   * @return the {@link DependencyFile} of the last successful compilation, which is empty if it was
+   *     not asked to track its classpath usage.
+   */
+  public ImmutableMap<String, String> getDependencyFile() {
+    return dependencyFile;
+  }
+
+  /**
+   * @return the sources that the last compilation was given, which are fewer than
+   *     {@link #getSrcs()} when it was incremental.
+   */
+  @VisibleForTesting
+  ImmutableSortedSet<String> getCompiledSources() {
+    return compiledSources;
+  }
+
+  /** What a successful compilation produced. */
+  private static final class Compilation {
+    private final ImmutableSortedMap<String, byte[]> outputs;
+    private final ImmutableMap<String, String> sourcesOfClassFiles;
+    @Nullable
+    private final ImmutableSortedMap<String, String> abiSummariesByType;
+    private final ImmutableMap<String, String> dependencyFile;
+
+    /**
+     * @param outputs the class files, keyed by their path in the jar.
+     * @param sourcesOfClassFiles the source that each class file was compiled from, keyed by the
+     *     path of the class file.
+     * @param abiSummariesByType {@code null} if the ABI could not be computed.
+     */
+    Compilation(ImmutableSortedMap<String, byte[]> outputs,
+        ImmutableMap<String, String> sourcesOfClassFiles,
+        @Nullable ImmutableSortedMap<String, String> abiSummariesByType,
+        ImmutableMap<String, String> dependencyFile) {
+      this.outputs = Preconditions.checkNotNull(outputs);
+      this.sourcesOfClassFiles = Preconditions.checkNotNull(sourcesOfClassFiles);
+      this.abiSummariesByType = abiSummariesByType;
+      this.dependencyFile = Preconditions.checkNotNull(dependencyFile);
+    }
+
+    ImmutableSortedMap<String, byte[]> getOutputs() {
+      return outputs;
+    }
+
+    ImmutableMap<String, String> getSourcesOfClassFiles() {
+      return sourcesOfClassFiles;
+    }
+
+    @Nullable
+    ImmutableSortedMap<String, String> getAbiSummariesByType() {
+      return abiSummariesByType;
+    }
+
+    @Nullable
+    String getAbiKey() {
+      return abiSummariesByType == null
+          ? null
+          : AbiWriter.computeAbiKey(ImmutableSortedSet.copyOf(abiSummariesByType.values()));
+    }
+
+    ImmutableMap<String, String> getDependencyFile() {
+      return dependencyFile;
+    }
+  }
 }
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.java;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nullable;
+import javax.tools.JavaCompiler;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+import javax.tools.ToolProvider;
+
+/**
+ * Compiler shared by every {@link JavacInMemoryStep} in this process, which lives as long as the
+ * daemon does. It keeps the classpath jars that compilations have read in a
+ * {@link ClasspathArchiveCache}, and the {@link StandardJavaFileManager}s that they have used, with
+ * the bootclasspath that they have opened, so that the next compilation can use them again.
+ */
+final class JavacService {
+
+  private static final JavacService instance = new JavacService();
+
+  /** Options whose value is a location that {@link #borrowFileManager(List)} sets itself. */
+  private static final String OUTPUT_DIRECTORY_OPTION = "-d";
+  private static final String SOURCE_OUTPUT_DIRECTORY_OPTION = "-s";
+
+  private static final String BOOTCLASSPATH_OPTION = "-bootclasspath";
+
+  /** Most file managers that are kept for each set of options, one for each concurrent build. */
+  private static final int MAX_IDLE_FILE_MANAGERS = 16;
+
+  @Nullable
+  private volatile JavaCompiler compiler;
+
+  private final ClasspathArchiveCache archiveCache;
+
+  /** File managers that are not in use, keyed by the options that they were configured with. */
+  private final ConcurrentMap<ImmutableList<String>, Queue<StandardJavaFileManager>>
+      idleFileManagers;
+
+  private JavacService() {
+    this.archiveCache = new ClasspathArchiveCache();
+    this.idleFileManagers = Maps.newConcurrentMap();
+  }
+
+  static JavacService getInstance() {
+    return instance;
+  }
+
+  JavaCompiler getCompiler() {
+    JavaCompiler javaCompiler = compiler;
+    if (javaCompiler == null) {
+      javaCompiler = ToolProvider.getSystemJavaCompiler();
+      Preconditions.checkNotNull(javaCompiler,
+          "If using JRE instead of JDK, ToolProvider.getSystemJavaCompiler() may be null.");
+      compiler = javaCompiler;
+    }
+    return javaCompiler;
+  }
+
+  ClasspathArchiveCache getArchiveCache() {
+    return archiveCache;
+  }
+
+  /**
+   * @return a file manager for a compilation with the javac {@code options}, which must not include
+   *     the classpath, as that is served by a {@link ClasspathFileManager}. Once the compilation is
+   *     over, it must be passed to {@link #returnFileManager(List, StandardJavaFileManager)}.
+   */
+  StandardJavaFileManager borrowFileManager(List<String> options) throws IOException {
+    Queue<StandardJavaFileManager> idle = idleFileManagers.get(getKey(options));
+    StandardJavaFileManager fileManager = idle == null ? null : idle.poll();
+    if (fileManager == null) {
+      fileManager = getCompiler().getStandardFileManager(null, null, null);
+    }
+
+    // A file manager only reads the options for its locations the first time that it is used, so
+    // the output directories of each compilation are set on it explicitly.
+    fileManager.setLocation(StandardLocation.CLASS_OUTPUT,
+        getLocationOption(options, OUTPUT_DIRECTORY_OPTION));
+    fileManager.setLocation(StandardLocation.SOURCE_OUTPUT,
+        getLocationOption(options, SOURCE_OUTPUT_DIRECTORY_OPTION));
+    return fileManager;
+  }
+
+  /** Keeps {@code fileManager} for the next compilation with the same {@code options}. */
+  void returnFileManager(List<String> options, StandardJavaFileManager fileManager)
+      throws IOException {
+    fileManager.flush();
+    ImmutableList<String> key = getKey(options);
+    Queue<StandardJavaFileManager> idle = idleFileManagers.get(key);
+    if (idle == null) {
+      idleFileManagers.putIfAbsent(key, new ConcurrentLinkedQueue<StandardJavaFileManager>());
+      idle = idleFileManagers.get(key);
+    }
+    if (idle.size() < MAX_IDLE_FILE_MANAGERS) {
+      idle.add(fileManager);
+    } else {
+      fileManager.close();
+    }
+  }
+
+  /**
+   * The options that a file manager can be shared between, which are all of them except for the
+   * values of the output directories. The length and last-modified time of every jar on the
+   * bootclasspath are added, as the file manager keeps the jars that it has read open.
+   */
+  private static ImmutableList<String> getKey(List<String> options) {
+    ImmutableList.Builder<String> key = ImmutableList.builder();
+    for (Iterator<String> iterator = options.iterator(); iterator.hasNext(); ) {
+      String option = iterator.next();
+      key.add(option);
+      if (!iterator.hasNext()) {
+        break;
+      }
+      if (option.equals(OUTPUT_DIRECTORY_OPTION) ||
+          option.equals(SOURCE_OUTPUT_DIRECTORY_OPTION)) {
+        iterator.next();
+      } else if (option.equals(BOOTCLASSPATH_OPTION)) {
+        String bootclasspath = iterator.next();
+        key.add(bootclasspath);
+        for (String path : Splitter.on(File.pathSeparatorChar).split(bootclasspath)) {
+          File file = new File(path);
+          key.add(String.format("%d:%d", file.length(), file.lastModified()));
+        }
+      }
+    }
+    return key.build();
+  }
+
+  @Nullable
+  private static List<File> getLocationOption(List<String> options, String option) {
+    int index = options.lastIndexOf(option);
+    if (index < 0 || index + 1 >= options.size()) {
+      return null;
+    }
+    return ImmutableList.of(new File(options.get(index + 1)));
+  }
+}
@@ -16,26 +16,42 @@
 
 package com.facebook.buck.java.abi;
 
-import static javax.lang.model.SourceVersion.RELEASE_7;
-
+import com.google.common.base.Charsets;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedMap;
 import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.Maps;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 
+import java.util.Map;
 import java.util.Set;
 
 import javax.annotation.processing.AbstractProcessor;
 import javax.annotation.processing.RoundEnvironment;
 import javax.annotation.processing.SupportedAnnotationTypes;
-import javax.annotation.processing.SupportedSourceVersion;
+import javax.lang.model.SourceVersion;
 import javax.lang.model.element.Element;
+import javax.lang.model.element.PackageElement;
 import javax.lang.model.element.TypeElement;
 
-@SupportedSourceVersion(RELEASE_7)
+/**
+ * Annotation processor that renders a summary of the public, protected and package-private API of
+ * every type that is compiled. The summaries can be reduced to a single ABI key with
+ * {@link #getAbiKey()}: if the ABI key of a library has not changed, then code that was compiled
+ * against it does not need to be recompiled.
+ */
 @SupportedAnnotationTypes("*")
 public class AbiWriter extends AbstractProcessor {
 
+  /** The ABI key of a library that does not contain any types. */
+  public static final String EMPTY_ABI_KEY = computeAbiKey(ImmutableSet.<String>of());
+
   private ImmutableSortedSet.Builder<String> classes = ImmutableSortedSet.naturalOrder();
 
+  /** The summary of each type, keyed by its qualified name. */
+  private final Map<String, String> summariesByType = Maps.newTreeMap();
+
   @Override
   public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
     RenderableTypes factory = new RenderableTypes();
@@ -46,7 +62,11 @@ public class AbiWriter extends AbstractProcessor {
         StringBuilder builder = new StringBuilder();
         renderable.appendTo(builder);
         classes.add(builder.toString());
-      } else {
+        summariesByType.put(((TypeElement) element).getQualifiedName().toString(),
+            builder.toString());
+      } else if (!(element instanceof PackageElement)) {
+        // A PackageElement comes from a package-info.java file, which does not declare any types,
+        // so it does not contribute to the ABI and is skipped.
         throw new RuntimeException("Unknown type: " + element.getKind());
       }
     }
@@ -54,7 +74,44 @@ public class AbiWriter extends AbstractProcessor {
     return true;
   }
 
+  /**
+   * The summaries do not depend on the language level of the source, so this processor can run
+   * with whatever {@code -source} the code is compiled with.
+   */
+  @Override
+  public SourceVersion getSupportedSourceVersion() {
+    return SourceVersion.latestSupported();
+  }
+
   public ImmutableSet<String> getSummaries() {
     return classes.build();
   }
+
+  /**
+   * @return the summary of each type processed so far, keyed by its qualified name, so that the
+   *     summaries of a library can be kept and combined with those of a later compilation of some
+   *     of its types.
+   */
+  public ImmutableSortedMap<String, String> getSummariesByType() {
+    return ImmutableSortedMap.copyOf(summariesByType);
+  }
+
+  /**
+   * @return a SHA-1 hash of the summaries of all of the types processed so far.
+   */
+  public String getAbiKey() {
+    return computeAbiKey(getSummaries());
+  }
+
+  /**
+   * @return the ABI key of a library whose types have the {@code summaries}, in sorted order.
+   */
+  public static String computeAbiKey(Iterable<String> summaries) {
+    Hasher hasher = Hashing.sha1().newHasher();
+    for (String summary : summaries) {
+      hasher.putString(summary, Charsets.UTF_8);
+      hasher.putByte((byte) 0);
+    }
+    return hasher.hash().toString();
+  }
 }
@@ -16,31 +16,57 @@
 
 package com.facebook.buck.json;
 
+import com.facebook.buck.util.BuckConstant;
 import com.facebook.buck.util.HumanReadableException;
+import com.facebook.buck.util.MoreFutures;
+import com.facebook.buck.util.ProjectDirectoryIndex;
 import com.google.common.base.Joiner;
 import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
 import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.google.common.io.Closer;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.python.core.Py;
+import org.python.core.PyException;
+import org.python.core.PyList;
+import org.python.core.PyObject;
+import org.python.core.PySystemState;
+import org.python.util.PythonInterpreter;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.PipedReader;
 import java.io.PipedWriter;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
-import javax.script.ScriptEngine;
-import javax.script.ScriptEngineManager;
-import javax.script.ScriptException;
+import javax.annotation.Nullable;
 
 /**
  * A ProjectBuildFileParser finds all build files within a project root and executes
  * those build files to generate the build rules they define.
+ * <p>
+ * Build files are executed by a pool of independent Python interpreters, one per parser thread, so
+ * several build files can be parsed at once via {@link #getAllRulesAsync}. Each interpreter has a
+ * {@link PySystemState} of its own, as the {@code sys.argv} and {@code sys.stdout} of a build file
+ * must not be those of another one that is executed at the same time.
  */
 public class ProjectBuildFileParser {
 
@@ -48,20 +74,72 @@ public class ProjectBuildFileParser {
   private static final String PATH_TO_BUCK_PY = System.getProperty("buck.path_to_buck_py",
       "src/com/facebook/buck/parser/buck.py");
 
-  private static final ExecutorService executor = Executors.newSingleThreadExecutor();
-  private static final ScriptEngine engine = new ScriptEngineManager().getEngineByName("python");
   private static final String python = Joiner.on(System.getProperty("line.separator")).join(
       "import sys",
       "import os.path",
       "sys.path.append(os.path.dirname(\"%s\"))",
       "import buck",
-      "sys.argv=[\"%s\"]",
-      "buck.main()");
+      "buck.main(directory_index)");
 
   private final ImmutableSet<String> ignorePaths;
 
+  /** Evaluates glob() in build files, or null if buck.py should walk the disk itself. */
+  @Nullable private final ProjectDirectoryIndex directoryIndex;
+
+  /**
+   * Runs {@link BuildFileRunner}s. Each of its threads owns one of the {@link #interpreters}, so
+   * the build files that are executed at the same time never share an interpreter.
+   */
+  private final ExecutorService interpreterExecutor;
+
+  /**
+   * The Python interpreter of each thread of {@link #interpreterExecutor}. Creating an interpreter
+   * is expensive, so each one is only created when its thread runs its first build file.
+   */
+  private final ThreadLocal<PythonInterpreter> interpreters;
+
+  /**
+   * Reads the rules that the {@link #interpreterExecutor} streams back for the requests made via
+   * {@link #getAllRulesAsync}. It has as many threads as there are interpreters so that at most one
+   * request per interpreter is in flight at a time.
+   */
+  private final ListeningExecutorService requestExecutor;
+
   public ProjectBuildFileParser(ImmutableSet<String> ignorePaths) {
-    this.ignorePaths = ignorePaths;
+    this(ignorePaths, /* directoryIndex */ null, Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * @param directoryIndex if specified, is used to evaluate glob() in build files.
+   * @param numInterpreters the number of build files that may be executed at the same time.
+   */
+  public ProjectBuildFileParser(ImmutableSet<String> ignorePaths,
+      @Nullable ProjectDirectoryIndex directoryIndex,
+      int numInterpreters) {
+    Preconditions.checkArgument(numInterpreters > 0, "There must be at least one interpreter.");
+    this.ignorePaths = Preconditions.checkNotNull(ignorePaths);
+    this.directoryIndex = directoryIndex;
+    this.interpreterExecutor = Executors.newFixedThreadPool(numInterpreters,
+        createDaemonThreadFactory("buck-python-%d"));
+    this.interpreters = new ThreadLocal<PythonInterpreter>() {
+      @Override
+      protected PythonInterpreter initialValue() {
+        PythonInterpreter interpreter =
+            new PythonInterpreter(/* dict */ null, new PySystemState());
+        interpreter.set("directory_index", ProjectBuildFileParser.this.directoryIndex);
+        return interpreter;
+      }
+    };
+    this.requestExecutor = MoreExecutors.listeningDecorator(
+        Executors.newFixedThreadPool(numInterpreters, createDaemonThreadFactory("buck-parse-%d")));
+  }
+
+  /**
+   * Threads of the parser must not keep the JVM alive once a command has finished, which is why
+   * they are daemon threads.
+   */
+  private static ThreadFactory createDaemonThreadFactory(String nameFormat) {
+    return new ThreadFactoryBuilder().setNameFormat(nameFormat).setDaemon(true).build();
   }
 
   private class BuildFileRunner implements Runnable {
@@ -82,20 +160,19 @@ public class ProjectBuildFileParser {
         closer.register(outputWriter);
 
         // TODO(user): call buck.py directly rather than emulating the old command line interface?
-        // TODO(user): escape args? (they are currently file names, which shouldn't contain quotes)
-        engine.getContext().setWriter(outputWriter);
-        engine.eval(String.format(python, PATH_TO_BUCK_PY, Joiner.on("\",\"").join(args)));
-      } catch (ScriptException e) {
-        // Print human readable python trace if available, default to normal exception if not.
-        // Path to build file is included in python stack trace.
-        final Throwable cause = e.getCause();
-        if (cause != null) {
-          throw new HumanReadableException("Unable to parse build file: %s%s,",
-              System.getProperty("line.separator"),
-              cause);
-        } else {
-          throw Throwables.propagate(e);
+        PythonInterpreter interpreter = interpreters.get();
+        PyObject[] argv = new PyObject[args.size()];
+        for (int i = 0; i < argv.length; i++) {
+          argv[i] = Py.newString(args.get(i));
         }
+        interpreter.getSystemState().argv = new PyList(argv);
+        interpreter.setOut(outputWriter);
+        interpreter.exec(String.format(python, PATH_TO_BUCK_PY));
+      } catch (PyException e) {
+        // The Python stack trace is human readable, and includes the path to the build file.
+        throw new HumanReadableException("Unable to parse build file: %s%s,",
+            System.getProperty("line.separator"),
+            e);
       } finally {
         try {
           closer.close();
@@ -138,13 +215,77 @@ public class ProjectBuildFileParser {
   }
 
   /**
+   * Finds all of the build files under {@code rootPath} and parses them in parallel, one request
+   * per build file, so that the interpreters share the work evenly.
    * @param rootPath Absolute path to the root of the project. buck.py uses this to determine the
    *     base path of the targets in the build file that it is parsing.
    */
   public List<Map<String, Object>> getAllRulesInProject(
       File rootPath, Iterable<String> includes)
       throws IOException {
-    return getAllRules(rootPath.getAbsolutePath(), Optional.<String>absent(), includes);
+    String absolutePathToProjectRoot = rootPath.getAbsolutePath();
+    List<ListenableFuture<List<Map<String, Object>>>> futures = Lists.newArrayList();
+    for (Path buildFile : findAllBuildFiles(rootPath.getAbsoluteFile().toPath())) {
+      futures.add(getAllRulesAsync(absolutePathToProjectRoot,
+          Optional.of(buildFile.toString()),
+          includes));
+    }
+
+    List<Map<String, Object>> rules = Lists.newArrayList();
+    for (List<Map<String, Object>> rulesInBuildFile :
+        MoreFutures.getUninterruptibly(Futures.allAsList(futures))) {
+      rules.addAll(rulesInBuildFile);
+    }
+    return rules;
+  }
+
+  /**
+   * Walks the project the same way that buck.py does when it is not given any build files:
+   * symlinks are not followed and the ignored paths are not entered.
+   * @return the absolute paths of all of the build files under {@code rootPath}.
+   */
+  private List<Path> findAllBuildFiles(Path rootPath) throws IOException {
+    final ImmutableSet.Builder<Path> ignoredDirectoriesBuilder = ImmutableSet.builder();
+    for (String ignorePath : ignorePaths) {
+      ignoredDirectoriesBuilder.add(rootPath.resolve(ignorePath));
+    }
+    final ImmutableSet<Path> ignoredDirectories = ignoredDirectoriesBuilder.build();
+
+    final List<Path> buildFiles = Lists.newArrayList();
+    Files.walkFileTree(rootPath, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+        return ignoredDirectories.contains(dir)
+            ? FileVisitResult.SKIP_SUBTREE
+            : FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+        if (attrs.isRegularFile() &&
+            BuckConstant.BUILD_RULES_FILE_NAME.equals(file.getFileName().toString())) {
+          buildFiles.add(file);
+        }
+        return FileVisitResult.CONTINUE;
+      }
+    });
+    return buildFiles;
+  }
+
+  /**
+   * Like {@link #getAllRules(String, Optional, Iterable)}, but returns immediately so that the
+   * caller can request several build files at once.
+   */
+  public ListenableFuture<List<Map<String, Object>>> getAllRulesAsync(
+      final String rootPath,
+      final Optional<String> buildFile,
+      final Iterable<String> includes) {
+    return requestExecutor.submit(new Callable<List<Map<String, Object>>>() {
+      @Override
+      public List<Map<String, Object>> call() throws IOException {
+        return getAllRules(rootPath, buildFile, includes);
+      }
+    });
   }
 
   /**
@@ -162,7 +303,7 @@ public class ProjectBuildFileParser {
     final ImmutableList<String> args = buildArgs(rootPath, buildFile, includes);
     final PipedReader outputReader = new PipedReader();
     BuildFileRunner runner = new BuildFileRunner(args, outputReader);
-    executor.execute(runner);
+    interpreterExecutor.execute(runner);
 
     // Stream build rules from python.
     BuildFileToJsonParser parser = new BuildFileToJsonParser(outputReader);
@@ -24,6 +24,7 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Function;
 import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Predicate;
 import com.google.common.base.Splitter;
 import com.google.common.collect.ComparisonChain;
 import com.google.common.collect.ImmutableList;
@@ -164,6 +165,19 @@ public class BuildFileTree {
     }
   }
 
+  /**
+   * @return the base paths of the build files in the directory {@code path} or under it, relative
+   *     to the project root.
+   */
+  public Iterable<String> getBasePathsUnder(final String path) {
+    return Iterables.filter(basePathToNodeIndex.keySet(), new Predicate<String>() {
+      @Override
+      public boolean apply(String basePath) {
+        return path.isEmpty() || basePath.equals(path) || basePath.startsWith(path + '/');
+      }
+    });
+  }
+
   /**
    * Finds the parent Node of the specified child Node.
    * @param child whose parent is sought in {@code basePathToNodeIndex}.
@@ -25,6 +25,7 @@ import com.facebook.buck.rules.SourcePath;
 import com.facebook.buck.util.BuckConstant;
 import com.facebook.buck.util.Console;
 import com.facebook.buck.util.HumanReadableException;
+import com.facebook.buck.util.ProjectDirectoryIndex;
 import com.facebook.buck.util.ProjectFilesystem;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Function;
@@ -47,6 +48,7 @@ public final class BuildRuleFactoryParams {
 
   private final Map<String, ?> instance;
   private final ProjectFilesystem filesystem;
+  private final ProjectDirectoryIndex directoryIndex;
   private final BuildFileTree buildFiles;
   public final BuildTargetParser buildTargetParser;
   public final BuildTargetPatternParser buildTargetPatternParser;
@@ -71,6 +73,29 @@ public final class BuildRuleFactoryParams {
         buildFiles,
         buildTargetParser,
         target,
+        new ProjectDirectoryIndex(filesystem),
+        false /* ignoreFileExistenceChecks */);
+  }
+
+  /**
+   * @param directoryIndex is used to check that the files referenced by the rule exist, so that
+   *     the directories of a project are only listed once however many rules refer to them.
+   */
+  BuildRuleFactoryParams(
+      Map<String, ?> instance,
+      Console console,
+      ProjectFilesystem filesystem,
+      BuildFileTree buildFiles,
+      BuildTargetParser buildTargetParser,
+      BuildTarget target,
+      ProjectDirectoryIndex directoryIndex) {
+    this(instance,
+        console,
+        filesystem,
+        buildFiles,
+        buildTargetParser,
+        target,
+        directoryIndex,
         false /* ignoreFileExistenceChecks */);
   }
 
@@ -83,9 +108,29 @@ public final class BuildRuleFactoryParams {
       BuildTargetParser buildTargetParser,
       BuildTarget target,
       boolean ignoreFileExistenceChecks) {
+    this(instance,
+        console,
+        filesystem,
+        buildFiles,
+        buildTargetParser,
+        target,
+        new ProjectDirectoryIndex(filesystem),
+        ignoreFileExistenceChecks);
+  }
+
+  private BuildRuleFactoryParams(
+      Map<String, ?> instance,
+      Console console,
+      ProjectFilesystem filesystem,
+      BuildFileTree buildFiles,
+      BuildTargetParser buildTargetParser,
+      BuildTarget target,
+      ProjectDirectoryIndex directoryIndex,
+      boolean ignoreFileExistenceChecks) {
     this.instance = instance;
     Preconditions.checkNotNull(console);
     this.filesystem = filesystem;
+    this.directoryIndex = Preconditions.checkNotNull(directoryIndex);
     this.buildFiles = buildFiles;
     this.buildTargetParser = buildTargetParser;
     this.buildTargetPatternParser = new BuildTargetPatternParser(filesystem);
@@ -138,15 +183,15 @@ public final class BuildRuleFactoryParams {
           path);
     } else {
       String fullPath = resolvePathAgainstBuildTargetBase(path);
-      File file = filesystem.getFileForRelativePath(fullPath);
-      if (!ignoreFileExistenceChecks && !file.isFile()) {
+      if (!ignoreFileExistenceChecks && !directoryIndex.isFile(fullPath)) {
         throw new RuntimeException("Not an ordinary file: " + fullPath);
       }
 
       // First, verify that the path is a descendant of the directory containing the build file.
       String basePath = target.getBasePath();
       if (!basePath.isEmpty() && !fullPath.startsWith(basePath + '/')) {
-        throw new RuntimeException(file + " is not a descendant of " + target.getBasePath());
+        throw new RuntimeException(filesystem.getFileForRelativePath(fullPath) +
+            " is not a descendant of " + target.getBasePath());
       }
 
       if (fullPath.contains("..")) {
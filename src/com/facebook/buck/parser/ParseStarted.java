@@ -0,0 +1,41 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.parser;
+
+import com.facebook.buck.model.BuildTarget;
+import com.facebook.buck.rules.BuildEvent;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Posted before the build files are parsed to create the
+ * {@link com.facebook.buck.rules.DependencyGraph} for a build.
+ */
+public class ParseStarted extends BuildEvent {
+  private final ImmutableList<BuildTarget> buildTargets;
+
+  /**
+   * @param buildTargets the targets whose build files are being parsed, which is empty if all of
+   *     the build files in the project are being parsed.
+   */
+  public ParseStarted(Iterable<BuildTarget> buildTargets) {
+    this.buildTargets = ImmutableList.copyOf(buildTargets);
+  }
+
+  public ImmutableList<BuildTarget> getBuildTargets() {
+    return buildTargets;
+  }
+}
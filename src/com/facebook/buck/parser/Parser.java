@@ -21,41 +21,68 @@ import com.facebook.buck.graph.MutableDirectedGraph;
 import com.facebook.buck.json.ProjectBuildFileParser;
 import com.facebook.buck.model.BuildFileTree;
 import com.facebook.buck.model.BuildTarget;
+import com.facebook.buck.rules.BuildMetadataStore;
 import com.facebook.buck.rules.BuildRule;
 import com.facebook.buck.rules.BuildRuleBuilder;
 import com.facebook.buck.rules.BuildRuleResolver;
 import com.facebook.buck.rules.BuildRuleType;
 import com.facebook.buck.rules.DependencyGraph;
 import com.facebook.buck.rules.KnownBuildRuleTypes;
+import com.facebook.buck.rules.RuleKeyCache;
 import com.facebook.buck.util.BuckConstant;
 import com.facebook.buck.util.Console;
 import com.facebook.buck.util.HumanReadableException;
+import com.facebook.buck.util.MoreFutures;
+import com.facebook.buck.util.ProjectDirectoryIndex;
 import com.facebook.buck.util.ProjectFilesystem;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Throwables;
 import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.SetMultimap;
 import com.google.common.collect.Sets;
 import com.google.common.eventbus.Subscribe;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.Uninterruptibles;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.nio.file.StandardWatchEventKinds;
 import java.nio.file.WatchEvent;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 
 import javax.annotation.Nullable;
 
 public class Parser {
 
+  /**
+   * Key of the raw rule that buck.py emits after the rules of each build file, whose value lists
+   * the absolute paths of the files that the build file included.
+   */
+  private static final String INCLUDES_KEY = "__includes";
+
+  /**
+   * Key of the raw rule that buck.py emits after the rules of each build file, whose value lists
+   * the absolute paths of the directories that the build file listed via glob().
+   */
+  private static final String GLOB_DIRECTORIES_KEY = "__glob_directories";
+
   private final BuildTargetParser buildTargetParser;
 
   /**
@@ -64,10 +91,30 @@ public class Parser {
   private final ListMultimap<File, Map<String, Object>> parsedBuildFiles;
 
   /**
-   * True if all build files have been parsed and so all rules are in {@link #knownBuildTargets}.
+   * True if all build files have been parsed and so all rules are in {@link #knownBuildTargets},
+   * except for those of the {@link #staleBuildFiles}.
    */
   private boolean allBuildFilesParsed;
 
+  /**
+   * Build files whose rules have been invalidated since all build files were parsed, and which
+   * must be parsed again before all rules are known.
+   */
+  private final Set<File> staleBuildFiles;
+
+  /**
+   * Parsed build files, keyed by the paths, relative to the project root, of the files that they
+   * include. Changing an include invalidates the build files that include it.
+   */
+  private final SetMultimap<Path, File> buildFilesByInclude;
+
+  /**
+   * Parsed build files, keyed by the paths, relative to the project root, of the directories that
+   * their glob()s listed. Adding or removing a file in one of those directories invalidates the
+   * build files that listed it.
+   */
+  private final SetMultimap<Path, File> buildFilesByGlobDirectory;
+
   /**
    * Files included by build files. Changing includes invalidates cached build rules.
    */
@@ -85,6 +132,26 @@ public class Parser {
   private final ProjectFilesystem projectFilesystem;
   private final KnownBuildRuleTypes buildRuleTypes;
   private final ProjectBuildFileParser buildFileParser;
+
+  /**
+   * Lists the directories of the project for glob() and for the file existence checks of rules.
+   * It lives as long as this parser, so in the daemon it is kept up to date by
+   * {@link #onFileSystemChange(WatchEvent)} rather than being rebuilt for each command.
+   */
+  private final ProjectDirectoryIndex directoryIndex;
+
+  /**
+   * Memoizes the RuleKeys of the rules in the graphs built by this parser, so that in the daemon
+   * only the RuleKeys of rules whose build files, inputs or deps changed are computed again.
+   */
+  private final RuleKeyCache ruleKeyCache;
+
+  /**
+   * Where the rules in the graphs built by this parser record the keys that they were built with.
+   * It is read when the first graph is built and, in the daemon, it is refreshed for each graph
+   * rather than read again, as only another process could have changed it.
+   */
+  private final BuildMetadataStore buildMetadataStore;
   private final Console console;
   private BuildFileTree buildFiles;
 
@@ -97,7 +164,26 @@ public class Parser {
         BuildFileTree.constructBuildFileTree(projectFilesystem),
         new BuildTargetParser(projectFilesystem),
          /* knownBuildTargets */ Maps.<BuildTarget, BuildRuleBuilder<?>>newHashMap(),
-        new ProjectBuildFileParser(projectFilesystem.getIgnorePaths()));
+        new ProjectDirectoryIndex(projectFilesystem));
+  }
+
+  private Parser(ProjectFilesystem projectFilesystem,
+      KnownBuildRuleTypes buildRuleTypes,
+      Console console,
+      BuildFileTree buildFiles,
+      BuildTargetParser buildTargetParser,
+      Map<BuildTarget, BuildRuleBuilder<?>> knownBuildTargets,
+      ProjectDirectoryIndex directoryIndex) {
+    this(projectFilesystem,
+        buildRuleTypes,
+        console,
+        buildFiles,
+        buildTargetParser,
+        knownBuildTargets,
+        new ProjectBuildFileParser(projectFilesystem.getIgnorePaths(),
+            directoryIndex,
+            Runtime.getRuntime().availableProcessors()),
+        directoryIndex);
   }
 
   @VisibleForTesting
@@ -108,6 +194,24 @@ public class Parser {
          BuildTargetParser buildTargetParser,
          Map<BuildTarget, BuildRuleBuilder<?>> knownBuildTargets,
          ProjectBuildFileParser buildFileParser) {
+    this(projectFilesystem,
+        buildRuleTypes,
+        console,
+        buildFiles,
+        buildTargetParser,
+        knownBuildTargets,
+        buildFileParser,
+        new ProjectDirectoryIndex(projectFilesystem));
+  }
+
+  private Parser(ProjectFilesystem projectFilesystem,
+      KnownBuildRuleTypes buildRuleTypes,
+      Console console,
+      BuildFileTree buildFiles,
+      BuildTargetParser buildTargetParser,
+      Map<BuildTarget, BuildRuleBuilder<?>> knownBuildTargets,
+      ProjectBuildFileParser buildFileParser,
+      ProjectDirectoryIndex directoryIndex) {
     this.projectFilesystem = Preconditions.checkNotNull(projectFilesystem);
     this.buildRuleTypes = Preconditions.checkNotNull(buildRuleTypes);
     this.console = Preconditions.checkNotNull(console);
@@ -115,8 +219,15 @@ public class Parser {
     this.knownBuildTargets = Maps.newHashMap(Preconditions.checkNotNull(knownBuildTargets));
     this.buildTargetParser = Preconditions.checkNotNull(buildTargetParser);
     this.buildFileParser = Preconditions.checkNotNull(buildFileParser);
+    this.directoryIndex = Preconditions.checkNotNull(directoryIndex);
+    this.ruleKeyCache = new RuleKeyCache(projectFilesystem);
     this.parsedBuildFiles = ArrayListMultimap.create();
+    this.staleBuildFiles = Sets.newHashSet();
+    this.buildFilesByInclude = HashMultimap.create();
+    this.buildFilesByGlobDirectory = HashMultimap.create();
     this.absolutePathToProjectRoot = projectFilesystem.getProjectRoot().getAbsolutePath();
+    this.buildMetadataStore = new BuildMetadataStore(
+        new File(absolutePathToProjectRoot, BuildMetadataStore.PATH));
   }
 
   public BuildTargetParser getBuildTargetParser() {
@@ -133,7 +244,9 @@ public class Parser {
    * @return true if the build file has already been parsed and its rules are cached.
    */
   private boolean isCached(File file, Iterable<String> includes) {
-    return isCacheValid(includes) && (allBuildFilesParsed || parsedBuildFiles.containsKey(file));
+    return isCacheValid(includes) &&
+        !staleBuildFiles.contains(file) &&
+        (allBuildFilesParsed || parsedBuildFiles.containsKey(file));
   }
 
   /**
@@ -141,7 +254,7 @@ public class Parser {
    * @return true if all build files have already been parsed and their rules are cached.
    */
   private boolean isCacheComplete(Iterable<String> includes) {
-    return isCacheValid(includes) && allBuildFilesParsed;
+    return isCacheValid(includes) && allBuildFilesParsed && staleBuildFiles.isEmpty();
   }
 
   /**
@@ -162,7 +275,44 @@ public class Parser {
     buildFiles = BuildFileTree.constructBuildFileTree(projectFilesystem);
     parsedBuildFiles.clear();
     knownBuildTargets.clear();
+    ruleKeyCache.clear();
     allBuildFilesParsed = false;
+    staleBuildFiles.clear();
+    buildFilesByInclude.clear();
+    buildFilesByGlobDirectory.clear();
+  }
+
+  /**
+   * Forgets the rules of {@code buildFile} and their RuleKeys, so that it is parsed again the next
+   * time that one of them is needed. The rules of other build files only refer to them by
+   * {@link BuildTarget}, and the {@link DependencyGraph} is linked from scratch for each request, so
+   * nothing else has to be invalidated: the {@link RuleKeyCache} checks the RuleKeys of deps itself.
+   */
+  private void invalidateBuildFile(File buildFile) {
+    List<Map<String, Object>> rules = parsedBuildFiles.removeAll(buildFile);
+    if (!rules.isEmpty() && !buildFile.isFile()) {
+      // A BuildTarget cannot be created for a build file that was deleted, so its rules are found
+      // by their build file instead.
+      for (Iterator<BuildTarget> iterator = knownBuildTargets.keySet().iterator();
+           iterator.hasNext(); ) {
+        BuildTarget buildTarget = iterator.next();
+        if (buildFile.equals(buildTarget.getBuildFile())) {
+          iterator.remove();
+          ruleKeyCache.invalidate(buildTarget);
+        }
+      }
+    } else {
+      for (Map<String, Object> map : rules) {
+        BuildTarget buildTarget = parseBuildTargetFromRawRule(map, buildFile);
+        knownBuildTargets.remove(buildTarget);
+        ruleKeyCache.invalidate(buildTarget);
+      }
+    }
+    buildFilesByInclude.values().removeAll(Collections.singleton(buildFile));
+    buildFilesByGlobDirectory.values().removeAll(Collections.singleton(buildFile));
+    if (allBuildFilesParsed) {
+      staleBuildFiles.add(buildFile);
+    }
   }
 
   /**
@@ -178,20 +328,86 @@ public class Parser {
     // Make sure that knownBuildTargets is initially populated with the BuildRuleBuilders for the
     // seed BuildTargets for the traversal.
     if (!isCacheComplete(defaultIncludes)) {
-      Set<File> buildTargetFiles = Sets.newHashSet();
-      for (BuildTarget buildTarget : buildTargets) {
-        File buildFile = buildTarget.getBuildFile();
-        boolean isNewElement = buildTargetFiles.add(buildFile);
-        if (isNewElement) {
-          parseBuildFile(buildFile, defaultIncludes);
-        }
-      }
+      parseBuildFilesOfTransitiveDeps(buildTargets, defaultIncludes);
     }
 
     DependencyGraph graph = findAllTransitiveDependencies(buildTargets, defaultIncludes);
     return graph;
   }
 
+  /**
+   * Parses the build files that define {@code buildTargets} and their transitive deps. Rather than
+   * parsing one build file at a time as deps are discovered, as many build files are parsed at once
+   * as the {@link ProjectBuildFileParser} has interpreters for: as soon as a build file has been
+   * parsed, requests are sent out for the build files of all of the deps that it declares.
+   * <p>
+   * A dep that is not declared in its build file is skipped rather than reported, so that
+   * {@link #findAllTransitiveDependencies} can report it with the usual error message.
+   */
+  private void parseBuildFilesOfTransitiveDeps(Iterable<BuildTarget> buildTargets,
+      Iterable<String> defaultIncludes) throws IOException, NoSuchBuildTargetException {
+    Set<BuildTarget> explored = Sets.newHashSet();
+    Set<File> requestedBuildFiles = Sets.newHashSet();
+    Deque<BuildTarget> toExplore = Lists.newLinkedList(buildTargets);
+
+    // The targets that cannot be explored until their build file has been parsed, and the futures
+    // for those build files, which are added to parsedBuildFilesQueue once they are resolved.
+    ListMultimap<File, BuildTarget> waitingForBuildFile = ArrayListMultimap.create();
+    Map<File, ListenableFuture<List<Map<String, Object>>>> pendingBuildFiles = Maps.newHashMap();
+    final BlockingQueue<File> parsedBuildFilesQueue = new LinkedBlockingQueue<File>();
+
+    while (!toExplore.isEmpty() || !pendingBuildFiles.isEmpty()) {
+      while (!toExplore.isEmpty()) {
+        BuildTarget buildTarget = toExplore.remove();
+        if (explored.contains(buildTarget)) {
+          continue;
+        }
+
+        BuildRuleBuilder<?> buildRuleBuilder = knownBuildTargets.get(buildTarget);
+        if (buildRuleBuilder != null) {
+          explored.add(buildTarget);
+          toExplore.addAll(buildRuleBuilder.getDeps());
+          continue;
+        }
+
+        final File buildFile = buildTarget.getBuildFile();
+        if (isCached(buildFile, defaultIncludes) || !requestedBuildFiles.add(buildFile)) {
+          if (pendingBuildFiles.containsKey(buildFile)) {
+            waitingForBuildFile.put(buildFile, buildTarget);
+          }
+          continue;
+        }
+
+        if (console.getVerbosity().shouldPrintCommand()) {
+          console.getStdErr().printf("Parsing %s file: %s\n",
+              BuckConstant.BUILD_RULES_FILE_NAME,
+              buildFile);
+        }
+        ListenableFuture<List<Map<String, Object>>> rules = buildFileParser.getAllRulesAsync(
+            absolutePathToProjectRoot, Optional.of(buildFile.getPath()), defaultIncludes);
+        pendingBuildFiles.put(buildFile, rules);
+        waitingForBuildFile.put(buildFile, buildTarget);
+        rules.addListener(new Runnable() {
+          @Override
+          public void run() {
+            parsedBuildFilesQueue.add(buildFile);
+          }
+        }, MoreExecutors.sameThreadExecutor());
+      }
+
+      if (!pendingBuildFiles.isEmpty()) {
+        // The rules are indexed on this thread, as neither knownBuildTargets nor parsedBuildFiles
+        // may be modified concurrently.
+        File buildFile = Uninterruptibles.takeUninterruptibly(parsedBuildFilesQueue);
+        parseRawRulesInternal(
+            MoreFutures.getUninterruptibly(pendingBuildFiles.remove(buildFile)),
+            buildFile);
+        staleBuildFiles.remove(buildFile);
+        toExplore.addAll(waitingForBuildFile.removeAll(buildFile));
+      }
+    }
+  }
+
   /**
    * @param toExplore BuildTargets whose dependencies need to be explored.
    */
@@ -199,7 +415,8 @@ public class Parser {
   DependencyGraph findAllTransitiveDependencies(
       Iterable<BuildTarget> toExplore,
       final Iterable<String> defaultIncludes) {
-    final BuildRuleResolver ruleResolver = new BuildRuleResolver();
+    buildMetadataStore.refresh();
+    final BuildRuleResolver ruleResolver = new BuildRuleResolver(ruleKeyCache, buildMetadataStore);
     final MutableDirectedGraph<BuildRule> graph = new MutableDirectedGraph<BuildRule>();
 
     AbstractAcyclicDepthFirstPostOrderTraversal<BuildTarget> traversal =
@@ -317,6 +534,7 @@ public class Parser {
       parseRawRulesInternal(buildFileParser.getAllRules(
           absolutePathToProjectRoot, Optional.of(buildFile.getPath()), defaultIncludes),
           buildFile);
+      staleBuildFiles.remove(buildFile);
     }
     return parsedBuildFiles.get(buildFile);
   }
@@ -329,6 +547,11 @@ public class Parser {
   void parseRawRulesInternal(Iterable<Map<String, Object>> rules,
       @Nullable File source) throws NoSuchBuildTargetException {
     for (Map<String, Object> map : rules) {
+      if (map.containsKey(INCLUDES_KEY)) {
+        recordBuildFileDependencies(map, source);
+        continue;
+      }
+
       BuildRuleType buildRuleType = parseBuildRuleTypeFromRawRule(map);
       BuildTarget target = parseBuildTargetFromRawRule(map, source);
       BuildRuleFactory<?> factory = buildRuleTypes.getFactory(buildRuleType);
@@ -344,7 +567,8 @@ public class Parser {
           projectFilesystem,
           buildFiles,
           buildTargetParser,
-          target));
+          target,
+          directoryIndex));
       Object existingRule = knownBuildTargets.put(target, buildRuleBuilder);
       if (existingRule != null) {
         throw new RuntimeException("Duplicate definition for " + target.getFullyQualifiedName());
@@ -353,6 +577,34 @@ public class Parser {
     }
   }
 
+  /**
+   * Records which includes and directories the build file that {@code map} describes depends on.
+   * @param map the dependencies of a build file, as emitted by buck.py after its rules.
+   * @param source the build file the map was read from, or null if all build files were read.
+   */
+  @SuppressWarnings("unchecked")
+  private void recordBuildFileDependencies(Map<String, Object> map, @Nullable File source) {
+    File buildFile = getBuildFileOfRawRule(map, source);
+    for (String include : (List<String>) map.get(INCLUDES_KEY)) {
+      buildFilesByInclude.put(getPathRelativeToProjectRoot(Paths.get(include)), buildFile);
+    }
+    for (String directory : (List<String>) map.get(GLOB_DIRECTORIES_KEY)) {
+      buildFilesByGlobDirectory.put(getPathRelativeToProjectRoot(Paths.get(directory)), buildFile);
+    }
+  }
+
+  /**
+   * @return {@code path} relative to the project root. Relative paths are assumed to be relative to
+   *     the project root already.
+   */
+  private Path getPathRelativeToProjectRoot(Path path) {
+    if (path.isAbsolute()) {
+      return Paths.get(absolutePathToProjectRoot).normalize().relativize(path.normalize());
+    } else {
+      return path.normalize();
+    }
+  }
+
   /**
    * @param filter the test to apply to all targets that have been read from build files, or null.
    * @return the build targets that pass the test, or null if the filter was null.
@@ -393,17 +645,27 @@ public class Parser {
    */
   private BuildTarget parseBuildTargetFromRawRule(Map<String, Object> map, @Nullable File source) {
     String basePath = (String)map.get("buck_base_path");
-    File sourceOfBuildTarget;
-    if (source == null) {
-      String relativePathToBuildFile = !basePath.isEmpty()
-          ? basePath + "/" + BuckConstant.BUILD_RULES_FILE_NAME
-          : BuckConstant.BUILD_RULES_FILE_NAME;
-      sourceOfBuildTarget = new File(projectFilesystem.getProjectRoot(), relativePathToBuildFile);
-    } else {
-      sourceOfBuildTarget = source;
-    }
     String name = (String)map.get("name");
-    return new BuildTarget(sourceOfBuildTarget, "//" + basePath, name);
+    return new BuildTarget(getBuildFileOfRawRule(map, source), "//" + basePath, name);
+  }
+
+  /**
+   * @param map the map of values that define the rule.
+   * @param source the build file the map was read from, or null if all build files were read.
+   * @return the build file that defined the rule.
+   */
+  private File getBuildFileOfRawRule(Map<String, Object> map, @Nullable File source) {
+    if (source != null) {
+      return source;
+    }
+    String basePath = (String)map.get("buck_base_path");
+    return projectFilesystem.getFileForRelativePath(getRelativePathToBuildFile(basePath));
+  }
+
+  private static String getRelativePathToBuildFile(String basePath) {
+    return !basePath.isEmpty()
+        ? basePath + "/" + BuckConstant.BUILD_RULES_FILE_NAME
+        : BuckConstant.BUILD_RULES_FILE_NAME;
   }
 
   /**
@@ -427,9 +689,19 @@ public class Parser {
       throw new HumanReadableException(String.format("Unsupported root path change from %s to %s",
           projectFilesystem.getProjectRoot(), filesystem.getProjectRoot()));
     }
-    if (!isCacheComplete(includes)) {
+    if (isCacheValid(includes) && allBuildFilesParsed) {
+      // Only the build files that changed since all build files were parsed need to be parsed.
+      for (File buildFile : ImmutableList.copyOf(staleBuildFiles)) {
+        if (buildFile.isFile()) {
+          parseBuildFile(buildFile, includes);
+        }
+      }
+      staleBuildFiles.clear();
+    } else {
       knownBuildTargets.clear();
       parsedBuildFiles.clear();
+      buildFilesByInclude.clear();
+      buildFilesByGlobDirectory.clear();
       parseRawRulesInternal(
           buildFileParser.getAllRulesInProject(filesystem.getProjectRoot(), includes),
           null /* source */);
@@ -439,23 +711,81 @@ public class Parser {
   }
 
   /**
-   * Called when file change events are posted to the file change EventBus to invalidate cached
-   * build rules if required.
+   * Called when file change events are posted to the file change EventBus to invalidate the cached
+   * build rules that the change may affect: those of a build file that changed, those of build files
+   * that include a file that changed, and those of build files that listed a directory via glob()
+   * in which a file was added or removed.
    */
   @Subscribe
   public synchronized void onFileSystemChange(WatchEvent<?> event) {
-    if (projectFilesystem.isPathChangeEvent(event)) {
-      // TODO(user): Track the files imported by build files
-      // Currently we just assume changed ".java" can't affect build rules.
-      // Adding or deleting "*.java" files requires build files to be reevaluated due to globing.
-      final String SRC_EXTENSION = ".java";
-      Path path = (Path) event.context();
-      if (path.toString().endsWith(SRC_EXTENSION)
-          && event.kind() == StandardWatchEventKinds.ENTRY_MODIFY) {
-        return;
+    if (!projectFilesystem.isPathChangeEvent(event)) {
+      // Events may have been lost, so anything may have changed.
+      directoryIndex.clear();
+      invalidateCache();
+      return;
+    }
+
+    Path path = getPathRelativeToProjectRoot((Path) event.context());
+    Path absolutePath =
+        projectFilesystem.getFileForRelativePath(path.toString()).getAbsoluteFile().toPath();
+    ruleKeyCache.invalidatePath(absolutePath);
+    boolean isModify = event.kind() == StandardWatchEventKinds.ENTRY_MODIFY;
+    if (!isModify) {
+      directoryIndex.onPathChanged(path);
+      ruleKeyCache.invalidateDirectoryListings(absolutePath);
+    }
+    Set<File> affectedBuildFiles = Sets.newHashSet(buildFilesByInclude.get(path));
+    Path directory = Optional.fromNullable(path.getParent()).or(Paths.get(""));
+    if (!isModify) {
+      affectedBuildFiles.addAll(buildFilesByGlobDirectory.get(directory));
+    }
+
+    if (BuckConstant.BUILD_RULES_FILE_NAME.equals(path.getFileName().toString())) {
+      affectedBuildFiles.add(projectFilesystem.getFileForRelativePath(path.toString()));
+      if (!isModify) {
+        // Adding or removing a build file changes which build file each file belongs to.
+        buildFiles = BuildFileTree.constructBuildFileTree(projectFilesystem);
+        if (path.getParent() != null) {
+          String ancestorBasePath = buildFiles.getBasePathOfAncestorTarget(directory.toString());
+          affectedBuildFiles.add(projectFilesystem.getFileForRelativePath(
+              getRelativePathToBuildFile(ancestorBasePath)));
+        }
+      }
+    } else if (!isModify) {
+      // A directory that was added, removed or moved may hold build files of its own, of which
+      // there is no event, and they change which build file each file belongs to.
+      Set<File> buildFilesUnderPath = getBuildFilesUnder(path, absolutePath);
+      if (java.nio.file.Files.isDirectory(absolutePath) || !buildFilesUnderPath.isEmpty()) {
+        // Both the build files that were under the path, and those that are now, are affected.
+        buildFiles = BuildFileTree.constructBuildFileTree(projectFilesystem);
+        affectedBuildFiles.addAll(buildFilesUnderPath);
+        affectedBuildFiles.addAll(getBuildFilesUnder(path, absolutePath));
+        String ancestorBasePath = buildFiles.getBasePathOfAncestorTarget(path.toString());
+        affectedBuildFiles.add(projectFilesystem.getFileForRelativePath(
+            getRelativePathToBuildFile(ancestorBasePath)));
+      }
+    }
+
+    for (File buildFile : affectedBuildFiles) {
+      invalidateBuildFile(buildFile);
+    }
+  }
+
+  /**
+   * @return the build files at or under the directory {@code path}, relative to the project root,
+   *     that were parsed or that are in {@link #buildFiles}.
+   */
+  private Set<File> getBuildFilesUnder(Path path, Path absolutePath) {
+    Set<File> buildFilesUnderPath = Sets.newHashSet();
+    for (File buildFile : parsedBuildFiles.keySet()) {
+      if (buildFile.getAbsoluteFile().toPath().startsWith(absolutePath)) {
+        buildFilesUnderPath.add(buildFile);
       }
     }
-    // TODO(user): invalidate affected build files, rather than nuking all rules completely.
-    invalidateCache();
+    for (String basePath : buildFiles.getBasePathsUnder(path.toString())) {
+      buildFilesUnderPath.add(
+          projectFilesystem.getFileForRelativePath(getRelativePathToBuildFile(basePath)));
+    }
+    return buildFilesUnderPath;
   }
 }
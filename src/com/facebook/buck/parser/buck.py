@@ -45,6 +45,13 @@ def relpath(path, start=posixpath.curdir):
 # "PROJECT_ROOT" - An absolute path to the project root.
 #
 # "BUILD_FILE_SYMBOL_TABLE" - The global symbol table of the BUILD file.
+#
+# "INCLUDES" - The absolute paths of the files included by the BUILD file so far.
+#
+# "GLOB_DIRECTORIES" - The absolute paths of the directories listed by glob() so far.
+#
+# "DIRECTORY_INDEX" - The com.facebook.buck.util.ProjectDirectoryIndex that glob() should use
+# rather than walking the disk, or None.
 
 BUILD_FUNCTIONS = []
 BUILD_RULES_FILE_NAME = 'BUCK'
@@ -72,6 +79,16 @@ def add_rule(rule, build_env):
   print json.dumps(rule)
 
 
+def add_build_file_dependencies(build_env):
+  # Tell the reader which files and directories the rules of the BUILD file were derived from, so
+  # that it knows when it has to parse the BUILD file again. This is not a rule, so it has no type.
+  print json.dumps({
+    'buck_base_path' : build_env['BASE'],
+    '__includes' : build_env['INCLUDES'],
+    '__glob_directories' : build_env['GLOB_DIRECTORIES'],
+  })
+
+
 def glob_pattern_to_regex_string(pattern):
     # Replace rules for glob pattern (roughly):
     # . => \\.
@@ -105,6 +122,11 @@ def glob(includes, excludes=[], build_env=None):
   assert not isinstance(excludes, basestring), \
       "The excludes argument must be a list of strings."
 
+  directory_index = build_env['DIRECTORY_INDEX']
+  if directory_index is not None:
+    return list(directory_index.glob(
+        build_env['BASE'], includes, excludes, build_env['GLOB_DIRECTORIES']))
+
   inclusions = [pattern_to_regex(p) for p in includes]
   exclusions = [pattern_to_regex(p) for p in excludes]
 
@@ -125,6 +147,8 @@ def glob(includes, excludes=[], build_env=None):
       paths.append(path)
 
   for root, dirs, files in os.walk(search_base):
+    # Adding or removing a file in any directory that was listed may change the result.
+    build_env['GLOB_DIRECTORIES'].append(root)
     if len(files) == 0:
       continue
     relative_root = relpath(root, search_base)
@@ -540,6 +564,7 @@ def include_defs(name, build_env=None):
     raise ValueError('include_defs argument "%s" must begin with //' % name)
   relative_path = name[2:]
   include_file = os.path.join(build_env['PROJECT_ROOT'], relative_path)
+  build_env['INCLUDES'].append(include_file)
   execfile(include_file, build_env['BUILD_FILE_SYMBOL_TABLE'])
 
 
@@ -598,7 +623,7 @@ def get_base_path(build_env=None):
 # All of the build rules that are parsed from the BUILD files will be printed to stdout by a JSON
 # parser. That means that printing out other information for debugging purposes will likely break
 # the JSON parsing, so be careful!
-def main():
+def main(directory_index=None):
   parser = optparse.OptionParser()
   parser.add_option('--project_root', action='store', type='string', dest='project_root')
   parser.add_option('--include', action='append', dest='include')
@@ -635,6 +660,9 @@ def main():
     build_env['BASE'] = relative_path_to_build_file[:len_suffix]
     build_env['BUILD_FILE_DIRECTORY'] = os.path.dirname(build_file)
     build_env['PROJECT_ROOT'] = project_root
+    build_env['INCLUDES'] = []
+    build_env['GLOB_DIRECTORIES'] = []
+    build_env['DIRECTORY_INDEX'] = directory_index
     build_env['BUILD_FILE_SYMBOL_TABLE'] = make_build_file_symbol_table(build_env)
 
     # If there are any default includes, evaluate those first to populate the build_env.
@@ -642,6 +670,7 @@ def main():
     for include in includes:
       include_defs(include, build_env)
     execfile(os.path.join(project_root, build_file), build_env['BUILD_FILE_SYMBOL_TABLE'])
+    add_build_file_dependencies(build_env)
 
 
 if __name__ == '__main__':
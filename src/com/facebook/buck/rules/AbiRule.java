@@ -70,4 +70,14 @@ public interface AbiRule {
    */
   @Nullable
   public String getAbiKeyForDepsOnDisk();
+
+  /**
+   * Once this rule has been built, returns an SHA-1 hash of the ABI of its output. This is what
+   * {@link #getAbiKeyForDeps()} of the rules that depend on this rule is computed from.
+   *
+   * @return {@code null} if the ABI of the output is not known, such as when the output was fetched
+   *     from an {@link ArtifactCache} rather than built locally.
+   */
+  @Nullable
+  public String getAbiKey();
 }
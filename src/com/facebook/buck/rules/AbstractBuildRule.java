@@ -37,12 +37,14 @@ abstract class AbstractBuildRule implements BuildRule {
   private final ImmutableSet<BuildTargetPattern> visibilityPatterns;
   @Nullable private OutputKey outputKey;
   @Nullable private RuleKey ruleKey;
+  @Nullable private final RuleKeyCache ruleKeyCache;
 
   protected AbstractBuildRule(BuildRuleParams buildRuleParams) {
     Preconditions.checkNotNull(buildRuleParams);
     this.buildTarget = buildRuleParams.getBuildTarget();
     this.deps = buildRuleParams.getDeps();
     this.visibilityPatterns = buildRuleParams.getVisibilityPatterns();
+    this.ruleKeyCache = buildRuleParams.getRuleKeyCache();
 
     for (BuildRule dep : this.deps) {
       if (!dep.isVisibleTo(buildTarget)) {
@@ -187,12 +189,23 @@ abstract class AbstractBuildRule implements BuildRule {
     if (this.ruleKey != null) {
       return this.ruleKey;
     } else {
+      if (ruleKeyCache != null) {
+        RuleKey cachedRuleKey = ruleKeyCache.get(this);
+        if (cachedRuleKey != null) {
+          this.ruleKey = cachedRuleKey;
+          return cachedRuleKey;
+        }
+      }
+
       RuleKey.Builder builder = RuleKey.builder(this);
       appendToRuleKey(builder);
       RuleKey ruleKey = builder.build();
       // Although this.ruleKey could be null, the RuleKey returned by this method is guaranteed to
       // be non-null.
       this.ruleKey = RuleKey.filter(ruleKey);
+      if (ruleKeyCache != null) {
+        ruleKeyCache.put(this, builder, ruleKey);
+      }
       return ruleKey;
     }
   }
@@ -108,6 +108,8 @@ public abstract class AbstractBuildRuleBuilder<T extends BuildRule> implements B
     return new BuildRuleParams(getBuildTarget(),
         getDepsAsBuildRules(ruleResolver),
         getVisibilityPatterns(),
-        pathRelativizer);
+        pathRelativizer,
+        ruleResolver.getRuleKeyCache(),
+        ruleResolver.getBuildMetadataStore());
   }
 }
@@ -22,14 +22,15 @@ import com.facebook.buck.step.StepRunner;
 import com.facebook.buck.util.BuckConstant;
 import com.facebook.buck.util.DirectoryTraverser;
 import com.facebook.buck.util.DirectoryTraversers;
+import com.facebook.buck.util.MoreFiles;
 import com.facebook.buck.util.MoreFutures;
 import com.facebook.buck.util.ProjectFilesystem;
 import com.google.common.annotations.Beta;
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.base.Charsets;
 import com.google.common.base.Function;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSortedSet;
 import com.google.common.collect.Iterables;
@@ -42,7 +43,10 @@ import com.google.common.util.concurrent.SettableFuture;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -68,6 +72,21 @@ import javax.annotation.Nullable;
 @Beta
 public abstract class AbstractCachingBuildRule extends AbstractBuildRule implements BuildRule {
 
+  /** Names of the metadata that this rule records in the {@link BuildMetadataStore}. */
+  private static final String RULE_KEY_METADATA = "rule_key";
+  private static final String RULE_KEY_WITHOUT_DEPS_METADATA = "rule_key_without_deps";
+  private static final String ABI_KEY_FOR_DEPS_METADATA = "abi_key_for_deps";
+  private static final String ABI_KEY_METADATA = "abi_key";
+
+  /** Prefix of the names of the entries of the {@link DependencyFileRule#getDependencyFile()}. */
+  private static final String DEPENDENCY_FILE_METADATA_PREFIX = "dep_file:";
+
+  /**
+   * Most entries of a dependency file that are recorded, leaving room for the other metadata in a
+   * single record of the {@link BuildMetadataStore}. A larger one is dropped.
+   */
+  private static final int MAX_DEPENDENCY_FILE_SIZE = 0xFFFF - 16;
+
   /**
    * Lock used to ensure that the logic to kick off a build is performed at most once.
    */
@@ -80,8 +99,22 @@ public abstract class AbstractCachingBuildRule extends AbstractBuildRule impleme
    */
   private final SettableFuture<BuildRuleSuccess> buildRuleResult;
 
+  /**
+   * Resolved once this rule and all of its transitive deps are built. Only used when the build is
+   * top-down, as otherwise {@link #buildRuleResult} is not resolved until the deps are built.
+   */
+  @Nullable
+  private ListenableFuture<BuildRuleSuccess> buildRuleAndDepsResult;
+
   private final Function<String, String> pathRelativizer;
 
+  /**
+   * Where this rule records the keys that it was built with. If {@code null}, nothing is recorded,
+   * so this rule is built whenever it is not fetched from the {@link ArtifactCache}.
+   */
+  @Nullable
+  private final BuildMetadataStore buildMetadataStore;
+
   /** @see #getInputsToCompareToOutput(BuildContext) */
   private Iterable<InputRule> inputsToCompareToOutputs;
 
@@ -90,6 +123,7 @@ public abstract class AbstractCachingBuildRule extends AbstractBuildRule impleme
     this.hasBuildStarted = new AtomicBoolean(false);
     this.buildRuleResult = SettableFuture.create();
     this.pathRelativizer = buildRuleParams.getPathRelativizer();
+    this.buildMetadataStore = buildRuleParams.getBuildMetadataStore();
   }
 
   /**
@@ -141,6 +175,13 @@ public abstract class AbstractCachingBuildRule extends AbstractBuildRule impleme
         .setInputs("buck.inputs", getInputs());
   }
 
+  /**
+   * Builds this rule. Normally, all of its deps are built first and then this rule is fetched from
+   * the {@link ArtifactCache} or built. When {@link BuildContext#isTopDownBuild()} is set, this rule
+   * is fetched from the cache before any of its deps are built, and the deps are only built if this
+   * rule has to be built, in which case the returned future is resolved without waiting for deps
+   * that were not needed.
+   */
   @Override
   public final ListenableFuture<BuildRuleSuccess> build(final BuildContext context) {
     // We use hasBuildStarted as a lock so that we can minimize how much we need to synchronize.
@@ -152,9 +193,19 @@ public abstract class AbstractCachingBuildRule extends AbstractBuildRule impleme
       }
     }
 
-    // Build all of the deps first and then schedule a callback for this rule to build itself once
-    // all of those rules are done building.
     try {
+      if (context.isTopDownBuild()) {
+        context.getExecutorFor(this).execute(new Runnable() {
+          @Override
+          public void run() {
+            buildTopDown(context);
+          }
+        });
+        return buildRuleResult;
+      }
+
+      // Build all of the deps first and then schedule a callback for this rule to build itself once
+      // all of those rules are done building.
       // Invoke every dep's build() method and create an uber-ListenableFuture that represents the
       // successful completion of all deps.
       List<ListenableFuture<BuildRuleSuccess>> builtDeps =
@@ -162,23 +213,7 @@ public abstract class AbstractCachingBuildRule extends AbstractBuildRule impleme
       for (BuildRule dep : getDeps()) {
         builtDeps.add(dep.build(context));
       }
-      ListenableFuture<List<BuildRuleSuccess>> allBuiltDeps = Futures.allAsList(builtDeps);
-
-      // Schedule this rule to build itself once all of the deps are built.
-      Futures.addCallback(allBuiltDeps,
-          new FutureCallback<List<BuildRuleSuccess>>() {
-
-            @Override
-            public void onSuccess(List<BuildRuleSuccess> deps) {
-              buildOnceDepsAreBuilt(context);
-            }
-
-            @Override
-            public void onFailure(Throwable failure) {
-              recordBuildRuleFailure(failure);
-            }
-          },
-          context.getExecutor());
+      buildOnceAllAreBuilt(context, builtDeps, /* hasCheckedRuleKeyAndCache */ false);
     } catch (Throwable throwable) {
       // This is a defensive catch block: if buildRuleResult is never satisfied, then Buck will
       // hang because a callback that is waiting for this rule's future to complete will never be
@@ -189,6 +224,92 @@ public abstract class AbstractCachingBuildRule extends AbstractBuildRule impleme
     return buildRuleResult;
   }
 
+  /**
+   * Schedules this rule to build itself once all of {@code futures} have completed successfully.
+   */
+  private void buildOnceAllAreBuilt(final BuildContext context,
+      List<? extends ListenableFuture<BuildRuleSuccess>> futures,
+      final boolean hasCheckedRuleKeyAndCache) {
+    Futures.addCallback(Futures.allAsList(futures),
+        new FutureCallback<List<BuildRuleSuccess>>() {
+
+          @Override
+          public void onSuccess(List<BuildRuleSuccess> deps) {
+            buildOnceDepsAreBuilt(context, hasCheckedRuleKeyAndCache);
+          }
+
+          @Override
+          public void onFailure(Throwable failure) {
+            recordBuildRuleFailure(failure);
+          }
+        },
+        context.getExecutorFor(this));
+  }
+
+  /**
+   * Makes the output of this rule available without building any of its deps, if possible, by
+   * finding that its RuleKey is unchanged or by fetching its output from the {@link ArtifactCache}.
+   * Otherwise, the steps of this rule may read the output of any of its transitive deps, so all of
+   * them are built before this rule is.
+   * <p>
+   * Like {@link #buildOnceDepsAreBuilt(BuildContext, boolean)}, this must resolve
+   * {@link #buildRuleResult} on every exit path unless it schedules that method to do so.
+   */
+  private void buildTopDown(BuildContext context) {
+    try {
+      if (isRuleKeyUnchanged(context)) {
+        return;
+      }
+
+      if (tryToFetchFromCache(context)) {
+        context.getEventBus().post(BuildEvents.buildRuleStarted(this));
+        recordBuildRuleCompletedAndPostFinished(context, /* fromCache */ true);
+        return;
+      }
+
+      List<ListenableFuture<BuildRuleSuccess>> builtDeps =
+          Lists.newArrayListWithCapacity(getDeps().size());
+      for (BuildRule dep : getDeps()) {
+        builtDeps.add(buildRuleAndDeps(dep, context));
+      }
+      buildOnceAllAreBuilt(context, builtDeps, /* hasCheckedRuleKeyAndCache */ true);
+    } catch (Throwable throwable) {
+      recordBuildRuleFailure(throwable);
+    }
+  }
+
+  /**
+   * @return a future that is resolved once {@code rule} and all of its transitive deps are built.
+   */
+  private static ListenableFuture<BuildRuleSuccess> buildRuleAndDeps(BuildRule rule,
+      BuildContext context) {
+    if (rule instanceof AbstractCachingBuildRule) {
+      return ((AbstractCachingBuildRule)rule).buildRuleAndDeps(context);
+    } else {
+      return rule.build(context);
+    }
+  }
+
+  private synchronized ListenableFuture<BuildRuleSuccess> buildRuleAndDeps(BuildContext context) {
+    if (buildRuleAndDepsResult == null) {
+      List<ListenableFuture<BuildRuleSuccess>> futures =
+          Lists.newArrayListWithCapacity(getDeps().size() + 1);
+      futures.add(build(context));
+      for (BuildRule dep : getDeps()) {
+        futures.add(buildRuleAndDeps(dep, context));
+      }
+      // Resolve to the result for this rule, which is the first element.
+      buildRuleAndDepsResult = Futures.transform(Futures.allAsList(futures),
+          new Function<List<BuildRuleSuccess>, BuildRuleSuccess>() {
+            @Override
+            public BuildRuleSuccess apply(List<BuildRuleSuccess> results) {
+              return results.get(0);
+            }
+          });
+    }
+    return buildRuleAndDepsResult;
+  }
+
   /**
    * This method is invoked once all of this rule's dependencies are built.
    * <p>
@@ -198,8 +319,12 @@ public abstract class AbstractCachingBuildRule extends AbstractBuildRule impleme
    * All exit paths through this method should resolve {@link #buildRuleResult} before exiting. To
    * that end, this method should never throw an exception, or else Buck will hang waiting for
    * {@link #buildRuleResult} to be resolved.
+   *
+   * @param hasCheckedRuleKeyAndCache whether {@link #buildTopDown(BuildContext)} has already found
+   *     that the RuleKey has changed and that the output is not in the {@link ArtifactCache}.
    */
-  private void buildOnceDepsAreBuilt(final BuildContext context) {
+  private void buildOnceDepsAreBuilt(final BuildContext context,
+      boolean hasCheckedRuleKeyAndCache) {
     // Deciding whether we need to rebuild is tricky business. We want to rebuild as little as
     // possible while always being sound.
     //
@@ -236,15 +361,15 @@ public abstract class AbstractCachingBuildRule extends AbstractBuildRule impleme
       }
     }
 
-    // Compute the current RuleKey and compare it to the one stored on disk.
-    RuleKey ruleKey = getRuleKey();
-    Optional<RuleKey> cachedRuleKey = getRuleKeyOnDisk(context.getProjectFilesystem());
+    // If the RuleKey matches the one stored on disk, then there is nothing to build.
+    if (!hasCheckedRuleKeyAndCache && isRuleKeyUnchanged(context)) {
+      return;
+    }
 
-    // If the RuleKeys match, then there is nothing to build.
-    if (cachedRuleKey.isPresent() && ruleKey.equals(cachedRuleKey.get())) {
-      context.logBuildInfo("[UNCHANGED %s]", getFullyQualifiedName());
-      recordBuildRuleSuccess(BuildRuleSuccess.Type.MATCHING_RULE_KEY);
-      buildRuleResult.set(new BuildRuleSuccess(this, BuildRuleSuccess.Type.MATCHING_RULE_KEY));
+    // Otherwise, if the definition and inputs of this rule have not changed and none of the files
+    // that it read from its deps the last time it was built has changed, there is nothing to build
+    // either. This is checked after the RuleKey, as it has to hash those files.
+    if (isDependencyFileUnchanged(context)) {
       return;
     }
 
@@ -257,12 +382,7 @@ public abstract class AbstractCachingBuildRule extends AbstractBuildRule impleme
     // should organize our output directories so we can solve this for all rules at once.
 
     // Before deciding to build, check the ArtifactCache.
-    ProjectFilesystem projectFilesystem = context.getProjectFilesystem();
-    String pathToOutputFile = getPathToOutputFile();
-    boolean fromCache = pathToOutputFile != null
-        && context.getArtifactCache().fetch(
-            getRuleKey(),
-            projectFilesystem.getFileForRelativePath(pathToOutputFile));
+    boolean fromCache = !hasCheckedRuleKeyAndCache && tryToFetchFromCache(context);
     CacheResult cacheResult = fromCache ? CacheResult.HIT : CacheResult.MISS;
 
     // Run the steps to build this rule since it was not found in the cache.
@@ -277,9 +397,151 @@ public abstract class AbstractCachingBuildRule extends AbstractBuildRule impleme
       }
     }
 
+    recordBuildRuleCompletedAndPostFinished(context, fromCache);
+  }
+
+  /**
+   * Compares the current RuleKey to the one stored on disk and, if they match, records that this
+   * rule does not need to be built.
+   */
+  private boolean isRuleKeyUnchanged(BuildContext context) {
+    // Compute the current RuleKey and compare it to the one stored on disk.
+    long ruleKeyStartNanos = System.nanoTime();
+    RuleKey ruleKey = getRuleKey();
+    context.getEventBus().post(BuildEvents.ruleKeyCalculated(this,
+        ruleKey,
+        System.nanoTime() - ruleKeyStartNanos));
+    Optional<RuleKey> cachedRuleKey = getRuleKeyOnDisk();
+
+    if (cachedRuleKey.isPresent() && ruleKey.equals(cachedRuleKey.get())) {
+      context.logBuildInfo("[UNCHANGED %s]", getFullyQualifiedName());
+      recordBuildRuleSuccess(BuildRuleSuccess.Type.MATCHING_RULE_KEY);
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * @return whether the output of this rule was fetched from the {@link ArtifactCache}.
+   */
+  private boolean tryToFetchFromCache(BuildContext context) {
+    ImmutableSortedSet<String> outputs = getPathsToCachedOutputs();
+    if (outputs.isEmpty()) {
+      return false;
+    }
+    long fetchStartNanos = System.nanoTime();
+    boolean fromCache;
+    try {
+      fromCache = fetchOutputs(context.getArtifactCache(),
+          context.getProjectFilesystem(),
+          outputs);
+    } catch (IOException e) {
+      // The outputs will be written anew when this rule is built.
+      context.logBuildInfo("Failed to unpack the cached outputs of %s: %s",
+          getFullyQualifiedName(),
+          e.getMessage());
+      fromCache = false;
+    }
+    context.getEventBus().post(BuildEvents.artifactCacheFetched(this,
+        fromCache ? CacheResult.HIT : CacheResult.MISS,
+        System.nanoTime() - fetchStartNanos));
+    return fromCache;
+  }
+
+  /**
+   * @return the paths, relative to the project root, of the files and directories that this rule
+   *     writes and that must be restored when it is fetched from the {@link ArtifactCache}, which
+   *     by default is just {@link #getPathToOutputFile()}, if there is one. A directory is cached
+   *     with everything under it.
+   */
+  protected ImmutableSortedSet<String> getPathsToCachedOutputs() {
+    String pathToOutputFile = getPathToOutputFile();
+    return pathToOutputFile == null
+        ? ImmutableSortedSet.<String>of()
+        : ImmutableSortedSet.of(pathToOutputFile);
+  }
+
+  /**
+   * @return whether {@code outputs} is just a single output file, which is cached as is rather than
+   *     packed into an {@link ArtifactArchive}, so that it can be fetched without a copy.
+   */
+  private boolean isSingleOutputFile(ImmutableSortedSet<String> outputs) {
+    return outputs.size() == 1 && outputs.first().equals(getPathToOutputFile());
+  }
+
+  /**
+   * Fetches the artifact of this rule next to its outputs rather than over them, as a cache cannot
+   * replace a directory that is not empty, and the outputs must be left alone on a miss. Only then
+   * are the outputs replaced by the artifact.
+   */
+  private boolean fetchOutputs(ArtifactCache artifactCache,
+      ProjectFilesystem projectFilesystem,
+      ImmutableSortedSet<String> outputs) throws IOException {
+    File artifact = projectFilesystem.getFileForRelativePath(getPathToArtifactArchive());
+    Files.createParentDirs(artifact);
+    try {
+      if (!artifactCache.fetch(getRuleKey(), artifact)) {
+        return false;
+      }
+      if (ArtifactArchive.isArchive(artifact)) {
+        ArtifactArchive.unpack(artifact, projectFilesystem.getProjectRoot(), outputs);
+        return true;
+      } else if (!isSingleOutputFile(outputs)) {
+        return false;
+      }
+
+      // A single output file is cached as it is, and replaces whatever is at its path, which may
+      // be a directory that an older version of this rule wrote.
+      Path output = projectFilesystem.getFileForRelativePath(outputs.first()).toPath();
+      if (java.nio.file.Files.exists(output, LinkOption.NOFOLLOW_LINKS)) {
+        MoreFiles.deleteRecursively(output);
+      }
+      Files.createParentDirs(output.toFile());
+      java.nio.file.Files.move(artifact.toPath(), output);
+      return true;
+    } finally {
+      java.nio.file.Files.deleteIfExists(artifact.toPath());
+    }
+  }
+
+  private void storeOutputs(ArtifactCache artifactCache, ProjectFilesystem projectFilesystem)
+      throws IOException {
+    ImmutableSortedSet<String> outputs = getPathsToCachedOutputs();
+    if (outputs.isEmpty()) {
+      return;
+    }
+    if (isSingleOutputFile(outputs)) {
+      File output = projectFilesystem.getFileForRelativePath(outputs.first());
+      if (!output.isDirectory()) {
+        artifactCache.store(getRuleKey(), output);
+        return;
+      }
+    }
+
+    // A cache that uploads in the background reads a copy of its own, so the archive is no longer
+    // needed once it has been stored.
+    File archive = projectFilesystem.getFileForRelativePath(getPathToArtifactArchive());
+    Files.createParentDirs(archive);
+    ArtifactArchive.pack(projectFilesystem.getProjectRoot(), outputs, archive);
+    try {
+      artifactCache.store(getRuleKey(), archive);
+    } finally {
+      java.nio.file.Files.deleteIfExists(archive.toPath());
+    }
+  }
+
+  /**
+   * Records that the outputs of this rule have been written, either by its steps or by the
+   * {@link ArtifactCache}, and resolves {@link #buildRuleResult} accordingly.
+   */
+  private void recordBuildRuleCompletedAndPostFinished(BuildContext context, boolean fromCache) {
+    CacheResult cacheResult = fromCache ? CacheResult.HIT : CacheResult.MISS;
+
     // Record that the build rule has built successfully.
     try {
-      recordBuildRuleCompleted(projectFilesystem, context.getArtifactCache(), fromCache);
+      recordBuildRuleCompleted(context.getProjectFilesystem(),
+          context.getArtifactCache(),
+          fromCache);
     } catch (IOException e) {
       // If we failed to record the success, then we are in a potentially bad state where we have a
       // new output but an old RuleKey record.
@@ -296,9 +558,9 @@ public abstract class AbstractCachingBuildRule extends AbstractBuildRule impleme
     recordBuildRuleSuccess(successType);
     context.getEventBus().post(
         BuildEvents.buildRuleFinished(this, BuildRuleStatus.SUCCESS, cacheResult));
-    return;
   }
 
+
   private void recordBuildRuleSuccess(BuildRuleSuccess.Type type) {
     buildRuleResult.set(new BuildRuleSuccess(this, type));
   }
@@ -308,26 +570,12 @@ public abstract class AbstractCachingBuildRule extends AbstractBuildRule impleme
   }
 
   /**
-   * Return this rule's RuleKey from the previous run if it is available on disk.
-   * <p>
-   * Any sort of internal IOException will be masked via {@link Optional#absent()}.
+   * Return this rule's RuleKey from the previous run if it was recorded in the
+   * {@link BuildMetadataStore}.
    */
   @VisibleForTesting
-  Optional<RuleKey> getRuleKeyOnDisk(ProjectFilesystem projectFilesystem) {
-    Optional<File> successFile = projectFilesystem.getFileIfExists(getPathToSuccessFile());
-    if (successFile.isPresent()) {
-      try {
-        String ruleKeyHash = Files.readFirstLine(successFile.get(), Charsets.US_ASCII);
-        return Optional.of(new RuleKey(ruleKeyHash));
-      } catch (IOException|NumberFormatException|NullPointerException e) {
-        // As we transition into a new format for a .success file, old versions of .success files
-        // may be lying around, which could throw any of these exceptions. When this happens, we
-        // treat the .success file the same as if it were missing.
-        return Optional.absent();
-      }
-    } else {
-      return Optional.absent();
-    }
+  Optional<RuleKey> getRuleKeyOnDisk() {
+    return Optional.fromNullable(readRuleKeyFromBuildMetadata(RULE_KEY_METADATA));
   }
 
   /**
@@ -338,6 +586,13 @@ public abstract class AbstractCachingBuildRule extends AbstractBuildRule impleme
       throws IOException, StepFailedException {
     context.logBuildInfo("[BUILDING %s]", getFullyQualifiedName());
 
+    // An output that was fetched from a DirArtifactCache may still be a hardlink to the cache
+    // entry, which the steps must not write through.
+    ProjectFilesystem projectFilesystem = context.getProjectFilesystem();
+    for (String output : getPathsToCachedOutputs()) {
+      MoreFiles.deleteIfHardLinked(projectFilesystem.getFileForRelativePath(output).toPath());
+    }
+
     // Get and run all of the commands.
     List<Step> steps = buildInternal(context);
     StepRunner stepRunner = context.getStepRunner();
@@ -351,6 +606,42 @@ public abstract class AbstractCachingBuildRule extends AbstractBuildRule impleme
    */
   abstract protected List<Step> buildInternal(BuildContext context) throws IOException;
 
+  /**
+   * @return whether this is a {@link DependencyFileRule} whose {@link RuleKey} without deps and
+   *     dependency file both match the ones on disk, in which case its success is recorded.
+   */
+  private boolean isDependencyFileUnchanged(BuildContext context) {
+    if (!(this instanceof DependencyFileRule)) {
+      return false;
+    }
+    DependencyFileRule dependencyFileRule = (DependencyFileRule)this;
+    RuleKey ruleKeyNoDeps = dependencyFileRule.getRuleKeyWithoutDeps();
+    if (ruleKeyNoDeps == null ||
+        !ruleKeyNoDeps.equals(dependencyFileRule.getRuleKeyWithoutDepsOnDisk())) {
+      return false;
+    }
+    ImmutableMap<String, String> dependencyFile = readDependencyFileFromBuildMetadata();
+    if (dependencyFile.isEmpty() ||
+        !dependencyFileRule.isDependencyFileUnchanged(context, dependencyFile)) {
+      return false;
+    }
+
+    // The output is what building this rule now would produce, so it is recorded as such, which
+    // lets the next build match the RuleKey instead of hashing the files again.
+    if (buildMetadataStore != null) {
+      try {
+        buildMetadataStore.put(getFullyQualifiedName(), getBuildMetadata(/* fromCache */ false));
+      } catch (IOException e) {
+        context.logBuildInfo("Could not record the build metadata of %s: %s",
+            getFullyQualifiedName(),
+            e.getMessage());
+      }
+    }
+    context.logBuildInfo("[UNCHANGED DEP FILE %s]", getFullyQualifiedName());
+    recordBuildRuleSuccess(BuildRuleSuccess.Type.MATCHING_DEP_FILE_AND_RULE_KEY_NO_DEPS);
+    return true;
+  }
+
   /**
    * Record that the outputs for the build rule have been written. They may have been written by
    * either:
@@ -366,44 +657,141 @@ public abstract class AbstractCachingBuildRule extends AbstractBuildRule impleme
     // Drop our cached output key, since it probably changed.
     resetOutputKey();
 
-    // Write the success file.
-    writeSuccessFile(projectFilesystem);
+    // Record the keys that the outputs were built with.
+    if (buildMetadataStore != null) {
+      buildMetadataStore.put(getFullyQualifiedName(), getBuildMetadata(fromCache));
+    }
 
     // Store output to cache.
-    String pathToOutputFile = getPathToOutputFile();
-    if (pathToOutputFile != null && !fromCache) {
-      File output = projectFilesystem.getFileForRelativePath(pathToOutputFile);
-      artifactCache.store(getRuleKey(), output);
+    if (!fromCache) {
+      storeOutputs(artifactCache, projectFilesystem);
     }
   }
 
   /**
-   * Write out a file that represents that this build rule succeeded, as well as the inputs that
-   * were used. The last-modified time of this file, and its contents, will be used to determine
-   * whether this rule should be cached.
-   * @throws IOException
+   * @return the metadata that represents that this build rule succeeded, which is compared with
+   *     that of the next build to determine whether this rule has to be built again.
    */
-  private void writeSuccessFile(ProjectFilesystem projectFilesystem) throws IOException {
-    String path = getPathToSuccessFile();
-    projectFilesystem.createParentDirs(path);
-    Iterable<String> lines = getSuccessFileStringsForBuildRules();
-    projectFilesystem.writeLinesToPath(lines, path);
+  @VisibleForTesting
+  ImmutableMap<String, String> getBuildMetadata(boolean fromCache) {
+    ImmutableMap.Builder<String, String> metadata = ImmutableMap.builder();
+    metadata.put(RULE_KEY_METADATA, getRuleKey().toString());
+
+    // An AbiRule also records the keys that it compares against on the next build, as well as the
+    // ABI of its own output so that the rules that depend on it can do the same. The ABI of an
+    // output that was fetched from the ArtifactCache is unknown, so it is left out, which forces
+    // the rules that depend on this one to fall back to their RuleKeys.
+    if (this instanceof AbiRule) {
+      AbiRule abiRule = (AbiRule)this;
+      RuleKey ruleKeyWithoutDeps = abiRule.getRuleKeyWithoutDeps();
+      if (ruleKeyWithoutDeps != null) {
+        metadata.put(RULE_KEY_WITHOUT_DEPS_METADATA, ruleKeyWithoutDeps.toString());
+      }
+      String abiKeyForDeps = abiRule.getAbiKeyForDeps();
+      if (abiKeyForDeps != null) {
+        metadata.put(ABI_KEY_FOR_DEPS_METADATA, abiKeyForDeps);
+      }
+      String abiKey = fromCache ? null : abiRule.getAbiKey();
+      if (abiKey != null) {
+        metadata.put(ABI_KEY_METADATA, abiKey);
+      }
+    }
+
+    // A DependencyFileRule also records the files that it read from its deps, which are unknown
+    // for an output that was fetched from the ArtifactCache.
+    if (this instanceof DependencyFileRule && !fromCache) {
+      ImmutableMap<String, String> dependencyFile =
+          ((DependencyFileRule)this).getDependencyFile();
+      if (dependencyFile.size() <= MAX_DEPENDENCY_FILE_SIZE) {
+        for (Map.Entry<String, String> entry : dependencyFile.entrySet()) {
+          metadata.put(DEPENDENCY_FILE_METADATA_PREFIX + entry.getKey(), entry.getValue());
+        }
+      }
+    }
+
+    return metadata.build();
   }
 
-  private Iterable<String> getSuccessFileStringsForBuildRules() {
-    List<String> lines = Lists.newArrayList();
+  /**
+   * @return the {@link AbiRule#getRuleKeyWithoutDeps()} that was recorded the last time this rule
+   *     was built, or {@code null} if there is none.
+   */
+  @Nullable
+  protected final RuleKey readRuleKeyWithoutDepsFromBuildMetadata() {
+    return readRuleKeyFromBuildMetadata(RULE_KEY_WITHOUT_DEPS_METADATA);
+  }
 
-    // The first line should always be the RuleKey.
-    lines.add(getRuleKey().toString());
+  /**
+   * @return the {@link AbiRule#getAbiKeyForDeps()} that was recorded the last time this rule was
+   *     built, or {@code null} if there is none.
+   */
+  @Nullable
+  protected final String readAbiKeyForDepsFromBuildMetadata() {
+    return readBuildMetadata(ABI_KEY_FOR_DEPS_METADATA);
+  }
 
-    // In the future, rules such as AbiRule will be able to add more lines to this list.
+  /**
+   * @return the {@link AbiRule#getAbiKey()} that was recorded the last time this rule was built, or
+   *     {@code null} if there is none.
+   */
+  @Nullable
+  protected final String readAbiKeyFromBuildMetadata() {
+    return readBuildMetadata(ABI_KEY_METADATA);
+  }
 
-    return lines;
+  /**
+   * @return the {@link DependencyFileRule#getDependencyFile()} that was recorded the last time this
+   *     rule was built, which is empty if there is none.
+   */
+  protected final ImmutableMap<String, String> readDependencyFileFromBuildMetadata() {
+    if (buildMetadataStore == null) {
+      return ImmutableMap.of();
+    }
+    ImmutableMap.Builder<String, String> dependencyFile = ImmutableMap.builder();
+    for (Map.Entry<String, String> entry :
+        buildMetadataStore.get(getFullyQualifiedName()).entrySet()) {
+      if (entry.getKey().startsWith(DEPENDENCY_FILE_METADATA_PREFIX)) {
+        dependencyFile.put(entry.getKey().substring(DEPENDENCY_FILE_METADATA_PREFIX.length()),
+            entry.getValue());
+      }
+    }
+    return dependencyFile.build();
   }
 
-  @VisibleForTesting
-  String getPathToSuccessFile() {
-    return String.format("%s/%s/.success/%s",
+  @Nullable
+  private RuleKey readRuleKeyFromBuildMetadata(String name) {
+    String ruleKey = readBuildMetadata(name);
+    try {
+      return ruleKey == null ? null : new RuleKey(ruleKey);
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  /**
+   * @return the metadata called {@code name} that was recorded the last time this rule was built,
+   *     or {@code null} if there is none.
+   */
+  @Nullable
+  private String readBuildMetadata(String name) {
+    if (buildMetadataStore == null) {
+      return null;
+    }
+    return buildMetadataStore.get(getFullyQualifiedName()).get(name);
+  }
+
+  /**
+   * @return where this rule records the keys that it was built with, which is also available to
+   *     the steps that keep metadata of their own, or {@code null} if nothing is recorded.
+   */
+  @Nullable
+  protected final BuildMetadataStore getBuildMetadataStore() {
+    return buildMetadataStore;
+  }
+
+  /** @return where the outputs of this rule are packed for the {@link ArtifactCache}. */
+  private String getPathToArtifactArchive() {
+    return String.format("%s/%s/.artifact/%s",
         BuckConstant.BIN_DIR,
         getBuildTarget().getBasePath(),
         getBuildTarget().getShortName());
@@ -422,4 +810,16 @@ public abstract class AbstractCachingBuildRule extends AbstractBuildRule impleme
         ImmutableSet.of(pathToDirectory), traverser);
     inputsToConsiderForCachingPurposes.addAll(files);
   }
+
+  /**
+   * Helper function for subclasses that hash the files that {@link #addInputsToSortedSet} finds in
+   * {@code pathToDirectory}, so that their RuleKeys are computed again when a file is added there.
+   * @see RuleKey.Builder#addInputDirectory(String)
+   */
+  protected final void addInputDirectory(RuleKey.Builder builder,
+      @Nullable String pathToDirectory) {
+    if (pathToDirectory != null) {
+      builder.addInputDirectory(pathRelativizer.apply(pathToDirectory));
+    }
+  }
 }
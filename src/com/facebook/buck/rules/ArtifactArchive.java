@@ -0,0 +1,202 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import com.facebook.buck.util.MoreFiles;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Closer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Packs the outputs of a rule, which may be several files and directories, into the single file
+ * that an {@link ArtifactCache} stores for its RuleKey, and unpacks them again.
+ * <p>
+ * The archive is a header followed by one entry per file and directory, in sorted order, each with
+ * its path relative to the project root, whether it is executable and, for a file, its contents.
+ * Nothing else, such as a timestamp or an owner, is recorded, so the same outputs always make the
+ * same archive. The contents are not compressed, as most outputs are jars or other archives that
+ * already are, so unpacking one is no slower than copying its files.
+ */
+final class ArtifactArchive {
+
+  /** Starts every archive, so that it cannot be mistaken for an output that is a single file. */
+  private static final byte[] HEADER = "\0buck-artifact-archive-1\n".getBytes(Charsets.US_ASCII);
+
+  private static final byte END = 0;
+  private static final byte DIRECTORY = 1;
+  private static final byte FILE = 2;
+  private static final byte EXECUTABLE_FILE = 3;
+
+  /** Utility class: do not instantiate. */
+  private ArtifactArchive() {}
+
+  /**
+   * Writes the files and directories at {@code paths}, and everything under those that are
+   * directories, to {@code archive}. The paths that do not exist are left out.
+   * @param paths relative to {@code projectRoot}.
+   */
+  static void pack(File projectRoot, ImmutableSortedSet<String> paths, File archive)
+      throws IOException {
+    Closer closer = Closer.create();
+    try {
+      DataOutputStream output = closer.register(new DataOutputStream(
+          new BufferedOutputStream(new FileOutputStream(archive))));
+      output.write(HEADER);
+      for (String path : paths) {
+        packEntry(projectRoot, path, output);
+      }
+      output.writeByte(END);
+    } catch (Throwable t) {
+      throw closer.rethrow(t);
+    } finally {
+      closer.close();
+    }
+  }
+
+  private static void packEntry(File projectRoot, String path, DataOutputStream output)
+      throws IOException {
+    File file = new File(projectRoot, path);
+    if (file.isDirectory()) {
+      output.writeByte(DIRECTORY);
+      output.writeUTF(path);
+      String[] names = file.list();
+      if (names == null) {
+        throw new IOException("Failed to list " + file);
+      }
+      Arrays.sort(names);
+      for (String name : names) {
+        packEntry(projectRoot, path + '/' + name, output);
+      }
+    } else if (file.isFile()) {
+      output.writeByte(file.canExecute() ? EXECUTABLE_FILE : FILE);
+      output.writeUTF(path);
+      long length = file.length();
+      output.writeLong(length);
+      InputStream input = new FileInputStream(file);
+      try {
+        if (ByteStreams.copy(ByteStreams.limit(input, length), output) != length) {
+          throw new IOException(file + " was truncated while it was being archived");
+        }
+      } finally {
+        input.close();
+      }
+    }
+  }
+
+  /** @return whether {@code file} was written by {@link #pack(File, ImmutableSortedSet, File)}. */
+  static boolean isArchive(File file) throws IOException {
+    if (!file.isFile() || file.length() < HEADER.length) {
+      return false;
+    }
+    DataInputStream input = new DataInputStream(new FileInputStream(file));
+    try {
+      byte[] header = new byte[HEADER.length];
+      input.readFully(header);
+      return Arrays.equals(header, HEADER);
+    } finally {
+      input.close();
+    }
+  }
+
+  /**
+   * Replaces whatever is at {@code paths} with the files and directories in {@code archive}.
+   * @param paths relative to {@code projectRoot}, which must include every path in the archive,
+   *     so that an archive cannot write anywhere else.
+   */
+  static void unpack(File archive, File projectRoot, ImmutableSortedSet<String> paths)
+      throws IOException {
+    for (String path : paths) {
+      Path output = new File(projectRoot, path).toPath();
+      if (Files.exists(output, LinkOption.NOFOLLOW_LINKS)) {
+        MoreFiles.deleteRecursively(output);
+      }
+    }
+
+    Closer closer = Closer.create();
+    try {
+      DataInputStream input = closer.register(new DataInputStream(
+          new BufferedInputStream(new FileInputStream(archive))));
+      byte[] header = new byte[HEADER.length];
+      input.readFully(header);
+      if (!Arrays.equals(header, HEADER)) {
+        throw new IOException(archive + " is not an artifact archive");
+      }
+      for (byte type = input.readByte(); type != END; type = input.readByte()) {
+        String path = input.readUTF();
+        checkPath(path, paths);
+        File file = new File(projectRoot, path);
+        if (type == DIRECTORY) {
+          if (!file.mkdirs() && !file.isDirectory()) {
+            throw new IOException("Failed to create " + file);
+          }
+        } else if (type == FILE || type == EXECUTABLE_FILE) {
+          unpackFile(input, file);
+          if (type == EXECUTABLE_FILE && !file.setExecutable(true, /* ownerOnly */ false)) {
+            throw new IOException("Failed to make " + file + " executable");
+          }
+        } else {
+          throw new IOException(String.format("Unknown entry type %d in %s", type, archive));
+        }
+      }
+    } catch (Throwable t) {
+      throw closer.rethrow(t);
+    } finally {
+      closer.close();
+    }
+  }
+
+  private static void unpackFile(DataInputStream input, File file) throws IOException {
+    long length = input.readLong();
+    com.google.common.io.Files.createParentDirs(file);
+    OutputStream output = new FileOutputStream(file);
+    try {
+      if (ByteStreams.copy(ByteStreams.limit(input, length), output) != length) {
+        throw new EOFException("Truncated artifact archive");
+      }
+    } finally {
+      output.close();
+    }
+  }
+
+  private static void checkPath(String path, ImmutableSortedSet<String> paths) throws IOException {
+    if (!Arrays.asList(path.split("/")).contains("..")) {
+      for (String allowedPath : paths) {
+        if (path.equals(allowedPath) || path.startsWith(allowedPath + '/')) {
+          return;
+        }
+      }
+    }
+    throw new IOException("Artifact archive entry is not an output of the rule: " + path);
+  }
+}
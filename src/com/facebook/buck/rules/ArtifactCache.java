@@ -38,4 +38,15 @@ public interface ArtifactCache {
    * @param output path to read artifact from
    */
   public void store(RuleKey ruleKey, File output);
+
+  /**
+   * Look up the artifacts for several RuleKeys at once, ahead of the calls to
+   * {@link #fetch(RuleKey, File)} for them, so that a cache for which each lookup is a round trip
+   * to a server can answer those calls locally. Caches for which a lookup is cheap should not
+   * iterate over ruleKeys, as each RuleKey may be computed as it is iterated over.  If any internal
+   * errors occur, fail silently and continue execution.
+   *
+   * @param ruleKeys keys that are likely to be fetched soon
+   */
+  public void prefetch(Iterable<RuleKey> ruleKeys);
 }
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+
+/**
+ * Posted once the {@link ArtifactCache} has been asked for the output of a {@link BuildRule}, along
+ * with how long the build of the rule was blocked waiting for the answer.
+ */
+
+public class ArtifactCacheFetched extends BuildEvent {
+
+  private final BuildRule buildRule;
+  private final CacheResult cacheResult;
+  private final long elapsedNanos;
+
+  public ArtifactCacheFetched(BuildRule buildRule, CacheResult cacheResult, long elapsedNanos) {
+    this.buildRule = Preconditions.checkNotNull(buildRule);
+    this.cacheResult = Preconditions.checkNotNull(cacheResult);
+    this.elapsedNanos = elapsedNanos;
+  }
+
+  public BuildRule getBuildRule() {
+    return buildRule;
+  }
+
+  public CacheResult getCacheResult() {
+    return cacheResult;
+  }
+
+  public long getElapsedNanos() {
+    return elapsedNanos;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("ArtifactCacheFetched(%s): %s", buildRule, cacheResult);
+  }
+
+  /** The elapsed time is deliberately excluded so that events can be compared in tests. */
+  @Override
+  public boolean equals(Object o) {
+    if (!(o instanceof ArtifactCacheFetched)) {
+      return false;
+    }
+
+    ArtifactCacheFetched fetched = (ArtifactCacheFetched)o;
+    return Objects.equal(getBuildRule(), fetched.getBuildRule()) &&
+        Objects.equal(getCacheResult(), fetched.getCacheResult());
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hashCode(buildRule, cacheResult);
+  }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Posted once an artifact has been uploaded to the {@link ArtifactCache} in the background, along
+ * with its size, how long it waited for an upload thread and how long the upload took.
+ */
+public class ArtifactCacheStored extends BuildEvent {
+
+  private final RuleKey ruleKey;
+  private final long sizeBytes;
+  private final long queuedNanos;
+  private final long elapsedNanos;
+
+  public ArtifactCacheStored(RuleKey ruleKey, long sizeBytes, long queuedNanos, long elapsedNanos) {
+    this.ruleKey = Preconditions.checkNotNull(ruleKey);
+    this.sizeBytes = sizeBytes;
+    this.queuedNanos = queuedNanos;
+    this.elapsedNanos = elapsedNanos;
+  }
+
+  public RuleKey getRuleKey() {
+    return ruleKey;
+  }
+
+  public long getSizeBytes() {
+    return sizeBytes;
+  }
+
+  public long getQueuedNanos() {
+    return queuedNanos;
+  }
+
+  public long getElapsedNanos() {
+    return elapsedNanos;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("ArtifactCacheStored(%s): %d bytes", ruleKey, sizeBytes);
+  }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+/**
+ * Posted at the end of a build once the uploads to the {@link ArtifactCache} that were queued
+ * during the build have finished, or once the build gave up waiting for them.
+ */
+public class ArtifactCacheUploadsFinished extends BuildEvent {
+
+  private final int numUploads;
+  private final long numBytesUploaded;
+  private final long uploadNanos;
+  private final int numAbandonedUploads;
+
+  public ArtifactCacheUploadsFinished(int numUploads,
+      long numBytesUploaded,
+      long uploadNanos,
+      int numAbandonedUploads) {
+    this.numUploads = numUploads;
+    this.numBytesUploaded = numBytesUploaded;
+    this.uploadNanos = uploadNanos;
+    this.numAbandonedUploads = numAbandonedUploads;
+  }
+
+  /** @return the number of artifacts that were uploaded. */
+  public int getNumUploads() {
+    return numUploads;
+  }
+
+  public long getNumBytesUploaded() {
+    return numBytesUploaded;
+  }
+
+  /** @return the total time spent uploading, summed across the upload threads. */
+  public long getUploadNanos() {
+    return uploadNanos;
+  }
+
+  /** @return the number of uploads that were still queued or running when the build gave up. */
+  public int getNumAbandonedUploads() {
+    return numAbandonedUploads;
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "ArtifactCacheUploadsFinished: %d uploads, %d bytes in %d ms, %d abandoned",
+        numUploads,
+        numBytesUploaded,
+        uploadNanos / 1000000,
+        numAbandonedUploads);
+  }
+}
@@ -0,0 +1,293 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.eventbus.EventBus;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * {@link ArtifactCache} that uploads artifacts to the cache that it wraps on a pool of background
+ * threads, so that a rule counts as built, and its dependents can start, as soon as its output has
+ * been written rather than once the output has been sent to a remote cache.
+ * <p>
+ * Each artifact is copied when it is queued, and the copy is read when it is uploaded, so that the
+ * output may be written again in the meantime. At most {@code maxPendingBytes} of them may be
+ * queued or uploading at once: {@link #store(RuleKey, File)} blocks the build until there is room,
+ * so that a slow cache cannot make the backlog, or the memory used to send it, grow without bound.
+ * An artifact larger than the limit is uploaded once nothing else is pending.
+ * <p>
+ * Each instance is used for a single build, which must call {@link #flush()} once it is done.
+ */
+public class AsyncArtifactCache implements ArtifactCache {
+
+  private static final Logger logger = Logger.getLogger(AsyncArtifactCache.class.getName());
+
+  private static final long UPLOAD_THREAD_KEEP_ALIVE_SECONDS = 10;
+
+  private final ArtifactCache delegate;
+  private final EventBus eventBus;
+  private final ThreadPoolExecutor uploadExecutor;
+  private final long maxPendingBytes;
+  private final long flushTimeoutMillis;
+
+  /** Size of the artifacts that are queued or uploading, guarded by {@code this}. */
+  private long numPendingBytes;
+
+  private final AtomicInteger numPendingUploads;
+  private final AtomicInteger numUploads;
+  private final AtomicLong numBytesUploaded;
+  private final AtomicLong uploadNanos;
+
+  /**
+   * @param numUploadThreads number of threads uploading to {@code delegate} at once, or 0 to upload
+   *     on the thread that stores the artifact.
+   * @param maxPendingBytes total size of the artifacts that may be queued or uploading at once.
+   * @param flushTimeoutMillis how long {@link #flush()} waits for the pending uploads to finish.
+   */
+  public AsyncArtifactCache(ArtifactCache delegate,
+      EventBus eventBus,
+      int numUploadThreads,
+      long maxPendingBytes,
+      long flushTimeoutMillis) {
+    Preconditions.checkArgument(numUploadThreads >= 0);
+    Preconditions.checkArgument(maxPendingBytes > 0);
+    this.delegate = Preconditions.checkNotNull(delegate);
+    this.eventBus = Preconditions.checkNotNull(eventBus);
+    this.maxPendingBytes = maxPendingBytes;
+    this.flushTimeoutMillis = flushTimeoutMillis;
+    this.numPendingUploads = new AtomicInteger();
+    this.numUploads = new AtomicInteger();
+    this.numBytesUploaded = new AtomicLong();
+    this.uploadNanos = new AtomicLong();
+
+    if (numUploadThreads == 0) {
+      this.uploadExecutor = null;
+    } else {
+      // Threads are only started once there is something to upload. They are daemon threads so
+      // that an upload that was abandoned by flush() cannot keep Buck running.
+      this.uploadExecutor = new ThreadPoolExecutor(
+          numUploadThreads,
+          numUploadThreads,
+          UPLOAD_THREAD_KEEP_ALIVE_SECONDS,
+          TimeUnit.SECONDS,
+          new LinkedBlockingQueue<Runnable>(),
+          new ThreadFactoryBuilder()
+              .setNameFormat("artifact-cache-upload-%d")
+              .setDaemon(true)
+              .build());
+      this.uploadExecutor.allowCoreThreadTimeOut(true);
+    }
+  }
+
+  @Override
+  public boolean fetch(RuleKey ruleKey, File output) {
+    return delegate.fetch(ruleKey, output);
+  }
+
+  /**
+   * Queues the artifact to be uploaded, blocking while the artifacts that are already pending take
+   * up {@code maxPendingBytes}. Once {@link #flush()} has been called, the artifact is uploaded
+   * before this method returns.
+   */
+  @Override
+  public void store(RuleKey ruleKey, File output) {
+    long sizeBytes = output.length();
+    if (uploadExecutor == null || uploadExecutor.isShutdown()) {
+      upload(ruleKey, output, sizeBytes, System.nanoTime());
+      return;
+    }
+
+    try {
+      reserve(sizeBytes);
+    } catch (InterruptedException e) {
+      // The build is being torn down, so the artifact is not worth uploading.
+      Thread.currentThread().interrupt();
+      return;
+    }
+
+    // The output may be written again before it is uploaded, such as by the next build in the same
+    // process, after flush() has abandoned this upload, so the upload reads a copy of its own.
+    File privateCopy;
+    try {
+      privateCopy = createPrivateCopy(output);
+    } catch (IOException e) {
+      release(sizeBytes);
+      logger.warning(String.format("Artifact store(%s, %s) error: %s",
+          ruleKey,
+          output.getPath(),
+          e.getMessage()));
+      return;
+    }
+
+    Upload upload = new Upload(ruleKey, privateCopy, sizeBytes, System.nanoTime());
+    numPendingUploads.incrementAndGet();
+    try {
+      uploadExecutor.execute(upload);
+    } catch (RuntimeException e) {
+      // The executor was shut down by flush() in the meantime.
+      upload.run();
+    }
+  }
+
+  /**
+   * Copies {@code output} next to itself, in {@code buck-out} rather than in the temporary
+   * directory of the system, which may be on a smaller filesystem.
+   */
+  private static File createPrivateCopy(File output) throws IOException {
+    File privateCopy = File.createTempFile(output.getName(), ".upload", output.getParentFile());
+    try {
+      Files.copy(output, privateCopy);
+    } catch (IOException e) {
+      deletePrivateCopy(privateCopy);
+      throw e;
+    }
+    return privateCopy;
+  }
+
+  private static void deletePrivateCopy(File privateCopy) {
+    if (!privateCopy.delete() && privateCopy.exists()) {
+      logger.warning("Failed to delete " + privateCopy.getPath());
+    }
+  }
+
+  @Override
+  public void prefetch(Iterable<RuleKey> ruleKeys) {
+    delegate.prefetch(ruleKeys);
+  }
+
+  private void upload(RuleKey ruleKey, File output, long sizeBytes, long queuedNanoTime) {
+    long startNanoTime = System.nanoTime();
+    try {
+      delegate.store(ruleKey, output);
+    } catch (RuntimeException e) {
+      // Caches are meant to fail silently, but a failed upload must not stop the others.
+      logger.warning(String.format("Artifact store(%s, %s) error: %s",
+          ruleKey,
+          output.getPath(),
+          e.getMessage()));
+      return;
+    }
+    long elapsedNanos = System.nanoTime() - startNanoTime;
+    numUploads.incrementAndGet();
+    numBytesUploaded.addAndGet(sizeBytes);
+    uploadNanos.addAndGet(elapsedNanos);
+    eventBus.post(BuildEvents.artifactCacheStored(ruleKey,
+        sizeBytes,
+        startNanoTime - queuedNanoTime,
+        elapsedNanos));
+  }
+
+  private synchronized void reserve(long sizeBytes) throws InterruptedException {
+    while (numPendingBytes > 0 && numPendingBytes + sizeBytes > maxPendingBytes) {
+      wait();
+    }
+    numPendingBytes += sizeBytes;
+  }
+
+  private synchronized void release(long sizeBytes) {
+    numPendingBytes -= sizeBytes;
+    notifyAll();
+  }
+
+  /**
+   * Upload of the private copy of an artifact, which holds its share of {@code maxPendingBytes}
+   * until it has either run or been abandoned by {@link #flush()}.
+   */
+  private class Upload implements Runnable {
+    private final RuleKey ruleKey;
+    private final File privateCopy;
+    private final long sizeBytes;
+    private final long queuedNanoTime;
+
+    private Upload(RuleKey ruleKey, File privateCopy, long sizeBytes, long queuedNanoTime) {
+      this.ruleKey = ruleKey;
+      this.privateCopy = privateCopy;
+      this.sizeBytes = sizeBytes;
+      this.queuedNanoTime = queuedNanoTime;
+    }
+
+    @Override
+    public void run() {
+      try {
+        upload(ruleKey, privateCopy, sizeBytes, queuedNanoTime);
+      } finally {
+        finish();
+      }
+    }
+
+    /**
+     * Releases what this upload holds, once it has run, or instead of running if it is abandoned
+     * before it started.
+     */
+    private void finish() {
+      deletePrivateCopy(privateCopy);
+      numPendingUploads.decrementAndGet();
+      release(sizeBytes);
+    }
+  }
+
+  @VisibleForTesting
+  synchronized long getNumPendingBytes() {
+    return numPendingBytes;
+  }
+
+  /**
+   * Waits for the queued uploads to finish, for at most {@code flushTimeoutMillis}, and posts an
+   * {@link ArtifactCacheUploadsFinished} with the totals for the build. Uploads that have not
+   * finished by then are abandoned.
+   * @return whether every upload finished.
+   */
+  public boolean flush() {
+    boolean isFlushed = true;
+    if (uploadExecutor != null) {
+      uploadExecutor.shutdown();
+      try {
+        isFlushed = uploadExecutor.awaitTermination(flushTimeoutMillis, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        isFlushed = false;
+      }
+    }
+
+    int numAbandonedUploads = 0;
+    if (!isFlushed) {
+      numAbandonedUploads = numPendingUploads.get();
+      // The uploads that are running are interrupted, and release what they hold once they stop,
+      // but those that never started must be released here.
+      for (Runnable upload : uploadExecutor.shutdownNow()) {
+        ((Upload) upload).finish();
+      }
+    }
+    eventBus.post(BuildEvents.artifactCacheUploadsFinished(numUploads.get(),
+        numBytesUploaded.get(),
+        uploadNanos.get(),
+        numAbandonedUploads));
+    return isFlushed;
+  }
+}
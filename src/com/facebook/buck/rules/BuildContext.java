@@ -31,6 +31,7 @@ import com.google.common.util.concurrent.ListeningExecutorService;
 
 import java.io.File;
 import java.util.List;
+import java.util.concurrent.Executor;
 
 import javax.annotation.Nullable;
 
@@ -47,6 +48,9 @@ public class BuildContext {
   private final BuildDependencies buildDependencies;
 
   @Nullable private final Console console;
+  @Nullable private final CriticalPathScheduler criticalPathScheduler;
+  private final boolean isTopDownBuild;
+  private final boolean isIncrementalJavac;
 
   private BuildContext(
       File projectRoot,
@@ -58,7 +62,10 @@ public class BuildContext {
       EventBus events,
       Supplier<String> androidBootclasspathSupplier,
       BuildDependencies buildDependencies,
-      Console console) {
+      Console console,
+      @Nullable CriticalPathScheduler criticalPathScheduler,
+      boolean isTopDownBuild,
+      boolean isIncrementalJavac) {
     this.projectRoot = Preconditions.checkNotNull(projectRoot);
     this.dependencyGraph = Preconditions.checkNotNull(dependencyGraph);
     this.stepRunner = Preconditions.checkNotNull(stepRunner);
@@ -69,6 +76,9 @@ public class BuildContext {
     this.androidBootclasspathSupplier = Preconditions.checkNotNull(androidBootclasspathSupplier);
     this.buildDependencies = Preconditions.checkNotNull(buildDependencies);
     this.console = console;
+    this.criticalPathScheduler = criticalPathScheduler;
+    this.isTopDownBuild = isTopDownBuild;
+    this.isIncrementalJavac = isIncrementalJavac;
   }
 
   public StepRunner getStepRunner() {
@@ -83,6 +93,33 @@ public class BuildContext {
     return stepRunner.getListeningExecutorService();
   }
 
+  /**
+   * @return the {@link Executor} on which {@code rule} should be built once its deps are built.
+   */
+  public Executor getExecutorFor(BuildRule rule) {
+    if (criticalPathScheduler != null) {
+      return criticalPathScheduler.getExecutorFor(rule);
+    } else {
+      return getExecutor();
+    }
+  }
+
+  /**
+   * @return whether each rule should try to fetch its output from the {@link ArtifactCache} before
+   *     building its deps, so that the deps of a rule whose output is cached are never built.
+   */
+  public boolean isTopDownBuild() {
+    return isTopDownBuild;
+  }
+
+  /**
+   * @return whether a java_library that has to be rebuilt should only recompile the sources that
+   *     have changed since it was last built, and those affected by them.
+   */
+  public boolean isIncrementalJavac() {
+    return isIncrementalJavac;
+  }
+
   public JavaPackageFinder getJavaPackageFinder() {
     return javaPackageFinder;
   }
@@ -129,6 +166,9 @@ public class BuildContext {
     private Supplier<String> androidBootclasspathSupplier = null;
     private BuildDependencies buildDependencies = BuildDependencies.getDefault();
     private Console console = null;
+    private CriticalPathScheduler criticalPathScheduler = null;
+    private boolean isTopDownBuild = false;
+    private boolean isIncrementalJavac = false;
 
     private Builder() {}
 
@@ -146,7 +186,10 @@ public class BuildContext {
           events,
           androidBootclasspathSupplier,
           buildDependencies,
-          console);
+          console,
+          criticalPathScheduler,
+          isTopDownBuild,
+          isIncrementalJavac);
     }
 
     public Builder setProjectRoot(File projectRoot) {
@@ -223,5 +266,20 @@ public class BuildContext {
       this.console = console;
       return this;
     }
+
+    public Builder setCriticalPathScheduler(CriticalPathScheduler criticalPathScheduler) {
+      this.criticalPathScheduler = criticalPathScheduler;
+      return this;
+    }
+
+    public Builder setTopDownBuild(boolean isTopDownBuild) {
+      this.isTopDownBuild = isTopDownBuild;
+      return this;
+    }
+
+    public Builder setIncrementalJavac(boolean isIncrementalJavac) {
+      this.isIncrementalJavac = isIncrementalJavac;
+      return this;
+    }
   }
 }
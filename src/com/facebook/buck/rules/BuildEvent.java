@@ -23,15 +23,32 @@ package com.facebook.buck.rules;
 public abstract class BuildEvent {
 
   private final long timestamp;
+  private final long nanoTime;
+  private final long threadId;
 
   public BuildEvent() {
     timestamp = System.currentTimeMillis();
+    nanoTime = System.nanoTime();
+    threadId = Thread.currentThread().getId();
   }
 
   public long getTimestamp() {
     return timestamp;
   }
 
+  /**
+   * @return the value of {@link System#nanoTime()} when this event was created, which is more
+   *     precise than {@link #getTimestamp()} but is only meaningful relative to other events.
+   */
+  public long getNanoTime() {
+    return nanoTime;
+  }
+
+  /** @return the id of the thread that created this event. */
+  public long getThreadId() {
+    return threadId;
+  }
+
   public String toLogMessage() {
     return toString();
   }
@@ -42,4 +42,34 @@ public class BuildEvents {
       CacheResult isCacheHit) {
     return new BuildRuleFinished(rule, success, isCacheHit);
   }
+
+  public static BuildEvent ruleKeyCalculated(BuildRule rule, RuleKey ruleKey, long elapsedNanos) {
+    return new RuleKeyCalculated(rule, ruleKey, elapsedNanos);
+  }
+
+  public static BuildEvent artifactCacheFetched(
+      BuildRule rule,
+      CacheResult cacheResult,
+      long elapsedNanos) {
+    return new ArtifactCacheFetched(rule, cacheResult, elapsedNanos);
+  }
+
+  public static BuildEvent artifactCacheStored(
+      RuleKey ruleKey,
+      long sizeBytes,
+      long queuedNanos,
+      long elapsedNanos) {
+    return new ArtifactCacheStored(ruleKey, sizeBytes, queuedNanos, elapsedNanos);
+  }
+
+  public static BuildEvent artifactCacheUploadsFinished(
+      int numUploads,
+      long numBytesUploaded,
+      long uploadNanos,
+      int numAbandonedUploads) {
+    return new ArtifactCacheUploadsFinished(numUploads,
+        numBytesUploaded,
+        uploadNanos,
+        numAbandonedUploads);
+  }
 }
@@ -0,0 +1,429 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import com.facebook.buck.util.BuckConstant;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Closer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import javax.annotation.Nullable;
+
+/**
+ * Single file in which rules record what they need to know about their outputs from one build to
+ * the next, such as the {@link RuleKey} and ABI keys that they were built with, in place of a small
+ * file per rule.
+ * <p>
+ * The file is a log of records, each of which replaces the metadata of one key, so recording
+ * metadata is a single append. Every record carries its length and a CRC-32 of its contents, so a
+ * record that was only partly written when Buck was killed is detected, and it and everything
+ * after it are dropped. The whole file is read with a single {@link MappedByteBuffer} when the
+ * store is first used, and {@link #refresh()} only reads what other processes have appended since.
+ * Once most of the records have been replaced by later ones, the live ones are rewritten to a new
+ * file that replaces the old one.
+ * <p>
+ * Several processes may share the file, so it is only read, appended to or replaced while a
+ * {@link java.nio.channels.FileLock} on a lock file beside it is held. A process that finds that
+ * the file was replaced by another one reads it again and appends to the new file.
+ * <p>
+ * Like the outputs that it describes, the metadata is only a hint: if it is lost, the rules are
+ * built again.
+ */
+public class BuildMetadataStore {
+
+  private static final Logger logger = Logger.getLogger(BuildMetadataStore.class.getName());
+
+  /** Path of the store, relative to the project root. */
+  public static final String PATH = BuckConstant.BIN_DIR + "/.build_metadata";
+
+  /** Starts the file, so that a file in some other format is never read as records. */
+  private static final byte[] HEADER = "buck-build-metadata-1\n".getBytes(Charsets.US_ASCII);
+
+  /** Each record starts with the length of its contents and their CRC-32. */
+  private static final int RECORD_HEADER_LENGTH = 8;
+
+  /** The file is not compacted until it has at least this many records. */
+  private static final int MIN_RECORDS_TO_COMPACT = 4096;
+
+  /**
+   * A {@link java.nio.channels.FileLock} is held on behalf of the whole JVM, so the stores of this
+   * process also wait for each other, which tests rely on to stand in for other processes.
+   */
+  private static final ReentrantLock IN_PROCESS_LOCK = new ReentrantLock();
+
+  private final Path path;
+  private final Path lockPath;
+  private final ConcurrentMap<String, ImmutableMap<String, String>> entries;
+
+  /** Identifies the file that {@link #entries} were read from, to tell when it is replaced. */
+  @Nullable
+  private Object fileKey;
+
+  /** Number of bytes of the file that are known to hold complete and valid records. */
+  private long validLength;
+
+  /** Number of records that have been read, including those replaced by later ones. */
+  private int numRecords;
+
+  @Nullable
+  private FileChannel appendChannel;
+
+  public BuildMetadataStore(File file) {
+    this.path = file.toPath();
+    this.lockPath = path.resolveSibling(path.getFileName() + ".lock");
+    this.entries = Maps.newConcurrentMap();
+  }
+
+  /**
+   * @return the metadata that was last recorded for {@code key}, which is empty if there is none.
+   */
+  public ImmutableMap<String, String> get(String key) {
+    ImmutableMap<String, String> metadata = entries.get(key);
+    return metadata == null ? ImmutableMap.<String, String>of() : metadata;
+  }
+
+  /**
+   * Replaces the metadata of {@code key}. An empty {@code metadata} removes it.
+   */
+  public void put(String key, ImmutableMap<String, String> metadata) throws IOException {
+    Preconditions.checkNotNull(key);
+    Preconditions.checkNotNull(metadata);
+    byte[] record = encodeRecord(key, metadata);
+    synchronized (this) {
+      Closeable lock = lock();
+      try {
+        FileChannel channel = getAppendChannel();
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        while (buffer.hasRemaining()) {
+          channel.write(buffer);
+        }
+        validLength += record.length;
+        numRecords++;
+        apply(key, metadata);
+      } finally {
+        lock.close();
+      }
+    }
+  }
+
+  /**
+   * Reads the records that have been appended to the file by other processes since it was last
+   * read. If the file has been deleted, such as by {@code buck clean}, or replaced, everything that
+   * was read from it is forgotten.
+   */
+  public synchronized void refresh() {
+    if (!Files.exists(path)) {
+      reset();
+      return;
+    }
+    try {
+      Closeable lock = lock();
+      try {
+        refreshLocked();
+      } finally {
+        lock.close();
+      }
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Failed to read build metadata from " + path, e);
+      reset();
+    }
+  }
+
+  /** Closes the file, which is opened again if more metadata is recorded. */
+  public synchronized void close() throws IOException {
+    if (appendChannel != null) {
+      appendChannel.close();
+      appendChannel = null;
+    }
+  }
+
+  private void refreshLocked() throws IOException {
+    BasicFileAttributes attributes;
+    try {
+      attributes = Files.readAttributes(path, BasicFileAttributes.class);
+    } catch (NoSuchFileException e) {
+      reset();
+      return;
+    }
+
+    if (fileKey == null || !fileKey.equals(attributes.fileKey())) {
+      reset();
+      fileKey = attributes.fileKey();
+    } else if (attributes.size() < validLength) {
+      reset();
+      fileKey = attributes.fileKey();
+    } else if (attributes.size() == validLength) {
+      return;
+    }
+
+    boolean isIncremental = validLength > 0;
+    if (!read(attributes.size()) && isIncremental) {
+      // An invalid record after ones that were read before may be the middle of a record that is
+      // still being written, or the file may have been rewritten in place, so read all of it.
+      reset();
+      fileKey = attributes.fileKey();
+      read(attributes.size());
+    }
+  }
+
+  /**
+   * Reads the records from {@link #validLength} to {@code size} with a single memory map.
+   * @return whether every record up to {@code size} was complete and valid.
+   */
+  private boolean read(long size) throws IOException {
+    if (size > Integer.MAX_VALUE) {
+      throw new IOException(String.format("%s is too large: %d bytes", path, size));
+    }
+    FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+    MappedByteBuffer buffer;
+    try {
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, validLength, size - validLength);
+    } finally {
+      // The mapping remains valid once the channel is closed.
+      channel.close();
+    }
+
+    if (validLength == 0) {
+      byte[] header = new byte[HEADER.length];
+      if (buffer.remaining() < header.length) {
+        return false;
+      }
+      buffer.get(header);
+      if (!Arrays.equals(header, HEADER)) {
+        return false;
+      }
+      validLength = HEADER.length;
+    }
+
+    CRC32 crc = new CRC32();
+    while (buffer.remaining() >= RECORD_HEADER_LENGTH) {
+      int length = buffer.getInt();
+      if (length < 0 || length > buffer.remaining() - 4) {
+        return false;
+      }
+      int checksum = buffer.getInt();
+      byte[] contents = new byte[length];
+      buffer.get(contents);
+      crc.reset();
+      crc.update(contents);
+      if ((int) crc.getValue() != checksum) {
+        return false;
+      }
+      DataInput input = ByteStreams.newDataInput(contents);
+      String key;
+      ImmutableMap.Builder<String, String> metadata = ImmutableMap.builder();
+      try {
+        key = input.readUTF();
+        for (int count = input.readUnsignedShort(); count > 0; count--) {
+          metadata.put(input.readUTF(), input.readUTF());
+        }
+      } catch (IllegalStateException | IOException e) {
+        // ByteArrayDataInput reports a record that ends too soon as an IllegalStateException.
+        return false;
+      }
+      apply(key, metadata.build());
+      validLength += RECORD_HEADER_LENGTH + length;
+      numRecords++;
+    }
+    return !buffer.hasRemaining();
+  }
+
+  private void apply(String key, ImmutableMap<String, String> metadata) {
+    if (metadata.isEmpty()) {
+      entries.remove(key);
+    } else {
+      entries.put(key, metadata);
+    }
+  }
+
+  private void reset() {
+    entries.clear();
+    fileKey = null;
+    validLength = 0;
+    numRecords = 0;
+    if (appendChannel != null) {
+      try {
+        appendChannel.close();
+      } catch (IOException e) {
+        logger.log(Level.FINE, "Failed to close " + path, e);
+      }
+      appendChannel = null;
+    }
+  }
+
+  /**
+   * Locks the file against the other processes that read it, append to it or replace it, until the
+   * returned {@link Closeable} is closed.
+   */
+  private Closeable lock() throws IOException {
+    IN_PROCESS_LOCK.lock();
+    boolean isLocked = false;
+    try {
+      Files.createDirectories(lockPath.getParent());
+      final FileChannel channel = FileChannel.open(lockPath,
+          StandardOpenOption.CREATE,
+          StandardOpenOption.WRITE);
+      try {
+        channel.lock();
+        isLocked = true;
+      } finally {
+        if (!isLocked) {
+          channel.close();
+        }
+      }
+      return new Closeable() {
+        @Override
+        public void close() throws IOException {
+          try {
+            // Closing the channel releases the lock.
+            channel.close();
+          } finally {
+            IN_PROCESS_LOCK.unlock();
+          }
+        }
+      };
+    } finally {
+      if (!isLocked) {
+        IN_PROCESS_LOCK.unlock();
+      }
+    }
+  }
+
+  /**
+   * Reads the records that other processes have appended, drops anything after the last valid
+   * record, such as one that was partly written when Buck was killed, and, when the file is opened,
+   * compacts it if it is mostly made of records that have been replaced. As the lock must be held,
+   * no other process can be in the middle of appending a record that would be mistaken for a
+   * partial one.
+   * @return a channel that appends to the file, which is opened again if another process replaced
+   *     or deleted the file since it was last used.
+   */
+  private FileChannel getAppendChannel() throws IOException {
+    // This closes the channel if the file is no longer the one that it was opened on.
+    refreshLocked();
+    if (appendChannel == null) {
+      if (numRecords >= MIN_RECORDS_TO_COMPACT && numRecords > 2 * entries.size()) {
+        compact();
+      }
+      Files.createDirectories(path.getParent());
+      appendChannel = FileChannel.open(path,
+          StandardOpenOption.CREATE,
+          StandardOpenOption.WRITE,
+          StandardOpenOption.APPEND);
+      fileKey = Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+    }
+    boolean success = false;
+    try {
+      if (appendChannel.size() > validLength) {
+        appendChannel.truncate(validLength);
+      }
+      if (validLength == 0) {
+        appendChannel.write(ByteBuffer.wrap(HEADER));
+        validLength = HEADER.length;
+      }
+      success = true;
+    } finally {
+      if (!success) {
+        close();
+      }
+    }
+    return appendChannel;
+  }
+
+  /** Replaces the file with one that has a single record for each key. */
+  private void compact() throws IOException {
+    close();
+    Path tmpPath = path.resolveSibling(path.getFileName() + ".tmp");
+    long length = HEADER.length;
+    Closer closer = Closer.create();
+    try {
+      FileChannel channel = closer.register(FileChannel.open(tmpPath,
+          StandardOpenOption.CREATE,
+          StandardOpenOption.WRITE,
+          StandardOpenOption.TRUNCATE_EXISTING));
+      channel.write(ByteBuffer.wrap(HEADER));
+      for (Map.Entry<String, ImmutableMap<String, String>> entry : entries.entrySet()) {
+        ByteBuffer record = ByteBuffer.wrap(encodeRecord(entry.getKey(), entry.getValue()));
+        length += record.remaining();
+        while (record.hasRemaining()) {
+          channel.write(record);
+        }
+      }
+    } catch (Throwable t) {
+      throw closer.rethrow(t);
+    } finally {
+      closer.close();
+    }
+    Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    fileKey = Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+    validLength = length;
+    numRecords = entries.size();
+  }
+
+  @VisibleForTesting
+  static byte[] encodeRecord(String key, ImmutableMap<String, String> metadata)
+      throws IOException {
+    Preconditions.checkArgument(metadata.size() <= 0xFFFF, "Too much metadata for %s", key);
+    ByteArrayOutputStream contents = new ByteArrayOutputStream();
+    DataOutputStream output = new DataOutputStream(contents);
+    output.writeUTF(key);
+    output.writeShort(metadata.size());
+    for (Map.Entry<String, String> entry : metadata.entrySet()) {
+      output.writeUTF(entry.getKey());
+      output.writeUTF(entry.getValue());
+    }
+    output.flush();
+
+    CRC32 crc = new CRC32();
+    crc.update(contents.toByteArray());
+    ByteArrayOutputStream record = new ByteArrayOutputStream(
+        RECORD_HEADER_LENGTH + contents.size());
+    DataOutputStream recordOutput = new DataOutputStream(record);
+    recordOutput.writeInt(contents.size());
+    recordOutput.writeInt((int) crc.getValue());
+    contents.writeTo(recordOutput);
+    recordOutput.flush();
+    return record.toByteArray();
+  }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import com.facebook.buck.util.BuckConstant;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+
+/**
+ * Remembers how long each {@link BuildRule} took the last time that it was built locally, so that
+ * a build can estimate how long a rule will take before it runs.
+ * <p>
+ * There is a single instance per process so that, in the daemon, durations survive between builds.
+ * The durations can also be written to disk with {@link #save(File)} and read back with
+ * {@link #load(File)}.
+ */
+public class BuildRuleDurations {
+
+  /** Path, relative to the project root, of the file to which the durations are persisted. */
+  public static final String PATH_TO_DURATIONS_FILE =
+      BuckConstant.BUCK_OUTPUT_DIRECTORY + "/.buildruledurations";
+
+  /** Estimate used for every rule before any rule has been built. */
+  @VisibleForTesting
+  static final long DEFAULT_DURATION_MILLIS = 1L;
+
+  private static final Logger logger = Logger.getLogger(BuildRuleDurations.class.getName());
+
+  private static final BuildRuleDurations instance = new BuildRuleDurations();
+
+  private static final Splitter TAB_SPLITTER = Splitter.on('\t');
+
+  /** Durations in milliseconds, keyed by the fully-qualified name of the rule. */
+  private final ConcurrentMap<String, Long> durations;
+  private volatile boolean isDirty;
+  private boolean isLoaded;
+
+  @VisibleForTesting
+  BuildRuleDurations() {
+    this.durations = Maps.newConcurrentMap();
+  }
+
+  public static BuildRuleDurations getInstance() {
+    return instance;
+  }
+
+  /**
+   * @return how long {@code rule} took the last time it was built locally, if it is known.
+   */
+  public Optional<Long> getDuration(BuildRule rule) {
+    return Optional.fromNullable(durations.get(rule.getFullyQualifiedName()));
+  }
+
+  public void recordDuration(BuildRule rule, long durationMillis) {
+    Preconditions.checkArgument(durationMillis >= 0);
+    Long previousDuration = durations.put(rule.getFullyQualifiedName(), durationMillis);
+    if (previousDuration == null || previousDuration != durationMillis) {
+      isDirty = true;
+    }
+  }
+
+  /**
+   * @return the mean of all known durations, which is a reasonable estimate for a rule that has
+   *     never been built.
+   */
+  public long getMeanDuration() {
+    List<Long> values = Lists.newArrayList(durations.values());
+    if (values.isEmpty()) {
+      return DEFAULT_DURATION_MILLIS;
+    }
+    long sum = 0;
+    for (long value : values) {
+      sum += value;
+    }
+    return Math.max(DEFAULT_DURATION_MILLIS, sum / values.size());
+  }
+
+  /**
+   * Reads durations previously written by {@link #save(File)}. Only the first call has any effect,
+   * as the durations held in memory are always at least as current as those on disk. Lines that
+   * cannot be parsed are ignored.
+   */
+  public synchronized void load(File durationsFile) {
+    Preconditions.checkNotNull(durationsFile);
+    if (isLoaded) {
+      return;
+    }
+    isLoaded = true;
+    if (!durationsFile.isFile()) {
+      return;
+    }
+
+    List<String> lines;
+    try {
+      lines = Files.readLines(durationsFile, Charsets.UTF_8);
+    } catch (IOException e) {
+      // The durations only affect the order in which rules are built, so start from scratch.
+      logger.warning(String.format("Unable to read build rule durations from %s: %s",
+          durationsFile.getPath(),
+          e.getMessage()));
+      return;
+    }
+
+    for (String line : lines) {
+      List<String> parts = Lists.newArrayList(TAB_SPLITTER.split(line));
+      if (parts.size() != 2) {
+        continue;
+      }
+      try {
+        durations.putIfAbsent(parts.get(1), Long.parseLong(parts.get(0)));
+      } catch (NumberFormatException e) {
+        continue;
+      }
+    }
+  }
+
+  /**
+   * Writes the durations to {@code durationsFile}, if any of them changed since they were last
+   * loaded or saved. The file is replaced atomically.
+   */
+  public synchronized void save(File durationsFile) throws IOException {
+    Preconditions.checkNotNull(durationsFile);
+    if (!isDirty) {
+      return;
+    }
+    // Cleared before the durations are read, so that a duration recorded while they are being
+    // written marks them dirty again. If the write fails, they are marked dirty again so that a
+    // later save retries it.
+    isDirty = false;
+    boolean isSaved = false;
+
+    File tmpFile = null;
+    try {
+      Files.createParentDirs(durationsFile);
+      tmpFile = File.createTempFile(durationsFile.getName(), ".tmp",
+          durationsFile.getParentFile());
+      StringBuilder contents = new StringBuilder();
+      for (Map.Entry<String, Long> entry : durations.entrySet()) {
+        contents.append(entry.getValue()).append('\t').append(entry.getKey()).append('\n');
+      }
+      Files.write(contents, tmpFile, Charsets.UTF_8);
+      Files.move(tmpFile, durationsFile);
+      isSaved = true;
+    } finally {
+      if (!isSaved) {
+        isDirty = true;
+      }
+      if (tmpFile != null && tmpFile.exists()) {
+        tmpFile.delete();
+      }
+    }
+  }
+
+  @VisibleForTesting
+  int size() {
+    return durations.size();
+  }
+}
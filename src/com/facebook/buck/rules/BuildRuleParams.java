@@ -24,6 +24,8 @@ import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSortedSet;
 
+import javax.annotation.Nullable;
+
 /**
  * Standard set of parameters that is passed to all build rules.
  */
@@ -34,15 +36,39 @@ public class BuildRuleParams {
   private final ImmutableSortedSet<BuildRule> deps;
   private final ImmutableSet<BuildTargetPattern> visibilityPatterns;
   private final Function<String, String> pathRelativizer;
+  @Nullable private final RuleKeyCache ruleKeyCache;
+  @Nullable private final BuildMetadataStore buildMetadataStore;
 
   public BuildRuleParams(BuildTarget buildTarget,
       ImmutableSortedSet<BuildRule> deps,
       ImmutableSet<BuildTargetPattern> visibilityPatterns,
       Function<String, String> pathRelativizer) {
+    this(buildTarget,
+        deps,
+        visibilityPatterns,
+        pathRelativizer,
+        /* ruleKeyCache */ null,
+        /* buildMetadataStore */ null);
+  }
+
+  /**
+   * @param ruleKeyCache if specified, the rule gets its {@link RuleKey} from this cache when it is
+   *     unchanged since a previous build.
+   * @param buildMetadataStore if specified, where the rule records the keys that it was built with,
+   *     so that it is not built again while they are unchanged.
+   */
+  public BuildRuleParams(BuildTarget buildTarget,
+      ImmutableSortedSet<BuildRule> deps,
+      ImmutableSet<BuildTargetPattern> visibilityPatterns,
+      Function<String, String> pathRelativizer,
+      @Nullable RuleKeyCache ruleKeyCache,
+      @Nullable BuildMetadataStore buildMetadataStore) {
     this.buildTarget = Preconditions.checkNotNull(buildTarget);
     this.deps = Preconditions.checkNotNull(deps);
     this.visibilityPatterns = Preconditions.checkNotNull(visibilityPatterns);
     this.pathRelativizer = Preconditions.checkNotNull(pathRelativizer);
+    this.ruleKeyCache = ruleKeyCache;
+    this.buildMetadataStore = buildMetadataStore;
   }
 
   public BuildTarget getBuildTarget() {
@@ -60,4 +86,14 @@ public class BuildRuleParams {
   public Function<String, String> getPathRelativizer() {
     return pathRelativizer;
   }
+
+  @Nullable
+  public RuleKeyCache getRuleKeyCache() {
+    return ruleKeyCache;
+  }
+
+  @Nullable
+  public BuildMetadataStore getBuildMetadataStore() {
+    return buildMetadataStore;
+  }
 }
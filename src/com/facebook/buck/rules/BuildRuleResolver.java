@@ -33,14 +33,36 @@ import javax.annotation.Nullable;
 public class BuildRuleResolver {
 
   private final Map<BuildTarget, BuildRule> buildRuleIndex;
+  @Nullable private final RuleKeyCache ruleKeyCache;
+  @Nullable private final BuildMetadataStore buildMetadataStore;
 
   public BuildRuleResolver() {
     this(Maps.<BuildTarget, BuildRule>newConcurrentMap());
   }
 
+  /**
+   * @param ruleKeyCache from which the rules that are built get their {@link RuleKey}s when they
+   *     are unchanged since a previous build.
+   * @param buildMetadataStore in which the rules that are built record the keys that they were
+   *     built with.
+   */
+  public BuildRuleResolver(RuleKeyCache ruleKeyCache, BuildMetadataStore buildMetadataStore) {
+    this(Maps.<BuildTarget, BuildRule>newConcurrentMap(),
+        Preconditions.checkNotNull(ruleKeyCache),
+        Preconditions.checkNotNull(buildMetadataStore));
+  }
+
   @VisibleForTesting
   public BuildRuleResolver(Map<BuildTarget, BuildRule> buildRuleIndex) {
+    this(buildRuleIndex, /* ruleKeyCache */ null, /* buildMetadataStore */ null);
+  }
+
+  private BuildRuleResolver(Map<BuildTarget, BuildRule> buildRuleIndex,
+      @Nullable RuleKeyCache ruleKeyCache,
+      @Nullable BuildMetadataStore buildMetadataStore) {
     this.buildRuleIndex = Preconditions.checkNotNull(buildRuleIndex);
+    this.ruleKeyCache = ruleKeyCache;
+    this.buildMetadataStore = buildMetadataStore;
   }
 
   /**
@@ -59,6 +81,16 @@ public class BuildRuleResolver {
     return fullyQualifiedName == null ? null : buildRuleIndex.get(fullyQualifiedName);
   }
 
+  @Nullable
+  public RuleKeyCache getRuleKeyCache() {
+    return ruleKeyCache;
+  }
+
+  @Nullable
+  public BuildMetadataStore getBuildMetadataStore() {
+    return buildMetadataStore;
+  }
+
   public <T extends BuildRule> T buildAndAddToIndex(BuildRuleBuilder<T> builder) {
     T buildRule = builder.build(this);
     buildRuleIndex.put(buildRule.getBuildTarget(), buildRule);
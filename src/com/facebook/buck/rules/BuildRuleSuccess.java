@@ -44,6 +44,12 @@ public class BuildRuleSuccess {
      */
     MATCHING_DEPS_ABI_AND_RULE_KEY_NO_DEPS,
 
+    /**
+     * Computed {@link RuleKey} without deps matches the one on disk <em>AND</em> none of the files
+     * that the rule read from its deps the last time it was built has changed.
+     */
+    MATCHING_DEP_FILE_AND_RULE_KEY_NO_DEPS,
+
     /** Created trivially, such as an {@link InputRule} or {@link ProjectConfigRule}. */
     BY_DEFINITION,
   }
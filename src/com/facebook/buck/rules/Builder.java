@@ -17,6 +17,8 @@
 package com.facebook.buck.rules;
 
 import com.google.common.base.Function;
+import com.google.common.base.Optional;
+import com.google.common.base.Predicate;
 import com.google.common.collect.Iterables;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
@@ -44,4 +46,39 @@ public class Builder {
           }
         }));
   }
+
+  /**
+   * Tells the {@link ArtifactCache} about the rules in {@code rules} that may be fetched from it
+   * during the build, so that it can look them up all at once. A rule is left out if it is not
+   * cached, or if its output is already up to date. A RuleKey only depends on the inputs of the rule
+   * and the RuleKeys of its deps, so it can always be computed before anything is built.
+   * <p>
+   * The RuleKeys are only computed if the cache iterates over them.
+   */
+  public void prefetchFromArtifactCache(Iterable<BuildRule> rules, final BuildContext context) {
+    Iterable<AbstractCachingBuildRule> cachingRules = Iterables.filter(
+        rules,
+        AbstractCachingBuildRule.class);
+    Iterable<AbstractCachingBuildRule> rulesToFetch = Iterables.filter(
+        cachingRules,
+        new Predicate<AbstractCachingBuildRule>() {
+          @Override
+          public boolean apply(AbstractCachingBuildRule rule) {
+            if (rule.getPathToOutputFile() == null) {
+              return false;
+            }
+            RuleKey ruleKey = rule.getRuleKey();
+            Optional<RuleKey> ruleKeyOnDisk = rule.getRuleKeyOnDisk();
+            return !ruleKeyOnDisk.isPresent() || !ruleKeyOnDisk.get().equals(ruleKey);
+          }
+        });
+    context.getArtifactCache().prefetch(Iterables.transform(
+        rulesToFetch,
+        new Function<AbstractCachingBuildRule, RuleKey>() {
+          @Override
+          public RuleKey apply(AbstractCachingBuildRule rule) {
+            return rule.getRuleKey();
+          }
+        }));
+  }
 }
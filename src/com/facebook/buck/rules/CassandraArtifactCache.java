@@ -17,6 +17,18 @@
 package com.facebook.buck.rules;
 
 import com.facebook.buck.util.HumanReadableException;
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Closer;
 import com.google.common.io.Files;
 import com.netflix.astyanax.AstyanaxContext;
 import com.netflix.astyanax.Keyspace;
@@ -31,12 +43,37 @@ import com.netflix.astyanax.impl.AstyanaxConfigurationImpl;
 import com.netflix.astyanax.model.Column;
 import com.netflix.astyanax.model.ColumnFamily;
 import com.netflix.astyanax.model.ColumnList;
+import com.netflix.astyanax.model.Row;
+import com.netflix.astyanax.model.Rows;
 import com.netflix.astyanax.serializers.StringSerializer;
 import com.netflix.astyanax.thrift.ThriftFamilyFactory;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
+import javax.annotation.Nullable;
+
+/**
+ * {@link ArtifactCache} that stores artifacts in a Cassandra cluster.
+ * <p>
+ * Each artifact is split into chunks of at most {@link #CHUNK_SIZE} bytes, which are stored in rows
+ * of their own, followed by a header row, keyed by the RuleKey, with the length and SHA-1 of the
+ * artifact. Artifacts are streamed a few chunks at a time in both directions, so that neither Buck
+ * nor Cassandra has to hold a large artifact in memory, and the SHA-1 is checked as the chunks are
+ * fetched, so a truncated or corrupted artifact is a cache miss.
+ */
 public class CassandraArtifactCache implements ArtifactCache {
   private static final Logger logger = Logger.getLogger(CassandraArtifactCache.class.getName());
   private static final String poolName = "ArtifactCachePool";
@@ -54,16 +91,40 @@ public class CassandraArtifactCache implements ArtifactCache {
       StringSerializer.get());
 
   private static final String artifactColumnFamilyName = "Artifacts";
-  private static final String artifactColumnName = "artifact";
+  private static final String lengthColumnName = "length";
+  private static final String sha1ColumnName = "sha1";
+  private static final String chunkSizeColumnName = "chunk_size";
+  private static final String chunkColumnName = "chunk";
   private static final ColumnFamily<String, String> CF_ARTIFACT = new ColumnFamily<String, String>(
       artifactColumnFamilyName,
       StringSerializer.get(),
       StringSerializer.get());
 
+  /** Maximum size of each chunk of an artifact. */
+  private static final int CHUNK_SIZE = 1024 * 1024;
+
+  /** Number of chunks that are fetched by each query, which bounds the memory used by a fetch. */
+  private static final int CHUNKS_PER_QUERY = 4;
+
+  /** Number of RuleKeys that are looked up by each query of {@link #prefetch(Iterable)}. */
+  private static final int PREFETCH_BATCH_SIZE = 32;
+
   private final Keyspace keyspace;
   private final int ttl;
 
-  public CassandraArtifactCache(String hosts, int port) throws ConnectionException {
+  /** Headers of the artifacts that were prefetched and have yet to be fetched, by RuleKey. */
+  private final ConcurrentMap<String, Header> prefetchedHeaders;
+
+  /** RuleKeys that were prefetched and are not in the cache. */
+  private final Set<String> knownMisses;
+
+  /**
+   * @param maxConnectionsPerHost number of connections that may be open to each Cassandra node, and
+   *     so the number of fetches and stores that may be sent to it at once.
+   */
+  public CassandraArtifactCache(String hosts, int port, int maxConnectionsPerHost)
+      throws ConnectionException {
+    Preconditions.checkArgument(maxConnectionsPerHost > 0);
     AstyanaxContext<Keyspace> context = new AstyanaxContext.Builder()
         .forCluster(clusterName)
         .forKeyspace(keyspaceName)
@@ -75,7 +136,7 @@ public class CassandraArtifactCache implements ArtifactCache {
         .withConnectionPoolConfiguration(new ConnectionPoolConfigurationImpl(poolName)
             .setSeeds(hosts)
             .setPort(port)
-            .setMaxConnsPerHost(1)
+            .setMaxConnsPerHost(maxConnectionsPerHost)
         )
         .withConnectionPoolMonitor(new CountingConnectionPoolMonitor())
         .buildKeyspace(ThriftFamilyFactory.getInstance());
@@ -83,6 +144,8 @@ public class CassandraArtifactCache implements ArtifactCache {
     this.keyspace = context.getClient();
     verifyMagic();
     this.ttl = getTtl();
+    this.prefetchedHeaders = Maps.newConcurrentMap();
+    this.knownMisses = Sets.newSetFromMap(Maps.<String, Boolean>newConcurrentMap());
   }
 
   private void verifyMagic() throws ConnectionException {
@@ -122,23 +185,26 @@ public class CassandraArtifactCache implements ArtifactCache {
     if (!ruleKey.isIdempotent()) {
       return false;
     }
+    String key = ruleKey.toString();
     boolean success = false;
     try {
-      OperationResult<ColumnList<String>> result = keyspace.prepareQuery(CF_ARTIFACT)
-          .getKey(ruleKey.toString())
-          .execute();
-      Column<String> column = result.getResult().getColumnByName(artifactColumnName);
-      if (column != null) {
-        byte[] artifact = column.getByteArrayValue();
-        Files.createParentDirs(output);
-        Files.write(artifact, output);
+      Header header = prefetchedHeaders.remove(key);
+      if (header == null && !knownMisses.contains(key)) {
+        OperationResult<ColumnList<String>> result = keyspace.prepareQuery(CF_ARTIFACT)
+            .getKey(key)
+            .withColumnSlice(lengthColumnName, sha1ColumnName, chunkSizeColumnName)
+            .execute();
+        header = Header.fromColumns(result.getResult());
+      }
+      if (header != null) {
+        success = fetchChunks(key, header, output);
         // Cassandra timestamps use microsecond resolution.
-        if (System.currentTimeMillis() * 1000L - column.getTimestamp() > ttl * 1000000L / 2L) {
+        if (success &&
+            System.currentTimeMillis() * 1000L - header.timestamp > ttl * 1000000L / 2L) {
           // The cache entry has lived for more than half of its total TTL, so rewrite it in order
           // to reset the TTL.
           store(ruleKey, output);
         }
-        success = true;
       }
     } catch (Exception e) {
       logger.warning(String.format("Artifact fetch(%s, %s) error: %s",
@@ -153,17 +219,186 @@ public class CassandraArtifactCache implements ArtifactCache {
     return success;
   }
 
+  /**
+   * Streams the chunks of an artifact to a temporary file next to {@code output}, which replaces
+   * {@code output} only if the chunks add up to the length and SHA-1 in the header.
+   */
+  private boolean fetchChunks(String key, Header header, File output)
+      throws ConnectionException, IOException {
+    Files.createParentDirs(output);
+    File tmp = File.createTempFile(output.getName(), ".tmp", output.getParentFile());
+    boolean isValid = false;
+    try {
+      Hasher hasher = Hashing.sha1().newHasher();
+      long length = 0;
+      Closer closer = Closer.create();
+      try {
+        OutputStream outputStream = closer.register(new FileOutputStream(tmp));
+        List<String> chunkKeys = getChunkKeys(key, header.getNumChunks());
+        for (List<String> batch : Iterables.partition(chunkKeys, CHUNKS_PER_QUERY)) {
+          Rows<String, String> rows = keyspace.prepareQuery(CF_ARTIFACT)
+              .getKeySlice(batch)
+              .withColumnSlice(chunkColumnName)
+              .execute()
+              .getResult();
+          // The rows may come back in any order.
+          Map<String, Column<String>> chunks = Maps.newHashMap();
+          for (Row<String, String> row : rows) {
+            Column<String> chunk = row.getColumns().getColumnByName(chunkColumnName);
+            if (chunk != null) {
+              chunks.put(row.getKey(), chunk);
+            }
+          }
+          for (String chunkKey : batch) {
+            Column<String> chunk = chunks.get(chunkKey);
+            if (chunk == null) {
+              logger.warning(String.format("Artifact chunk %s is missing", chunkKey));
+              return false;
+            }
+            byte[] bytes = chunk.getByteArrayValue();
+            hasher.putBytes(bytes);
+            outputStream.write(bytes);
+            length += bytes.length;
+          }
+        }
+      } catch (Throwable t) {
+        throw closer.rethrow(t, ConnectionException.class);
+      } finally {
+        closer.close();
+      }
+
+      String sha1 = hasher.hash().toString();
+      if (length != header.length || !sha1.equals(header.sha1)) {
+        logger.warning(String.format(
+            "Artifact %s is corrupt: expected %d bytes with SHA-1 %s but got %d bytes with %s",
+            key,
+            header.length,
+            header.sha1,
+            length,
+            sha1));
+        return false;
+      }
+      java.nio.file.Files.move(tmp.toPath(),
+          output.toPath(),
+          StandardCopyOption.REPLACE_EXISTING);
+      isValid = true;
+      return true;
+    } finally {
+      if (!isValid) {
+        java.nio.file.Files.deleteIfExists(tmp.toPath());
+      }
+    }
+  }
+
+  /**
+   * Looks up the headers of the artifacts a batch at a time, with one query per batch rather than
+   * one per RuleKey. The headers that are found are kept until the artifacts are fetched, and the
+   * RuleKeys that are not found are remembered so that fetching them is a miss without a round
+   * trip. Each call replaces what the previous one found, as a daemon prefetches at the start of
+   * every build, and the answers may be out of date by the next one.
+   */
+  @Override
+  public void prefetch(Iterable<RuleKey> ruleKeys) {
+    long startNanos = System.nanoTime();
+    prefetchedHeaders.clear();
+    knownMisses.clear();
+    Iterable<String> keys = ImmutableSet.copyOf(Iterables.transform(
+        Iterables.filter(ruleKeys, new Predicate<RuleKey>() {
+          @Override
+          public boolean apply(RuleKey ruleKey) {
+            return ruleKey.isIdempotent();
+          }
+        }),
+        new Function<RuleKey, String>() {
+          @Override
+          public String apply(RuleKey ruleKey) {
+            return ruleKey.toString();
+          }
+        }));
+
+    int numKeys = 0;
+    int numHits = 0;
+    for (List<String> batch : Iterables.partition(keys, PREFETCH_BATCH_SIZE)) {
+      Rows<String, String> rows;
+      try {
+        rows = keyspace.prepareQuery(CF_ARTIFACT)
+            .getKeySlice(batch)
+            .withColumnSlice(lengthColumnName, sha1ColumnName, chunkSizeColumnName)
+            .execute()
+            .getResult();
+      } catch (Exception e) {
+        // The remaining RuleKeys will be looked up one at a time when they are fetched.
+        logger.warning(String.format("Artifact prefetch error: %s", e.getMessage()));
+        break;
+      }
+
+      Set<String> misses = Sets.newHashSet(batch);
+      for (Row<String, String> row : rows) {
+        Header header = Header.fromColumns(row.getColumns());
+        if (header != null) {
+          misses.remove(row.getKey());
+          prefetchedHeaders.put(row.getKey(), header);
+          numHits++;
+        }
+      }
+      knownMisses.addAll(misses);
+      numKeys += batch.size();
+    }
+
+    logger.info(String.format("Artifact prefetch of %d keys: %d hits in %d ms",
+        numKeys,
+        numHits,
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos)));
+  }
+
+  /**
+   * Streams the artifact to Cassandra one chunk at a time, and then writes its header, so that the
+   * artifact cannot be fetched until all of its chunks have been stored.
+   */
   @Override
   public void store(RuleKey ruleKey, File output) {
     if (!ruleKey.isIdempotent()) {
       return;
     }
-    MutationBatch m = keyspace.prepareMutationBatch();
+    String key = ruleKey.toString();
+
+    // Whatever was prefetched for this RuleKey is now out of date.
+    knownMisses.remove(key);
+    prefetchedHeaders.remove(key);
 
     try {
-      m.withRow(CF_ARTIFACT, ruleKey.toString())
+      Hasher hasher = Hashing.sha1().newHasher();
+      long length = 0;
+      int numChunks = 0;
+      byte[] buffer = new byte[CHUNK_SIZE];
+      Closer closer = Closer.create();
+      try {
+        InputStream inputStream = closer.register(new FileInputStream(output));
+        int chunkLength;
+        // An empty artifact still has a single, empty chunk.
+        while ((chunkLength = ByteStreams.read(inputStream, buffer, 0, CHUNK_SIZE)) > 0 ||
+            numChunks == 0) {
+          hasher.putBytes(buffer, 0, chunkLength);
+          MutationBatch m = keyspace.prepareMutationBatch();
+          m.withRow(CF_ARTIFACT, getChunkKey(key, numChunks))
+              .setDefaultTtl(ttl)
+              .putColumn(chunkColumnName, ByteBuffer.wrap(buffer, 0, chunkLength));
+          m.execute();
+          length += chunkLength;
+          numChunks++;
+        }
+      } catch (Throwable t) {
+        throw closer.rethrow(t, ConnectionException.class);
+      } finally {
+        closer.close();
+      }
+
+      MutationBatch m = keyspace.prepareMutationBatch();
+      m.withRow(CF_ARTIFACT, key)
           .setDefaultTtl(ttl)
-          .putColumn(artifactColumnName, Files.toByteArray(output));
+          .putColumn(lengthColumnName, length)
+          .putColumn(chunkSizeColumnName, (long) CHUNK_SIZE)
+          .putColumn(sha1ColumnName, hasher.hash().toString());
       m.execute();
     } catch (Exception e) {
       logger.warning(String.format("Artifact store(%s, %s) error: %s",
@@ -172,4 +407,56 @@ public class CassandraArtifactCache implements ArtifactCache {
           e.getMessage()));
     }
   }
+
+  private static String getChunkKey(String key, int index) {
+    return key + ":" + index;
+  }
+
+  private static List<String> getChunkKeys(String key, int numChunks) {
+    ImmutableList.Builder<String> chunkKeys = ImmutableList.builder();
+    for (int i = 0; i < numChunks; i++) {
+      chunkKeys.add(getChunkKey(key, i));
+    }
+    return chunkKeys.build();
+  }
+
+  /** The header row of an artifact: how long it is, its SHA-1, and when it was stored. */
+  private static class Header {
+    private final long length;
+    private final String sha1;
+    private final long chunkSize;
+
+    /** In microseconds, as Cassandra timestamps are. */
+    private final long timestamp;
+
+    private Header(long length, String sha1, long chunkSize, long timestamp) {
+      this.length = length;
+      this.sha1 = sha1;
+      this.chunkSize = chunkSize;
+      this.timestamp = timestamp;
+    }
+
+    int getNumChunks() {
+      // An empty artifact still has a single, empty chunk.
+      return (int) Math.max(1, (length + chunkSize - 1) / chunkSize);
+    }
+
+    /**
+     * @return the header in {@code columns}, or null if there is none, which is also the case for
+     *     an artifact that was stored in one piece by an older version of Buck.
+     */
+    @Nullable
+    static Header fromColumns(ColumnList<String> columns) {
+      Column<String> length = columns.getColumnByName(lengthColumnName);
+      Column<String> sha1 = columns.getColumnByName(sha1ColumnName);
+      Column<String> chunkSize = columns.getColumnByName(chunkSizeColumnName);
+      if (length == null || sha1 == null || chunkSize == null || chunkSize.getLongValue() <= 0) {
+        return null;
+      }
+      return new Header(length.getLongValue(),
+          sha1.getStringValue(),
+          chunkSize.getLongValue(),
+          length.getTimestamp());
+    }
+  }
 }
@@ -0,0 +1,295 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import com.facebook.buck.graph.TopologicalSort;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Predicates;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.eventbus.Subscribe;
+
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides the order in which {@link BuildRule}s whose deps have been built get to run.
+ * <p>
+ * Each rule is given a priority that estimates the length of the longest path from the rule to one
+ * of the rules that were requested, where the length of each rule on the path is how long it took
+ * to build the last time, according to {@link BuildRuleDurations}. When more rules are ready than
+ * there are threads to run them, the rules with the longest remaining path run first, so that long
+ * chains of rules, such as a java_library followed by an android_binary, are not delayed by short
+ * leaf rules.
+ * <p>
+ * This is also registered with the {@link com.google.common.eventbus.EventBus} for the build so
+ * that it can record how long each rule took, both to improve the estimates for the next build and
+ * to find the critical path of the current build.
+ */
+public class CriticalPathScheduler {
+
+  private final DependencyGraph graph;
+  private final BuildRuleDurations buildRuleDurations;
+  private final Executor delegate;
+  private final int maxConcurrency;
+  private final boolean isPrioritized;
+  private final Supplier<ImmutableMap<BuildRule, Long>> priorities;
+
+  /** Tasks that are ready to run but are waiting for one of the other tasks to finish. */
+  private final PriorityQueue<PrioritizedRunnable> readyTasks;
+  private int numRunningTasks;
+
+  /** Used to break ties between tasks with the same priority in the order they were submitted. */
+  private final AtomicLong nextSequenceNumber;
+
+  private final ConcurrentMap<BuildRule, BuildRuleStarted> startEvents;
+  private final ConcurrentMap<BuildRule, BuildRuleFinished> finishEvents;
+  private final ConcurrentMap<BuildRule, Long> elapsedTimes;
+
+  /**
+   * @param delegate executor on which the rules are run.
+   * @param maxConcurrency maximum number of rules to run on {@code delegate} at once, which should
+   *     be the number of threads that it has.
+   * @param isPrioritized if {@code false}, rules are passed straight to {@code delegate} in the
+   *     order in which they become ready, but durations are still recorded.
+   */
+  public CriticalPathScheduler(DependencyGraph graph,
+      BuildRuleDurations buildRuleDurations,
+      Executor delegate,
+      int maxConcurrency,
+      boolean isPrioritized) {
+    Preconditions.checkArgument(maxConcurrency > 0);
+    this.graph = Preconditions.checkNotNull(graph);
+    this.buildRuleDurations = Preconditions.checkNotNull(buildRuleDurations);
+    this.delegate = Preconditions.checkNotNull(delegate);
+    this.maxConcurrency = maxConcurrency;
+    this.isPrioritized = isPrioritized;
+    // The priorities are computed when the first rule is scheduled rather than here, so that the
+    // durations from previous builds can be loaded after this object is created.
+    this.priorities = Suppliers.memoize(new Supplier<ImmutableMap<BuildRule, Long>>() {
+      @Override
+      public ImmutableMap<BuildRule, Long> get() {
+        return computePriorities(
+            CriticalPathScheduler.this.graph,
+            CriticalPathScheduler.this.buildRuleDurations);
+      }
+    });
+    this.readyTasks = new PriorityQueue<>();
+    this.nextSequenceNumber = new AtomicLong();
+    this.startEvents = Maps.newConcurrentMap();
+    this.finishEvents = Maps.newConcurrentMap();
+    this.elapsedTimes = Maps.newConcurrentMap();
+  }
+
+  /**
+   * The priority of a rule is its estimated duration plus the highest priority of the rules that
+   * depend on it. Visiting the rules with the requested rules first ensures that the priorities of
+   * the rules that depend on a rule are known before it is visited.
+   */
+  private static ImmutableMap<BuildRule, Long> computePriorities(DependencyGraph graph,
+      BuildRuleDurations buildRuleDurations) {
+    long defaultDuration = buildRuleDurations.getMeanDuration();
+    Map<BuildRule, Long> priorities = Maps.newHashMap();
+    ImmutableList<BuildRule> leavesFirst =
+        TopologicalSort.sort(graph, Predicates.<BuildRule>alwaysTrue());
+    for (BuildRule rule : leavesFirst.reverse()) {
+      long maxPriorityOfDependents = 0;
+      for (BuildRule dependent : graph.getIncomingNodesFor(rule)) {
+        maxPriorityOfDependents = Math.max(maxPriorityOfDependents, priorities.get(dependent));
+      }
+      long duration = buildRuleDurations.getDuration(rule).or(defaultDuration);
+      priorities.put(rule, duration + maxPriorityOfDependents);
+    }
+    return ImmutableMap.copyOf(priorities);
+  }
+
+  @VisibleForTesting
+  long getPriority(BuildRule rule) {
+    Long priority = priorities.get().get(rule);
+    return priority == null ? 0 : priority;
+  }
+
+  /**
+   * @return an {@link Executor} that runs the work for {@code rule} with the priority of the rule.
+   */
+  public Executor getExecutorFor(BuildRule rule) {
+    if (!isPrioritized) {
+      return delegate;
+    }
+
+    final long priority = getPriority(rule);
+    return new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        PrioritizedRunnable task = new PrioritizedRunnable(
+            Preconditions.checkNotNull(command),
+            priority,
+            nextSequenceNumber.getAndIncrement());
+        synchronized (readyTasks) {
+          readyTasks.add(task);
+        }
+        dispatch();
+      }
+    };
+  }
+
+  /**
+   * Hands the ready tasks with the highest priorities to {@link #delegate} until
+   * {@link #maxConcurrency} tasks are running.
+   */
+  private void dispatch() {
+    List<PrioritizedRunnable> tasksToRun = Lists.newArrayList();
+    synchronized (readyTasks) {
+      while (numRunningTasks < maxConcurrency && !readyTasks.isEmpty()) {
+        tasksToRun.add(readyTasks.poll());
+        numRunningTasks++;
+      }
+    }
+
+    for (final PrioritizedRunnable task : tasksToRun) {
+      delegate.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            task.runnable.run();
+          } finally {
+            synchronized (readyTasks) {
+              numRunningTasks--;
+            }
+            dispatch();
+          }
+        }
+      });
+    }
+  }
+
+  @Subscribe
+  public void ruleStarted(BuildRuleStarted started) {
+    startEvents.put(started.getBuildRule(), started);
+    recordElapsedTimeIfFinished(started.getBuildRule());
+  }
+
+  @Subscribe
+  public void ruleFinished(BuildRuleFinished finished) {
+    finishEvents.put(finished.getBuildRule(), finished);
+    recordElapsedTimeIfFinished(finished.getBuildRule());
+  }
+
+  /**
+   * Events may be delivered in any order by an asynchronous event bus, so the elapsed time is
+   * recorded once both the start and finish events of a rule have been received.
+   */
+  private void recordElapsedTimeIfFinished(BuildRule rule) {
+    BuildRuleStarted started = startEvents.get(rule);
+    BuildRuleFinished finished = finishEvents.get(rule);
+    if (started == null || finished == null || elapsedTimes.containsKey(rule)) {
+      return;
+    }
+
+    long elapsedTime = Math.max(0, finished.getTimestamp() - started.getTimestamp());
+    if (elapsedTimes.putIfAbsent(rule, elapsedTime) != null) {
+      return;
+    }
+
+    // Only a rule that was built locally says anything about how long it will take to build it
+    // again: a cache hit is no indication of how long a cache miss would take.
+    if (finished.getStatus() == BuildRuleStatus.SUCCESS
+        && finished.getCacheResult() == CacheResult.MISS) {
+      buildRuleDurations.recordDuration(rule, elapsedTime);
+    }
+  }
+
+  /**
+   * @return how long {@code rule} took to build in the current build, which is zero if it did not
+   *     need to be built.
+   */
+  public long getElapsedTime(BuildRule rule) {
+    return Optional.fromNullable(elapsedTimes.get(rule)).or(0L);
+  }
+
+  /**
+   * @return the chain of rules, from a rule towards the requested rules down to a rule that has no
+   *     deps, for which the sum of the time that each rule took to build in the current build is
+   *     the greatest. This is the lower bound on how long the build could have taken, no
+   *     matter how many threads were available.
+   */
+  public ImmutableList<BuildRule> getCriticalPath() {
+    // Visiting the deps of a rule before the rule itself means that, for each rule, the longest
+    // chain below it is known by the time the rule is visited.
+    Map<BuildRule, Long> longestPathLengths = Maps.newHashMap();
+    Map<BuildRule, BuildRule> nextRuleOnLongestPath = Maps.newHashMap();
+    BuildRule start = null;
+    long longestPathLength = -1;
+    for (BuildRule rule : TopologicalSort.sort(graph, Predicates.<BuildRule>alwaysTrue())) {
+      long longestPathLengthOfDeps = 0;
+      for (BuildRule dep : graph.getOutgoingNodesFor(rule)) {
+        long length = longestPathLengths.get(dep);
+        if (length > longestPathLengthOfDeps || !nextRuleOnLongestPath.containsKey(rule)) {
+          longestPathLengthOfDeps = length;
+          nextRuleOnLongestPath.put(rule, dep);
+        }
+      }
+      long length = getElapsedTime(rule) + longestPathLengthOfDeps;
+      longestPathLengths.put(rule, length);
+      // Prefer the rule closest to the requested rules when there is a tie.
+      if (length >= longestPathLength) {
+        longestPathLength = length;
+        start = rule;
+      }
+    }
+
+    ImmutableList.Builder<BuildRule> criticalPath = ImmutableList.builder();
+    for (BuildRule rule = start; rule != null; rule = nextRuleOnLongestPath.get(rule)) {
+      criticalPath.add(rule);
+    }
+    return criticalPath.build();
+  }
+
+  private static class PrioritizedRunnable implements Comparable<PrioritizedRunnable> {
+    private final Runnable runnable;
+    private final long priority;
+    private final long sequenceNumber;
+
+    private PrioritizedRunnable(Runnable runnable, long priority, long sequenceNumber) {
+      this.runnable = runnable;
+      this.priority = priority;
+      this.sequenceNumber = sequenceNumber;
+    }
+
+    /** Orders tasks by descending priority, then by the order in which they were submitted. */
+    @Override
+    public int compareTo(PrioritizedRunnable that) {
+      if (this.priority != that.priority) {
+        return this.priority > that.priority ? -1 : 1;
+      }
+      if (this.sequenceNumber != that.sequenceNumber) {
+        return this.sequenceNumber < that.sequenceNumber ? -1 : 1;
+      }
+      return 0;
+    }
+  }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * {@link AbiRule} that knows which of the files produced by its deps its build actually read, so
+ * that it can avoid rebuilding itself when none of those files has changed, even if the ABI of its
+ * deps has.
+ */
+public interface DependencyFileRule extends AbiRule {
+
+  /**
+   * @return a hash of each of the files from its deps that the build of this rule read, keyed by a
+   *     name that {@link #isDependencyFileUnchanged(BuildContext, ImmutableMap)} understands. This
+   *     is empty if they are not known, such as when the output was fetched from an
+   *     {@link ArtifactCache}.
+   */
+  public ImmutableMap<String, String> getDependencyFile();
+
+  /**
+   * @param dependencyFile the result of {@link #getDependencyFile()} the last time that this rule
+   *     was built.
+   * @return whether each of the files in {@code dependencyFile} still has the same hash, so that
+   *     building this rule again would produce the same output.
+   */
+  public boolean isDependencyFileUnchanged(BuildContext context,
+      ImmutableMap<String, String> dependencyFile);
+}
@@ -16,20 +16,86 @@
 
 package com.facebook.buck.rules;
 
+import com.facebook.buck.util.MoreFiles;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.io.Closer;
 import com.google.common.io.Files;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystemException;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Logger;
 
+/**
+ * {@link ArtifactCache} that keeps each artifact in a file named after its {@link RuleKey}.
+ * <p>
+ * Artifacts are fetched by hardlinking the entry to the output, so a hit costs no copy. The entries
+ * are read-only so that they are never written through such a link, and an output that is still
+ * linked to an entry is deleted when its rule is about to be built again. If the output is on
+ * another filesystem, the entry is copied instead.
+ * <p>
+ * If a maximum size is given, the least recently fetched or stored entries are evicted once the
+ * cache grows beyond it. Several processes may share the same directory: only one of them evicts
+ * entries at a time, and an entry that is evicted while it is being fetched is either fully
+ * fetched or a miss.
+ */
 public class DirArtifactCache implements ArtifactCache {
   private final static Logger logger = Logger.getLogger(DirArtifactCache.class.getName());
 
+  /** File that the process that is evicting entries holds a lock on. */
+  @VisibleForTesting
+  static final String EVICTION_LOCK_FILE_NAME = ".eviction.lock";
+
+  private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+  /** Temporary files older than this were left behind by a process that died while storing. */
+  private static final long STALE_TEMP_FILE_AGE_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+  /** Once the cache is too large, entries are evicted until it is this fraction of its maximum. */
+  private static final double EVICTION_TARGET_RATIO = 0.9;
+
   private final File cacheDir;
+  private final Optional<Long> maxCacheSizeBytes;
+
+  /** Cleared the first time the filesystem refuses to create a hardlink, such as across devices. */
+  private final AtomicBoolean isHardLinkSupported;
+
+  /** Bytes stored since the size of the cache was last checked, or -1 if it has not been yet. */
+  private long bytesStoredSinceSizeCheck;
 
   public DirArtifactCache(File cacheDir) throws IOException {
+    this(cacheDir, Optional.<Long>absent());
+  }
+
+  /**
+   * @param maxCacheSizeBytes if present, the size beyond which the least recently used entries are
+   *     evicted.
+   */
+  public DirArtifactCache(File cacheDir, Optional<Long> maxCacheSizeBytes) throws IOException {
     this.cacheDir = Preconditions.checkNotNull(cacheDir);
+    this.maxCacheSizeBytes = Preconditions.checkNotNull(maxCacheSizeBytes);
+    this.isHardLinkSupported = new AtomicBoolean(true);
+    this.bytesStoredSinceSizeCheck = -1;
     Files.createParentDirs(cacheDir);
     if (!cacheDir.mkdir() && !cacheDir.exists()) {
       throw new IOException(String.format("Failed to create cache directory: \"%s\"",
@@ -39,22 +105,29 @@ public class DirArtifactCache implements ArtifactCache {
 
   @Override
   public boolean fetch(RuleKey ruleKey, File output) {
-    if (!ruleKey.isIdempotent()) {
-      return false;
-    }
+    Path outputPath = output.toPath();
     boolean success = false;
-    File cacheEntry = new File(cacheDir, ruleKey.toString());
-    if (cacheEntry.exists()) {
-      try {
+    try {
+      // Whether or not this is a hit, the output must not be written through to an entry.
+      MoreFiles.deleteIfHardLinked(outputPath);
+
+      Path cacheEntry = new File(cacheDir, ruleKey.toString()).toPath();
+      if (ruleKey.isIdempotent() && java.nio.file.Files.exists(cacheEntry)) {
+        // Record the access first, so that the entry is not the next to be evicted.
+        touch(cacheEntry);
         Files.createParentDirs(output);
-        Files.copy(cacheEntry, output);
+        java.nio.file.Files.deleteIfExists(outputPath);
+        linkOrCopy(cacheEntry, outputPath);
         success = true;
-      } catch (IOException e) {
-        logger.warning(String.format("Artifact fetch(%s, %s) error: %s",
-            ruleKey,
-            output.getPath(),
-            e.getMessage()));
       }
+    } catch (NoSuchFileException e) {
+      // The entry was evicted by another process.
+      success = false;
+    } catch (IOException e) {
+      logger.warning(String.format("Artifact fetch(%s, %s) error: %s",
+          ruleKey,
+          output.getPath(),
+          e.getMessage()));
     }
     logger.info(String.format("Artifact fetch(%s, %s) cache %s",
         ruleKey,
@@ -74,9 +147,15 @@ public class DirArtifactCache implements ArtifactCache {
       // Write to a temporary file and move the file to its final location atomically to protect
       // against partial artifacts (whether due to buck interruption or filesystem failure) posing
       // as valid artifacts during subsequent buck runs.
-      tmpCacheEntry = File.createTempFile(ruleKey.toString(), ".tmp", cacheDir);
-      Files.copy(output, tmpCacheEntry);
-      Files.move(tmpCacheEntry, cacheEntry);
+      tmpCacheEntry = File.createTempFile(ruleKey.toString(), TEMP_FILE_SUFFIX, cacheDir);
+      copy(output.toPath(), tmpCacheEntry.toPath());
+      if (!tmpCacheEntry.setReadOnly()) {
+        throw new IOException("Failed to make the entry read-only: " + tmpCacheEntry);
+      }
+      java.nio.file.Files.move(tmpCacheEntry.toPath(),
+          cacheEntry.toPath(),
+          StandardCopyOption.ATOMIC_MOVE,
+          StandardCopyOption.REPLACE_EXISTING);
     } catch (IOException e) {
       logger.warning(String.format("Artifact store(%s, %s) error: %s",
           ruleKey,
@@ -85,6 +164,187 @@ public class DirArtifactCache implements ArtifactCache {
       if (tmpCacheEntry != null) {
         tmpCacheEntry.delete();
       }
+      return;
+    }
+
+    if (maxCacheSizeBytes.isPresent()) {
+      evictIfNeeded(cacheEntry.length());
+    }
+  }
+
+  @Override
+  public void prefetch(Iterable<RuleKey> ruleKeys) {
+    // Looking up an entry is no slower than looking up whether it exists.
+  }
+
+  /**
+   * Checks the size of the cache the first time that an entry is stored, and then each time that
+   * another tenth of its maximum size has been stored, rather than after every store, as it takes
+   * a listing of the whole cache.
+   */
+  private synchronized void evictIfNeeded(long bytesStored) {
+    long maxSize = maxCacheSizeBytes.get();
+    if (bytesStoredSinceSizeCheck >= 0) {
+      bytesStoredSinceSizeCheck += bytesStored;
+      if (bytesStoredSinceSizeCheck < maxSize / 10) {
+        return;
+      }
+    }
+    bytesStoredSinceSizeCheck = 0;
+
+    try {
+      FileChannel lockChannel = FileChannel.open(
+          new File(cacheDir, EVICTION_LOCK_FILE_NAME).toPath(),
+          StandardOpenOption.CREATE,
+          StandardOpenOption.WRITE);
+      try {
+        FileLock lock = lockChannel.tryLock();
+        if (lock == null) {
+          // Another process is evicting entries.
+          return;
+        }
+        try {
+          evictLeastRecentlyUsedEntries(maxSize);
+        } finally {
+          lock.release();
+        }
+      } catch (OverlappingFileLockException e) {
+        // Another instance in this process is evicting entries.
+        return;
+      } finally {
+        lockChannel.close();
+      }
+    } catch (IOException e) {
+      logger.warning(String.format("Artifact cache eviction error: %s", e.getMessage()));
+    }
+  }
+
+  /**
+   * Deletes the entries that were least recently fetched or stored, as recorded by their
+   * last-modified times, until the cache is no larger than {@link #EVICTION_TARGET_RATIO} of
+   * {@code maxSize}. Must be called with the eviction lock held.
+   */
+  @VisibleForTesting
+  void evictLeastRecentlyUsedEntries(long maxSize) throws IOException {
+    long now = System.currentTimeMillis();
+    List<CacheEntry> entries = Lists.newArrayList();
+    long totalSize = 0;
+    DirectoryStream<Path> files = java.nio.file.Files.newDirectoryStream(cacheDir.toPath());
+    try {
+      for (Path file : files) {
+        String name = file.getFileName().toString();
+        BasicFileAttributes attributes;
+        try {
+          attributes = java.nio.file.Files.readAttributes(file,
+              BasicFileAttributes.class,
+              LinkOption.NOFOLLOW_LINKS);
+        } catch (NoSuchFileException e) {
+          continue;
+        }
+        if (!attributes.isRegularFile() || name.equals(EVICTION_LOCK_FILE_NAME)) {
+          continue;
+        }
+
+        long lastModifiedTime = attributes.lastModifiedTime().toMillis();
+        if (name.endsWith(TEMP_FILE_SUFFIX)) {
+          if (now - lastModifiedTime > STALE_TEMP_FILE_AGE_MILLIS) {
+            java.nio.file.Files.deleteIfExists(file);
+          }
+          continue;
+        }
+        entries.add(new CacheEntry(file, attributes.size(), lastModifiedTime));
+        totalSize += attributes.size();
+      }
+    } finally {
+      files.close();
+    }
+
+    if (totalSize <= maxSize) {
+      return;
+    }
+
+    Collections.sort(entries, CacheEntry.BY_LAST_MODIFIED_TIME);
+    long targetSize = (long) (maxSize * EVICTION_TARGET_RATIO);
+    int numEvicted = 0;
+    for (CacheEntry entry : entries) {
+      if (totalSize <= targetSize) {
+        break;
+      }
+      java.nio.file.Files.deleteIfExists(entry.path);
+      totalSize -= entry.size;
+      numEvicted++;
+    }
+    logger.info(String.format("Evicted %d artifacts from %s, which now holds %d bytes",
+        numEvicted,
+        cacheDir.getPath(),
+        totalSize));
+  }
+
+  private void linkOrCopy(Path cacheEntry, Path output) throws IOException {
+    if (isHardLinkSupported.get()) {
+      try {
+        java.nio.file.Files.createLink(output, cacheEntry);
+        return;
+      } catch (NoSuchFileException e) {
+        throw e;
+      } catch (UnsupportedOperationException | FileSystemException e) {
+        logger.info(String.format("Cannot hardlink %s to %s, so artifacts will be copied: %s",
+            cacheEntry,
+            output,
+            e.getMessage()));
+        isHardLinkSupported.set(false);
+      }
+    }
+    copy(cacheEntry, output);
+  }
+
+  /** Copies {@code from} to {@code to} without moving the contents through the Java heap. */
+  private static void copy(Path from, Path to) throws IOException {
+    Closer closer = Closer.create();
+    try {
+      FileChannel input = closer.register(FileChannel.open(from, StandardOpenOption.READ));
+      FileChannel output = closer.register(FileChannel.open(to,
+          StandardOpenOption.CREATE,
+          StandardOpenOption.WRITE,
+          StandardOpenOption.TRUNCATE_EXISTING));
+      long size = input.size();
+      long position = 0;
+      while (position < size) {
+        position += input.transferTo(position, size - position, output);
+      }
+    } catch (Throwable t) {
+      throw closer.rethrow(t);
+    } finally {
+      closer.close();
+    }
+  }
+
+  private static void touch(Path path) throws IOException {
+    try {
+      java.nio.file.Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+    } catch (AccessDeniedException e) {
+      // The entry was stored by another user, so its accesses cannot be recorded.
+      return;
+    }
+  }
+
+  private static class CacheEntry {
+    private static final Comparator<CacheEntry> BY_LAST_MODIFIED_TIME =
+        new Comparator<CacheEntry>() {
+          @Override
+          public int compare(CacheEntry a, CacheEntry b) {
+            return Long.compare(a.lastModifiedTime, b.lastModifiedTime);
+          }
+        };
+
+    private final Path path;
+    private final long size;
+    private final long lastModifiedTime;
+
+    CacheEntry(Path path, long size, long lastModifiedTime) {
+      this.path = path;
+      this.size = size;
+      this.lastModifiedTime = lastModifiedTime;
     }
   }
 }
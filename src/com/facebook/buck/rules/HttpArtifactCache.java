@@ -0,0 +1,200 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import com.google.common.base.Preconditions;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Closer;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.StandardCopyOption;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+/**
+ * {@link ArtifactCache} that fetches and stores artifacts with plain HTTP requests, such as those
+ * served by {@link HttpArtifactCacheServer}: {@code GET /artifacts/<rulekey>} returns the artifact
+ * or 404, and {@code PUT /artifacts/<rulekey>} stores the request body as the artifact.
+ * <p>
+ * Artifacts are streamed between the connection and the filesystem in both directions, so a large
+ * artifact is never held in memory, and a fetch is written to a temporary file next to the output
+ * so that a truncated response does not leave a partial output behind. Every response body is read
+ * to the end, so that {@link HttpURLConnection} returns the connection to its keep-alive pool and
+ * the next request to the same server does not open a new one.
+ */
+public class HttpArtifactCache implements ArtifactCache {
+  private static final Logger logger = Logger.getLogger(HttpArtifactCache.class.getName());
+
+  /** URL of the artifacts, to which a RuleKey is appended to get the URL of its artifact. */
+  private final String artifactsUrl;
+  private final int timeoutMillis;
+
+  /**
+   * @param url of the root of the cache server.
+   * @param timeoutMillis how long to wait to connect to the server and for each read from it.
+   */
+  public HttpArtifactCache(URL url, int timeoutMillis) {
+    Preconditions.checkArgument(timeoutMillis >= 0);
+    String root = url.toString();
+    this.artifactsUrl = (root.endsWith("/") ? root : root + "/") + "artifacts/";
+    this.timeoutMillis = timeoutMillis;
+  }
+
+  @Override
+  public boolean fetch(RuleKey ruleKey, File output) {
+    if (!ruleKey.isIdempotent()) {
+      return false;
+    }
+    boolean success = false;
+    try {
+      success = fetchToFile(ruleKey, output);
+    } catch (IOException e) {
+      logger.warning(String.format("Artifact fetch(%s, %s) error: %s",
+          ruleKey,
+          output.getPath(),
+          e.getMessage()));
+    }
+    logger.info(String.format("Artifact fetch(%s, %s) cache %s",
+        ruleKey,
+        output.getPath(),
+        (success ? "hit" : "miss")));
+    return success;
+  }
+
+  private boolean fetchToFile(RuleKey ruleKey, File output) throws IOException {
+    HttpURLConnection connection = openConnection(ruleKey);
+    connection.setRequestMethod("GET");
+    int responseCode = connection.getResponseCode();
+    if (responseCode == HttpURLConnection.HTTP_NOT_FOUND) {
+      drain(connection.getErrorStream());
+      return false;
+    } else if (responseCode != HttpURLConnection.HTTP_OK) {
+      drain(connection.getErrorStream());
+      throw new IOException(String.format("Unexpected response: %d %s",
+          responseCode,
+          connection.getResponseMessage()));
+    }
+
+    long expectedLength = connection.getContentLengthLong();
+    Files.createParentDirs(output);
+    File tmpOutput = File.createTempFile(output.getName(), ".tmp", output.getParentFile());
+    try {
+      long length;
+      Closer closer = Closer.create();
+      try {
+        InputStream body = closer.register(connection.getInputStream());
+        OutputStream outputStream = closer.register(new FileOutputStream(tmpOutput));
+        length = ByteStreams.copy(body, outputStream);
+      } catch (Throwable t) {
+        throw closer.rethrow(t);
+      } finally {
+        closer.close();
+      }
+      if (expectedLength >= 0 && length != expectedLength) {
+        throw new IOException(String.format("Received %d of %d bytes", length, expectedLength));
+      }
+      java.nio.file.Files.move(tmpOutput.toPath(),
+          output.toPath(),
+          StandardCopyOption.REPLACE_EXISTING);
+      return true;
+    } finally {
+      // Only left behind if the artifact could not be fetched.
+      java.nio.file.Files.deleteIfExists(tmpOutput.toPath());
+    }
+  }
+
+  @Override
+  public void store(RuleKey ruleKey, File output) {
+    if (!ruleKey.isIdempotent()) {
+      return;
+    }
+    try {
+      try {
+        storeFromFile(ruleKey, output);
+      } catch (IOException e) {
+        // Unlike other requests, a streamed one is not retried by HttpURLConnection if the server
+        // has closed the keep-alive connection that it was sent on, so retry it once here.
+        storeFromFile(ruleKey, output);
+      }
+    } catch (IOException e) {
+      logger.warning(String.format("Artifact store(%s, %s) error: %s",
+          ruleKey,
+          output.getPath(),
+          e.getMessage()));
+    }
+  }
+
+  private void storeFromFile(RuleKey ruleKey, File output) throws IOException {
+    HttpURLConnection connection = openConnection(ruleKey);
+    connection.setRequestMethod("PUT");
+    connection.setRequestProperty("Content-Type", "application/octet-stream");
+    connection.setDoOutput(true);
+    // Streams the file rather than buffering it to compute the Content-Length.
+    connection.setFixedLengthStreamingMode(output.length());
+    Closer closer = Closer.create();
+    try {
+      Files.copy(output, closer.register(connection.getOutputStream()));
+    } catch (Throwable t) {
+      throw closer.rethrow(t);
+    } finally {
+      closer.close();
+    }
+
+    int responseCode = connection.getResponseCode();
+    if (responseCode / 100 != 2) {
+      drain(connection.getErrorStream());
+      throw new IOException(String.format("Unexpected response: %d %s",
+          responseCode,
+          connection.getResponseMessage()));
+    }
+    drain(connection.getInputStream());
+  }
+
+  @Override
+  public void prefetch(Iterable<RuleKey> ruleKeys) {
+    // Each fetch is a single request, so there is nothing to gain from looking up keys in advance.
+  }
+
+  private HttpURLConnection openConnection(RuleKey ruleKey) throws IOException {
+    URL artifactUrl = new URL(artifactsUrl + ruleKey.toString());
+    HttpURLConnection connection = (HttpURLConnection) artifactUrl.openConnection();
+    connection.setConnectTimeout(timeoutMillis);
+    connection.setReadTimeout(timeoutMillis);
+    connection.setUseCaches(false);
+    return connection;
+  }
+
+  /** Reads a response body to the end, so that its connection can be reused. */
+  private static void drain(@Nullable InputStream body) throws IOException {
+    if (body == null) {
+      return;
+    }
+    try {
+      ByteStreams.copy(body, ByteStreams.nullOutputStream());
+    } finally {
+      body.close();
+    }
+  }
+}
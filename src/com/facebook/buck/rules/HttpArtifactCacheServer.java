@@ -0,0 +1,190 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Closer;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Standalone server for {@link HttpArtifactCache}, which keeps the artifacts in a
+ * {@link DirArtifactCache}, so that the least recently used ones are evicted once the cache grows
+ * beyond its maximum size. Run it with {@code bin/buck-cache-server --dir <path>}, which starts
+ * {@link com.facebook.buck.cli.HttpArtifactCacheServerMain}.
+ */
+public class HttpArtifactCacheServer {
+  private static final Logger logger = Logger.getLogger(HttpArtifactCacheServer.class.getName());
+
+  /** RuleKeys are SHA-1 hashes, so anything else cannot name an artifact. */
+  private static final Pattern ARTIFACT_PATH_PATTERN =
+      Pattern.compile("/artifacts/([0-9a-f]{40})");
+
+  /**
+   * Subdirectory of the cache for the files that are being received or sent. It is on the same
+   * filesystem as the entries, so that they are hardlinked rather than copied, and
+   * {@link DirArtifactCache} does not count anything under it as an entry.
+   */
+  private static final String TMP_DIR_NAME = ".server-tmp";
+
+  private final DirArtifactCache artifactCache;
+  private final File tmpDir;
+  private final HttpServer server;
+  private final ExecutorService executor;
+
+  /**
+   * @param port on which to listen, or 0 to pick any free port.
+   * @param maxCacheSizeBytes if present, the size beyond which the least recently used artifacts
+   *     are evicted.
+   * @param numThreads number of requests that are served at once.
+   */
+  public HttpArtifactCacheServer(int port,
+      File cacheDir,
+      Optional<Long> maxCacheSizeBytes,
+      int numThreads) throws IOException {
+    Preconditions.checkArgument(numThreads > 0);
+    this.artifactCache = new DirArtifactCache(cacheDir, maxCacheSizeBytes);
+    this.tmpDir = new File(cacheDir, TMP_DIR_NAME);
+    if (!tmpDir.mkdir() && !tmpDir.isDirectory()) {
+      throw new IOException(String.format("Failed to create directory: \"%s\"", tmpDir.getPath()));
+    }
+    // Anything here was left behind by a server that did not stop cleanly.
+    File[] staleFiles = tmpDir.listFiles();
+    if (staleFiles != null) {
+      for (File staleFile : staleFiles) {
+        java.nio.file.Files.deleteIfExists(staleFile.toPath());
+      }
+    }
+    this.server = HttpServer.create(new InetSocketAddress(port), /* backlog */ 0);
+    this.executor = Executors.newFixedThreadPool(numThreads,
+        new ThreadFactoryBuilder().setNameFormat("artifact-cache-server-%d").build());
+    server.setExecutor(executor);
+    server.createContext("/artifacts/", new ArtifactHandler());
+  }
+
+  public void start() {
+    server.start();
+  }
+
+  /** Stops accepting requests, and waits for at most a second for the ones in progress. */
+  public void stop() {
+    server.stop(/* delay seconds */ 1);
+    executor.shutdown();
+  }
+
+  public int getPort() {
+    return server.getAddress().getPort();
+  }
+
+  private class ArtifactHandler implements HttpHandler {
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+      try {
+        String method = exchange.getRequestMethod();
+        if (!"PUT".equals(method)) {
+          // If a response without a body is sent before the request body has been read to the
+          // end, even an empty one, the server closes the connection rather than keep it alive.
+          exchange.getRequestBody().close();
+        }
+        Matcher matcher = ARTIFACT_PATH_PATTERN.matcher(exchange.getRequestURI().getPath());
+        if (!matcher.matches()) {
+          exchange.sendResponseHeaders(HttpURLConnection.HTTP_NOT_FOUND, -1);
+          return;
+        }
+        RuleKey ruleKey = new RuleKey(matcher.group(1));
+        if ("GET".equals(method)) {
+          handleGet(ruleKey, exchange);
+        } else if ("PUT".equals(method)) {
+          handlePut(ruleKey, exchange);
+        } else {
+          exchange.getResponseHeaders().set("Allow", "GET, PUT");
+          exchange.sendResponseHeaders(HttpURLConnection.HTTP_BAD_METHOD, -1);
+        }
+      } catch (IOException | RuntimeException e) {
+        logger.log(Level.WARNING,
+            String.format("%s %s failed", exchange.getRequestMethod(), exchange.getRequestURI()),
+            e);
+        throw e;
+      } finally {
+        exchange.close();
+      }
+    }
+
+    private void handleGet(RuleKey ruleKey, HttpExchange exchange) throws IOException {
+      File artifact = File.createTempFile(ruleKey.toString(), ".out", tmpDir);
+      try {
+        if (!artifactCache.fetch(ruleKey, artifact)) {
+          exchange.sendResponseHeaders(HttpURLConnection.HTTP_NOT_FOUND, -1);
+          return;
+        }
+        exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+        exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, artifact.length());
+        Closer closer = Closer.create();
+        try {
+          Files.copy(artifact, closer.register(exchange.getResponseBody()));
+        } catch (Throwable t) {
+          throw closer.rethrow(t);
+        } finally {
+          closer.close();
+        }
+      } finally {
+        java.nio.file.Files.deleteIfExists(artifact.toPath());
+      }
+    }
+
+    private void handlePut(RuleKey ruleKey, HttpExchange exchange) throws IOException {
+      File artifact = File.createTempFile(ruleKey.toString(), ".in", tmpDir);
+      try {
+        // If the client goes away before the whole body is received, this throws, so a truncated
+        // artifact is never stored.
+        Closer closer = Closer.create();
+        try {
+          InputStream body = closer.register(exchange.getRequestBody());
+          OutputStream output = closer.register(new FileOutputStream(artifact));
+          ByteStreams.copy(body, output);
+        } catch (Throwable t) {
+          throw closer.rethrow(t);
+        } finally {
+          closer.close();
+        }
+        artifactCache.store(ruleKey, artifact);
+        exchange.sendResponseHeaders(HttpURLConnection.HTTP_CREATED, -1);
+      } finally {
+        java.nio.file.Files.deleteIfExists(artifact.toPath());
+      }
+    }
+  }
+}
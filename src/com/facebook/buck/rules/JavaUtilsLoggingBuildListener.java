@@ -90,6 +90,13 @@ public class JavaUtilsLoggingBuildListener {
     LOG.log(record);
   }
 
+  @Subscribe
+  public void artifactCacheUploadsFinished(ArtifactCacheUploadsFinished finished) {
+    LogRecord record = new LogRecord(LEVEL, finished.toLogMessage());
+    record.setMillis(finished.getTimestamp());
+    LOG.log(record);
+  }
+
   private static class BuildEventFormatter extends Formatter {
 
     private final ThreadLocal<SimpleDateFormat> dateFormat = new ThreadLocal<SimpleDateFormat>() {
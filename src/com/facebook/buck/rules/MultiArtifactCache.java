@@ -16,21 +16,93 @@
 
 package com.facebook.buck.rules;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
 
 /**
- * MultiArtifactCache encapsulates a set of ArtifactCache instances such that fetch() succeeds if
- * any of the ArtifactCaches contain the desired artifact, and store() applies to all
+ * MultiArtifactCache encapsulates a set of ArtifactCache instances, or tiers, such that fetch()
+ * succeeds if any of the ArtifactCaches contain the desired artifact, and store() applies to all
  * ArtifactCaches.
+ * <p>
+ * The tiers are listed fastest first. The first tier is looked up on its own, and if it misses, the
+ * slower tiers are all looked up at once. An artifact that is found in a tier is written back to
+ * the tiers before it, so that it is found sooner next time. A miss in a tier is remembered for
+ * {@code missTtlMillis}, during which that tier is not asked for the artifact again unless it is
+ * stored. In the daemon, the same instance is used by every command, so misses are remembered
+ * across builds.
  */
 public class MultiArtifactCache implements ArtifactCache {
-  private final ImmutableList<ArtifactCache> artifactCaches;
+
+  private static final Logger logger = Logger.getLogger(MultiArtifactCache.class.getName());
+
+  /**
+   * How many misses each tier remembers at most, so that the daemon does not remember the misses
+   * of every RuleKey that it has ever looked up.
+   */
+  @VisibleForTesting
+  static final int MAX_REMEMBERED_MISSES_PER_TIER = 100000;
+
+  private final ImmutableList<Tier> tiers;
+  private final long missTtlNanos;
+  private final Ticker ticker;
+
+  /** Looks up the slower tiers at once. Only created if there is more than one of them. */
+  private final ExecutorService slowTierExecutor;
 
   public MultiArtifactCache(ImmutableList<ArtifactCache> artifactCaches) {
-    this.artifactCaches = Preconditions.checkNotNull(artifactCaches);
+    this(artifactCaches, /* missTtlMillis */ 0);
+  }
+
+  /**
+   * @param artifactCaches the tiers, fastest first.
+   * @param missTtlMillis how long a miss in a tier is remembered, or 0 not to remember misses.
+   */
+  public MultiArtifactCache(ImmutableList<ArtifactCache> artifactCaches, long missTtlMillis) {
+    this(artifactCaches, missTtlMillis, Ticker.systemTicker());
+  }
+
+  @VisibleForTesting
+  MultiArtifactCache(ImmutableList<ArtifactCache> artifactCaches,
+      long missTtlMillis,
+      Ticker ticker) {
+    Preconditions.checkNotNull(artifactCaches);
+    this.missTtlNanos = TimeUnit.MILLISECONDS.toNanos(missTtlMillis);
+    this.ticker = Preconditions.checkNotNull(ticker);
+    ImmutableList.Builder<Tier> tiers = ImmutableList.builder();
+    for (ArtifactCache artifactCache : artifactCaches) {
+      tiers.add(new Tier(artifactCache));
+    }
+    this.tiers = tiers.build();
+    if (artifactCaches.size() > 2) {
+      this.slowTierExecutor = Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+          .setNameFormat("artifact-cache-fetch-%d")
+          .setDaemon(true)
+          .build());
+    } else {
+      this.slowTierExecutor = null;
+    }
   }
 
   /**
@@ -40,20 +112,92 @@ public class MultiArtifactCache implements ArtifactCache {
    */
   @Override
   public boolean fetch(RuleKey ruleKey, File output) {
-    for (ArtifactCache artifactCache : artifactCaches) {
-      if (artifactCache.fetch(ruleKey, output)) {
-        // Success; terminate search for a cached artifact, and propagate artifact to caches
-        // earlier in the search order so that subsequent searches terminate earlier.
-        for (ArtifactCache priorArtifactCache : artifactCaches) {
-          if (priorArtifactCache.equals(artifactCache)) {
-            break;
+    if (tiers.isEmpty()) {
+      return false;
+    }
+
+    int hitIndex = -1;
+    if (tiers.get(0).fetch(ruleKey, output)) {
+      hitIndex = 0;
+    } else if (slowTierExecutor == null) {
+      if (tiers.size() > 1 && tiers.get(1).fetch(ruleKey, output)) {
+        hitIndex = 1;
+      }
+    } else {
+      hitIndex = fetchFromSlowTiers(ruleKey, output);
+    }
+    if (hitIndex < 0) {
+      return false;
+    }
+
+    // Success; propagate the artifact to the tiers earlier in the search order so that subsequent
+    // searches terminate earlier.
+    for (Tier tier : tiers.subList(0, hitIndex)) {
+      tier.store(ruleKey, output);
+    }
+    return true;
+  }
+
+  /**
+   * Looks up all of the tiers but the first at once, each into a file of its own next to
+   * {@code output}, and moves the first artifact that is found to {@code output}.
+   * @return the index of the tier whose artifact was used, or -1 if none of them had it.
+   */
+  private int fetchFromSlowTiers(final RuleKey ruleKey, final File output) {
+    final AtomicBoolean isClaimed = new AtomicBoolean();
+    CompletionService<Integer> completionService =
+        new ExecutorCompletionService<>(slowTierExecutor);
+    int numLookups = 0;
+    for (int index = 1; index < tiers.size(); index++) {
+      final int tierIndex = index;
+      final Tier tier = tiers.get(tierIndex);
+      if (tier.isRememberedMiss(ruleKey)) {
+        continue;
+      }
+      completionService.submit(new Callable<Integer>() {
+        @Override
+        public Integer call() throws IOException {
+          // Each lookup gets a file of its own, so that one abandoned by an earlier fetch of the
+          // same output, which may still be running, never writes the same file as this one.
+          Files.createParentDirs(output);
+          File tmp = File.createTempFile(output.getName(),
+              ".tier" + tierIndex + ".tmp",
+              output.getAbsoluteFile().getParentFile());
+          try {
+            // Only the first tier to find the artifact gets to write it to the output.
+            if (tier.fetch(ruleKey, tmp) && isClaimed.compareAndSet(false, true)) {
+              java.nio.file.Files.move(tmp.toPath(),
+                  output.toPath(),
+                  StandardCopyOption.REPLACE_EXISTING);
+              return tierIndex;
+            }
+            return -1;
+          } finally {
+            java.nio.file.Files.deleteIfExists(tmp.toPath());
           }
-          priorArtifactCache.store(ruleKey, output);
         }
-        return true;
+      });
+      numLookups++;
+    }
+
+    for (int i = 0; i < numLookups; i++) {
+      try {
+        int hitIndex = completionService.take().get();
+        if (hitIndex >= 0) {
+          // The lookups that are still running clean up after themselves.
+          return hitIndex;
+        }
+      } catch (ExecutionException e) {
+        logger.warning(String.format("Artifact fetch(%s, %s) error: %s",
+            ruleKey,
+            output.getPath(),
+            e.getCause().getMessage()));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return -1;
       }
     }
-    return false;
+    return -1;
   }
 
   /**
@@ -61,8 +205,172 @@ public class MultiArtifactCache implements ArtifactCache {
    */
   @Override
   public void store(RuleKey ruleKey, File output) {
-    for (ArtifactCache artifactCache : artifactCaches) {
+    for (Tier tier : tiers) {
+      tier.store(ruleKey, output);
+    }
+  }
+
+  /**
+   * Prefetch from all encapsulated ArtifactCaches, the slower ones at once.
+   */
+  @Override
+  public void prefetch(Iterable<RuleKey> ruleKeys) {
+    if (slowTierExecutor == null) {
+      for (Tier tier : tiers) {
+        tier.artifactCache.prefetch(ruleKeys);
+      }
+      return;
+    }
+
+    // Compute the RuleKeys once rather than on each thread.
+    final ImmutableList<RuleKey> ruleKeyList = ImmutableList.copyOf(ruleKeys);
+    tiers.get(0).artifactCache.prefetch(ruleKeyList);
+    List<Callable<Void>> prefetches = Lists.newArrayList();
+    for (final Tier tier : tiers.subList(1, tiers.size())) {
+      prefetches.add(new Callable<Void>() {
+        @Override
+        public Void call() {
+          tier.artifactCache.prefetch(ruleKeyList);
+          return null;
+        }
+      });
+    }
+    try {
+      slowTierExecutor.invokeAll(prefetches);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /** @return the statistics of each tier since this cache was created, in the order of the tiers. */
+  public ImmutableList<TierStats> getTierStats() {
+    ImmutableList.Builder<TierStats> stats = ImmutableList.builder();
+    for (Tier tier : tiers) {
+      stats.add(new TierStats(tier.artifactCache.getClass().getSimpleName(),
+          tier.numFetches.get(),
+          tier.numHits.get(),
+          tier.numRememberedMisses.get(),
+          tier.fetchNanos.get()));
+    }
+    return stats.build();
+  }
+
+  /** One of the encapsulated ArtifactCaches, along with the misses and statistics for it. */
+  private class Tier {
+    private final ArtifactCache artifactCache;
+
+    /** The RuleKeys that missed in this tier, each of which expires after {@link #missTtlNanos}. */
+    private final Cache<RuleKey, Boolean> rememberedMisses;
+
+    private final AtomicLong numFetches;
+    private final AtomicLong numHits;
+    private final AtomicLong numRememberedMisses;
+    private final AtomicLong fetchNanos;
+
+    Tier(ArtifactCache artifactCache) {
+      this.artifactCache = Preconditions.checkNotNull(artifactCache);
+      this.rememberedMisses = CacheBuilder.newBuilder()
+          .expireAfterWrite(missTtlNanos, TimeUnit.NANOSECONDS)
+          .maximumSize(MAX_REMEMBERED_MISSES_PER_TIER)
+          .ticker(ticker)
+          .build();
+      this.numFetches = new AtomicLong();
+      this.numHits = new AtomicLong();
+      this.numRememberedMisses = new AtomicLong();
+      this.fetchNanos = new AtomicLong();
+    }
+
+    boolean isRememberedMiss(RuleKey ruleKey) {
+      if (rememberedMisses.getIfPresent(ruleKey) == null) {
+        return false;
+      }
+      numRememberedMisses.incrementAndGet();
+      return true;
+    }
+
+    boolean fetch(RuleKey ruleKey, File output) {
+      if (isRememberedMiss(ruleKey)) {
+        return false;
+      }
+      long startNanoTime = ticker.read();
+      boolean isHit = artifactCache.fetch(ruleKey, output);
+      fetchNanos.addAndGet(ticker.read() - startNanoTime);
+      numFetches.incrementAndGet();
+      if (isHit) {
+        numHits.incrementAndGet();
+      } else if (missTtlNanos > 0 && ruleKey.isIdempotent()) {
+        rememberedMisses.put(ruleKey, Boolean.TRUE);
+      }
+      return isHit;
+    }
+
+    void store(RuleKey ruleKey, File output) {
+      rememberedMisses.invalidate(ruleKey);
       artifactCache.store(ruleKey, output);
     }
   }
+
+  /** How often a tier was looked up, how often it had the artifact, and how long it took. */
+  public static class TierStats {
+    private final String name;
+    private final long numFetches;
+    private final long numHits;
+    private final long numRememberedMisses;
+    private final long fetchNanos;
+
+    TierStats(String name,
+        long numFetches,
+        long numHits,
+        long numRememberedMisses,
+        long fetchNanos) {
+      this.name = name;
+      this.numFetches = numFetches;
+      this.numHits = numHits;
+      this.numRememberedMisses = numRememberedMisses;
+      this.fetchNanos = fetchNanos;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    /** @return the number of times that the tier was asked for an artifact. */
+    public long getNumFetches() {
+      return numFetches;
+    }
+
+    public long getNumHits() {
+      return numHits;
+    }
+
+    /** @return the number of times that the tier was not asked, as it was known to miss. */
+    public long getNumRememberedMisses() {
+      return numRememberedMisses;
+    }
+
+    /** @return the total time spent waiting for the tier to answer. */
+    public long getFetchNanos() {
+      return fetchNanos;
+    }
+
+    /** @return the statistics for the time between {@code previous} and these. */
+    public TierStats minus(TierStats previous) {
+      return new TierStats(name,
+          numFetches - previous.numFetches,
+          numHits - previous.numHits,
+          numRememberedMisses - previous.numRememberedMisses,
+          fetchNanos - previous.fetchNanos);
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%s: %d fetches, %d hits (%d%%), %d ms average, %d known misses",
+          name,
+          numFetches,
+          numHits,
+          numFetches > 0 ? numHits * 100 / numFetches : 0,
+          numFetches > 0 ? TimeUnit.NANOSECONDS.toMillis(fetchNanos / numFetches) : 0,
+          numRememberedMisses);
+    }
+  }
 }
@@ -30,4 +30,9 @@ public class NoopArtifactCache implements ArtifactCache {
   public void store(RuleKey ruleKey, File output) {
     // Do nothing.
   }
+
+  @Override
+  public void prefetch(Iterable<RuleKey> ruleKeys) {
+    // Do nothing.
+  }
 }
@@ -51,7 +51,8 @@ public class OutputKey implements Comparable<OutputKey> {
     if (output == null) {
       return null;
     }
-    // Use RuleKey's Builder to do the hard work of hashing the output file.
+    // Use RuleKey's Builder to do the hard work of hashing the output file. This also means that the
+    // hash is memoized in the same FileHashCache as the hashes of inputs.
     RuleKey.Builder builder = RuleKey.builder();
     builder.set(output.getPath(), output);
     RuleKey ruleKey = builder.build();
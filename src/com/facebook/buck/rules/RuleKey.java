@@ -16,6 +16,7 @@
 
 package com.facebook.buck.rules;
 
+import com.facebook.buck.util.FileHashCache;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Joiner;
 import com.google.common.base.Optional;
@@ -23,16 +24,20 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSortedSet;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.google.common.hash.HashCode;
 import com.google.common.hash.HashCodes;
 import com.google.common.hash.Hasher;
 import com.google.common.hash.Hashing;
-import com.google.common.io.Files;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.file.Path;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -193,7 +198,7 @@ public class RuleKey implements Comparable<RuleKey> {
       builder.setKey("deps");
       // Note that getDeps() returns an ImmutableSortedSet, so the order will be stable.
       for (BuildRule buildRule : rule.getDeps()) {
-        builder.setVal(buildRule.getRuleKey());
+        builder.setVal(buildRule);
       }
     }
     builder.separate();
@@ -216,9 +221,23 @@ public class RuleKey implements Comparable<RuleKey> {
     private boolean idempotent;
     @Nullable private List<String> logElms;
 
+    /**
+     * What went into the RuleKey, so that {@link RuleKeyCache} can tell when it has to be
+     * computed again: the absolute paths of the files whose contents were hashed and of the
+     * directories whose files were listed, the RuleKeys of the rules that were hashed, and whether
+     * any RuleKey of unknown origin was hashed.
+     */
+    private final Set<Path> inputPaths;
+    private final Set<Path> inputDirectories;
+    private final Map<BuildRule, RuleKey> ruleKeysOfRules;
+    private boolean hasUntrackedInputs;
+
     private Builder() {
       hasher = Hashing.sha1().newHasher();
       idempotent = true;
+      inputPaths = Sets.newHashSet();
+      inputDirectories = Sets.newHashSet();
+      ruleKeysOfRules = Maps.newIdentityHashMap();
       if (logger.isLoggable(Level.INFO)) {
         logElms = Lists.newArrayList();
       }
@@ -263,12 +282,13 @@ public class RuleKey implements Comparable<RuleKey> {
 
     private Builder setVal(@Nullable File file) {
       if (file != null) {
+        inputPaths.add(file.getAbsoluteFile().toPath().normalize());
+
         // Compute a separate SHA-1 for the file contents and feed that into messageDigest rather
         // than the file contents, in order to avoid the overhead of escaping SEPARATOR in the file
-        // content.
+        // content. The SHA-1 is memoized across RuleKeys (and across runs) by FileHashCache.
         try {
-          byte[] fileBytes = Files.toByteArray(file);
-          HashCode fileSha1 = Hashing.sha1().hashBytes(fileBytes);
+          HashCode fileSha1 = FileHashCache.getInstance().get(file);
           if (logElms != null) {
             logElms.add(String.format("file(path=\"%s\", sha1=%s):", file.getPath(),
                 fileSha1.toString()));
@@ -331,12 +351,22 @@ public class RuleKey implements Comparable<RuleKey> {
       return setKey(key).setVal(val);
     }
 
+    private Builder setVal(BuildRule rule) {
+      RuleKey ruleKey = rule.getRuleKey();
+      ruleKeysOfRules.put(rule, ruleKey);
+      return setVal(ruleKey);
+    }
+
     public Builder set(String key, @Nullable RuleKey val) {
+      if (val != null) {
+        hasUntrackedInputs = true;
+      }
       return setKey(key).setVal(val);
     }
 
     public Builder set(String key, @Nullable BuildRule val) {
-      return setKey(key).setVal(val != null ? val.getRuleKey() : null);
+      setKey(key);
+      return val != null ? setVal(val) : separate();
     }
 
     public Builder set(String key, @Nullable ImmutableList<SourceRoot> val) {
@@ -363,7 +393,7 @@ public class RuleKey implements Comparable<RuleKey> {
       setKey(key);
       if (val != null) {
         for (InputRule inputRule : val) {
-          setVal(inputRule.getRuleKey());
+          setVal(inputRule);
         }
       }
       return separate();
@@ -383,7 +413,7 @@ public class RuleKey implements Comparable<RuleKey> {
       setKey(key);
       if (val != null) {
         for (BuildRule buildRule : val) {
-          setVal(buildRule.getRuleKey());
+          setVal(buildRule);
         }
       }
       return separate();
@@ -400,6 +430,18 @@ public class RuleKey implements Comparable<RuleKey> {
       return separate();
     }
 
+    /**
+     * Records that the files under {@code pathToDirectory} were listed to compute the RuleKey, so
+     * that it is computed again when a file is added there or removed. This does not change the
+     * RuleKey itself: the files that were found must be hashed, too.
+     */
+    public Builder addInputDirectory(@Nullable String pathToDirectory) {
+      if (pathToDirectory != null) {
+        inputDirectories.add(new File(pathToDirectory).getAbsoluteFile().toPath().normalize());
+      }
+      return this;
+    }
+
     /**
      * The idempotence of the RuleKey to be built is false if this method is ever called with a
      * false argument.
@@ -432,5 +474,21 @@ public class RuleKey implements Comparable<RuleKey> {
       }
       return ruleKey;
     }
+
+    Set<Path> getInputPaths() {
+      return inputPaths;
+    }
+
+    Set<Path> getInputDirectories() {
+      return inputDirectories;
+    }
+
+    Map<BuildRule, RuleKey> getRuleKeysOfRules() {
+      return ruleKeysOfRules;
+    }
+
+    boolean hasUntrackedInputs() {
+      return hasUntrackedInputs;
+    }
   }
 }
@@ -0,0 +1,304 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import com.facebook.buck.model.BuildTarget;
+import com.facebook.buck.util.ProjectFilesystem;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+/**
+ * Memoizes {@link RuleKey}s across builds, so that the daemon does not recompute the RuleKey of a
+ * rule whose definition, inputs and deps have not changed since the previous command.
+ * <p>
+ * The rules themselves are created anew for each build, as they hold the state of the build in
+ * which they were created, so entries are keyed by {@link BuildTarget}. An entry is dropped when
+ * the build file that defines its rule is parsed again ({@link #invalidate(BuildTarget)}), when
+ * one of the files it hashed is changed ({@link #invalidatePath(Path)}), or when a file is added to
+ * or removed from a directory that it listed ({@link #invalidateDirectoryListings(Path)}). The
+ * RuleKeys of deps are
+ * not tracked here: they are compared with the ones the entry was computed from whenever it is
+ * looked up, which is cheap as they come from this cache, too.
+ * <p>
+ * Only the RuleKeys whose inputs are all watched for changes are memoized: files outside of the
+ * project or under one of its ignored paths, such as {@code buck-out}, may change without notice.
+ */
+public class RuleKeyCache {
+
+  private final ProjectFilesystem projectFilesystem;
+  private final ConcurrentMap<BuildTarget, Entry> entries;
+
+  /**
+   * The targets whose RuleKeys were computed from the contents of each file, keyed by absolute
+   * path and sorted so that the files under a directory are adjacent.
+   */
+  private final NavigableMap<String, Set<BuildTarget>> targetsByInputPath;
+
+  /** The targets whose RuleKeys were computed from a listing of each directory, by absolute path. */
+  private final Map<String, Set<BuildTarget>> targetsByInputDirectory;
+
+  private final AtomicLong hitCount;
+  private final AtomicLong missCount;
+
+  public RuleKeyCache(ProjectFilesystem projectFilesystem) {
+    this.projectFilesystem = Preconditions.checkNotNull(projectFilesystem);
+    this.entries = Maps.newConcurrentMap();
+    this.targetsByInputPath = Maps.newTreeMap();
+    this.targetsByInputDirectory = Maps.newHashMap();
+    this.hitCount = new AtomicLong();
+    this.missCount = new AtomicLong();
+  }
+
+  /**
+   * @return the RuleKey that {@code rule} had in a previous build, if it must still be the same,
+   *     or {@code null} if it has to be computed.
+   */
+  @Nullable
+  RuleKey get(BuildRule rule) {
+    Entry entry = entries.get(rule.getBuildTarget());
+    if (entry == null || !entry.isValidFor(rule)) {
+      missCount.incrementAndGet();
+      return null;
+    }
+    hitCount.incrementAndGet();
+    return entry.ruleKey;
+  }
+
+  /**
+   * Memoizes the RuleKey of {@code rule} that {@code builder} built, unless it depends on something
+   * whose changes are not reported to this cache.
+   */
+  synchronized void put(BuildRule rule, RuleKey.Builder builder, RuleKey ruleKey) {
+    if (!ruleKey.isIdempotent() || builder.hasUntrackedInputs()) {
+      return;
+    }
+    Set<Path> absoluteInputPaths = Sets.newHashSet(builder.getInputPaths());
+    ImmutableMap.Builder<BuildTarget, RuleKey> ruleKeysOfRules = ImmutableMap.builder();
+    for (Map.Entry<BuildRule, RuleKey> ruleAndRuleKey : builder.getRuleKeysOfRules().entrySet()) {
+      BuildRule hashedRule = ruleAndRuleKey.getKey();
+      if (hashedRule instanceof InputRule) {
+        // The RuleKey of an input is a function of its contents only.
+        absoluteInputPaths.add(new File(hashedRule.getPathToOutputFile())
+            .getAbsoluteFile()
+            .toPath()
+            .normalize());
+      } else {
+        ruleKeysOfRules.put(hashedRule.getBuildTarget(), ruleAndRuleKey.getValue());
+      }
+    }
+
+    ImmutableSet<String> inputPaths = toWatchedPaths(absoluteInputPaths);
+    ImmutableSet<String> inputDirectories = toWatchedPaths(builder.getInputDirectories());
+    if (inputPaths == null || inputDirectories == null) {
+      return;
+    }
+
+    BuildTarget target = rule.getBuildTarget();
+    invalidate(target);
+    Entry entry = new Entry(ruleKey, ruleKeysOfRules.build(), inputPaths, inputDirectories);
+    entries.put(target, entry);
+    for (String inputPath : entry.inputPaths) {
+      addTarget(targetsByInputPath, inputPath, target);
+    }
+    for (String inputDirectory : entry.inputDirectories) {
+      addTarget(targetsByInputDirectory, inputDirectory, target);
+    }
+  }
+
+  /** @return the paths as strings, or {@code null} if any of them is not watched for changes. */
+  @Nullable
+  private ImmutableSet<String> toWatchedPaths(Iterable<Path> absolutePaths) {
+    ImmutableSet.Builder<String> paths = ImmutableSet.builder();
+    for (Path absolutePath : absolutePaths) {
+      if (!isWatched(absolutePath)) {
+        return null;
+      }
+      paths.add(absolutePath.toString());
+    }
+    return paths.build();
+  }
+
+  private static void addTarget(Map<String, Set<BuildTarget>> targetsByPath,
+      String path,
+      BuildTarget target) {
+    Set<BuildTarget> targets = targetsByPath.get(path);
+    if (targets == null) {
+      targets = Sets.newHashSet();
+      targetsByPath.put(path, targets);
+    }
+    targets.add(target);
+  }
+
+  private static void removeTarget(Map<String, Set<BuildTarget>> targetsByPath,
+      String path,
+      BuildTarget target) {
+    Set<BuildTarget> targets = targetsByPath.get(path);
+    targets.remove(target);
+    if (targets.isEmpty()) {
+      targetsByPath.remove(path);
+    }
+  }
+
+  /** Must be called when the rule for {@code target} may have been redefined. */
+  public synchronized void invalidate(BuildTarget target) {
+    Entry entry = entries.remove(target);
+    if (entry == null) {
+      return;
+    }
+    for (String inputPath : entry.inputPaths) {
+      removeTarget(targetsByInputPath, inputPath, target);
+    }
+    for (String inputDirectory : entry.inputDirectories) {
+      removeTarget(targetsByInputDirectory, inputDirectory, target);
+    }
+  }
+
+  /**
+   * Must be called when the file at {@code absolutePath} changes, or when a directory there is
+   * added or removed, in which case the RuleKeys that hashed any file under it are dropped, too.
+   */
+  public synchronized void invalidatePath(Path absolutePath) {
+    String path = absolutePath.normalize().toString();
+    Set<BuildTarget> affectedTargets = Sets.newHashSet();
+    Set<BuildTarget> targets = targetsByInputPath.get(path);
+    if (targets != null) {
+      affectedTargets.addAll(targets);
+    }
+    String prefix = path + '/';
+    for (Map.Entry<String, Set<BuildTarget>> entry :
+        targetsByInputPath.tailMap(prefix, /* inclusive */ true).entrySet()) {
+      if (!entry.getKey().startsWith(prefix)) {
+        break;
+      }
+      affectedTargets.addAll(entry.getValue());
+    }
+
+    for (BuildTarget target : affectedTargets) {
+      invalidate(target);
+    }
+  }
+
+  /**
+   * Must be called when a file or directory is added at {@code absolutePath} or removed from
+   * there, in which case the RuleKeys that were computed from a listing of any directory above it
+   * are dropped. Those that hashed the files under it are dropped by {@link #invalidatePath(Path)}.
+   */
+  public synchronized void invalidateDirectoryListings(Path absolutePath) {
+    Set<BuildTarget> affectedTargets = Sets.newHashSet();
+    for (Path directory = absolutePath.normalize().getParent();
+         directory != null;
+         directory = directory.getParent()) {
+      Set<BuildTarget> targets = targetsByInputDirectory.get(directory.toString());
+      if (targets != null) {
+        affectedTargets.addAll(targets);
+      }
+    }
+
+    for (BuildTarget target : affectedTargets) {
+      invalidate(target);
+    }
+  }
+
+  /** Forgets every RuleKey, for when changes to the filesystem may have been missed. */
+  public synchronized void clear() {
+    entries.clear();
+    targetsByInputPath.clear();
+    targetsByInputDirectory.clear();
+  }
+
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  public long getMissCount() {
+    return missCount.get();
+  }
+
+  @VisibleForTesting
+  int size() {
+    return entries.size();
+  }
+
+  private boolean isWatched(Path absolutePath) {
+    Path projectRoot = projectFilesystem.getProjectRoot().getAbsoluteFile().toPath().normalize();
+    if (!absolutePath.startsWith(projectRoot)) {
+      return false;
+    }
+    Path relativePath = projectRoot.relativize(absolutePath);
+    for (String ignorePath : projectFilesystem.getIgnorePaths()) {
+      if (relativePath.startsWith(ignorePath)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static class Entry {
+    private final RuleKey ruleKey;
+
+    /** The RuleKeys of the rules that {@link #ruleKey} was computed from, by target. */
+    private final ImmutableMap<BuildTarget, RuleKey> ruleKeysOfRules;
+
+    /** The absolute paths of the files whose contents {@link #ruleKey} was computed from. */
+    private final ImmutableSet<String> inputPaths;
+
+    /** The absolute paths of the directories whose files {@link #ruleKey} was computed from. */
+    private final ImmutableSet<String> inputDirectories;
+
+    Entry(RuleKey ruleKey,
+        ImmutableMap<BuildTarget, RuleKey> ruleKeysOfRules,
+        ImmutableSet<String> inputPaths,
+        ImmutableSet<String> inputDirectories) {
+      this.ruleKey = ruleKey;
+      this.ruleKeysOfRules = ruleKeysOfRules;
+      this.inputPaths = inputPaths;
+      this.inputDirectories = inputDirectories;
+    }
+
+    /**
+     * @return whether the rules that this entry was computed from are all deps of {@code rule} and
+     *     still have the same RuleKeys.
+     */
+    boolean isValidFor(BuildRule rule) {
+      Map<BuildTarget, BuildRule> deps = Maps.newHashMap();
+      for (BuildRule dep : rule.getDeps()) {
+        deps.put(dep.getBuildTarget(), dep);
+      }
+      for (Map.Entry<BuildTarget, RuleKey> entry : ruleKeysOfRules.entrySet()) {
+        BuildRule dep = deps.get(entry.getKey());
+        if (dep == null || !entry.getValue().equals(dep.getRuleKey())) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+}
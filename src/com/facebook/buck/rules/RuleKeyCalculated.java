@@ -0,0 +1,72 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+
+/**
+ * Posted once the {@link RuleKey} of a {@link BuildRule} has been computed to decide whether the
+ * rule needs to be built, along with how long that took.
+ */
+
+public class RuleKeyCalculated extends BuildEvent {
+
+  private final BuildRule buildRule;
+  private final RuleKey ruleKey;
+  private final long elapsedNanos;
+
+  public RuleKeyCalculated(BuildRule buildRule, RuleKey ruleKey, long elapsedNanos) {
+    this.buildRule = Preconditions.checkNotNull(buildRule);
+    this.ruleKey = Preconditions.checkNotNull(ruleKey);
+    this.elapsedNanos = elapsedNanos;
+  }
+
+  public BuildRule getBuildRule() {
+    return buildRule;
+  }
+
+  public RuleKey getRuleKey() {
+    return ruleKey;
+  }
+
+  public long getElapsedNanos() {
+    return elapsedNanos;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("RuleKeyCalculated(%s): %s", buildRule, ruleKey);
+  }
+
+  /** The elapsed time is deliberately excluded so that events can be compared in tests. */
+  @Override
+  public boolean equals(Object o) {
+    if (!(o instanceof RuleKeyCalculated)) {
+      return false;
+    }
+
+    RuleKeyCalculated calculated = (RuleKeyCalculated)o;
+    return Objects.equal(getBuildRule(), calculated.getBuildRule()) &&
+        Objects.equal(getRuleKey(), calculated.getRuleKey());
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hashCode(buildRule, ruleKey);
+  }
+}
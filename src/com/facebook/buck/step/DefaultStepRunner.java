@@ -73,11 +73,17 @@ public final class DefaultStepRunner implements StepRunner {
       context.getStdErr().println(step.getDescription(context));
     }
 
-    int exitCode = step.execute(context);
+    String shortName = step.getShortName(context);
+    context.getEventBus().post(new StepStarted(step, shortName, buildTarget));
+    int exitCode = 1;
+    try {
+      exitCode = step.execute(context);
+    } finally {
+      context.getEventBus().post(new StepFinished(step, shortName, buildTarget, exitCode));
+    }
     if (exitCode != 0) {
       throw StepFailedException.createForFailingStep(step, context, exitCode, buildTarget);
     }
-    // TODO(royw): Thread through the EventBus and log stepStart/stepEnd events.
   }
 
   @Override
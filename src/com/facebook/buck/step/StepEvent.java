@@ -0,0 +1,72 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.step;
+
+import com.facebook.buck.model.BuildTarget;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+
+/**
+ * Base class for the events posted to the {@link com.google.common.eventbus.EventBus} of an
+ * {@link ExecutionContext} as each {@link Step} is run. Like build events, each records when and on
+ * which thread it was created.
+ */
+public abstract class StepEvent {
+
+  private final Step step;
+  private final String shortName;
+  private final Optional<BuildTarget> buildTarget;
+  private final long timestamp;
+  private final long nanoTime;
+  private final long threadId;
+
+  protected StepEvent(Step step, String shortName, Optional<BuildTarget> buildTarget) {
+    this.step = Preconditions.checkNotNull(step);
+    this.shortName = Preconditions.checkNotNull(shortName);
+    this.buildTarget = Preconditions.checkNotNull(buildTarget);
+    this.timestamp = System.currentTimeMillis();
+    this.nanoTime = System.nanoTime();
+    this.threadId = Thread.currentThread().getId();
+  }
+
+  public Step getStep() {
+    return step;
+  }
+
+  /** @return the result of {@link Step#getShortName(ExecutionContext)} for {@link #getStep()}. */
+  public String getShortName() {
+    return shortName;
+  }
+
+  /** @return the target of the rule on whose behalf the step is run, if any. */
+  public Optional<BuildTarget> getBuildTarget() {
+    return buildTarget;
+  }
+
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  /** @see com.facebook.buck.rules.BuildEvent#getNanoTime() */
+  public long getNanoTime() {
+    return nanoTime;
+  }
+
+  public long getThreadId() {
+    return threadId;
+  }
+}
@@ -17,11 +17,21 @@
 package com.facebook.buck.step.fs;
 
 import com.facebook.buck.step.ExecutionContext;
-import com.facebook.buck.shell.ShellStep;
+import com.facebook.buck.step.Step;
+import com.facebook.buck.util.MoreFiles;
+import com.facebook.buck.util.ProjectFilesystem;
 import com.google.common.base.Preconditions;
-import com.google.common.collect.ImmutableList;
 
-public class CopyStep extends ShellStep {
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Copies a file, or a directory and everything under it, as {@code cp} does, without forking a
+ * process.
+ */
+public class CopyStep implements Step {
 
   private final String source;
   private final String destination;
@@ -38,25 +48,41 @@ public class CopyStep extends ShellStep {
   }
 
   @Override
-  public String getShortName(ExecutionContext context) {
-    return "cp";
-  }
-
-  @Override
-  protected ImmutableList<String> getShellCommandInternal(
-      ExecutionContext context) {
-    ImmutableList.Builder<String> args = ImmutableList.builder();
+  public int execute(ExecutionContext context) {
+    ProjectFilesystem projectFilesystem = context.getProjectFilesystem();
+    Path sourcePath = projectFilesystem.resolve(source);
+    Path destinationPath = projectFilesystem.resolve(destination);
 
-    args.add("cp");
+    // As with cp, copying to an existing directory copies into it.
+    if (Files.isDirectory(destinationPath)) {
+      destinationPath = destinationPath.resolve(sourcePath.getFileName());
+    }
 
-    if (shouldRecurse) {
-      args.add("-R");
+    try {
+      if (Files.isDirectory(sourcePath)) {
+        if (!shouldRecurse) {
+          context.getStdErr().printf("cp: %s is a directory (not copied).\n", source);
+          return 1;
+        }
+        MoreFiles.copyRecursively(sourcePath, destinationPath);
+      } else {
+        Files.copy(sourcePath, destinationPath, StandardCopyOption.REPLACE_EXISTING);
+      }
+      return 0;
+    } catch (IOException e) {
+      e.printStackTrace(context.getStdErr());
+      return 1;
     }
+  }
 
-    args.add(source);
-    args.add(destination);
+  @Override
+  public String getShortName(ExecutionContext context) {
+    return "cp";
+  }
 
-    return args.build();
+  @Override
+  public String getDescription(ExecutionContext context) {
+    return String.format("cp %s%s %s", shouldRecurse ? "-R " : "", source, destination);
   }
 
   public String getSource() {
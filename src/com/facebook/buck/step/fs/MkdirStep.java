@@ -17,16 +17,19 @@
 package com.facebook.buck.step.fs;
 
 import com.facebook.buck.step.ExecutionContext;
-import com.facebook.buck.shell.ShellStep;
+import com.facebook.buck.step.Step;
 import com.google.common.base.Preconditions;
-import com.google.common.collect.ImmutableList;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
 
 /**
- * Command that runs {@code mkdir -p} on the specified directory.
+ * Command that creates the specified directory and any missing parent directories, as
+ * {@code mkdir -p} does, without forking a process.
  */
-public class MkdirStep extends ShellStep {
+public class MkdirStep implements Step {
 
   private final String directory;
 
@@ -39,8 +42,17 @@ public class MkdirStep extends ShellStep {
   }
 
   @Override
-  protected ImmutableList<String> getShellCommandInternal(ExecutionContext context) {
-    return ImmutableList.of("mkdir", "-p", directory);
+  public int execute(ExecutionContext context) {
+    try {
+      Files.createDirectories(context.getProjectFilesystem().resolve(directory));
+      return 0;
+    } catch (FileAlreadyExistsException e) {
+      context.getStdErr().printf("mkdir: %s: Not a directory\n", e.getFile());
+      return 1;
+    } catch (IOException e) {
+      e.printStackTrace(context.getStdErr());
+      return 1;
+    }
   }
 
   @Override
@@ -48,4 +60,9 @@ public class MkdirStep extends ShellStep {
     return getDescription(context);
   }
 
+  @Override
+  public String getDescription(ExecutionContext context) {
+    return String.format("mkdir -p %s", directory);
+  }
+
 }
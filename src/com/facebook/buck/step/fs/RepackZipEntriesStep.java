@@ -17,7 +17,7 @@
 package com.facebook.buck.step.fs;
 
 import com.facebook.buck.step.CompositeStep;
-import com.facebook.buck.shell.ShellStep;
+import com.facebook.buck.step.Step;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.io.Files;
@@ -35,7 +35,7 @@ import javax.annotation.Nullable;
  */
 public class RepackZipEntriesStep extends CompositeStep {
 
-  private static List<ShellStep> createSubCommands(
+  private static List<Step> createSubCommands(
       String inputFile,
       String outputFile,
       ImmutableSet<String> entries,
@@ -48,17 +48,17 @@ public class RepackZipEntriesStep extends CompositeStep {
     }
 
     // Extract the entries we want to repack.
-    ShellStep unzip = new UnzipStep(
+    Step unzip = new UnzipStep(
         inputFile,
         workingDirectory.getAbsolutePath(),
         true,
         entries);
 
     // Initialize destination archive with copy of source archive.
-    ShellStep cp = new CopyStep(inputFile, outputFile);
+    Step cp = new CopyStep(inputFile, outputFile);
 
     // Finally, update the entries in the destination archive, using compressionLevel.
-    ShellStep zip = new ZipStep(
+    Step zip = new ZipStep(
         ZipStep.Mode.ADD,
         new File(outputFile).getAbsolutePath(),
         entries,
@@ -17,11 +17,21 @@
 package com.facebook.buck.step.fs;
 
 import com.facebook.buck.step.ExecutionContext;
-import com.facebook.buck.shell.ShellStep;
+import com.facebook.buck.step.Step;
+import com.facebook.buck.util.MoreFiles;
 import com.google.common.base.Preconditions;
-import com.google.common.collect.ImmutableList;
 
-public class RmStep extends ShellStep {
+import java.io.IOException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+
+/**
+ * Deletes a file, or a directory and everything under it, as {@code rm} does, without forking a
+ * process.
+ */
+public class RmStep implements Step {
 
   private final String patternToDelete;
   private final boolean shouldForceDeletion;
@@ -31,6 +41,12 @@ public class RmStep extends ShellStep {
     this(patternToDelete, shouldForceDeletion, false /* shouldRecurse */);
   }
 
+  /**
+   * @param patternToDelete path to delete, relative to the project root. Unlike with {@code rm}, it
+   *     is not expanded as a shell glob.
+   * @param shouldForceDeletion if {@code true}, it is not an error if the path does not exist.
+   * @param shouldRecurse if {@code true}, a directory is deleted along with everything under it.
+   */
   public RmStep(String patternToDelete,
                 boolean shouldForceDeletion,
                 boolean shouldRecurse) {
@@ -40,21 +56,34 @@ public class RmStep extends ShellStep {
   }
 
   @Override
-  protected ImmutableList<String> getShellCommandInternal(ExecutionContext context) {
-    ImmutableList.Builder<String> args = ImmutableList.builder();
-    args.add("rm");
-
-    if (shouldRecurse) {
-      args.add("-r");
-    }
+  public int execute(ExecutionContext context) {
+    Path path = context.getProjectFilesystem().resolve(patternToDelete);
+    try {
+      if (!Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+        if (shouldForceDeletion) {
+          return 0;
+        }
+        context.getStdErr().printf("rm: %s: No such file or directory\n", patternToDelete);
+        return 1;
+      }
 
-    if (shouldForceDeletion) {
-      args.add("-f");
+      if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+        if (!shouldRecurse) {
+          context.getStdErr().printf("rm: %s: is a directory\n", patternToDelete);
+          return 1;
+        }
+        MoreFiles.deleteRecursively(path);
+      } else {
+        Files.delete(path);
+      }
+      return 0;
+    } catch (DirectoryNotEmptyException e) {
+      context.getStdErr().printf("rm: %s: Directory not empty\n", e.getFile());
+      return 1;
+    } catch (IOException e) {
+      e.printStackTrace(context.getStdErr());
+      return 1;
     }
-
-    args.add(patternToDelete);
-
-    return args.build();
   }
 
   @Override
@@ -62,4 +91,16 @@ public class RmStep extends ShellStep {
     return getDescription(context);
   }
 
+  @Override
+  public String getDescription(ExecutionContext context) {
+    StringBuilder description = new StringBuilder("rm");
+    if (shouldRecurse) {
+      description.append(" -r");
+    }
+    if (shouldForceDeletion) {
+      description.append(" -f");
+    }
+    return description.append(' ').append(patternToDelete).toString();
+  }
+
 }
@@ -17,13 +17,19 @@
 package com.facebook.buck.step.fs;
 
 import com.facebook.buck.step.ExecutionContext;
-import com.facebook.buck.shell.ShellStep;
+import com.facebook.buck.step.Step;
 import com.google.common.base.Preconditions;
-import com.google.common.collect.ImmutableList;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 
-public class SymlinkFileStep extends ShellStep {
+/**
+ * Creates a symlink, replacing any file that is already there, as {@code ln -f -s} does, without
+ * forking a process.
+ */
+public class SymlinkFileStep implements Step {
 
   private final File source;
   private final String target;
@@ -45,15 +51,29 @@ public class SymlinkFileStep extends ShellStep {
     this.target = Preconditions.checkNotNull(target).getAbsolutePath();
   }
 
+  @Override
+  public int execute(ExecutionContext context) {
+    // Always symlink to an absolute path so the symlink is sure to be read correctly.
+    Path sourcePath = source.getAbsoluteFile().toPath();
+    Path targetPath = context.getProjectFilesystem().resolve(target);
+    try {
+      Files.deleteIfExists(targetPath);
+      Files.createSymbolicLink(targetPath, sourcePath);
+      return 0;
+    } catch (IOException e) {
+      e.printStackTrace(context.getStdErr());
+      return 1;
+    }
+  }
+
   @Override
   public String getShortName(ExecutionContext context) {
     return "ln -s";
   }
 
   @Override
-  protected ImmutableList<String> getShellCommandInternal(ExecutionContext context) {
-    // Always symlink to an absolute path so the symlink is sure to be read correctly.
-    return ImmutableList.of("ln", "-f", "-s", source.getAbsolutePath(), target);
+  public String getDescription(ExecutionContext context) {
+    return String.format("ln -f -s %s %s", source.getAbsolutePath(), target);
   }
 
 }
@@ -17,15 +17,29 @@
 package com.facebook.buck.step.fs;
 
 import com.facebook.buck.step.ExecutionContext;
-import com.facebook.buck.shell.ShellStep;
-import com.facebook.buck.util.Verbosity;
+import com.facebook.buck.step.Step;
+import com.facebook.buck.util.ProjectFilesystem;
+import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
-import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
-
+import com.google.common.collect.Sets;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Enumeration;
 import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
-public class UnzipStep extends ShellStep {
+/**
+ * Extracts the entries of a ZIP archive, as {@code unzip} does, without forking a process.
+ */
+public class UnzipStep implements Step {
 
   private final String pathToZipFile;
   private final String pathToDestinationDirectory;
@@ -74,34 +88,61 @@ public class UnzipStep extends ShellStep {
   }
 
   @Override
-  protected ImmutableList<String> getShellCommandInternal(ExecutionContext context) {
-    ImmutableList.Builder<String> args = ImmutableList.builder();
-    args.add("unzip");
-
-    Verbosity verbosity = context.getVerbosity();
-    if (!verbosity.shouldUseVerbosityFlagIfAvailable()) {
-      if (verbosity.shouldPrintStandardInformation()) {
-        args.add("-q");
-      } else {
-        args.add("-qq");
+  public int execute(ExecutionContext context) {
+    ProjectFilesystem projectFilesystem = context.getProjectFilesystem();
+    Path destinationDirectory = projectFilesystem.resolve(pathToDestinationDirectory).normalize();
+    Set<String> unmatchedFiles = Sets.newHashSet(filesToExtract);
+    try {
+      ZipFile zipFile = new ZipFile(projectFilesystem.resolve(pathToZipFile).toFile());
+      try {
+        for (Enumeration<? extends ZipEntry> entries = zipFile.entries();
+             entries.hasMoreElements();) {
+          ZipEntry entry = entries.nextElement();
+          String name = entry.getName();
+          if (!filesToExtract.isEmpty() && !unmatchedFiles.remove(name)) {
+            continue;
+          }
+
+          Path target = destinationDirectory.resolve(name).normalize();
+          if (!target.startsWith(destinationDirectory)) {
+            context.getStdErr().printf("unzip: skipping %s: outside of %s\n",
+                name,
+                pathToDestinationDirectory);
+            continue;
+          }
+
+          if (entry.isDirectory()) {
+            Files.createDirectories(target);
+            continue;
+          } else if (!overwriteExistingFiles && Files.exists(target, LinkOption.NOFOLLOW_LINKS)) {
+            continue;
+          }
+          Files.createDirectories(target.getParent());
+          InputStream inputStream = zipFile.getInputStream(entry);
+          try {
+            Files.copy(inputStream, target, StandardCopyOption.REPLACE_EXISTING);
+          } finally {
+            inputStream.close();
+          }
+          if (entry.getTime() != -1) {
+            Files.setLastModifiedTime(target, FileTime.fromMillis(entry.getTime()));
+          }
+        }
+      } finally {
+        zipFile.close();
       }
+    } catch (IOException e) {
+      e.printStackTrace(context.getStdErr());
+      return 1;
     }
 
-    // overwrite existing files without prompting
-    if (overwriteExistingFiles) {
-      args.add("-o");
+    if (!unmatchedFiles.isEmpty()) {
+      context.getStdErr().printf("unzip: %s: filename not matched: %s\n",
+          pathToZipFile,
+          Joiner.on(' ').join(unmatchedFiles));
+      return 1;
     }
-
-    // output directory
-    args.add("-d").add(pathToDestinationDirectory);
-
-    // file to unzip
-    args.add(pathToZipFile);
-
-    // specific files within the archive to unzip -- if empty, extract all
-    args.addAll(filesToExtract);
-
-    return args.build();
+    return 0;
   }
 
   @Override
@@ -109,4 +150,18 @@ public class UnzipStep extends ShellStep {
     return getDescription(context);
   }
 
+  @Override
+  public String getDescription(ExecutionContext context) {
+    StringBuilder description = new StringBuilder("unzip");
+    if (overwriteExistingFiles) {
+      description.append(" -o");
+    }
+    description.append(" -d ").append(pathToDestinationDirectory);
+    description.append(' ').append(pathToZipFile);
+    for (String fileToExtract : filesToExtract) {
+      description.append(' ').append(fileToExtract);
+    }
+    return description.toString();
+  }
+
 }
@@ -17,6 +17,7 @@ package com.facebook.buck.step.fs;
 
 import com.facebook.buck.step.ExecutionContext;
 import com.facebook.buck.step.Step;
+import com.facebook.buck.util.DeterministicZipOutputStream;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableMap;
@@ -31,6 +32,7 @@ import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.Set;
 import java.util.zip.ZipEntry;
@@ -87,7 +89,7 @@ public class ZipDirectoryWithMaxDeflateStep implements Step {
 
       if (!zipEntries.isEmpty()) {
         ZipOutputStream outputStream = closer.register(
-            new ZipOutputStream(new BufferedOutputStream(
+            new DeterministicZipOutputStream(new BufferedOutputStream(
                 new FileOutputStream(outputZipPath))));
 
         for (Map.Entry<File, ZipEntry> zipEntry : zipEntries.entrySet()) {
@@ -115,7 +117,10 @@ public class ZipDirectoryWithMaxDeflateStep implements Step {
       throws IOException {
     Preconditions.checkNotNull(currentPath);
 
-    for (File inputFile : directory.listFiles()) {
+    // The files are added in sorted order, so that the same directory always gives the same zip.
+    File[] inputFiles = directory.listFiles();
+    Arrays.sort(inputFiles);
+    for (File inputFile : inputFiles) {
       String childPath = currentPath +
           (currentPath.isEmpty() ? "" : "/") +
           inputFile.getName();
@@ -17,21 +17,44 @@
 package com.facebook.buck.step.fs;
 
 import com.facebook.buck.step.ExecutionContext;
-import com.facebook.buck.shell.ShellStep;
-import com.facebook.buck.util.Verbosity;
+import com.facebook.buck.step.Step;
+import com.facebook.buck.util.ProjectFilesystem;
+import com.facebook.buck.util.RawZipFile;
+import com.facebook.buck.util.RawZipWriter;
+import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.Closer;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
 import java.util.Set;
 
+import javax.annotation.Nullable;
+
 /**
- * A {@link com.facebook.buck.step.Step} that creates or updates a ZIP archive using {@code zip}.
+ * A {@link com.facebook.buck.step.Step} that creates or updates a ZIP archive the way that
+ * {@code zip -X -r} does, without forking a process. The archive is written to a temporary file
+ * that then replaces it, so it is never left half-written.
+ * <p>
+ * Unlike {@code zip}, every entry is written with the same time and no file attributes, so that
+ * the same files always give the same archive. The entries that are kept from an existing archive
+ * are copied as they are, without being inflated and compressed again.
  *
  * @see <a href="http://www.info-zip.org/mans/zip.html">ZIP</a>
  */
-public class ZipStep extends ShellStep {
+public class ZipStep implements Step {
 
   public static final int MIN_COMPRESSION_LEVEL = 0;
   public static final int DEFAULT_COMPRESSION_LEVEL = 6;
@@ -74,7 +97,8 @@ public class ZipStep extends ShellStep {
   private final ImmutableSet<String> paths;
   private final boolean junkPaths;
   private final int compressionLevel;
-
+  @Nullable
+  private final File workingDirectory;
 
   /**
    * Create a {@link ZipStep} to create or update a zip archive.
@@ -89,11 +113,12 @@ public class ZipStep extends ShellStep {
    *    {@code zip} command.
    * @param pathToZipFile path to archive to create or update
    * @param paths a set of files and/or directories to work on. The entire working directory is
-   *    assumed if this set is empty.
+   *    assumed if this set is empty. In {@link ZipStep.Mode#DELETE DELETE} mode, these are the
+   *    names of the entries to delete, along with the entries under them if they are directories.
    * @param junkPaths if {@code true}, the relative paths of added archive entries are discarded,
    *    i.e. they are all placed in the root of the archive.
    * @param compressionLevel between 0 (store) and 9.
-   * @param workingDirectory working directory for {@code zip} command.
+   * @param workingDirectory directory that {@code paths} are relative to.
    *    If {@code null}, project directory root is used instead.
    *
    * @see <a href="http://www.info-zip.org/mans/zip.html">ZIP</a>
@@ -104,8 +129,7 @@ public class ZipStep extends ShellStep {
       Set<String> paths,
       boolean junkPaths,
       int compressionLevel,
-      File workingDirectory) {
-    super(workingDirectory);
+      @Nullable File workingDirectory) {
     Preconditions.checkArgument(compressionLevel >= MIN_COMPRESSION_LEVEL &&
         compressionLevel <= MAX_COMPRESSION_LEVEL, "compressionLevel out of bounds.");
     this.mode = mode;
@@ -113,6 +137,7 @@ public class ZipStep extends ShellStep {
     this.paths = ImmutableSet.copyOf(Preconditions.checkNotNull(paths));
     this.junkPaths = junkPaths;
     this.compressionLevel = compressionLevel;
+    this.workingDirectory = workingDirectory;
   }
 
   /**
@@ -134,53 +159,199 @@ public class ZipStep extends ShellStep {
         Preconditions.checkNotNull(directoryToAdd));
   }
 
+  @Nullable
+  public File getWorkingDirectory() {
+    return workingDirectory;
+  }
+
   @Override
-  protected ImmutableList<String> getShellCommandInternal(ExecutionContext context) {
-    ImmutableList.Builder<String> args = ImmutableList.builder();
-    args.add("zip");
+  public int execute(ExecutionContext context) {
+    ProjectFilesystem projectFilesystem = context.getProjectFilesystem();
+    Path zipFile = projectFilesystem.resolve(pathToZipFile);
+    boolean zipFileExists = Files.isRegularFile(zipFile);
+    if (!zipFileExists && (mode == Mode.FRESHEN || mode == Mode.DELETE)) {
+      context.getStdErr().printf("zip error: %s: No such file\n", pathToZipFile);
+      return 1;
+    }
 
-    // What to do?
-    if (mode != Mode.ADD) {
-      args.add(mode.arg);
+    Path baseDirectory = workingDirectory == null
+        ? projectFilesystem.getProjectRoot().toPath()
+        : projectFilesystem.resolve(workingDirectory.getPath());
+    try {
+      Map<String, Path> filesToAdd = mode == Mode.DELETE
+          ? Maps.<String, Path>newLinkedHashMap()
+          : collectFilesToAdd(context, baseDirectory);
+
+      Path temporaryZipFile = zipFile.resolveSibling(zipFile.getFileName() + ".tmp");
+      int numEntries;
+      try {
+        numEntries = writeZipFile(temporaryZipFile, zipFileExists ? zipFile : null, filesToAdd);
+      } catch (IOException e) {
+        Files.deleteIfExists(temporaryZipFile);
+        throw e;
+      }
+      if (numEntries == 0) {
+        Files.delete(temporaryZipFile);
+        context.getStdErr().printf("zip error: Nothing to do! (%s)\n", pathToZipFile);
+        return 1;
+      }
+      Files.move(temporaryZipFile, zipFile, StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      e.printStackTrace(context.getStdErr());
+      return 1;
     }
+    return 0;
+  }
 
-    Verbosity verbosity = context.getVerbosity();
-    if (!verbosity.shouldUseVerbosityFlagIfAvailable()) {
-      if (verbosity.shouldPrintStandardInformation()) {
-        args.add("-q");
-      } else {
-        args.add("-qq");
+  /**
+   * Writes the entries of {@code existingZipFile}, updated according to {@link #mode}, to
+   * {@code outputZipFile}.
+   * @return the number of entries written.
+   */
+  private int writeZipFile(
+      Path outputZipFile,
+      @Nullable Path existingZipFile,
+      Map<String, Path> filesToAdd) throws IOException {
+    int numEntries = 0;
+    Closer closer = Closer.create();
+    try {
+      RawZipWriter output = closer.register(new RawZipWriter(
+          new BufferedOutputStream(Files.newOutputStream(outputZipFile))));
+
+      // Existing entries keep their position in the archive, even when they are replaced.
+      Set<String> existingNames = Sets.newHashSet();
+      if (existingZipFile != null) {
+        RawZipFile zipFile = closer.register(RawZipFile.open(existingZipFile.toFile()));
+        for (RawZipFile.Entry entry : zipFile.getEntries()) {
+          String name = entry.getName();
+          existingNames.add(name);
+          Path file = filesToAdd.get(name);
+          if (mode == Mode.DELETE && isDeleted(name)) {
+            continue;
+          } else if (file != null && shouldReplace(entry, file)) {
+            writeEntry(output, name, file);
+          } else {
+            copyEntry(zipFile, entry, output);
+          }
+          numEntries++;
+        }
       }
+
+      if (mode == Mode.ADD || mode == Mode.UPDATE) {
+        for (Map.Entry<String, Path> fileToAdd : filesToAdd.entrySet()) {
+          if (!existingNames.contains(fileToAdd.getKey())) {
+            writeEntry(output, fileToAdd.getKey(), fileToAdd.getValue());
+            numEntries++;
+          }
+        }
+      }
+    } catch (Throwable t) {
+      throw closer.rethrow(t);
+    } finally {
+      closer.close();
     }
+    return numEntries;
+  }
 
-    // Don't add extra fields, neither do the Android tools.
-    args.add("-X");
+  /**
+   * @return the files and directories to add to the archive, keyed by the names of their entries,
+   *     in the order that {@code zip -r} would add them.
+   */
+  private Map<String, Path> collectFilesToAdd(ExecutionContext context, Path baseDirectory)
+      throws IOException {
+    Map<String, Path> filesToAdd = Maps.newLinkedHashMap();
+    if (paths.isEmpty()) {
+      // The entries for the contents of the working directory do not start with "./".
+      addDirectoryContents(baseDirectory, "", filesToAdd);
+      return filesToAdd;
+    }
 
-    // recurse
-    args.add("-r");
+    for (String path : paths) {
+      Path file = baseDirectory.resolve(path);
+      String name = baseDirectory.relativize(file.normalize()).toString();
+      if (Files.isDirectory(file)) {
+        addEntry(name + '/', file, filesToAdd);
+        addDirectoryContents(file, name + '/', filesToAdd);
+      } else if (Files.isRegularFile(file)) {
+        addEntry(name, file, filesToAdd);
+      } else {
+        context.getStdErr().printf("zip warning: name not matched: %s\n", path);
+      }
+    }
+    return filesToAdd;
+  }
 
-    // compression level
-    args.add("-" + compressionLevel);
+  private void addDirectoryContents(Path directory, String namePrefix, Map<String, Path> filesToAdd)
+      throws IOException {
+    ImmutableSortedSet.Builder<Path> children = ImmutableSortedSet.naturalOrder();
+    DirectoryStream<Path> entries = Files.newDirectoryStream(directory);
+    try {
+      for (Path entry : entries) {
+        children.add(entry);
+      }
+    } finally {
+      entries.close();
+    }
 
-    // unk paths
-    if (junkPaths) {
-      args.add("-j");
+    for (Path child : children.build()) {
+      String name = namePrefix + child.getFileName();
+      if (Files.isDirectory(child)) {
+        addEntry(name + '/', child, filesToAdd);
+        addDirectoryContents(child, name + '/', filesToAdd);
+      } else {
+        addEntry(name, child, filesToAdd);
+      }
     }
+  }
 
-    // destination archive
-    args.add(pathToZipFile);
+  private void addEntry(String name, Path file, Map<String, Path> filesToAdd) {
+    if (!junkPaths) {
+      filesToAdd.put(name, file);
+    } else if (!name.endsWith("/")) {
+      // With junked paths, there are no entries for directories.
+      filesToAdd.put(file.getFileName().toString(), file);
+    }
+  }
 
-    // files to add to archive
-    if (paths.isEmpty()) {
-      // Add the contents of workingDirectory to archive.
-      args.add("-i*");
-      args.add(".");
-    } else {
-      // Add specified paths, relative to workingDirectory.
-      args.addAll(paths);
+  private boolean shouldReplace(RawZipFile.Entry entry, Path file) throws IOException {
+    if (mode == Mode.ADD) {
+      return true;
     }
+    // The times in a ZIP archive are rounded down to an even number of seconds. The entries of an
+    // archive written by this step all have the same, early, time, so they are always replaced.
+    long lastModifiedTime = Files.getLastModifiedTime(file).toMillis() / 2000 * 2000;
+    return lastModifiedTime > entry.getTime();
+  }
 
-    return args.build();
+  private boolean isDeleted(String name) {
+    for (String path : paths) {
+      String directoryPrefix = path.endsWith("/") ? path : path + '/';
+      if (name.equals(path) || name.startsWith(directoryPrefix)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void writeEntry(RawZipWriter output, String name, Path file) throws IOException {
+    // As with zip, directories are always stored.
+    byte[] contents = name.endsWith("/") ? new byte[0] : Files.readAllBytes(file);
+    output.putEntry(RawZipWriter.compress(name, contents, compressionLevel));
+  }
+
+  private static void copyEntry(RawZipFile zipFile, RawZipFile.Entry entry, RawZipWriter output)
+      throws IOException {
+    InputStream rawData = zipFile.getRawInputStream(entry);
+    try {
+      output.putRawEntry(entry.getName(),
+          entry.getMethod(),
+          entry.getCrc(),
+          entry.getSize(),
+          entry.getCompressedSize(),
+          rawData);
+    } finally {
+      rawData.close();
+    }
   }
 
   @Override
@@ -188,4 +359,30 @@ public class ZipStep extends ShellStep {
     return "zip";
   }
 
+  @Override
+  public String getDescription(ExecutionContext context) {
+    ImmutableList.Builder<String> args = ImmutableList.builder();
+    args.add("zip");
+    if (mode != Mode.ADD) {
+      args.add(mode.arg);
+    }
+    args.add("-X", "-r", "-" + compressionLevel);
+    if (junkPaths) {
+      args.add("-j");
+    }
+    args.add(pathToZipFile);
+    if (paths.isEmpty()) {
+      args.add("-i*", ".");
+    } else {
+      args.addAll(paths);
+    }
+
+    String command = Joiner.on(' ').join(args.build());
+    if (workingDirectory == null) {
+      return command;
+    } else {
+      return String.format("(cd %s && %s)", workingDirectory.getPath(), command);
+    }
+  }
+
 }
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * A {@link ZipOutputStream} whose output only depends on the names, contents and compression of
+ * the entries that are written to it, so that the same inputs always give the same archive, on any
+ * machine. Every entry gets the same time, and no extra field, comment or file attributes, whatever
+ * the {@link ZipEntry} passed to {@link #putNextEntry(ZipEntry)} says. The order of the entries is
+ * up to the caller, who should write them in sorted order.
+ * <p>
+ * A jar does not need to be written with a {@link java.util.jar.JarOutputStream}: one whose first
+ * entry is its {@link java.util.jar.JarFile#MANIFEST_NAME manifest} is a valid jar.
+ */
+public class DeterministicZipOutputStream extends ZipOutputStream {
+
+  /**
+   * The time of every entry. A ZIP archive stores times as local MS-DOS times, so this is
+   * 1985-02-01 00:00:00 in the default time zone, which is stored as the same bytes in every time
+   * zone. Any time before 1980 would also be stored in an extra field.
+   */
+  public static final long ENTRY_TIME =
+      new GregorianCalendar(1985, Calendar.FEBRUARY, 1, 0, 0, 0).getTimeInMillis();
+
+  public DeterministicZipOutputStream(OutputStream out) {
+    super(out);
+  }
+
+  /**
+   * Begins a new entry with the name, method and, for a stored entry, the size and checksum of
+   * {@code entry}. The compressed size of a deflated entry is always recomputed, as the input of
+   * an entry that is copied from another archive may have been deflated differently.
+   */
+  @Override
+  public void putNextEntry(ZipEntry entry) throws IOException {
+    ZipEntry normalizedEntry = new ZipEntry(entry.getName());
+    normalizedEntry.setTime(ENTRY_TIME);
+    if (entry.getMethod() != -1) {
+      normalizedEntry.setMethod(entry.getMethod());
+    }
+    if (entry.getMethod() == ZipEntry.STORED) {
+      normalizedEntry.setSize(entry.getSize());
+      normalizedEntry.setCompressedSize(entry.getSize());
+      normalizedEntry.setCrc(entry.getCrc());
+    }
+    super.putNextEntry(normalizedEntry);
+  }
+}
@@ -21,6 +21,7 @@ import com.google.common.collect.ImmutableSet;
 
 import java.io.File;
 import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.Deque;
 
 /**
@@ -68,7 +69,11 @@ public abstract class DirectoryTraversal {
     while (!directoriesToVisit.isEmpty()) {
       DirectoryWithRelativePath directoryWithRelativePath = directoriesToVisit.pop();
       String relativePath = directoryWithRelativePath.relativePath;
-      for (File entry : directoryWithRelativePath.directory.listFiles()) {
+      // The files are visited in the same order on every machine, so that what is built from them,
+      // such as an archive, is the same as well.
+      File[] entries = directoryWithRelativePath.directory.listFiles();
+      Arrays.sort(entries);
+      for (File entry : entries) {
         if (entry.isDirectory()) {
           String directoryPath = relativePath + (relativePath.isEmpty() ? "" : "/")
               + entry.getName();
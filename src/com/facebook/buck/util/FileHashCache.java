@@ -0,0 +1,233 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashCodes;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Memoizes the SHA-1 of the contents of files. Each entry is keyed by the absolute path of the file
+ * and is only considered valid while the size, last-modified time and file key (the device and
+ * inode on Unix) of the file are unchanged.
+ * <p>
+ * There is a single instance per process so that, in the daemon, hashes survive between builds.
+ * The entries can also be written to disk with {@link #save(File)} and read back with
+ * {@link #load(File)} so that a no-op build in a fresh process does not have to re-read every
+ * input file.
+ */
+public class FileHashCache {
+
+  /** Path, relative to the project root, of the file to which the cache is persisted. */
+  public static final String PATH_TO_CACHE_FILE =
+      BuckConstant.BUCK_OUTPUT_DIRECTORY + "/.filehashcache";
+
+  private static final Logger logger = Logger.getLogger(FileHashCache.class.getName());
+
+  private static final FileHashCache instance = new FileHashCache();
+
+  /** Must be bumped whenever the serialized format changes. */
+  private static final int FORMAT_VERSION = 1;
+
+  private static final int SHA1_BYTES = Hashing.sha1().bits() / 8;
+
+  private final ConcurrentMap<String, Entry> entries;
+  private final AtomicLong hitCount;
+  private final AtomicLong missCount;
+  private volatile boolean isDirty;
+  private boolean isLoaded;
+
+  @VisibleForTesting
+  FileHashCache() {
+    this.entries = Maps.newConcurrentMap();
+    this.hitCount = new AtomicLong();
+    this.missCount = new AtomicLong();
+  }
+
+  public static FileHashCache getInstance() {
+    return instance;
+  }
+
+  /**
+   * @return the SHA-1 of the contents of {@code file}, which is read only if it has changed since
+   *     its hash was last memoized.
+   * @throws IOException if {@code file} does not exist or cannot be read.
+   */
+  public HashCode get(File file) throws IOException {
+    Path path = file.toPath().toAbsolutePath();
+    String key = path.toString();
+    FileStamp stamp = FileStamp.of(path);
+
+    Entry entry = entries.get(key);
+    if (entry != null && entry.stamp.equals(stamp)) {
+      hitCount.incrementAndGet();
+      return entry.hashCode;
+    }
+
+    missCount.incrementAndGet();
+    long now = System.currentTimeMillis();
+    HashCode hashCode = Files.hash(file, Hashing.sha1());
+
+    // Only memoize the hash if the file was not modified while it was being read, and it was not
+    // modified so recently that a subsequent modification could go unnoticed.
+    if (stamp.equals(FileStamp.of(path)) && stamp.isTrustedAt(now)) {
+      entries.put(key, new Entry(stamp, hashCode));
+      isDirty = true;
+    } else if (entries.remove(key) != null) {
+      isDirty = true;
+    }
+    return hashCode;
+  }
+
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  public long getMissCount() {
+    return missCount.get();
+  }
+
+  @VisibleForTesting
+  int size() {
+    return entries.size();
+  }
+
+  /**
+   * Reads entries previously written by {@link #save(File)}. Only the first call has any effect, as
+   * the entries held in memory are always at least as current as those on disk. A missing,
+   * truncated or incompatible file is ignored.
+   */
+  public synchronized void load(File cacheFile) {
+    Preconditions.checkNotNull(cacheFile);
+    if (isLoaded) {
+      return;
+    }
+    isLoaded = true;
+    if (!cacheFile.isFile()) {
+      return;
+    }
+
+    try (DataInputStream in = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(cacheFile)))) {
+      if (in.readInt() != FORMAT_VERSION) {
+        return;
+      }
+      int numEntries = in.readInt();
+      Map<String, Entry> loadedEntries = Maps.newHashMapWithExpectedSize(numEntries);
+      for (int i = 0; i < numEntries; i++) {
+        String key = in.readUTF();
+        FileStamp stamp = new FileStamp(in.readLong(), in.readLong(), in.readUTF());
+        byte[] hash = new byte[SHA1_BYTES];
+        in.readFully(hash);
+        loadedEntries.put(key, new Entry(stamp, HashCodes.fromBytes(hash)));
+      }
+      for (Map.Entry<String, Entry> loadedEntry : loadedEntries.entrySet()) {
+        entries.putIfAbsent(loadedEntry.getKey(), loadedEntry.getValue());
+      }
+    } catch (IOException e) {
+      // The cache is purely an optimization: if it cannot be read, start from scratch.
+      logger.warning(String.format("Unable to read file hash cache %s: %s",
+          cacheFile.getPath(),
+          e.getMessage()));
+    }
+  }
+
+  /**
+   * Writes the memoized hashes to {@code cacheFile}, if any of them changed since the last time the
+   * cache was loaded or saved, and forgets those of files that no longer exist. The file is replaced
+   * atomically so that a concurrent or interrupted write can never leave a partial cache behind.
+   */
+  public synchronized void save(File cacheFile) throws IOException {
+    Preconditions.checkNotNull(cacheFile);
+    if (!isDirty) {
+      return;
+    }
+    // Cleared before the snapshot is taken, so that a hash memoized while the cache is being written
+    // marks it dirty again. If the write fails, the cache is marked dirty again so that a later
+    // save retries it.
+    isDirty = false;
+    boolean isSaved = false;
+
+    File tmpFile = null;
+    try {
+      Files.createParentDirs(cacheFile);
+      tmpFile = File.createTempFile(cacheFile.getName(), ".tmp", cacheFile.getParentFile());
+      // Take a snapshot so that the entry count written in the header matches the entries. The
+      // entries of files that were deleted, such as the outputs of rules that were removed, are
+      // dropped, so that neither the cache nor the file that it is saved to grows without bound.
+      Map<String, Entry> snapshot = Maps.newHashMap();
+      for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+        if (new File(entry.getKey()).exists()) {
+          snapshot.put(entry.getKey(), entry.getValue());
+        } else {
+          entries.remove(entry.getKey(), entry.getValue());
+        }
+      }
+      try (DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+        out.writeInt(FORMAT_VERSION);
+        out.writeInt(snapshot.size());
+        for (Map.Entry<String, Entry> entry : snapshot.entrySet()) {
+          FileStamp stamp = entry.getValue().stamp;
+          out.writeUTF(entry.getKey());
+          out.writeLong(stamp.getSize());
+          out.writeLong(stamp.getLastModifiedMillis());
+          out.writeUTF(stamp.getFileKey());
+          out.write(entry.getValue().hashCode.asBytes());
+        }
+      }
+      Files.move(tmpFile, cacheFile);
+      isSaved = true;
+    } finally {
+      if (!isSaved) {
+        isDirty = true;
+      }
+      if (tmpFile != null && tmpFile.exists()) {
+        tmpFile.delete();
+      }
+    }
+    logger.info(String.format("Saved %d file hashes to %s", entries.size(), cacheFile.getPath()));
+  }
+
+  private static class Entry {
+    private final FileStamp stamp;
+    private final HashCode hashCode;
+
+    private Entry(FileStamp stamp, HashCode hashCode) {
+      this.stamp = stamp;
+      this.hashCode = hashCode;
+    }
+  }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * The attributes of a regular file that must be unchanged for anything derived from its contents,
+ * such as a hash, to still be valid: its size, last-modified time and file key (the device and
+ * inode on Unix).
+ */
+public final class FileStamp {
+
+  /**
+   * A file that was modified less than this long before it was read may be modified again
+   * without its last-modified time changing, because many filesystems only record it to the
+   * second. Anything derived from such a "racily clean" file must not be trusted on its stamp.
+   */
+  public static final long RACY_WINDOW_MILLIS = 2000L;
+
+  private final long size;
+  private final long lastModifiedMillis;
+  private final String fileKey;
+
+  FileStamp(long size, long lastModifiedMillis, String fileKey) {
+    this.size = size;
+    this.lastModifiedMillis = lastModifiedMillis;
+    this.fileKey = Preconditions.checkNotNull(fileKey);
+  }
+
+  /**
+   * @return the current stamp of {@code path}.
+   * @throws IOException if {@code path} does not exist or is not a regular file.
+   */
+  public static FileStamp of(Path path) throws IOException {
+    BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+    if (!attributes.isRegularFile()) {
+      throw new IOException(String.format("Not a regular file: %s", path));
+    }
+    // fileKey() is null on platforms that do not have a notion of an inode.
+    return new FileStamp(attributes.size(),
+        attributes.lastModifiedTime().toMillis(),
+        String.valueOf(attributes.fileKey()));
+  }
+
+  public long getSize() {
+    return size;
+  }
+
+  public long getLastModifiedMillis() {
+    return lastModifiedMillis;
+  }
+
+  public String getFileKey() {
+    return fileKey;
+  }
+
+  /**
+   * @return whether the file was last modified long enough before {@code readTimeMillis}, the time
+   *     at which its contents started to be read, that a later modification is guaranteed to change
+   *     its stamp.
+   */
+  public boolean isTrustedAt(long readTimeMillis) {
+    return readTimeMillis - lastModifiedMillis > RACY_WINDOW_MILLIS;
+  }
+
+  /** @return whether {@code other} is a stamp of the same file, even if its contents changed. */
+  public boolean isSameFile(FileStamp other) {
+    return fileKey.equals(other.fileKey);
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (!(obj instanceof FileStamp)) {
+      return false;
+    }
+    FileStamp that = (FileStamp) obj;
+    return this.size == that.size &&
+        this.lastModifiedMillis == that.lastModifiedMillis &&
+        this.fileKey.equals(that.fileKey);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hashCode(size, lastModifiedMillis, fileKey);
+  }
+
+  @Override
+  public String toString() {
+    return Objects.toStringHelper(this)
+        .add("size", size)
+        .add("lastModifiedMillis", lastModifiedMillis)
+        .add("fileKey", fileKey)
+        .toString();
+  }
+}
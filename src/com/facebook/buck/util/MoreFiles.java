@@ -21,6 +21,7 @@ import com.google.common.base.Charsets;
 import com.google.common.base.Function;
 import com.google.common.base.Functions;
 import com.google.common.base.Objects;
+import com.google.common.base.Throwables;
 import com.google.common.collect.Lists;
 import com.google.common.io.Files;
 
@@ -28,25 +29,38 @@ import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.FileVisitResult;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 public final class MoreFiles {
 
   /** Utility class: do not instantiate. */
   private MoreFiles() {}
 
-  public static void rmdir(String path, ProcessExecutor processExecutor) throws IOException {
-    // Unfortunately, Guava's Files.deleteRecursively() method is deprecated.
-    // This is what the deprecation message suggested to do instead.
-    // Unfortunately, it is not cross-platform.
-    Process process = Runtime.getRuntime().exec(new String[] {"rm", "-rf", path});
-    processExecutor.execute(process);
+  /**
+   * Pool in which the subdirectories of a directory are deleted in parallel. Its threads are daemon
+   * threads, so it never has to be shut down.
+   */
+  private static final ForkJoinPool DELETE_POOL = new ForkJoinPool();
+
+  /**
+   * Deletes {@code path} as {@code rm -rf} does: if it is a directory, everything under it is
+   * deleted, too, and it is not an error if it does not exist. Symlinks are deleted rather than
+   * followed.
+   */
+  public static void rmdir(Path path) throws IOException {
+    if (java.nio.file.Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+      deleteRecursively(path);
+    }
   }
 
   /**
@@ -97,27 +111,81 @@ public final class MoreFiles {
     java.nio.file.Files.walkFileTree(fromPath, copyDirVisitor);
   }
 
-  public static void deleteRecursively(final Path path) throws IOException {
-    // Adapted from http://codingjunkie.net/java-7-copy-move/.
-    SimpleFileVisitor<Path> deleteDirVisitor = new SimpleFileVisitor<Path>() {
-
-      @Override
-      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-        java.nio.file.Files.delete(file);
-        return FileVisitResult.CONTINUE;
+  /**
+   * Deletes {@code path} and, if it is a directory, everything under it. The subdirectories of each
+   * directory are deleted in parallel, as deleting a large tree is bound by the latency of the
+   * filesystem rather than by the CPU. Symlinks are deleted rather than followed.
+   * @throws IOException if {@code path} does not exist or any file under it cannot be deleted.
+   */
+  public static void deleteRecursively(Path path) throws IOException {
+    try {
+      DELETE_POOL.invoke(new DeleteTask(path));
+    } catch (RuntimeException e) {
+      // The IOException may have been wrapped more than once if it was thrown by another thread.
+      for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+        if (cause instanceof IOException) {
+          throw (IOException) cause;
+        }
       }
+      throw e;
+    }
+  }
 
-      @Override
-      public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
-        if (e == null) {
-          java.nio.file.Files.delete(dir);
-          return FileVisitResult.CONTINUE;
-        } else {
-          throw e;
+  /**
+   * Deletes {@code path} if it is a regular file that has other hardlinks, such as an output that
+   * was fetched from a {@code DirArtifactCache}, so that it is written anew rather than through the
+   * link.
+   */
+  public static void deleteIfHardLinked(Path path) throws IOException {
+    if (!java.nio.file.Files.isRegularFile(path, LinkOption.NOFOLLOW_LINKS)) {
+      return;
+    }
+    int numLinks;
+    try {
+      numLinks = (Integer) java.nio.file.Files.getAttribute(path,
+          "unix:nlink",
+          LinkOption.NOFOLLOW_LINKS);
+    } catch (UnsupportedOperationException | IllegalArgumentException e) {
+      // The filesystem does not report the number of links, so it cannot have made any.
+      return;
+    }
+    if (numLinks > 1) {
+      java.nio.file.Files.deleteIfExists(path);
+    }
+  }
+
+  @SuppressWarnings("serial")
+  private static class DeleteTask extends RecursiveAction {
+    private final Path path;
+
+    DeleteTask(Path path) {
+      this.path = path;
+    }
+
+    @Override
+    protected void compute() {
+      try {
+        if (java.nio.file.Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+          List<DeleteTask> subdirectories = Lists.newArrayList();
+          DirectoryStream<Path> entries = java.nio.file.Files.newDirectoryStream(path);
+          try {
+            for (Path entry : entries) {
+              if (java.nio.file.Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+                subdirectories.add(new DeleteTask(entry));
+              } else {
+                java.nio.file.Files.delete(entry);
+              }
+            }
+          } finally {
+            entries.close();
+          }
+          invokeAll(subdirectories);
         }
+        java.nio.file.Files.delete(path);
+      } catch (IOException e) {
+        throw Throwables.propagate(e);
       }
-    };
-    java.nio.file.Files.walkFileTree(path, deleteDirVisitor);
+    }
   }
 
   /**
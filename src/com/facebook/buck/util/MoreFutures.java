@@ -16,12 +16,14 @@
 
 package com.facebook.buck.util;
 
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.Uninterruptibles;
 
+import java.io.IOException;
 import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CancellationException;
@@ -54,6 +56,21 @@ public class MoreFutures {
     return Uninterruptibles.getUninterruptibly(allAsOne);
   }
 
+  /**
+   * Waits uninterruptibly for {@code future} to be resolved.
+   * @return the value of the future.
+   * @throws IOException if the computation threw an {@link IOException}. If it threw anything
+   *     else, that is rethrown as an unchecked exception.
+   */
+  public static <V> V getUninterruptibly(ListenableFuture<V> future) throws IOException {
+    try {
+      return Uninterruptibles.getUninterruptibly(future);
+    } catch (ExecutionException e) {
+      Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+      throw Throwables.propagate(e.getCause());
+    }
+  }
+
   /**
    * Create a convenience method for checking whether a future completed successfully because this
    * does not appear to be possible to do in a more direct way:
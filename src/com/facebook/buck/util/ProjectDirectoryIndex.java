@@ -0,0 +1,258 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+/**
+ * In-memory index of the files and directories of a project, which is used to evaluate
+ * {@code glob()} in build files and to check that the files referenced by build rules exist without
+ * going to disk for each of them.
+ * <p>
+ * Each directory is listed the first time it is needed, and its listing is kept until
+ * {@link #onPathChanged(Path)} reports that a file was added to or removed from it. In the daemon,
+ * the same index is used by every command, so a glob over a large tree is answered from memory.
+ * <p>
+ * This class is thread-safe: build files are evaluated by several interpreters at once.
+ */
+public class ProjectDirectoryIndex {
+
+  private static final DirectoryListing EMPTY_LISTING = new DirectoryListing(
+      ImmutableSortedSet.<String>of(),
+      ImmutableSortedSet.<String>of());
+
+  private final ProjectFilesystem projectFilesystem;
+
+  /** Listings keyed by the path of the directory relative to the project root. */
+  private final ConcurrentMap<String, DirectoryListing> listings;
+
+  public ProjectDirectoryIndex(ProjectFilesystem projectFilesystem) {
+    this.projectFilesystem = Preconditions.checkNotNull(projectFilesystem);
+    this.listings = Maps.newConcurrentMap();
+  }
+
+  /**
+   * @param pathRelativeToProjectRoot may contain {@code .} and {@code ..} components.
+   * @return whether the path is a regular file, following symlinks, as
+   *     {@link java.io.File#isFile()} does.
+   */
+  public boolean isFile(String pathRelativeToProjectRoot) {
+    Path path = Paths.get(pathRelativeToProjectRoot).normalize();
+    Path fileName = path.getFileName();
+    if (fileName == null || fileName.toString().isEmpty() || path.startsWith("..")) {
+      return false;
+    }
+    return getListing(getParent(path)).files.contains(fileName.toString());
+  }
+
+  /**
+   * Evaluates {@code glob()} for a build file: the same patterns match the same files as in
+   * {@code buck.py}, but the directories are listed via the index.
+   * @param basePath the directory of the build file, relative to the project root.
+   * @param includes patterns of the files to return, relative to {@code basePath}.
+   * @param excludes patterns of the files not to return, even if they match {@code includes}.
+   * @param listedDirectories to which the absolute path of each directory that was listed is added,
+   *     as the result changes if a file is added to or removed from any of them.
+   * @return the matching files relative to {@code basePath}, directory by directory.
+   */
+  public List<String> glob(String basePath,
+      List<String> includes,
+      List<String> excludes,
+      List<String> listedDirectories) {
+    List<Pattern> inclusions = toPatterns(includes);
+    List<Pattern> exclusions = toPatterns(excludes);
+
+    List<String> paths = Lists.newArrayList();
+    List<String> directoriesToList = Lists.newLinkedList();
+    directoriesToList.add("");
+    while (!directoriesToList.isEmpty()) {
+      String relativeDirectory = directoriesToList.remove(0);
+      String directory = join(basePath, relativeDirectory);
+      listedDirectories.add(projectFilesystem.getFileForRelativePath(directory).getAbsolutePath());
+      DirectoryListing listing = getListing(directory);
+
+      for (String file : listing.files) {
+        String path = join(relativeDirectory, file);
+        if (isMatch(path, inclusions, exclusions)) {
+          paths.add(path);
+        }
+      }
+
+      // Subdirectories are visited depth-first, in the same order as os.walk() in buck.py.
+      int index = 0;
+      for (String subdirectory : listing.subdirectories) {
+        directoriesToList.add(index++, join(relativeDirectory, subdirectory));
+      }
+    }
+    return paths;
+  }
+
+  /**
+   * Must be called when the file or directory at {@code pathRelativeToProjectRoot} is added,
+   * removed or replaced, so that the listings that included it are read again.
+   */
+  public void onPathChanged(Path pathRelativeToProjectRoot) {
+    Path path = pathRelativeToProjectRoot.normalize();
+    listings.remove(getParent(path));
+
+    // If a directory was removed or replaced, so were all of the directories under it.
+    String directory = path.toString();
+    listings.remove(directory);
+    String prefix = directory + '/';
+    for (Iterator<String> iterator = listings.keySet().iterator(); iterator.hasNext();) {
+      if (iterator.next().startsWith(prefix)) {
+        iterator.remove();
+      }
+    }
+  }
+
+  /** Forgets every listing, for when changes to the filesystem may have been missed. */
+  public void clear() {
+    listings.clear();
+  }
+
+  private DirectoryListing getListing(String directory) {
+    DirectoryListing listing = listings.get(directory);
+    if (listing == null) {
+      listing = readListing(directory);
+      DirectoryListing previous = listings.putIfAbsent(directory, listing);
+      if (previous != null) {
+        listing = previous;
+      }
+    }
+    return listing;
+  }
+
+  /**
+   * Lists {@code directory} the way that os.walk() does: symlinks to directories are not descended
+   * into, and a directory that does not exist is empty.
+   */
+  private DirectoryListing readListing(String directory) {
+    Path path = projectFilesystem.getFileForRelativePath(directory).toPath();
+    ImmutableSortedSet.Builder<String> files = ImmutableSortedSet.naturalOrder();
+    ImmutableSortedSet.Builder<String> subdirectories = ImmutableSortedSet.naturalOrder();
+    try {
+      DirectoryStream<Path> entries = Files.newDirectoryStream(path);
+      try {
+        for (Path entry : entries) {
+          String name = entry.getFileName().toString();
+          if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+            subdirectories.add(name);
+          } else if (Files.isRegularFile(entry)) {
+            files.add(name);
+          }
+        }
+      } finally {
+        entries.close();
+      }
+    } catch (NoSuchFileException | NotDirectoryException e) {
+      return EMPTY_LISTING;
+    } catch (IOException e) {
+      throw Throwables.propagate(e);
+    }
+    return new DirectoryListing(files.build(), subdirectories.build());
+  }
+
+  private static String getParent(Path path) {
+    Path parent = path.getParent();
+    return parent == null ? "" : parent.toString();
+  }
+
+  private static String join(String directory, String name) {
+    if (directory.isEmpty()) {
+      return name;
+    } else if (name.isEmpty()) {
+      return directory;
+    } else {
+      return directory + '/' + name;
+    }
+  }
+
+  private static boolean isMatch(String path, List<Pattern> inclusions, List<Pattern> exclusions) {
+    for (Pattern exclusion : exclusions) {
+      if (exclusion.matcher(path).matches()) {
+        return false;
+      }
+    }
+    for (Pattern inclusion : inclusions) {
+      if (inclusion.matcher(path).matches()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static List<Pattern> toPatterns(List<String> globPatterns) {
+    ImmutableList.Builder<Pattern> patterns = ImmutableList.builder();
+    for (String globPattern : globPatterns) {
+      patterns.add(Pattern.compile(globPatternToRegex(globPattern)));
+    }
+    return patterns.build();
+  }
+
+  /**
+   * Translates a glob pattern to a regular expression exactly as
+   * {@code glob_pattern_to_regex_string()} in {@code buck.py} does, so that both implementations
+   * of {@code glob()} agree.
+   */
+  @VisibleForTesting
+  static String globPatternToRegex(String pattern) {
+    pattern = pattern.replace(".", "\\.");
+    pattern = pattern.replace("**/*", "(.*)");
+
+    // This handles the case when there is a character preceding the asterisk.
+    pattern = pattern.replaceAll("([^\\.])\\*", "$1[^/]*");
+
+    // This handles the case when the asterisk is the first character.
+    pattern = pattern.replaceFirst("^\\*", "[^/]*");
+
+    return "^" + pattern + "$";
+  }
+
+  private static class DirectoryListing {
+    /** Names of the regular files, including symlinks to them. */
+    private final ImmutableSortedSet<String> files;
+
+    /** Names of the directories, excluding symlinks to them. */
+    private final ImmutableSortedSet<String> subdirectories;
+
+    DirectoryListing(ImmutableSortedSet<String> files,
+        ImmutableSortedSet<String> subdirectories) {
+      this.files = files;
+      this.subdirectories = subdirectories;
+    }
+  }
+}
@@ -79,6 +79,14 @@ public class ProjectFilesystem {
         : new File(projectRoot, pathRelativeToProjectRoot);
   }
 
+  /**
+   * @param path relative to the project root, or absolute.
+   * @return the absolute path, as a shell command run from the project root would resolve it.
+   */
+  public Path resolve(String path) {
+    return projectRoot.toPath().resolve(path);
+  }
+
   public boolean exists(String pathRelativeToProjectRoot) {
     return getFileForRelativePath(pathRelativeToProjectRoot).exists();
   }
@@ -124,10 +132,8 @@ public class ProjectFilesystem {
   /**
    * Recursively delete everything under the specified path.
    */
-  public void rmdir(String path, ProcessExecutor processExecutor) throws IOException {
-    // TODO(mbolin): Reimplement this so it no longer requires a processExecutor using the
-    // SimpleFileVisitor introduced in Java 7.
-    MoreFiles.rmdir(path, processExecutor);
+  public void rmdir(String pathRelativeToProjectRoot) throws IOException {
+    MoreFiles.rmdir(resolve(pathRelativeToProjectRoot));
   }
 
   public void createParentDirs(String pathRelativeToProjectRoot) throws IOException {
@@ -166,6 +172,6 @@ public class ProjectFilesystem {
   public boolean isPathChangeEvent(WatchEvent<?> event) {
     return event.kind() == StandardWatchEventKinds.ENTRY_CREATE ||
         event.kind() == StandardWatchEventKinds.ENTRY_MODIFY ||
-        event.kind() == StandardWatchEventKinds.ENTRY_CREATE;
+        event.kind() == StandardWatchEventKinds.ENTRY_DELETE;
   }
 }
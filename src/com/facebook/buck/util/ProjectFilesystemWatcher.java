@@ -37,7 +37,8 @@ import java.util.Map;
 /**
  * Watches a ProjectFilesystem for file changes using a given WatchService.
  * Change events are posted to a given EventBus when postEvents are called unless the affected files are
- * contained within the given excludeDirectories.
+ * contained within the given excludeDirectories. The context of each path change event that is
+ * posted is the absolute path of the file or directory that changed, rather than its name.
  */
 public class ProjectFilesystemWatcher implements Closeable {
 
@@ -75,11 +76,15 @@ public class ProjectFilesystemWatcher implements Closeable {
             continue;
           }
           if (filesystem.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
-            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
-              registerAll(child);
+            if (event.kind() != StandardWatchEventKinds.ENTRY_CREATE) {
+              continue;
             }
-            continue; // TODO(user): post events about directories?
+            // A directory that is moved into the project does not produce events for its contents,
+            // so its creation has to be posted for listeners to notice them.
+            registerAll(child);
           }
+          eventBus.post(new PathWatchEvent(event, child.toAbsolutePath()));
+          continue;
         }
         eventBus.post(event);
       }
@@ -134,4 +139,34 @@ public class ProjectFilesystemWatcher implements Closeable {
   public void close() throws IOException {
     watchService.close();
   }
+
+  /**
+   * A {@link WatchEvent} whose context is the full path of the file that changed.
+   */
+  private static class PathWatchEvent implements WatchEvent<Path> {
+
+    private final WatchEvent<?> event;
+    private final Path path;
+
+    PathWatchEvent(WatchEvent<?> event, Path path) {
+      this.event = event;
+      this.path = path;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked") // Only path change events are wrapped.
+    public Kind<Path> kind() {
+      return (Kind<Path>) event.kind();
+    }
+
+    @Override
+    public int count() {
+      return event.count();
+    }
+
+    @Override
+    public Path context() {
+      return path;
+    }
+  }
 }
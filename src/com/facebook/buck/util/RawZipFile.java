@@ -0,0 +1,319 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.GregorianCalendar;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * A ZIP archive whose entries can be read as they are stored, without inflating them, so that they
+ * can be copied to another archive by a {@link RawZipWriter}. Only the archives that
+ * {@link java.util.zip.ZipFile} would read the same way are supported: opening one that is split,
+ * uses ZIP64 or has an encrypted entry fails with a {@link ZipException}.
+ */
+public class RawZipFile implements Closeable {
+
+  private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+  private static final int LOCAL_HEADER_SIZE = 30;
+  private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+  private static final int CENTRAL_HEADER_SIZE = 46;
+  private static final int END_SIGNATURE = 0x06054b50;
+  private static final int END_SIZE = 22;
+  private static final int MAX_COMMENT_SIZE = 0xFFFF;
+
+  private static final int FLAG_ENCRYPTED = 0x1;
+
+  private final RandomAccessFile file;
+  private final ImmutableList<Entry> entries;
+
+  private RawZipFile(RandomAccessFile file, ImmutableList<Entry> entries) {
+    this.file = Preconditions.checkNotNull(file);
+    this.entries = Preconditions.checkNotNull(entries);
+  }
+
+  /** @throws ZipException if {@code zipFile} is not an archive that this can read. */
+  public static RawZipFile open(File zipFile) throws IOException {
+    RandomAccessFile file = new RandomAccessFile(zipFile, "r");
+    boolean isOpen = false;
+    try {
+      RawZipFile rawZipFile = new RawZipFile(file, readCentralDirectory(file.getChannel()));
+      isOpen = true;
+      return rawZipFile;
+    } finally {
+      if (!isOpen) {
+        file.close();
+      }
+    }
+  }
+
+  /** @return the entries of the archive, in the order of its central directory. */
+  public ImmutableList<Entry> getEntries() {
+    return entries;
+  }
+
+  /**
+   * @return the data of {@code entry} as it is stored in the archive, which is
+   *     {@link Entry#getCompressedSize()} bytes long.
+   */
+  public InputStream getRawInputStream(Entry entry) throws IOException {
+    FileChannel channel = file.getChannel();
+    ByteBuffer header = readFully(channel, entry.localHeaderOffset, LOCAL_HEADER_SIZE);
+    if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+      throw new ZipException("Bad local header for " + entry.getName());
+    }
+    long dataOffset = entry.localHeaderOffset + LOCAL_HEADER_SIZE +
+        (header.getShort(26) & 0xFFFF) +
+        (header.getShort(28) & 0xFFFF);
+    return new RangeInputStream(channel, dataOffset, entry.getCompressedSize());
+  }
+
+  /** @return the uncompressed data of {@code entry}. */
+  public InputStream getInputStream(Entry entry) throws IOException {
+    InputStream rawData = getRawInputStream(entry);
+    if (entry.getMethod() == ZipEntry.STORED) {
+      return rawData;
+    }
+    // Unlike its own Inflater, an InflaterInputStream does not end the one it is given.
+    final Inflater inflater = new Inflater(/* nowrap */ true);
+    return new InflaterInputStream(rawData, inflater) {
+      @Override
+      public void close() throws IOException {
+        try {
+          super.close();
+        } finally {
+          inflater.end();
+        }
+      }
+    };
+  }
+
+  @Override
+  public void close() throws IOException {
+    file.close();
+  }
+
+  private static ImmutableList<Entry> readCentralDirectory(FileChannel channel) throws IOException {
+    // The end of central directory record is followed by a comment of up to 64KB.
+    long length = channel.size();
+    int tailLength = (int) Math.min(length, END_SIZE + MAX_COMMENT_SIZE);
+    ByteBuffer tail = readFully(channel, length - tailLength, tailLength);
+    int end = -1;
+    for (int i = tailLength - END_SIZE; i >= 0; i--) {
+      if (tail.getInt(i) == END_SIGNATURE) {
+        end = i;
+        break;
+      }
+    }
+    if (end < 0) {
+      throw new ZipException("No end of central directory record.");
+    }
+    int numDisks = tail.getShort(end + 4) & 0xFFFF;
+    int numEntries = tail.getShort(end + 10) & 0xFFFF;
+    long centralDirectorySize = tail.getInt(end + 12) & 0xFFFFFFFFL;
+    long centralDirectoryOffset = tail.getInt(end + 16) & 0xFFFFFFFFL;
+    if (numDisks != 0 ||
+        numEntries == 0xFFFF ||
+        centralDirectorySize == 0xFFFFFFFFL ||
+        centralDirectoryOffset == 0xFFFFFFFFL) {
+      throw new ZipException("Split and ZIP64 archives are not supported.");
+    }
+    if (centralDirectoryOffset + centralDirectorySize > length ||
+        centralDirectorySize > Integer.MAX_VALUE) {
+      throw new ZipException("Bad central directory.");
+    }
+
+    ByteBuffer centralDirectory =
+        readFully(channel, centralDirectoryOffset, (int) centralDirectorySize);
+    ImmutableList.Builder<Entry> entries = ImmutableList.builder();
+    for (int i = 0; i < numEntries; i++) {
+      int position = centralDirectory.position();
+      if (centralDirectory.remaining() < CENTRAL_HEADER_SIZE ||
+          centralDirectory.getInt(position) != CENTRAL_HEADER_SIGNATURE) {
+        throw new ZipException("Bad central directory.");
+      }
+      if ((centralDirectory.getShort(position + 8) & FLAG_ENCRYPTED) != 0) {
+        throw new ZipException("Encrypted entries are not supported.");
+      }
+      int method = centralDirectory.getShort(position + 10) & 0xFFFF;
+      if (method != ZipEntry.STORED && method != ZipEntry.DEFLATED) {
+        throw new ZipException("Unsupported compression method: " + method);
+      }
+      long compressedSize = centralDirectory.getInt(position + 20) & 0xFFFFFFFFL;
+      long size = centralDirectory.getInt(position + 24) & 0xFFFFFFFFL;
+      long localHeaderOffset = centralDirectory.getInt(position + 42) & 0xFFFFFFFFL;
+      if (compressedSize == 0xFFFFFFFFL || size == 0xFFFFFFFFL ||
+          localHeaderOffset == 0xFFFFFFFFL) {
+        throw new ZipException("ZIP64 entries are not supported.");
+      }
+
+      int nameLength = centralDirectory.getShort(position + 28) & 0xFFFF;
+      int extraLength = centralDirectory.getShort(position + 30) & 0xFFFF;
+      int commentLength = centralDirectory.getShort(position + 32) & 0xFFFF;
+      int next = position + CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+      if (next > centralDirectory.limit()) {
+        throw new ZipException("Bad central directory.");
+      }
+      int dosTime = centralDirectory.getShort(position + 12) & 0xFFFF;
+      int dosDate = centralDirectory.getShort(position + 14) & 0xFFFF;
+      long crc = centralDirectory.getInt(position + 16) & 0xFFFFFFFFL;
+      byte[] name = new byte[nameLength];
+      centralDirectory.position(position + CENTRAL_HEADER_SIZE);
+      centralDirectory.get(name);
+      centralDirectory.position(next);
+      entries.add(new Entry(new String(name, Charsets.UTF_8),
+          method,
+          dosToJavaTime(dosDate, dosTime),
+          crc,
+          size,
+          compressedSize,
+          localHeaderOffset));
+    }
+    return entries.build();
+  }
+
+  /** @return an MS-DOS date and time, in the default time zone, as {@link ZipEntry} reads it. */
+  private static long dosToJavaTime(int dosDate, int dosTime) {
+    return new GregorianCalendar(
+        1980 + ((dosDate >> 9) & 0x7F),
+        ((dosDate >> 5) & 0xF) - 1,
+        dosDate & 0x1F,
+        (dosTime >> 11) & 0x1F,
+        (dosTime >> 5) & 0x3F,
+        (dosTime << 1) & 0x3E).getTimeInMillis();
+  }
+
+  private static ByteBuffer readFully(FileChannel channel, long position, int length)
+      throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0) {
+        throw new ZipException("Unexpected end of archive.");
+      }
+    }
+    buffer.flip();
+    return buffer;
+  }
+
+  /**
+   * Reads a range of the archive with positional reads, so that it does not move, or close, the
+   * channel that is shared with the other entries.
+   */
+  private static class RangeInputStream extends InputStream {
+    private final FileChannel channel;
+    private long position;
+    private final long end;
+
+    private RangeInputStream(FileChannel channel, long position, long length) {
+      this.channel = channel;
+      this.position = position;
+      this.end = position + length;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) == 1 ? b[0] & 0xFF : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (position >= end) {
+        return -1;
+      }
+      int toRead = (int) Math.min(len, end - position);
+      int numRead = channel.read(ByteBuffer.wrap(b, off, toRead), position);
+      if (numRead < 0) {
+        throw new ZipException("Unexpected end of archive.");
+      }
+      position += numRead;
+      return numRead;
+    }
+
+    @Override
+    public int available() {
+      return (int) Math.min(Integer.MAX_VALUE, end - position);
+    }
+  }
+
+  /** An entry of a {@link RawZipFile}, as its central directory describes it. */
+  public static class Entry {
+    private final String name;
+    private final int method;
+    private final long time;
+    private final long crc;
+    private final long size;
+    private final long compressedSize;
+    private final long localHeaderOffset;
+
+    private Entry(String name,
+        int method,
+        long time,
+        long crc,
+        long size,
+        long compressedSize,
+        long localHeaderOffset) {
+      this.name = name;
+      this.method = method;
+      this.time = time;
+      this.crc = crc;
+      this.size = size;
+      this.compressedSize = compressedSize;
+      this.localHeaderOffset = localHeaderOffset;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    /** @return either {@link ZipEntry#STORED} or {@link ZipEntry#DEFLATED}. */
+    public int getMethod() {
+      return method;
+    }
+
+    /** @return the time of the entry, which an archive only stores to within two seconds. */
+    public long getTime() {
+      return time;
+    }
+
+    public long getCrc() {
+      return crc;
+    }
+
+    public long getSize() {
+      return size;
+    }
+
+    public long getCompressedSize() {
+      return compressedSize;
+    }
+  }
+}
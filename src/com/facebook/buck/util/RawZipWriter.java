@@ -0,0 +1,340 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Writes a ZIP archive whose entries are already compressed, either because they are copied as
+ * they are from another archive with a {@link RawZipFile}, or because they were compressed ahead
+ * of time with {@link #compress(String, byte[])}, possibly on another thread. As with a
+ * {@link DeterministicZipOutputStream}, every entry has the time
+ * {@link DeterministicZipOutputStream#ENTRY_TIME} and no extra field, comment or file attributes,
+ * so the archive only depends on the entries, in the order that they are written.
+ */
+public class RawZipWriter implements Closeable {
+
+  private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+  private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+  private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+  private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+  private static final int END_SIGNATURE = 0x06054b50;
+
+  /** The names are always encoded in UTF-8. */
+  private static final int FLAG_UTF8 = 0x800;
+
+  private static final int VERSION_STORED = 10;
+  private static final int VERSION_DEFLATED = 20;
+  private static final int VERSION_ZIP64 = 45;
+
+  private static final int ZIP64_EXTRA_ID = 0x0001;
+  private static final long MAX_32_BIT_VALUE = 0xFFFFFFFFL;
+  private static final int MAX_16_BIT_VALUE = 0xFFFF;
+
+  /** {@link DeterministicZipOutputStream#ENTRY_TIME} as an MS-DOS date: 1985-02-01. */
+  private static final int DOS_DATE = ((1985 - 1980) << 9) | (2 << 5) | 1;
+  private static final int DOS_TIME = 0;
+
+  private final CountingOutputStream out;
+  private final List<CentralDirectoryEntry> centralDirectory;
+  private boolean isClosed;
+
+  public RawZipWriter(OutputStream out) {
+    this.out = new CountingOutputStream(Preconditions.checkNotNull(out));
+    this.centralDirectory = Lists.newArrayList();
+  }
+
+  /**
+   * @return {@code contents} compressed as the data of the entry {@code name}. A directory, whose
+   *     name ends with a slash, is stored rather than deflated.
+   */
+  public static CompressedEntry compress(String name, byte[] contents) {
+    return compress(name, contents, Deflater.DEFAULT_COMPRESSION);
+  }
+
+  /**
+   * @param level the level of compression, as for a {@link Deflater}. With
+   *     {@link Deflater#NO_COMPRESSION}, the entry is stored, as {@code zip -0} does.
+   * @see #compress(String, byte[])
+   */
+  public static CompressedEntry compress(String name, byte[] contents, int level) {
+    CRC32 crc = new CRC32();
+    crc.update(contents);
+    if (name.endsWith("/") || level == Deflater.NO_COMPRESSION) {
+      return new CompressedEntry(name, ZipEntry.STORED, crc.getValue(), contents.length, contents);
+    }
+
+    Deflater deflater = new Deflater(level, /* nowrap */ true);
+    try {
+      deflater.setInput(contents);
+      deflater.finish();
+      ByteArrayOutputStream data = new ByteArrayOutputStream(contents.length / 2 + 64);
+      byte[] buffer = new byte[8192];
+      while (!deflater.finished()) {
+        int length = deflater.deflate(buffer);
+        data.write(buffer, 0, length);
+      }
+      return new CompressedEntry(name,
+          ZipEntry.DEFLATED,
+          crc.getValue(),
+          contents.length,
+          data.toByteArray());
+    } finally {
+      deflater.end();
+    }
+  }
+
+  public void putEntry(CompressedEntry entry) throws IOException {
+    writeLocalHeader(entry.getName(),
+        entry.getMethod(),
+        entry.getCrc(),
+        entry.getSize(),
+        entry.getData().length);
+    out.write(entry.getData());
+  }
+
+  /**
+   * Writes an entry whose data is read from {@code rawData} as it is, such as one from
+   * {@link RawZipFile#getRawInputStream(RawZipFile.Entry)}.
+   * @param method either {@link ZipEntry#STORED} or {@link ZipEntry#DEFLATED}.
+   * @param crc the CRC-32 of the uncompressed data.
+   * @param size the length of the uncompressed data.
+   * @param compressedSize the number of bytes to read from {@code rawData}.
+   */
+  public void putRawEntry(String name,
+      int method,
+      long crc,
+      long size,
+      long compressedSize,
+      InputStream rawData) throws IOException {
+    writeLocalHeader(name, method, crc, size, compressedSize);
+    long numCopied = ByteStreams.copy(ByteStreams.limit(rawData, compressedSize), out);
+    if (numCopied != compressedSize) {
+      throw new ZipException(String.format(
+          "Expected %d bytes of data for %s but read %d.", compressedSize, name, numCopied));
+    }
+  }
+
+  private void writeLocalHeader(String name, int method, long crc, long size, long compressedSize)
+      throws IOException {
+    Preconditions.checkState(!isClosed, "The archive is closed.");
+    Preconditions.checkArgument(method == ZipEntry.STORED || method == ZipEntry.DEFLATED,
+        "Unsupported compression method: %s", method);
+    if (size >= MAX_32_BIT_VALUE || compressedSize >= MAX_32_BIT_VALUE) {
+      throw new ZipException("Entry is too large: " + name);
+    }
+    byte[] nameBytes = name.getBytes(Charsets.UTF_8);
+    if (nameBytes.length > MAX_16_BIT_VALUE) {
+      throw new ZipException("Entry name is too long: " + name);
+    }
+
+    CentralDirectoryEntry entry = new CentralDirectoryEntry(nameBytes,
+        method,
+        crc,
+        size,
+        compressedSize,
+        out.getCount());
+    centralDirectory.add(entry);
+
+    ByteBuffer header = allocate(30 + nameBytes.length);
+    header.putInt(LOCAL_HEADER_SIGNATURE);
+    header.putShort((short) entry.getVersion(/* isZip64 */ false));
+    header.putShort((short) FLAG_UTF8);
+    header.putShort((short) method);
+    header.putShort((short) DOS_TIME);
+    header.putShort((short) DOS_DATE);
+    header.putInt((int) crc);
+    header.putInt((int) compressedSize);
+    header.putInt((int) size);
+    header.putShort((short) nameBytes.length);
+    header.putShort((short) 0);
+    header.put(nameBytes);
+    out.write(header.array());
+  }
+
+  /** Writes the central directory, and closes the underlying stream. */
+  @Override
+  public void close() throws IOException {
+    if (isClosed) {
+      return;
+    }
+    isClosed = true;
+    try {
+      writeCentralDirectory();
+    } finally {
+      out.close();
+    }
+  }
+
+  private void writeCentralDirectory() throws IOException {
+    long centralDirectoryOffset = out.getCount();
+    for (CentralDirectoryEntry entry : centralDirectory) {
+      boolean isZip64 = entry.localHeaderOffset >= MAX_32_BIT_VALUE;
+      int extraLength = isZip64 ? 12 : 0;
+      ByteBuffer header = allocate(46 + entry.name.length + extraLength);
+      header.putInt(CENTRAL_HEADER_SIGNATURE);
+      header.putShort((short) entry.getVersion(isZip64));
+      header.putShort((short) entry.getVersion(isZip64));
+      header.putShort((short) FLAG_UTF8);
+      header.putShort((short) entry.method);
+      header.putShort((short) DOS_TIME);
+      header.putShort((short) DOS_DATE);
+      header.putInt((int) entry.crc);
+      header.putInt((int) entry.compressedSize);
+      header.putInt((int) entry.size);
+      header.putShort((short) entry.name.length);
+      header.putShort((short) extraLength);
+      header.putShort((short) 0); // comment length
+      header.putShort((short) 0); // disk number start
+      header.putShort((short) 0); // internal file attributes
+      header.putInt(0); // external file attributes
+      header.putInt((int) (isZip64 ? MAX_32_BIT_VALUE : entry.localHeaderOffset));
+      header.put(entry.name);
+      if (isZip64) {
+        header.putShort((short) ZIP64_EXTRA_ID);
+        header.putShort((short) 8);
+        header.putLong(entry.localHeaderOffset);
+      }
+      out.write(header.array());
+    }
+    long centralDirectoryEnd = out.getCount();
+    long centralDirectorySize = centralDirectoryEnd - centralDirectoryOffset;
+
+    int numEntries = centralDirectory.size();
+    boolean isZip64 = numEntries >= MAX_16_BIT_VALUE ||
+        centralDirectorySize >= MAX_32_BIT_VALUE ||
+        centralDirectoryOffset >= MAX_32_BIT_VALUE;
+    if (isZip64) {
+      ByteBuffer zip64End = allocate(56 + 20);
+      zip64End.putInt(ZIP64_END_SIGNATURE);
+      zip64End.putLong(44); // size of the rest of the record
+      zip64End.putShort((short) VERSION_ZIP64);
+      zip64End.putShort((short) VERSION_ZIP64);
+      zip64End.putInt(0); // number of this disk
+      zip64End.putInt(0); // disk where the central directory starts
+      zip64End.putLong(numEntries);
+      zip64End.putLong(numEntries);
+      zip64End.putLong(centralDirectorySize);
+      zip64End.putLong(centralDirectoryOffset);
+      zip64End.putInt(ZIP64_LOCATOR_SIGNATURE);
+      zip64End.putInt(0); // disk where the ZIP64 end of central directory record is
+      zip64End.putLong(centralDirectoryEnd);
+      zip64End.putInt(1); // total number of disks
+      out.write(zip64End.array());
+    }
+
+    ByteBuffer end = allocate(22);
+    end.putInt(END_SIGNATURE);
+    end.putShort((short) 0); // number of this disk
+    end.putShort((short) 0); // disk where the central directory starts
+    end.putShort((short) Math.min(numEntries, MAX_16_BIT_VALUE));
+    end.putShort((short) Math.min(numEntries, MAX_16_BIT_VALUE));
+    end.putInt((int) Math.min(centralDirectorySize, MAX_32_BIT_VALUE));
+    end.putInt((int) Math.min(centralDirectoryOffset, MAX_32_BIT_VALUE));
+    end.putShort((short) 0); // comment length
+    out.write(end.array());
+  }
+
+  private static ByteBuffer allocate(int length) {
+    return ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  /** The data of an entry, compressed by {@link #compress(String, byte[])}. */
+  public static class CompressedEntry {
+    private final String name;
+    private final int method;
+    private final long crc;
+    private final long size;
+    private final byte[] data;
+
+    private CompressedEntry(String name, int method, long crc, long size, byte[] data) {
+      this.name = name;
+      this.method = method;
+      this.crc = crc;
+      this.size = size;
+      this.data = data;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public int getMethod() {
+      return method;
+    }
+
+    public long getCrc() {
+      return crc;
+    }
+
+    public long getSize() {
+      return size;
+    }
+
+    private byte[] getData() {
+      return data;
+    }
+  }
+
+  /** What the central directory records about an entry that has been written. */
+  private static class CentralDirectoryEntry {
+    private final byte[] name;
+    private final int method;
+    private final long crc;
+    private final long size;
+    private final long compressedSize;
+    private final long localHeaderOffset;
+
+    private CentralDirectoryEntry(byte[] name,
+        int method,
+        long crc,
+        long size,
+        long compressedSize,
+        long localHeaderOffset) {
+      this.name = name;
+      this.method = method;
+      this.crc = crc;
+      this.size = size;
+      this.compressedSize = compressedSize;
+      this.localHeaderOffset = localHeaderOffset;
+    }
+
+    private int getVersion(boolean isZip64) {
+      if (isZip64) {
+        return VERSION_ZIP64;
+      }
+      return method == ZipEntry.DEFLATED ? VERSION_DEFLATED : VERSION_STORED;
+    }
+  }
+}
@@ -246,7 +246,7 @@ public class ZipSplitter {
 
   private ZipOutputStreamHelper newZipOutput(File file) throws FileNotFoundException {
     return new ZipOutputStreamHelper(
-        new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(file))));
+        new DeterministicZipOutputStream(new BufferedOutputStream(new FileOutputStream(file))));
   }
 
   private class ZipOutputStreamHelper implements Closeable {
@@ -43,6 +43,7 @@ import com.facebook.buck.step.StepRunner;
 import com.facebook.buck.step.fs.MakeCleanDirectoryStep;
 import com.facebook.buck.step.fs.MkdirAndSymlinkFileStep;
 import com.facebook.buck.step.fs.MkdirStep;
+import com.facebook.buck.step.fs.RmStep;
 import com.facebook.buck.testutil.TestConsole;
 import com.facebook.buck.util.ProjectFilesystem;
 import com.google.common.base.Function;
@@ -148,24 +149,21 @@ public class ApkGenruleTest {
     assertEquals(7, steps.size());
 
     Step firstStep = steps.get(0);
-    assertTrue(firstStep instanceof ShellStep);
-    ShellStep rmCommand = (ShellStep) firstStep;
+    assertTrue(firstStep instanceof RmStep);
+    RmStep rmCommand = (RmStep) firstStep;
     ExecutionContext executionContext = newEmptyExecutionContext();
     assertEquals(
         "First command should delete the output file to be written by the genrule.",
-        ImmutableList.of(
-            "rm",
-            "-f",
-            apkGenrule.getPathToOutputFile()),
-        rmCommand.getShellCommand(executionContext));
+        "rm -f " + apkGenrule.getPathToOutputFile(),
+        rmCommand.getDescription(executionContext));
 
     Step secondStep = steps.get(1);
     assertTrue(secondStep instanceof MkdirStep);
     MkdirStep mkdirCommand = (MkdirStep) secondStep;
     assertEquals(
         "Second command should make sure the output directory exists.",
-        ImmutableList.of("mkdir", "-p", GEN_DIR + "/src/com/facebook/"),
-        mkdirCommand.getShellCommand(executionContext));
+        "mkdir -p " + GEN_DIR + "/src/com/facebook/",
+        mkdirCommand.getDescription(executionContext));
 
     Step thirdStep = steps.get(2);
     assertTrue(thirdStep instanceof MakeCleanDirectoryStep);
@@ -24,10 +24,10 @@ import static org.junit.Assert.assertTrue;
 
 import com.facebook.buck.android.SmartDexingStep.DxPseudoRule;
 import com.facebook.buck.android.SmartDexingStep.InputResolver;
+import com.facebook.buck.rules.BuildMetadataStore;
 import com.facebook.buck.step.ExecutionContext;
 import com.facebook.buck.testutil.MoreAsserts;
 import com.facebook.buck.util.Paths;
-import com.google.common.base.Charsets;
 import com.google.common.base.Optional;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Multimap;
@@ -105,19 +105,22 @@ public class SmartDexingStepTest {
     }
 
     File outputFile = tmpDir.newFile("out.dex");
-    File outputHashFile = new File(tmpDir.getRoot(), "out.dex.hash");
-    Files.write("dummy", outputHashFile, Charsets.UTF_8);
+    BuildMetadataStore buildMetadataStore =
+        new BuildMetadataStore(new File(tmpDir.getRoot(), "build_metadata"));
 
     DxPseudoRule rule = new DxPseudoRule(context, ImmutableSet.of(testIn.getPath()),
-        outputFile.getPath(), outputHashFile.getPath());
-    assertFalse("'dummy' is not a matching input hash", rule.checkIsCached());
+        outputFile.getPath(), Optional.of(buildMetadataStore));
+    assertFalse("No input hash has been recorded", rule.checkIsCached());
 
-    // Write the real hash into the output hash file and ensure that checkIsCached now
-    // yields true.
+    // Record the real hash and ensure that checkIsCached now yields true.
     String actualHash = rule.hashInputs();
     assertFalse(actualHash.isEmpty());
-    Files.write(actualHash, outputHashFile, Charsets.UTF_8);
-
+    rule.recordInputsHash();
     assertTrue("Matching input hash should be considered cached", rule.checkIsCached());
+
+    // An output that was written after the hash was recorded did not come from these inputs.
+    assertTrue(outputFile.setLastModified(outputFile.lastModified() + 2000));
+    assertFalse("Modified output should not be considered cached", rule.checkIsCached());
+    buildMetadataStore.close();
   }
 }
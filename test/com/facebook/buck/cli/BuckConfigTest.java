@@ -33,6 +33,7 @@ import com.facebook.buck.util.BuckConstant;
 import com.facebook.buck.util.HumanReadableException;
 import com.facebook.buck.util.ProjectFilesystem;
 import com.google.common.base.Joiner;
+import com.google.common.base.Optional;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
@@ -372,6 +373,131 @@ public class BuckConfigTest {
         ignorePaths.contains("/cache_dir"));
   }
 
+  @Test
+  public void testCacheDirMaxSize() throws IOException {
+    assertEquals(Optional.<Long>absent(),
+        BuckConfig.createFromReader(new StringReader(""), null).getCacheDirMaxSizeBytes());
+    assertEquals(Optional.of(512L),
+        createConfigWithCacheDirMaxSize("512").getCacheDirMaxSizeBytes());
+    assertEquals(Optional.of(10L * 1024 * 1024 * 1024),
+        createConfigWithCacheDirMaxSize("10GB").getCacheDirMaxSizeBytes());
+    assertEquals(Optional.of(300L * 1024 * 1024),
+        createConfigWithCacheDirMaxSize("300 mb").getCacheDirMaxSizeBytes());
+
+    try {
+      createConfigWithCacheDirMaxSize("lots").getCacheDirMaxSizeBytes();
+      fail("An unusable size should be reported.");
+    } catch (HumanReadableException e) {
+      assertEquals("Unusable cache.dir_max_size: 'lots'", e.getHumanReadableErrorMessage());
+    }
+  }
+
+  @Test
+  public void testArtifactCacheUploadSettings() throws IOException {
+    BuckConfig defaultConfig = BuckConfig.createFromReader(new StringReader(""), null);
+    assertEquals(2, defaultConfig.getNumArtifactCacheUploadThreads());
+    assertEquals(256L * 1024 * 1024, defaultConfig.getArtifactCacheUploadMaxPendingBytes());
+    assertEquals(60000L, defaultConfig.getArtifactCacheUploadTimeoutMillis());
+
+    Reader reader = new StringReader(Joiner.on('\n').join(
+        "[cache]",
+        "upload_threads = 0",
+        "upload_max_pending_size = 1GB",
+        "upload_timeout_seconds = 5"));
+    BuckConfig config = BuckConfig.createFromReader(reader, null);
+    assertEquals(0, config.getNumArtifactCacheUploadThreads());
+    assertEquals(1024L * 1024 * 1024, config.getArtifactCacheUploadMaxPendingBytes());
+    assertEquals(5000L, config.getArtifactCacheUploadTimeoutMillis());
+
+    Reader badReader = new StringReader(Joiner.on('\n').join(
+        "[cache]",
+        "upload_timeout_seconds = 5s"));
+    try {
+      BuckConfig.createFromReader(badReader, null).getArtifactCacheUploadTimeoutMillis();
+      fail("An unusable timeout should be reported.");
+    } catch (HumanReadableException e) {
+      assertEquals("Unusable cache.upload_timeout_seconds: '5s'",
+          e.getHumanReadableErrorMessage());
+    }
+  }
+
+  @Test
+  public void testArtifactCacheMissTtl() throws IOException {
+    Reader reader = new StringReader(Joiner.on('\n').join(
+        "[cache]",
+        "miss_ttl_seconds = 30"));
+    assertEquals(30000L, BuckConfig.createFromReader(reader, null).getArtifactCacheMissTtlMillis());
+
+    Reader badReader = new StringReader(Joiner.on('\n').join(
+        "[cache]",
+        "miss_ttl_seconds = -1"));
+    try {
+      BuckConfig.createFromReader(badReader, null).getArtifactCacheMissTtlMillis();
+      fail("A negative TTL should be reported.");
+    } catch (HumanReadableException e) {
+      assertEquals("Unusable cache.miss_ttl_seconds: '-1'", e.getHumanReadableErrorMessage());
+    }
+  }
+
+  @Test
+  public void testCassandraConnectionsPerHost() throws IOException {
+    assertEquals(4,
+        BuckConfig.createFromReader(new StringReader(""), null).getCassandraConnectionsPerHost());
+
+    Reader reader = new StringReader(Joiner.on('\n').join(
+        "[cache]",
+        "connections_per_host = 0"));
+    try {
+      BuckConfig.createFromReader(reader, null).getCassandraConnectionsPerHost();
+      fail("There must be at least one connection to each host.");
+    } catch (HumanReadableException e) {
+      assertEquals("Unusable cache.connections_per_host: '0'", e.getHumanReadableErrorMessage());
+    }
+  }
+
+  @Test
+  public void testHttpCacheUrl() throws IOException {
+    assertEquals("http://localhost:8080",
+        BuckConfig.createFromReader(new StringReader(""), null).getHttpCacheUrl().toString());
+
+    Reader reader = new StringReader(Joiner.on('\n').join(
+        "[cache]",
+        "http_url = artifactcache:8080"));
+    try {
+      BuckConfig.createFromReader(reader, null).getHttpCacheUrl();
+      fail("The URL has no protocol.");
+    } catch (HumanReadableException e) {
+      assertEquals("Unusable cache.http_url: 'artifactcache:8080'",
+          e.getHumanReadableErrorMessage());
+    }
+  }
+
+  @Test
+  public void testHttpCacheTimeout() throws IOException {
+    Reader reader = new StringReader(Joiner.on('\n').join(
+        "[cache]",
+        "http_timeout_seconds = 3"));
+    assertEquals(3000, BuckConfig.createFromReader(reader, null).getHttpCacheTimeoutMillis());
+
+    Reader badReader = new StringReader(Joiner.on('\n').join(
+        "[cache]",
+        "http_timeout_seconds = three"));
+    try {
+      BuckConfig.createFromReader(badReader, null).getHttpCacheTimeoutMillis();
+      fail("An unusable timeout should be reported.");
+    } catch (HumanReadableException e) {
+      assertEquals("Unusable cache.http_timeout_seconds: 'three'",
+          e.getHumanReadableErrorMessage());
+    }
+  }
+
+  private BuckConfig createConfigWithCacheDirMaxSize(String maxSize) throws IOException {
+    Reader reader = new StringReader(Joiner.on('\n').join(
+        "[cache]",
+        "dir_max_size = " + maxSize));
+    return BuckConfig.createFromReader(reader, null);
+  }
+
   @Test
   public void testBuckPyIgnorePaths() throws IOException {
     ProjectWorkspace workspace = TestDataHelper.createProjectWorkspaceForScenario(
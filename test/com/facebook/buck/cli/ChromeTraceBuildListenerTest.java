@@ -0,0 +1,119 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.cli;
+
+import static org.junit.Assert.assertEquals;
+
+import com.facebook.buck.model.BuildTarget;
+import com.facebook.buck.model.BuildTargetFactory;
+import com.facebook.buck.model.BuildTargetPattern;
+import com.facebook.buck.parser.ParseFinished;
+import com.facebook.buck.parser.ParseStarted;
+import com.facebook.buck.rules.BuildEvents;
+import com.facebook.buck.rules.BuildRule;
+import com.facebook.buck.rules.BuildRuleStatus;
+import com.facebook.buck.rules.BuildRuleType;
+import com.facebook.buck.rules.CacheResult;
+import com.facebook.buck.rules.FakeBuildRule;
+import com.facebook.buck.rules.RuleKey;
+import com.facebook.buck.step.Step;
+import com.facebook.buck.step.StepFinished;
+import com.facebook.buck.step.StepStarted;
+import com.facebook.buck.util.ProjectFilesystem;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.Lists;
+import com.google.common.eventbus.EventBus;
+
+import org.easymock.EasyMock;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+public class ChromeTraceBuildListenerTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  @Test
+  public void testBuildIsWrittenAsNestedTraceEvents() throws IOException {
+    BuildTarget target = BuildTargetFactory.newInstance("//java/com/example:lib");
+    BuildRule rule = new FakeBuildRule(BuildRuleType.JAVA_LIBRARY,
+        target,
+        ImmutableSortedSet.<BuildRule>of(),
+        ImmutableSet.<BuildTargetPattern>of());
+    Step step = EasyMock.createMock(Step.class);
+    EasyMock.replay(step);
+
+    ChromeTraceBuildListener listener =
+        new ChromeTraceBuildListener(new ProjectFilesystem(tmp.getRoot()));
+    EventBus events = new EventBus();
+    events.register(listener);
+
+    events.post(BuildEvents.buildStarted(ImmutableSet.of(rule)));
+    events.post(new ParseStarted(ImmutableList.of(target)));
+    events.post(new ParseFinished());
+    events.post(BuildEvents.ruleKeyCalculated(rule,
+        new RuleKey("aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa"),
+        /* elapsedNanos */ 3000L));
+    events.post(BuildEvents.buildRuleStarted(rule));
+    events.post(BuildEvents.artifactCacheFetched(rule, CacheResult.MISS, /* elapsedNanos */ 0L));
+    events.post(new StepStarted(step, "javac", Optional.of(target)));
+    events.post(new StepFinished(step, "javac", Optional.of(target), /* exitCode */ 0));
+    events.post(BuildEvents.buildRuleFinished(rule, BuildRuleStatus.SUCCESS, CacheResult.MISS));
+    events.post(BuildEvents.buildFinished(/* exitCode */ 0));
+    listener.writeTrace();
+
+    File traceFile = new File(tmp.getRoot(), ChromeTraceBuildListener.PATH_TO_TRACE_FILE);
+    List<?> traceEvents = new ObjectMapper().readValue(traceFile, List.class);
+    List<String> namesAndPhases = Lists.newArrayList();
+    for (Object traceEvent : traceEvents) {
+      Map<?, ?> fields = (Map<?, ?>) traceEvent;
+      namesAndPhases.add(fields.get("name") + " " + fields.get("ph"));
+      assertEquals(Thread.currentThread().getId(), ((Number) fields.get("tid")).longValue());
+    }
+    assertEquals(
+        ImmutableList.of(
+            "build B",
+            "parse B",
+            "parse E",
+            "rule_key X",
+            "//java/com/example:lib B",
+            "artifact_cache_fetch X",
+            "javac B",
+            "javac E",
+            "//java/com/example:lib E",
+            "build E"),
+        namesAndPhases);
+
+    Map<?, ?> ruleKeyEvent = (Map<?, ?>) traceEvents.get(3);
+    assertEquals(3, ((Number) ruleKeyEvent.get("dur")).intValue());
+    Map<?, ?> ruleFinishedEvent = (Map<?, ?>) traceEvents.get(8);
+    assertEquals("MISS", ((Map<?, ?>) ruleFinishedEvent.get("args")).get("cache_result"));
+    Map<?, ?> stepStartedEvent = (Map<?, ?>) traceEvents.get(6);
+    assertEquals("//java/com/example:lib",
+        ((Map<?, ?>) stepStartedEvent.get("args")).get("rule"));
+  }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.java;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.io.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+public class ClassDependencyGraphTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  /** C refers to B, which refers to A, while D refers to nothing. */
+  private static final ClassDependencyGraph GRAPH = new ClassDependencyGraph(
+      "key",
+      "jar-hash",
+      ImmutableMap.of("file:com/example/lib/Lib.class", "lib-hash"),
+      ImmutableSortedMap.of(
+          "A.java", createSource("a", "A.class"),
+          "B.java", createSource("b", "B.class", "A.class"),
+          "C.java", createSource("c", "C.class", "B.class"),
+          "D.java", createSource("d", "D.class")));
+
+  @Test
+  public void testSourcesThatReferToAChangedSourceAreRecompiledTransitively() {
+    assertEquals(
+        ImmutableSortedSet.of("A.java", "B.java", "C.java"),
+        GRAPH.getSourcesToRecompile(
+            ImmutableMap.of("A.java", "changed", "B.java", "b", "C.java", "c", "D.java", "d"))
+            .get());
+    assertEquals(
+        ImmutableSortedSet.of("D.java"),
+        GRAPH.getSourcesToRecompile(
+            ImmutableMap.of("A.java", "a", "B.java", "b", "C.java", "c", "D.java", "changed"))
+            .get());
+  }
+
+  @Test
+  public void testAddingASourceCannotBeCompiledIncrementally() {
+    assertFalse(GRAPH.getSourcesToRecompile(
+        ImmutableMap.of(
+            "A.java", "a", "B.java", "b", "C.java", "c", "D.java", "d", "E.java", "e"))
+        .isPresent());
+  }
+
+  @Test
+  public void testGraphIsTheSameOnceWrittenAndReadBack() throws IOException {
+    File file = tmp.newFile("classes.graph");
+    GRAPH.write(file);
+    ClassDependencyGraph graph = ClassDependencyGraph.read(file);
+    assertEquals(GRAPH.getKey(), graph.getKey());
+    assertEquals(GRAPH.getJarHash(), graph.getJarHash());
+    assertEquals(GRAPH.getDependencyFile(), graph.getDependencyFile());
+    assertEquals(GRAPH.getSources().keySet(), graph.getSources().keySet());
+    ClassDependencyGraph.Source source = graph.getSources().get("B.java");
+    assertEquals("b", source.getHash());
+    assertEquals(ImmutableSortedSet.of("B.class"), source.getClassFiles());
+    assertEquals(ImmutableSortedSet.of("A.class"), source.getReferencedClassFiles());
+    assertEquals(ImmutableSortedSet.of("summary of B.class"), source.getAbiSummaries());
+    assertEquals(ImmutableSortedSet.of("X:I=I1"), source.getConstants());
+  }
+
+  @Test
+  public void testGraphThatCannotBeReadIsNull() throws IOException {
+    File file = tmp.newFile("classes.graph");
+    Files.write("not a graph", file, Charsets.UTF_8);
+    assertNull(ClassDependencyGraph.read(file));
+    assertNull(ClassDependencyGraph.read(new File(tmp.getRoot(), "missing.graph")));
+  }
+
+  private static ClassDependencyGraph.Source createSource(String hash,
+      String classFile,
+      String... referencedClassFiles) {
+    return new ClassDependencyGraph.Source(hash,
+        ImmutableSortedSet.of(classFile),
+        ImmutableSortedSet.copyOf(referencedClassFiles),
+        ImmutableSortedSet.of("summary of " + classFile),
+        ImmutableSortedSet.of("X:I=I1"));
+  }
+}
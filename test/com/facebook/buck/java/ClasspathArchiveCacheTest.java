@@ -0,0 +1,154 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.java;
+
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import javax.tools.JavaFileObject;
+
+public class ClasspathArchiveCacheTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  @Test
+  public void testArchiveIsIndexedOnceUntilTheJarChanges() throws IOException {
+    File jar = tmp.newFile("lib.jar");
+    writeJar(jar, "com/example/A.class", "com/example/sub/B.class", "com/example/data.txt");
+    jar.setLastModified(10000);
+    ClasspathArchiveCache cache = new ClasspathArchiveCache();
+
+    ClasspathArchive archive = cache.get(jar);
+    assertSame(archive, cache.get(jar));
+    assertEquals(1, cache.getMissCount());
+    assertEquals(1, cache.getHitCount());
+    assertEquals(ImmutableList.of("com/example/A.class"), list(archive, "com.example"));
+    assertEquals(ImmutableList.of("com/example/A.class", "com/example/sub/B.class"),
+        listRecursively(archive, "com.example"));
+
+    // A rule that writes the same jar again only changes its stamp, so the index is kept.
+    writeJar(jar, "com/example/A.class", "com/example/sub/B.class", "com/example/data.txt");
+    jar.setLastModified(20000);
+    ClasspathArchive rewrittenArchive = cache.get(jar);
+    assertNotSame(archive, rewrittenArchive);
+    assertEquals(archive.getHash(), rewrittenArchive.getHash());
+    assertEquals(1, cache.getMissCount());
+
+    writeJar(jar, "com/example/C.class");
+    jar.setLastModified(30000);
+    ClasspathArchive changedArchive = cache.get(jar);
+    assertEquals(2, cache.getMissCount());
+    assertEquals(ImmutableList.of("com/example/C.class"),
+        listRecursively(changedArchive, "com.example"));
+  }
+
+  @Test
+  public void testJarRewrittenWithinTheRacyWindowIsIndexedAgain() throws IOException {
+    File jar = tmp.newFile("lib.jar");
+    writeJar(jar, "com/example/A.class");
+    // Modified just now, as if the rule that writes the jar had just run, and on a filesystem that
+    // only records the last-modified time to the second.
+    long lastModified = (System.currentTimeMillis() / 1000) * 1000;
+    jar.setLastModified(lastModified);
+    long length = jar.length();
+    ClasspathArchiveCache cache = new ClasspathArchiveCache();
+    ClasspathArchive archive = cache.get(jar);
+
+    // The same length and last-modified time, but not the same contents.
+    writeJar(jar, "com/example/B.class");
+    jar.setLastModified(lastModified);
+    assertEquals(length, jar.length());
+
+    ClasspathArchive rewrittenArchive = cache.get(jar);
+    assertNotEquals(archive.getHash(), rewrittenArchive.getHash());
+    assertEquals(2, cache.getMissCount());
+    assertEquals(ImmutableList.of("com/example/B.class"),
+        listRecursively(rewrittenArchive, "com.example"));
+  }
+
+  @Test
+  public void testArchiveIsDroppedWhenTheJarIsReplaced() throws IOException {
+    File jar = tmp.newFile("lib.jar");
+    writeJar(jar, "com/example/A.class");
+    jar.setLastModified(10000);
+    ClasspathArchiveCache cache = new ClasspathArchiveCache();
+    ClasspathArchive archive = cache.get(jar);
+
+    // Another file with the same contents and stamp is moved over the jar.
+    File replacement = tmp.newFile("replacement.jar");
+    java.nio.file.Files.copy(jar.toPath(), replacement.toPath(), REPLACE_EXISTING);
+    replacement.setLastModified(10000);
+    java.nio.file.Files.move(replacement.toPath(), jar.toPath(), REPLACE_EXISTING);
+
+    ClasspathArchive replacedArchive = cache.get(jar);
+    assertNotSame(archive, replacedArchive);
+    assertEquals(archive.getHash(), replacedArchive.getHash());
+    assertEquals(2, cache.getMissCount());
+    assertSame(replacedArchive, cache.get(jar));
+  }
+
+  private static List<String> list(ClasspathArchive archive, String packageName) {
+    List<JavaFileObject> files = Lists.newArrayList();
+    archive.list(packageName, /* recurse */ false, files);
+    return getRelativePaths(files);
+  }
+
+  private static List<String> listRecursively(ClasspathArchive archive, String packageName) {
+    List<JavaFileObject> files = Lists.newArrayList();
+    archive.list(packageName, /* recurse */ true, files);
+    return getRelativePaths(files);
+  }
+
+  private static List<String> getRelativePaths(List<JavaFileObject> files) {
+    List<String> paths = Lists.newArrayList();
+    for (JavaFileObject file : files) {
+      paths.add(((ClasspathFileManager.ClasspathFile) file).getRelativePath());
+    }
+    return paths;
+  }
+
+  private static void writeJar(File jar, String... entryNames) throws IOException {
+    JarOutputStream output = new JarOutputStream(new FileOutputStream(jar));
+    try {
+      for (String entryName : entryNames) {
+        output.putNextEntry(new JarEntry(entryName));
+        output.write(entryName.getBytes("UTF-8"));
+        output.closeEntry();
+      }
+    } finally {
+      output.close();
+    }
+  }
+}
@@ -16,17 +16,18 @@
 
 package com.facebook.buck.java;
 
-import static com.facebook.buck.util.BuckConstant.BIN_DIR;
 import static org.easymock.EasyMock.createNiceMock;
 import static org.easymock.EasyMock.replay;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import com.facebook.buck.android.AndroidLibraryRule;
 import com.facebook.buck.graph.MutableDirectedGraph;
+import com.facebook.buck.java.abi.AbiWriter;
 import com.facebook.buck.model.AnnotationProcessingData;
 import com.facebook.buck.model.BuildTarget;
 import com.facebook.buck.model.BuildTargetFactory;
@@ -45,7 +46,6 @@ import com.facebook.buck.rules.SourcePath;
 import com.facebook.buck.step.ExecutionContext;
 import com.facebook.buck.step.Step;
 import com.facebook.buck.step.StepRunner;
-import com.facebook.buck.step.fs.MkdirAndSymlinkFileStep;
 import com.facebook.buck.testutil.MoreAsserts;
 import com.facebook.buck.testutil.RuleMap;
 import com.facebook.buck.util.Ansi;
@@ -59,9 +59,9 @@ import com.google.common.base.Optional;
 import com.google.common.base.Predicate;
 import com.google.common.base.Suppliers;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.collect.ImmutableSortedMap;
 import com.google.common.collect.ImmutableSortedSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Maps;
@@ -104,7 +104,7 @@ public class DefaultJavaLibraryRuleTest {
 
 
   @Test
-  public void testAddResourceCommandsWithBuildFileParentOfSrcDirectory() {
+  public void testGetResourcesToJarWithBuildFileParentOfSrcDirectory() {
     // Files:
     // android/java/BUILD
     // android/java/src/com/facebook/base/data.json
@@ -129,22 +129,18 @@ public class DefaultJavaLibraryRuleTest {
         JavacOptions.DEFAULTS
         );
 
-    ImmutableList.Builder<Step> commands = ImmutableList.builder();
     JavaPackageFinder javaPackageFinder = createJavaPackageFinder();
-    javaRule.addResourceCommands(stubContext,
-        commands, BIN_DIR + "/android/java/lib__resources__classes", javaPackageFinder);
-    List<? extends Step> expected = ImmutableList.of(
-        new MkdirAndSymlinkFileStep(
+    assertEquals(
+        ImmutableSortedMap.of(
+            "com/facebook/base/data.json",
             "android/java/src/com/facebook/base/data.json",
-            BIN_DIR + "/android/java/lib__resources__classes/com/facebook/base/data.json"),
-        new MkdirAndSymlinkFileStep(
-            "android/java/src/com/facebook/common/util/data.json",
-            BIN_DIR + "/android/java/lib__resources__classes/com/facebook/common/util/data.json"));
-    MoreAsserts.assertListEquals(expected, commands.build());
+            "com/facebook/common/util/data.json",
+            "android/java/src/com/facebook/common/util/data.json"),
+        javaRule.getResourcesToJar(stubContext, javaPackageFinder));
   }
 
   @Test
-  public void testAddResourceCommandsWithBuildFileParentOfJavaPackage() {
+  public void testGetResourcesToJarWithBuildFileParentOfJavaPackage() {
     // Files:
     // android/java/src/BUILD
     // android/java/src/com/facebook/base/data.json
@@ -169,23 +165,18 @@ public class DefaultJavaLibraryRuleTest {
         JavacOptions.DEFAULTS
         );
 
-    ImmutableList.Builder<Step> commands = ImmutableList.builder();
     JavaPackageFinder javaPackageFinder = createJavaPackageFinder();
-    javaRule.addResourceCommands(stubContext,
-        commands, BIN_DIR + "/android/java/src/lib__resources__classes", javaPackageFinder);
-    List<? extends Step> expected = ImmutableList.of(
-        new MkdirAndSymlinkFileStep(
+    assertEquals(
+        ImmutableSortedMap.of(
+            "com/facebook/base/data.json",
             "android/java/src/com/facebook/base/data.json",
-            BIN_DIR + "/android/java/src/lib__resources__classes/com/facebook/base/data.json"),
-        new MkdirAndSymlinkFileStep(
-            "android/java/src/com/facebook/common/util/data.json",
-            BIN_DIR + "/android/java/src/lib__resources__classes/com/facebook/common/util/data.json"));
-    assertEquals(expected, commands.build());
-    MoreAsserts.assertListEquals(expected, commands.build());
+            "com/facebook/common/util/data.json",
+            "android/java/src/com/facebook/common/util/data.json"),
+        javaRule.getResourcesToJar(stubContext, javaPackageFinder));
   }
 
   @Test
-  public void testAddResourceCommandsWithBuildFileInJavaPackage() {
+  public void testGetResourcesToJarWithBuildFileInJavaPackage() {
     // Files:
     // android/java/src/com/facebook/BUILD
     // android/java/src/com/facebook/base/data.json
@@ -211,21 +202,14 @@ public class DefaultJavaLibraryRuleTest {
         /* exportDeps */ false,
         JavacOptions.DEFAULTS);
 
-    ImmutableList.Builder<Step> commands = ImmutableList.builder();
     JavaPackageFinder javaPackageFinder = createJavaPackageFinder();
-    javaRule.addResourceCommands(
-        stubContext,
-        commands,
-        BIN_DIR + "/android/java/src/com/facebook/lib__resources__classes",
-        javaPackageFinder);
-    List<? extends Step> expected = ImmutableList.of(
-        new MkdirAndSymlinkFileStep(
+    assertEquals(
+        ImmutableSortedMap.of(
+            "com/facebook/base/data.json",
             "android/java/src/com/facebook/base/data.json",
-            BIN_DIR + "/android/java/src/com/facebook/lib__resources__classes/com/facebook/base/data.json"),
-        new MkdirAndSymlinkFileStep(
-            "android/java/src/com/facebook/common/util/data.json",
-            BIN_DIR + "/android/java/src/com/facebook/lib__resources__classes/com/facebook/common/util/data.json"));
-    MoreAsserts.assertListEquals(expected, commands.build());
+            "com/facebook/common/util/data.json",
+            "android/java/src/com/facebook/common/util/data.json"),
+        javaRule.getResourcesToJar(stubContext, javaPackageFinder));
   }
 
   /** Make sure that when isAndroidLibrary is true, that the Android bootclasspath is used. */
@@ -505,6 +489,58 @@ public class DefaultJavaLibraryRuleTest {
     assertEquals(expected.build(), parent.getDeclaredClasspathEntries());
   }
 
+  @Test
+  public void testAbiKeyForDepsIsUnknownUntilDepsAreBuilt() {
+    BuildRuleResolver ruleResolver = new BuildRuleResolver();
+
+    BuildTarget libraryOneTarget = BuildTargetFactory.newInstance("//:libone");
+    DefaultJavaLibraryRule libraryOne = ruleResolver.buildAndAddToIndex(
+        DefaultJavaLibraryRule.newJavaLibraryRuleBuilder(new FakeAbstractBuildRuleBuilderParams())
+        .setBuildTarget(libraryOneTarget)
+        .addSrc("java/src/com/libone/Bar.java"));
+
+    BuildTarget parentTarget = BuildTargetFactory.newInstance("//:parent");
+    DefaultJavaLibraryRule parent = ruleResolver.buildAndAddToIndex(
+        DefaultJavaLibraryRule.newJavaLibraryRuleBuilder(new FakeAbstractBuildRuleBuilderParams())
+        .setBuildTarget(parentTarget)
+        .addSrc("java/src/com/parent/Meh.java")
+        .addDep(libraryOneTarget));
+
+    assertNull("libone has never been built, so the ABI of its output is unknown.",
+        libraryOne.getAbiKey());
+    assertNull(parent.getAbiKeyForDeps());
+  }
+
+  @Test
+  public void testAbiKeyForDepsOfLibraryWithoutSrcs() {
+    BuildRuleResolver ruleResolver = new BuildRuleResolver();
+
+    BuildTarget libraryOneTarget = BuildTargetFactory.newInstance("//:libone");
+    DefaultJavaLibraryRule libraryOne = ruleResolver.buildAndAddToIndex(
+        DefaultJavaLibraryRule.newJavaLibraryRuleBuilder(new FakeAbstractBuildRuleBuilderParams())
+        .setBuildTarget(libraryOneTarget));
+
+    BuildTarget parentTarget = BuildTargetFactory.newInstance("//:parent");
+    DefaultJavaLibraryRule parent = ruleResolver.buildAndAddToIndex(
+        DefaultJavaLibraryRule.newJavaLibraryRuleBuilder(new FakeAbstractBuildRuleBuilderParams())
+        .setBuildTarget(parentTarget)
+        .addSrc("java/src/com/parent/Meh.java")
+        .addDep(libraryOneTarget));
+
+    BuildTarget orphanTarget = BuildTargetFactory.newInstance("//:orphan");
+    DefaultJavaLibraryRule orphan = ruleResolver.buildAndAddToIndex(
+        DefaultJavaLibraryRule.newJavaLibraryRuleBuilder(new FakeAbstractBuildRuleBuilderParams())
+        .setBuildTarget(orphanTarget)
+        .addSrc("java/src/com/orphan/Meh.java"));
+
+    assertEquals(AbiWriter.EMPTY_ABI_KEY, libraryOne.getAbiKey());
+    assertNotNull(parent.getAbiKeyForDeps());
+    assertNotNull(orphan.getAbiKeyForDeps());
+    assertNotEquals("Adding a dep should change the ABI key for the deps.",
+        orphan.getAbiKeyForDeps(),
+        parent.getAbiKeyForDeps());
+  }
+
   @Test
   public void testEmptySuggestBuildFunction() {
     BuildRuleResolver ruleResolver = new BuildRuleResolver();
@@ -525,8 +561,7 @@ public class DefaultJavaLibraryRuleTest {
         Optional.<DependencyCheckingJavacStep.SuggestBuildRules>absent(),
         libraryOne.createSuggestBuildFunction(context,
             classpathEntries,
-            classpathEntries,
-            createJarResolver(/* classToSymbols */ImmutableMap.<String, String>of())));
+            classpathEntries));
 
     EasyMock.verify(context);
   }
@@ -543,7 +578,7 @@ public class DefaultJavaLibraryRuleTest {
         .addVisibilityPattern(BuildTargetPattern.MATCH_ALL));
 
     BuildTarget libraryTwoTarget = BuildTargetFactory.newInstance("//:libtwo");
-    DefaultJavaLibraryRule libraryTwo = ruleResolver.buildAndAddToIndex(
+    ruleResolver.buildAndAddToIndex(
         DefaultJavaLibraryRule.newJavaLibraryRuleBuilder(new FakeAbstractBuildRuleBuilderParams())
         .setBuildTarget(libraryTwoTarget)
         .addSrc("java/src/com/libtwo/Foo.java")
@@ -570,20 +605,16 @@ public class DefaultJavaLibraryRuleTest {
     ImmutableSetMultimap<BuildRule, String> transitive =
         parent.getTransitiveClasspathEntries();
 
-    ImmutableMap<String, String> classToSymbols = ImmutableMap.of(
-        Iterables.getFirst(transitive.get(parent), null), "com.facebook.Foo",
-        Iterables.getFirst(transitive.get(libraryOne), null), "com.facebook.Bar",
-        Iterables.getFirst(transitive.get(libraryTwo), null), "com.facebook.Foo");
-
     Optional<DependencyCheckingJavacStep.SuggestBuildRules> suggestFn =
         grandparent.createSuggestBuildFunction(context,
             transitive,
-            /* declaredClasspathEntries */ ImmutableSetMultimap.<BuildRule, String>of(),
-            createJarResolver(classToSymbols));
+            /* declaredClasspathEntries */ ImmutableSetMultimap.<BuildRule, String>of());
 
     assertTrue(suggestFn.isPresent());
-    assertEquals(ImmutableSet.of("//:parent", "//:libone"),
-        suggestFn.get().apply(ImmutableSet.of("com.facebook.Foo", "com.facebook.Bar")));
+    assertEquals(ImmutableList.of("//:parent", "//:libone"),
+        suggestFn.get().apply(ImmutableSet.of(
+            Iterables.getFirst(transitive.get(libraryOne), null),
+            Iterables.getFirst(transitive.get(parent), null))).asList());
 
     EasyMock.verify(context);
   }
@@ -591,33 +622,6 @@ public class DefaultJavaLibraryRuleTest {
 
   // Utilities
 
-  private DefaultJavaLibraryRule.JarResolver createJarResolver(
-      final ImmutableMap<String, String> classToSymbols) {
-
-    ImmutableSetMultimap.Builder<String, String> resolveMapBuilder =
-        ImmutableSetMultimap.builder();
-
-    for (Map.Entry<String, String> entry : classToSymbols.entrySet()) {
-      String fullyQualified = entry.getValue();
-      String packageName = fullyQualified.substring(0, fullyQualified.lastIndexOf('.'));
-      String className = fullyQualified.substring(fullyQualified.lastIndexOf('.'));
-      resolveMapBuilder.putAll(entry.getKey(), fullyQualified, packageName, className);
-    }
-
-    final ImmutableSetMultimap<String, String> resolveMap = resolveMapBuilder.build();
-
-    return new DefaultJavaLibraryRule.JarResolver() {
-      @Override
-      public ImmutableSet<String> apply(String input) {
-        if (resolveMap.containsKey(input)) {
-          return resolveMap.get(input);
-        } else {
-          return ImmutableSet.of();
-        }
-      }
-    };
-  }
-
   private JavaPackageFinder createJavaPackageFinder() {
     return DefaultJavaPackageFinder.createDefaultJavaPackageFinder(
         ImmutableSet.<String>of("/android/java/src"));
@@ -652,6 +656,7 @@ public class DefaultJavaLibraryRuleTest {
         EasyMock.createMock(JavaPackageFinder.class));
     EasyMock.expect(context.getBuildDependencies()).andReturn(BuildDependencies.TRANSITIVE);
     EasyMock.expectLastCall().anyTimes();
+    EasyMock.expect(context.isIncrementalJavac()).andReturn(false).anyTimes();
 
     replay(context);
 
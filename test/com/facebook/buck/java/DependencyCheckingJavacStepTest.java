@@ -17,29 +17,164 @@
 package com.facebook.buck.java;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
+import com.facebook.buck.model.BuildTargetFactory;
+import com.facebook.buck.model.BuildTargetPattern;
+import com.facebook.buck.rules.BuildDependencies;
+import com.facebook.buck.rules.BuildRule;
+import com.facebook.buck.rules.BuildRuleType;
+import com.facebook.buck.rules.FakeBuildRule;
+import com.facebook.buck.step.ExecutionContext;
+import com.facebook.buck.testutil.TestConsole;
+import com.facebook.buck.util.ProjectFilesystem;
+import com.facebook.buck.util.Verbosity;
+import com.google.common.base.Charsets;
 import com.google.common.base.Joiner;
+import com.google.common.base.Optional;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
 
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
 
 public class DependencyCheckingJavacStepTest {
 
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  @Test
+  public void testFindUndeclaredClasses() {
+    ImmutableSetMultimap<String, String> classpathUsage = ImmutableSetMultimap.of(
+        "declared.jar", "com/example/Declared.class",
+        "transitive.jar", "com/example/Transitive$Inner.class",
+        "transitive.jar", "com/example/Transitive.class",
+        "transitive.jar", "com/example/data.txt");
+
+    assertEquals(
+        ImmutableSet.of("com.example.Transitive"),
+        DependencyCheckingJavacStep.findUndeclaredClasses(classpathUsage,
+            ImmutableSet.of("declared.jar")));
+  }
+
   @Test
-  public void testFindFailedImports() throws Exception {
-    String lineSeperator = System.getProperty("line.separator");
+  public void testUndeclaredAndUnusedDepsAreReportedAfterASingleCompile() throws IOException {
+    write("a/com/example/a/A.java",
+        "package com.example.a; public class A { public static class Nested {} }");
+    write("b/com/example/b/B.java", "package com.example.b; public class B {}");
+    write("app/com/example/app/App.java",
+        "package com.example.app; public class App { com.example.a.A.Nested nested; }");
+    TestConsole console = new TestConsole();
+    console.setVerbosity(Verbosity.COMMANDS);
+    ExecutionContext context = ExecutionContext.builder()
+        .setConsole(console)
+        .setProjectFilesystem(new ProjectFilesystem(tmp.getRoot()))
+        .build();
+    compile(context, "a.jar", "a/com/example/a/A.java");
+    compile(context, "b.jar", "b/com/example/b/B.java");
 
-    String stderrOutput = Joiner.on(lineSeperator).join(ImmutableList.of(
-        "java/com/foo/bar.java:5: package javax.annotation.concurrent does not exist",
-        "java/com/foo/bar.java:99: error: cannot access com.facebook.Raz",
-        "java/com/foo/bar.java:142: cannot find symbol: class ImmutableSet",
-        "java/com/foo/bar.java:999: you are a clown"));
+    BuildRule b = new FakeBuildRule(new BuildRuleType("java_library"),
+        BuildTargetFactory.newInstance("//:b"),
+        ImmutableSortedSet.<BuildRule>of(),
+        ImmutableSet.<BuildTargetPattern>of());
+    DependencyCheckingJavacStep.SuggestBuildRules suggestBuildRules =
+        new DependencyCheckingJavacStep.SuggestBuildRules() {
+          @Override
+          public ImmutableSet<String> apply(ImmutableSet<String> undeclaredClasspathEntries) {
+            assertEquals(ImmutableSet.of("a.jar"), undeclaredClasspathEntries);
+            return ImmutableSet.of("//:a");
+          }
+        };
+    DependencyCheckingJavacStep javac = new DependencyCheckingJavacStep(
+        "app.jar",
+        ImmutableSortedMap.<String, String>of(),
+        ImmutableSet.of("app/com/example/app/App.java"),
+        /* transitiveClasspathEntries */ ImmutableSet.of("a.jar", "b.jar"),
+        /* declaredClasspathEntries */ ImmutableSetMultimap.of(b, "b.jar"),
+        JavacOptions.DEFAULTS,
+        Optional.of("//:app"),
+        BuildDependencies.WARN_ON_TRANSITIVE,
+        Optional.of(suggestBuildRules),
+        /* pathToClassDependencyGraph */ Optional.<String>absent());
+    assertEquals(0, javac.execute(context));
 
-    ImmutableSet<String> missingImports =
-        DependencyCheckingJavacStep.findFailedImports(stderrOutput);
+    String lineSeparator = System.getProperty("line.separator");
     assertEquals(
-        ImmutableSet.of("javax.annotation.concurrent", "com.facebook.Raz", "ImmutableSet"),
-        missingImports);
+        Joiner.on(lineSeparator).join(ImmutableList.of(
+            "Rule //:app builds with its transitive dependencies but not with its first order " +
+                "dependencies.",
+            "The following classes were missing:",
+            "com.example.a.A",
+            "Try adding the following deps:",
+            "//:a",
+            "",
+            "",
+            "Rule //:app does not use any classes from the following deps:",
+            "//:b",
+            "")),
+        console.getTextWrittenToStdErr());
+
+    // Nothing from b.jar is in the dependency file, so changing it would not rebuild //:app.
+    ImmutableMap<String, String> dependencyFile = javac.getDependencyFile();
+    assertTrue(dependencyFile.containsKey("file:com/example/a/A$Nested.class"));
+    assertFalse(dependencyFile.containsKey("file:com/example/b/B.class"));
+  }
+
+  @Test
+  public void testDependencyFileDoesNotDependOnThePreviousOutputJar() throws IOException {
+    write("a/com/example/a/A.java", "package com.example.a; public class A {}");
+    write("app/com/example/app/App.java",
+        "package com.example.app; public class App { com.example.a.A a; }");
+    ExecutionContext context = ExecutionContext.builder()
+        .setConsole(new TestConsole())
+        .setProjectFilesystem(new ProjectFilesystem(tmp.getRoot()))
+        .build();
+    compile(context, "a.jar", "a/com/example/a/A.java");
+
+    // A rule's classpath includes its own output jar, which exists from the second build on.
+    List<ImmutableMap<String, String>> dependencyFiles = Lists.newArrayList();
+    for (int build = 0; build < 2; build++) {
+      DependencyCheckingJavacStep javac = new DependencyCheckingJavacStep(
+          "app.jar",
+          ImmutableSortedMap.<String, String>of(),
+          ImmutableSet.of("app/com/example/app/App.java"),
+          /* transitiveClasspathEntries */ ImmutableSet.of("a.jar", "app.jar"),
+          /* declaredClasspathEntries */ ImmutableSetMultimap.<BuildRule, String>of(),
+          JavacOptions.DEFAULTS,
+          Optional.of("//:app"),
+          BuildDependencies.TRANSITIVE,
+          Optional.<DependencyCheckingJavacStep.SuggestBuildRules>absent(),
+          /* pathToClassDependencyGraph */ Optional.<String>absent());
+      assertEquals(0, javac.execute(context));
+      dependencyFiles.add(javac.getDependencyFile());
+    }
+    assertEquals(dependencyFiles.get(0), dependencyFiles.get(1));
+  }
+
+  private void compile(ExecutionContext context, String jar, String source) {
+    assertEquals(0, new JavacInMemoryStep(
+        jar,
+        ImmutableSortedMap.<String, String>of(),
+        ImmutableSet.of(source),
+        /* classpathEntries */ ImmutableSet.<String>of(),
+        JavacOptions.DEFAULTS).execute(context));
+  }
+
+  private void write(String path, String contents) throws IOException {
+    File file = new File(tmp.getRoot(), path);
+    Files.createParentDirs(file);
+    Files.write(contents, file, Charsets.UTF_8);
   }
 }
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.java;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.io.Files;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+public class DependencyFileTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private File classes;
+  private File jar;
+  private List<File> classpath;
+  private ClasspathArchiveCache archiveCache;
+  private ImmutableMap<String, String> dependencyFile;
+
+  /**
+   * A compilation against a directory and a jar that read one class from each of them, and listed
+   * the classes of the package in the jar.
+   */
+  @Before
+  public void createDependencyFile() throws IOException {
+    classes = tmp.newFolder("classes");
+    writeFile(new File(classes, "com/example/A.class"), "A");
+    writeFile(new File(classes, "com/example/Unused.class"), "Unused");
+    jar = tmp.newFile("lib.jar");
+    writeJar(jar, "com/example/lib/B.class", "B", "com/example/lib/C.class", "C");
+    jar.setLastModified(10000);
+    classpath = ImmutableList.of(classes, jar);
+    archiveCache = new ClasspathArchiveCache();
+
+    ClasspathUsage usage = new ClasspathUsage(
+        ImmutableSetMultimap.of(
+            "classes", "com/example/A.class",
+            "lib.jar", "com/example/lib/B.class"),
+        ImmutableSortedSet.of("com.example.lib"));
+    dependencyFile = DependencyFile.create(usage, classpath, archiveCache);
+  }
+
+  @Test
+  public void testDependencyFileHasAHashForEachFileReadAndPackageListed() {
+    assertEquals(
+        ImmutableList.of(
+            "file:com/example/A.class",
+            "file:com/example/lib/B.class",
+            "package:com.example.lib"),
+        dependencyFile.keySet().asList());
+    assertTrue(DependencyFile.isUnchanged(dependencyFile, classpath, archiveCache));
+  }
+
+  @Test
+  public void testChangingAClassThatWasNotReadKeepsTheDependencyFileUnchanged()
+      throws IOException {
+    writeFile(new File(classes, "com/example/Unused.class"), "Changed");
+    writeJar(jar, "com/example/lib/B.class", "B", "com/example/lib/C.class", "Changed");
+    jar.setLastModified(20000);
+    assertTrue(DependencyFile.isUnchanged(dependencyFile, classpath, archiveCache));
+  }
+
+  @Test
+  public void testChangingAClassThatWasReadChangesTheDependencyFile() throws IOException {
+    writeFile(new File(classes, "com/example/A.class"), "Changed");
+    assertFalse(DependencyFile.isUnchanged(dependencyFile, classpath, archiveCache));
+  }
+
+  @Test
+  public void testAddingAClassToAListedPackageChangesTheDependencyFile() throws IOException {
+    writeFile(new File(classes, "com/example/lib/D.class"), "D");
+    assertFalse(DependencyFile.isUnchanged(dependencyFile, classpath, archiveCache));
+  }
+
+  @Test
+  public void testShadowingAClassThatWasReadChangesTheDependencyFile() throws IOException {
+    File shadow = tmp.newFolder("shadow");
+    writeFile(new File(shadow, "com/example/lib/B.class"), "Shadow");
+    List<File> shadowedClasspath = ImmutableList.of(shadow, classes, jar);
+    assertFalse(DependencyFile.isUnchanged(dependencyFile, shadowedClasspath, archiveCache));
+  }
+
+  @Test
+  public void testAnEmptyDependencyFileIsNeverUnchanged() {
+    assertFalse(DependencyFile.isUnchanged(
+        ImmutableMap.<String, String>of(), classpath, archiveCache));
+  }
+
+  private static void writeFile(File file, String contents) throws IOException {
+    Files.createParentDirs(file);
+    Files.write(contents, file, Charsets.UTF_8);
+  }
+
+  private static void writeJar(File jar, String... namesAndContents) throws IOException {
+    JarOutputStream output = new JarOutputStream(new FileOutputStream(jar));
+    try {
+      for (int i = 0; i < namesAndContents.length; i += 2) {
+        output.putNextEntry(new JarEntry(namesAndContents[i]));
+        output.write(namesAndContents[i + 1].getBytes(Charsets.UTF_8));
+        output.closeEntry();
+      }
+    } finally {
+      output.close();
+    }
+  }
+}
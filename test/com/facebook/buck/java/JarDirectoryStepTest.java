@@ -0,0 +1,202 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.java;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import com.facebook.buck.step.ExecutionContext;
+import com.facebook.buck.testutil.TestConsole;
+import com.facebook.buck.util.ProjectFilesystem;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarFile;
+import java.util.zip.CRC32;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+public class JarDirectoryStepTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  /** The time of the next entry written by {@link #writeZip(String, String...)}. */
+  private long nextEntryTime = 1000000000000L;
+
+  @Test
+  public void testJarHasTheManifestFirstAndTheOtherEntriesInSortedOrder() throws IOException {
+    writeFile("classes/com/example/B.class", "B");
+    writeFile("classes/com/example/A.class", "A");
+    writeZip("lib.jar", "com/example/lib/", "com/example/lib/Lib.class", "META-INF/MANIFEST.MF");
+
+    assertEquals(0, createJar("out.jar"));
+
+    ZipFile jar = new ZipFile(new File(tmp.getRoot(), "out.jar"));
+    try {
+      List<String> entryNames = Lists.newArrayList();
+      for (Enumeration<? extends ZipEntry> entries = jar.entries(); entries.hasMoreElements();) {
+        entryNames.add(entries.nextElement().getName());
+      }
+      assertEquals(
+          ImmutableList.of(
+              JarFile.MANIFEST_NAME,
+              "com/example/A.class",
+              "com/example/B.class",
+              "com/example/lib/",
+              "com/example/lib/Lib.class"),
+          entryNames);
+      Manifest manifest = new Manifest(jar.getInputStream(jar.getEntry(JarFile.MANIFEST_NAME)));
+      assertEquals("com.example.Main",
+          manifest.getMainAttributes().getValue("Main-Class"));
+    } finally {
+      jar.close();
+    }
+  }
+
+  @Test
+  public void testJarDoesNotDependOnTheTimesOfItsInputs() throws IOException {
+    writeFile("classes/com/example/A.class", "A");
+    writeZip("lib.jar", "com/example/lib/Lib.class");
+    assertEquals(0, createJar("first.jar"));
+
+    File classFile = new File(tmp.getRoot(), "classes/com/example/A.class");
+    classFile.setLastModified(classFile.lastModified() - 1000000);
+    writeZip("lib.jar", "com/example/lib/Lib.class");
+    assertEquals(0, createJar("second.jar"));
+
+    assertArrayEquals(
+        Files.toByteArray(new File(tmp.getRoot(), "first.jar")),
+        Files.toByteArray(new File(tmp.getRoot(), "second.jar")));
+  }
+
+  @Test
+  public void testEntriesOfArchivesAreCopiedWithoutBeingCompressedAgain() throws IOException {
+    writeFile("classes/com/example/A.class", "A");
+    byte[] contents = "stored".getBytes(Charsets.UTF_8);
+    ZipOutputStream zip = new ZipOutputStream(
+        new FileOutputStream(new File(tmp.getRoot(), "lib.jar")));
+    try {
+      ZipEntry stored = new ZipEntry("com/example/lib/Stored.class");
+      stored.setMethod(ZipEntry.STORED);
+      stored.setSize(contents.length);
+      CRC32 crc = new CRC32();
+      crc.update(contents);
+      stored.setCrc(crc.getValue());
+      zip.putNextEntry(stored);
+      zip.write(contents);
+      zip.closeEntry();
+    } finally {
+      zip.close();
+    }
+
+    assertEquals(0, createJar("out.jar"));
+
+    ZipFile jar = new ZipFile(new File(tmp.getRoot(), "out.jar"));
+    try {
+      ZipEntry storedEntry = jar.getEntry("com/example/lib/Stored.class");
+      assertEquals(ZipEntry.STORED, storedEntry.getMethod());
+      assertArrayEquals(contents, ByteStreams.toByteArray(jar.getInputStream(storedEntry)));
+      assertEquals(ZipEntry.DEFLATED, jar.getEntry("com/example/A.class").getMethod());
+    } finally {
+      jar.close();
+    }
+  }
+
+  @Test
+  public void testJarWithMoreEntriesThanAreCompressedAtOnce() throws IOException {
+    List<String> expectedNames = Lists.newArrayList(JarFile.MANIFEST_NAME);
+    for (int i = 0; i < 500; i++) {
+      String name = String.format("com/example/C%03d.class", i);
+      writeFile("classes/" + name, name);
+      expectedNames.add(name);
+    }
+    writeZip("lib.jar");
+
+    assertEquals(0, createJar("out.jar"));
+
+    ZipFile jar = new ZipFile(new File(tmp.getRoot(), "out.jar"));
+    try {
+      List<String> entryNames = Lists.newArrayList();
+      for (Enumeration<? extends ZipEntry> entries = jar.entries(); entries.hasMoreElements();) {
+        ZipEntry entry = entries.nextElement();
+        entryNames.add(entry.getName());
+        if (!entry.getName().equals(JarFile.MANIFEST_NAME)) {
+          assertEquals(entry.getName(),
+              new String(ByteStreams.toByteArray(jar.getInputStream(entry)), Charsets.UTF_8));
+        }
+      }
+      assertEquals(expectedNames, entryNames);
+    } finally {
+      jar.close();
+    }
+  }
+
+  private int createJar(String output) {
+    ExecutionContext context = ExecutionContext.builder()
+        .setConsole(new TestConsole())
+        .setProjectFilesystem(new ProjectFilesystem(tmp.getRoot()))
+        .build();
+    return new JarDirectoryStep(output,
+        ImmutableSet.of("classes", "lib.jar"),
+        /* mainClass */ "com.example.Main",
+        /* manifestFile */ null).execute(context);
+  }
+
+  private void writeFile(String path, String contents) throws IOException {
+    File file = new File(tmp.getRoot(), path);
+    Files.createParentDirs(file);
+    Files.write(contents, file, Charsets.UTF_8);
+  }
+
+  /** Writes a zip with an entry for each of {@code names}, each of which has a different time. */
+  private void writeZip(String path, String... names) throws IOException {
+    ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(new File(tmp.getRoot(), path)));
+    try {
+      for (String name : names) {
+        ZipEntry entry = new ZipEntry(name);
+        entry.setTime(nextEntryTime);
+        nextEntryTime += TimeUnit.DAYS.toMillis(1);
+        zip.putNextEntry(entry);
+        if (name.equals(JarFile.MANIFEST_NAME)) {
+          zip.write("Manifest-Version: 1.0\r\nCreated-By: test\r\n\r\n".getBytes(Charsets.UTF_8));
+        } else if (!name.endsWith("/")) {
+          zip.write(name.getBytes(Charsets.UTF_8));
+        }
+        zip.closeEntry();
+      }
+    } finally {
+      zip.close();
+    }
+  }
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.java;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.step.ExecutionContext;
+import com.facebook.buck.testutil.TestConsole;
+import com.facebook.buck.util.ProjectFilesystem;
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.Lists;
+import com.google.common.io.CharStreams;
+import com.google.common.io.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+public class JavacInMemoryStepTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  @Test
+  public void testClassesAndResourcesAreWrittenStraightIntoTheJar() throws IOException {
+    tmp.newFolder("com", "example");
+    Files.write("package com.example; public class Example { class Inner {} }",
+        tmp.newFile("com/example/Example.java"),
+        Charsets.UTF_8);
+    Files.write("hello", tmp.newFile("com/example/data.txt"), Charsets.UTF_8);
+
+    JavacInMemoryStep javac = new JavacInMemoryStep(
+        "example.jar",
+        ImmutableSortedMap.of("com/example/data.txt", "com/example/data.txt"),
+        ImmutableSet.of("com/example/Example.java"),
+        /* classpathEntries */ ImmutableSet.<String>of(),
+        JavacOptions.DEFAULTS);
+    ExecutionContext context = ExecutionContext.builder()
+        .setConsole(new TestConsole())
+        .setProjectFilesystem(new ProjectFilesystem(tmp.getRoot()))
+        .build();
+    assertEquals(0, javac.execute(context));
+
+    assertFalse("No class files should be written outside of the jar.",
+        new File(tmp.getRoot(), "com/example/Example.class").exists());
+    JarFile jar = new JarFile(new File(tmp.getRoot(), "example.jar"));
+    try {
+      assertNotNull(jar.getManifest());
+      List<String> entryNames = Lists.newArrayList();
+      for (Enumeration<JarEntry> entries = jar.entries(); entries.hasMoreElements();) {
+        entryNames.add(entries.nextElement().getName());
+      }
+      assertEquals(
+          ImmutableList.of(
+              "META-INF/MANIFEST.MF",
+              "com/example/Example$Inner.class",
+              "com/example/Example.class",
+              "com/example/data.txt"),
+          entryNames);
+      assertEquals("hello", CharStreams.toString(new InputStreamReader(
+          jar.getInputStream(jar.getEntry("com/example/data.txt")), Charsets.UTF_8)));
+    } finally {
+      jar.close();
+    }
+  }
+
+  @Test
+  public void testClasspathJarsAndDirectoriesAreSharedBetweenCompilations() throws IOException {
+    tmp.newFolder("lib", "com", "example", "lib");
+    Files.write("package com.example.lib; public class Lib { public static int get() { return 1; }}",
+        tmp.newFile("lib/com/example/lib/Lib.java"),
+        Charsets.UTF_8);
+    tmp.newFolder("dir", "com", "example", "dir");
+    Files.write("package com.example.dir; public class Dir {}",
+        tmp.newFile("dir/com/example/dir/Dir.java"),
+        Charsets.UTF_8);
+    tmp.newFolder("app", "com", "example", "app");
+    Files.write("package com.example.app; " +
+            "public class App { int x = com.example.lib.Lib.get(); com.example.dir.Dir dir; }",
+        tmp.newFile("app/com/example/app/App.java"),
+        Charsets.UTF_8);
+    ExecutionContext context = ExecutionContext.builder()
+        .setConsole(new TestConsole())
+        .setProjectFilesystem(new ProjectFilesystem(tmp.getRoot()))
+        .build();
+
+    assertEquals(0, new JavacInMemoryStep(
+        "lib.jar",
+        ImmutableSortedMap.<String, String>of(),
+        ImmutableSet.of("lib/com/example/lib/Lib.java"),
+        /* classpathEntries */ ImmutableSet.<String>of(),
+        JavacOptions.DEFAULTS).execute(context));
+    tmp.newFolder("dir-classes");
+    assertEquals(0, new JavacInMemoryStep(
+        "dir-classes",
+        ImmutableSet.of("dir/com/example/dir/Dir.java"),
+        /* classpathEntries */ ImmutableSet.<String>of(),
+        JavacOptions.DEFAULTS).execute(context));
+
+    // Each compilation reuses a file manager from the one before, which must not keep its output.
+    ClasspathArchiveCache archiveCache = JavacService.getInstance().getArchiveCache();
+    long missCount = archiveCache.getMissCount();
+    for (String output : ImmutableList.of("first", "second")) {
+      tmp.newFolder(output);
+      assertEquals(0, new JavacInMemoryStep(
+          output,
+          ImmutableSet.of("app/com/example/app/App.java"),
+          ImmutableSet.of("lib.jar", "dir-classes"),
+          JavacOptions.DEFAULTS).execute(context));
+      assertTrue(new File(tmp.getRoot(), output + "/com/example/app/App.class").isFile());
+    }
+    assertEquals("lib.jar should only be indexed once.",
+        missCount + 1,
+        archiveCache.getMissCount());
+
+    assertEquals("The classpath should not be found without the jar and the directory.",
+        1,
+        new JavacInMemoryStep(
+            "app.jar",
+            ImmutableSortedMap.<String, String>of(),
+            ImmutableSet.of("app/com/example/app/App.java"),
+            /* classpathEntries */ ImmutableSet.<String>of(),
+            JavacOptions.DEFAULTS).execute(context));
+  }
+
+  @Test
+  public void testIncrementalCompilationOnlyRecompilesChangedSourcesAndThoseThatUseThem()
+      throws Exception {
+    writeSource("com/example/A.java",
+        "package com.example; public class A { public static int get() { return 1; } }");
+    writeSource("com/example/B.java",
+        "package com.example; public class B { public static int get() { return A.get(); } }");
+    writeSource("com/example/C.java",
+        "package com.example; public class C { public static int get() { return 3; } }");
+    ExecutionContext context = ExecutionContext.builder()
+        .setConsole(new TestConsole())
+        .setProjectFilesystem(new ProjectFilesystem(tmp.getRoot()))
+        .build();
+
+    JavacInMemoryStep firstBuild = createIncrementalJavac();
+    assertEquals(0, firstBuild.execute(context));
+    assertEquals(firstBuild.getSrcs(), firstBuild.getCompiledSources());
+    String firstAbiKey = firstBuild.getAbiKey();
+
+    writeSource("com/example/A.java",
+        "package com.example; public class A { public static int get() { return 2; } }");
+    JavacInMemoryStep secondBuild = createIncrementalJavac();
+    assertEquals(0, secondBuild.execute(context));
+    assertEquals(ImmutableSet.of("com/example/A.java", "com/example/B.java"),
+        secondBuild.getCompiledSources());
+    assertEquals(2, callGet("com.example.B"));
+    assertEquals(3, callGet("com.example.C"));
+    assertEquals("Only a method body changed, so the ABI should not have.",
+        firstAbiKey,
+        secondBuild.getAbiKey());
+  }
+
+  @Test
+  public void testChangingACompileTimeConstantRecompilesEverySource() throws Exception {
+    writeSource("com/example/A.java",
+        "package com.example; public class A { public static final int X = 1; }");
+    writeSource("com/example/B.java",
+        "package com.example; public class B { public static int get() { return A.X; } }");
+    writeSource("com/example/C.java",
+        "package com.example; public class C { public static int get() { return 3; } }");
+    ExecutionContext context = ExecutionContext.builder()
+        .setConsole(new TestConsole())
+        .setProjectFilesystem(new ProjectFilesystem(tmp.getRoot()))
+        .build();
+    assertEquals(0, createIncrementalJavac().execute(context));
+
+    // javac copies the value of A.X into B, which then no longer refers to A at all.
+    writeSource("com/example/A.java",
+        "package com.example; public class A { public static final int X = 2; }");
+    JavacInMemoryStep javac = createIncrementalJavac();
+    assertEquals(0, javac.execute(context));
+    assertEquals(javac.getSrcs(), javac.getCompiledSources());
+    assertEquals(2, callGet("com.example.B"));
+  }
+
+  @Test
+  public void testSourceWithoutClassFilesDoesNotPreventIncrementalCompilation()
+      throws Exception {
+    writeSource("com/example/package-info.java", "package com.example;");
+    writeSource("com/example/A.java",
+        "package com.example; public class A { public static int get() { return 1; } }");
+    ExecutionContext context = ExecutionContext.builder()
+        .setConsole(new TestConsole())
+        .setProjectFilesystem(new ProjectFilesystem(tmp.getRoot()))
+        .build();
+    ImmutableSet<String> srcs = ImmutableSet.of(
+        "com/example/package-info.java",
+        "com/example/A.java",
+        "com/example/B.java");
+    writeSource("com/example/B.java",
+        "package com.example; public class B { public static int get() { return 2; } }");
+    assertEquals(0, createIncrementalJavac(srcs).execute(context));
+
+    writeSource("com/example/A.java",
+        "package com.example; public class A { public static int get() { return 3; } }");
+    JavacInMemoryStep javac = createIncrementalJavac(srcs);
+    assertEquals(0, javac.execute(context));
+    assertEquals(ImmutableSet.of("com/example/A.java"), javac.getCompiledSources());
+    assertEquals(3, callGet("com.example.A"));
+  }
+
+  private JavacInMemoryStep createIncrementalJavac() {
+    return createIncrementalJavac(
+        ImmutableSet.of("com/example/A.java", "com/example/B.java", "com/example/C.java"));
+  }
+
+  private JavacInMemoryStep createIncrementalJavac(ImmutableSet<String> srcs) {
+    return new JavacInMemoryStep(
+        "example.jar",
+        ImmutableSortedMap.<String, String>of(),
+        srcs,
+        /* classpathEntries */ ImmutableSet.<String>of(),
+        JavacOptions.DEFAULTS,
+        Optional.of("classes.graph"));
+  }
+
+  private void writeSource(String path, String contents) throws IOException {
+    File source = new File(tmp.getRoot(), path);
+    Files.createParentDirs(source);
+    Files.write(contents, source, Charsets.UTF_8);
+  }
+
+  /** @return what the static method get() of {@code className} in example.jar returns. */
+  private int callGet(String className) throws Exception {
+    URLClassLoader classLoader = new URLClassLoader(
+        new URL[] {new File(tmp.getRoot(), "example.jar").toURI().toURL()},
+        /* parent */ null);
+    return (Integer) classLoader.loadClass(className).getMethod("get").invoke(null);
+  }
+}
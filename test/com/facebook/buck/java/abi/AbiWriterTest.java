@@ -513,6 +513,46 @@ public class AbiWriterTest {
     assertNotEquals(original, amended);
   }
 
+  @Test
+  public void abiKeyIsUnchangedByChangesToMethodBodies() throws IOException {
+    String original = computeAbiKey("A.java", Joiner.on("\n").join(
+        "package com.facebook.buck.example;",
+        "public class A {",
+        "  public int doSomething() { return 1; }",
+        "}"));
+
+    String amended = computeAbiKey("A.java", Joiner.on("\n").join(
+        "package com.facebook.buck.example;",
+        "public class A {",
+        "  public int doSomething() { return 2; }",
+        "}"));
+
+    String changedSignature = computeAbiKey("A.java", Joiner.on("\n").join(
+        "package com.facebook.buck.example;",
+        "public class A {",
+        "  public long doSomething() { return 1; }",
+        "}"));
+
+    assertEquals(original, amended);
+    assertNotEquals(original, changedSignature);
+  }
+
+  @Test
+  public void packageInfoDoesNotContributeToTheAbi() throws IOException {
+    String classOnly = computeAbiKey("A.java", Joiner.on("\n").join(
+        "package com.facebook.buck.example;",
+        "public class A {}"));
+
+    String withPackageInfo = computeAbiKey(
+        "A.java", Joiner.on("\n").join(
+            "package com.facebook.buck.example;",
+            "public class A {}"),
+        "package-info.java", "package com.facebook.buck.example;");
+
+    assertEquals(classOnly, withPackageInfo);
+    assertNotEquals(AbiWriter.EMPTY_ABI_KEY, classOnly);
+  }
+
   @Test
   public void generateSampleOutput() throws IOException {
     File testDataDir = TestDataHelper.getTestDataScenario(this, "compute_abi");
@@ -554,10 +594,31 @@ public class AbiWriterTest {
     File file = target.file;
     Files.write(target.source, file, UTF_8);
 
+    AbiWriter processor = runAbiWriter(outputDir, ImmutableSet.of(file), classpath);
+    return Iterables.getOnlyElement(processor.getSummaries());
+  }
+
+  /**
+   * @return the ABI key of the given source files when they are compiled together.
+   */
+  private String computeAbiKey(String... fileNamesAndSources) throws IOException {
+    File sourceDir = temp.newFolder();
+    ImmutableSet.Builder<File> files = ImmutableSet.builder();
+    for (int i = 0; i < fileNamesAndSources.length; i++) {
+      File file = new File(sourceDir, fileNamesAndSources[i++]);
+      Files.write(fileNamesAndSources[i], file, UTF_8);
+      files.add(file);
+    }
+    return runAbiWriter(temp.newFolder(), files.build(), ImmutableSet.<File>of()).getAbiKey();
+  }
+
+  private AbiWriter runAbiWriter(File outputDir,
+      ImmutableSet<File> files,
+      ImmutableSet<File> classpath) {
     JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
     StandardJavaFileManager fileManager = compiler.getStandardFileManager(null, null, null);
     Iterable<? extends JavaFileObject> sourceObjects =
-        fileManager.getJavaFileObjectsFromFiles(ImmutableSet.of(file));
+        fileManager.getJavaFileObjectsFromFiles(files);
 
     List<String> args = Lists.newArrayList("-g", "-d", outputDir.getAbsolutePath());
     if (!classpath.isEmpty()) {
@@ -575,7 +636,7 @@ public class AbiWriterTest {
     assertNotNull(result);
     assertTrue(result);
 
-    return Iterables.getOnlyElement(processor.getSummaries());
+    return processor;
   }
 
   private static class FileAndSource {
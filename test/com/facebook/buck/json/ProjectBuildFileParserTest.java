@@ -0,0 +1,76 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.json;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+public class ProjectBuildFileParserTest {
+
+  private static final int NUM_BUILD_FILES = 16;
+  private static final int NUM_RULES_PER_BUILD_FILE = 50;
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  @Test
+  public void testBuildFilesParsedAtTheSameTimeKeepTheirOwnRules() throws IOException {
+    for (int i = 0; i < NUM_BUILD_FILES; i++) {
+      File directory = tmp.newFolder("package" + i);
+      Files.write(String.format(
+              "for i in range(%d):\n" +
+              "  export_file(name = 'package%d_file%%d' %% i, src = 'file')\n",
+              NUM_RULES_PER_BUILD_FILE,
+              i),
+          new File(directory, "BUCK"),
+          Charsets.UTF_8);
+    }
+
+    ProjectBuildFileParser parser = new ProjectBuildFileParser(ImmutableSet.<String>of(),
+        /* directoryIndex */ null,
+        /* numInterpreters */ 4);
+    List<Map<String, Object>> rules =
+        parser.getAllRulesInProject(tmp.getRoot(), ImmutableList.<String>of());
+
+    int numRules = 0;
+    for (Map<String, Object> rule : rules) {
+      if (!rule.containsKey("type")) {
+        // The files that each build file was derived from.
+        continue;
+      }
+      numRules++;
+      String name = (String) rule.get("name");
+      assertEquals("The rule " + name + " is attributed to the wrong build file.",
+          name.substring(0, name.indexOf('_')),
+          rule.get("buck_base_path"));
+    }
+    assertEquals(NUM_BUILD_FILES * NUM_RULES_PER_BUILD_FILE, numRules);
+  }
+}
@@ -45,11 +45,13 @@ import com.facebook.buck.util.ProjectFilesystem;
 import com.google.common.base.Charsets;
 import com.google.common.base.Function;
 import com.google.common.base.Optional;
+import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSortedSet;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.io.Files;
@@ -64,6 +66,7 @@ import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.StandardWatchEventKinds;
 import java.nio.file.WatchEvent;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -347,7 +350,7 @@ public class ParserTest {
     parser.filterAllTargetsInProject(filesystem, Lists.<String>newArrayList(), alwaysTrue());
     WatchEvent<Path> event = createMock(WatchEvent.class);
     expect(event.kind()).andReturn(StandardWatchEventKinds.ENTRY_MODIFY).anyTimes();
-    expect(event.context()).andReturn(new File("./BUCK").toPath());
+    expect(event.context()).andReturn(testBuildFile.toPath());
     replay(event);
     parser.onFileSystemChange(event);
     parser.filterAllTargetsInProject(filesystem, Lists.<String>newArrayList(), alwaysTrue());
@@ -413,6 +416,178 @@ public class ParserTest {
     assertEquals("Should have replaced build rules", 2, buildFileParser.calls);
   }
 
+  @Test
+  public void whenTransitiveDepsAreInSeveralBuildFilesThenEachBuildFileIsParsedOnce()
+      throws IOException, NoSuchBuildTargetException {
+    // //java/com/facebook/a:a depends on b and c, and b also depends on c.
+    CannedProjectBuildFileParser buildFileParser = new CannedProjectBuildFileParser();
+    BuildTarget a = createCannedRule(buildFileParser, "a", "//java/com/facebook/b:b",
+        "//java/com/facebook/c:c");
+    BuildTarget b = createCannedRule(buildFileParser, "b", "//java/com/facebook/c:c");
+    BuildTarget c = createCannedRule(buildFileParser, "c");
+    Parser parser = createParser(emptyBuildTargets(), buildFileParser);
+
+    DependencyGraph graph = parser.parseBuildFilesForTargets(ImmutableList.of(a),
+        ImmutableList.<String>of());
+
+    for (BuildTarget target : ImmutableList.of(a, b, c)) {
+      assertNotNull(graph.findBuildRuleByTarget(target));
+    }
+    assertEquals("Each build file should have been parsed exactly once.",
+        ImmutableList.of(a, b, c).size(),
+        buildFileParser.requestedBuildFiles.size());
+    assertEquals(
+        ImmutableSet.of(a.getBuildFile().getPath(),
+            b.getBuildFile().getPath(),
+            c.getBuildFile().getPath()),
+        ImmutableSet.copyOf(buildFileParser.requestedBuildFiles));
+  }
+
+  @Test
+  public void whenFileIsAddedToGlobbedDirectoryThenOnlyThatBuildFileIsParsedAgain()
+      throws IOException, NoSuchBuildTargetException {
+    CannedProjectBuildFileParser buildFileParser = new CannedProjectBuildFileParser();
+    BuildTarget a = createCannedRule(buildFileParser, "a", "//java/com/facebook/b:b");
+    BuildTarget b = createCannedRule(buildFileParser, "b");
+    File globbedDirectory = a.getBuildFile().getParentFile();
+    addCannedDependencies(buildFileParser, "a",
+        ImmutableList.<String>of(),
+        ImmutableList.of(globbedDirectory.getPath()));
+    addCannedDependencies(buildFileParser, "b",
+        ImmutableList.<String>of(),
+        ImmutableList.<String>of());
+    Parser parser = createParser(emptyBuildTargets(), buildFileParser);
+
+    parser.parseBuildFilesForTargets(ImmutableList.of(a), ImmutableList.<String>of());
+    parser.onFileSystemChange(
+        createPathEvent(StandardWatchEventKinds.ENTRY_CREATE, new File(globbedDirectory, "A.java")));
+    parser.onFileSystemChange(createPathEvent(StandardWatchEventKinds.ENTRY_MODIFY,
+        new File(b.getBuildFile().getParentFile(), "B.java")));
+    parser.parseBuildFilesForTargets(ImmutableList.of(a), ImmutableList.<String>of());
+
+    assertEquals(
+        ImmutableList.of(a.getBuildFile().getPath(),
+            b.getBuildFile().getPath(),
+            a.getBuildFile().getPath()),
+        buildFileParser.requestedBuildFiles);
+  }
+
+  @Test
+  public void whenIncludeIsModifiedThenBuildFilesThatIncludeItAreParsedAgain()
+      throws IOException, NoSuchBuildTargetException {
+    CannedProjectBuildFileParser buildFileParser = new CannedProjectBuildFileParser();
+    BuildTarget a = createCannedRule(buildFileParser, "a", "//java/com/facebook/b:b");
+    BuildTarget b = createCannedRule(buildFileParser, "b");
+    File include = tempDir.newFile("DEFS");
+    addCannedDependencies(buildFileParser, "a",
+        ImmutableList.<String>of(),
+        ImmutableList.<String>of());
+    addCannedDependencies(buildFileParser, "b",
+        ImmutableList.of(include.getPath()),
+        ImmutableList.<String>of());
+    Parser parser = createParser(emptyBuildTargets(), buildFileParser);
+
+    parser.parseBuildFilesForTargets(ImmutableList.of(a), ImmutableList.<String>of());
+    parser.onFileSystemChange(createPathEvent(StandardWatchEventKinds.ENTRY_MODIFY, include));
+    parser.parseBuildFilesForTargets(ImmutableList.of(a), ImmutableList.<String>of());
+
+    assertEquals(
+        ImmutableList.of(a.getBuildFile().getPath(),
+            b.getBuildFile().getPath(),
+            b.getBuildFile().getPath()),
+        buildFileParser.requestedBuildFiles);
+  }
+
+  @Test
+  public void whenDirectoryWithBuildFileIsMovedThenAffectedBuildFilesAreParsedAgain()
+      throws IOException, NoSuchBuildTargetException {
+    CannedProjectBuildFileParser buildFileParser = new CannedProjectBuildFileParser();
+    BuildTarget a = createCannedRule(buildFileParser, "a");
+    tempDir.newFolder("java", "com", "facebook", "a", "sub");
+    File subBuildFile = tempDir.newFile(
+        "java/com/facebook/a/sub/" + BuckConstant.BUILD_RULES_FILE_NAME);
+    buildFileParser.rules.put(subBuildFile.getPath(), ImmutableMap.<String, Object>of(
+        "type", "java_library",
+        "name", "sub",
+        "buck_base_path", "java/com/facebook/a/sub",
+        "deps", ImmutableList.of(),
+        "visibility", ImmutableList.of("PUBLIC")));
+    BuildTarget sub = BuildTargetFactory.newInstance("//java/com/facebook/a/sub", "sub",
+        subBuildFile);
+    Parser parser = createParser(emptyBuildTargets(), buildFileParser);
+    parser.parseBuildFilesForTargets(ImmutableList.of(a, sub), ImmutableList.<String>of());
+
+    // java/com/facebook/a/sub is moved to java/com/facebook/b, which only yields events for the
+    // directories themselves.
+    File subDirectory = subBuildFile.getParentFile();
+    File movedDirectory = new File(tempDir.getRoot(), "java/com/facebook/b");
+    java.nio.file.Files.move(subDirectory.toPath(), movedDirectory.toPath());
+    File movedBuildFile = new File(movedDirectory, BuckConstant.BUILD_RULES_FILE_NAME);
+    buildFileParser.rules.put(movedBuildFile.getPath(), ImmutableMap.<String, Object>of(
+        "type", "java_library",
+        "name", "sub",
+        "buck_base_path", "java/com/facebook/b",
+        "deps", ImmutableList.of(),
+        "visibility", ImmutableList.of("PUBLIC")));
+    BuildTarget moved = BuildTargetFactory.newInstance("//java/com/facebook/b", "sub",
+        movedBuildFile);
+    buildFileParser.requestedBuildFiles.clear();
+    parser.onFileSystemChange(createPathEvent(StandardWatchEventKinds.ENTRY_DELETE, subDirectory));
+    parser.onFileSystemChange(
+        createPathEvent(StandardWatchEventKinds.ENTRY_CREATE, movedDirectory));
+    parser.parseBuildFilesForTargets(ImmutableList.of(a, moved), ImmutableList.<String>of());
+
+    // The build file that the moved directory was under now owns none of its files.
+    assertEquals(
+        ImmutableSet.of(a.getBuildFile().getPath(), movedBuildFile.getPath()),
+        ImmutableSet.copyOf(buildFileParser.requestedBuildFiles));
+  }
+
+  @SuppressWarnings("unchecked") // Needed to mock generic WatchEvent class.
+  private static WatchEvent<Path> createPathEvent(WatchEvent.Kind<Path> kind, File file) {
+    WatchEvent<Path> event = createMock(WatchEvent.class);
+    expect(event.kind()).andReturn(kind).anyTimes();
+    expect(event.context()).andReturn(file.toPath()).anyTimes();
+    replay(event);
+    return event;
+  }
+
+  /**
+   * Adds the includes and glob() directories of the build file in {@code java/com/facebook/<name>}
+   * to the rules that {@code buildFileParser} returns for it, as buck.py does.
+   */
+  private void addCannedDependencies(CannedProjectBuildFileParser buildFileParser,
+      String name,
+      List<String> includes,
+      List<String> globDirectories) {
+    File buildFile = new File(tempDir.getRoot(),
+        "java/com/facebook/" + name + "/" + BuckConstant.BUILD_RULES_FILE_NAME);
+    buildFileParser.rules.put(buildFile.getPath(), ImmutableMap.<String, Object>of(
+        "buck_base_path", "java/com/facebook/" + name,
+        "__includes", includes,
+        "__glob_directories", globDirectories));
+  }
+
+  /**
+   * Creates a build file in {@code java/com/facebook/<name>} that defines a public
+   * {@code java_library} named {@code name} with the specified deps, which {@code buildFileParser} will return when the
+   * build file is parsed.
+   */
+  private BuildTarget createCannedRule(CannedProjectBuildFileParser buildFileParser,
+      String name,
+      String... deps) throws IOException {
+    tempDir.newFolder("java", "com", "facebook", name);
+    File buildFile = tempDir.newFile(
+        "java/com/facebook/" + name + "/" + BuckConstant.BUILD_RULES_FILE_NAME);
+    buildFileParser.rules.put(buildFile.getPath(), ImmutableMap.<String, Object>of(
+        "type", "java_library",
+        "name", name,
+        "buck_base_path", "java/com/facebook/" + name,
+        "deps", ImmutableList.copyOf(deps),
+        "visibility", ImmutableList.of("PUBLIC")));
+    return BuildTargetFactory.newInstance("//java/com/facebook/" + name, name, buildFile);
+  }
+
   private Map<BuildTarget, BuildRuleBuilder<?>> emptyBuildTargets() {
     return Maps.newHashMap();
   }
@@ -490,4 +665,26 @@ public class ParserTest {
       return super.getAllRules(rootPath, buildFile, includes);
     }
   }
+
+  /**
+   * ProjectBuildFileParser test double which returns canned rules rather than executing build files,
+   * and records which build files were requested.
+   */
+  private static class CannedProjectBuildFileParser extends ProjectBuildFileParser {
+
+    private final ListMultimap<String, Map<String, Object>> rules = ArrayListMultimap.create();
+    private final List<String> requestedBuildFiles =
+        Collections.synchronizedList(Lists.<String>newArrayList());
+
+    public CannedProjectBuildFileParser() {
+      super(ImmutableSet.<String>of());
+    }
+
+    @Override
+    public List<Map<String, Object>> getAllRules(String rootPath, Optional<String> buildFile,
+                                                 Iterable<String> includes) {
+      requestedBuildFiles.add(buildFile.get());
+      return rules.get(buildFile.get());
+    }
+  }
 }
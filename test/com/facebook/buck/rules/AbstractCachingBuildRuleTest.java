@@ -16,10 +16,12 @@
 
 package com.facebook.buck.rules;
 
-import static org.easymock.EasyMock.capture;
+import static org.easymock.EasyMock.anyObject;
 import static org.easymock.EasyMock.eq;
 import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import com.facebook.buck.model.BuildTarget;
@@ -28,24 +30,30 @@ import com.facebook.buck.model.BuildTargetPattern;
 import com.facebook.buck.step.Step;
 import com.facebook.buck.step.StepFailedException;
 import com.facebook.buck.step.StepRunner;
+import com.facebook.buck.util.BuckConstant;
 import com.facebook.buck.util.MoreFutures;
 import com.facebook.buck.util.ProjectFilesystem;
+import com.google.common.base.Charsets;
 import com.google.common.base.Functions;
 import com.google.common.base.Optional;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSortedSet;
-import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.eventbus.EventBus;
 import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.MoreExecutors;
 
-import org.easymock.Capture;
+import org.easymock.EasyMock;
 import org.easymock.EasyMockSupport;
+import org.easymock.IAnswer;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import java.io.File;
 import java.io.IOException;
@@ -61,9 +69,16 @@ import javax.annotation.Nullable;
  */
 public class AbstractCachingBuildRuleTest extends EasyMockSupport {
 
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
   private static final BuildTarget buildTarget = BuildTargetFactory.newInstance(
       "//src/com/facebook/orca", "orca");
 
+  /** Where the rules of these tests fetch their artifact to. */
+  private static final String ARTIFACT_PATH =
+      BuckConstant.BIN_DIR + "/src/com/facebook/orca/.artifact/orca";
+
   /**
    * Tests what should happen when a rule is built for the first time: it should have no cached
    * RuleKey, nor should it have any artifact in the ArtifactCache. The sequence of events should be
@@ -75,12 +90,13 @@ public class AbstractCachingBuildRuleTest extends EasyMockSupport {
    *   <li>Because the rule has no {@link RuleKey} on disk, the rule tries to build itself.
    *   <li>First, it checks the artifact cache, but there is a cache miss.
    *   <li>The rule generates its build steps and executes them.
-   *   <li>Upon executing its steps successfully, it should write its {@link RuleKey} to disk.
+   *   <li>Upon executing its steps successfully, it should record its {@link RuleKey} in the
+   *       {@link BuildMetadataStore}.
    *   <li>It should persist its output to the ArtifactCache.
    * </ol>
    */
   @Test
-  public void testBuildRuleWithoutSuccessFileOrCachedArtifact()
+  public void testBuildRuleWithoutBuildMetadataOrCachedArtifact()
       throws IOException, InterruptedException, ExecutionException, StepFailedException {
     // Create a dep for the build rule.
     BuildRule dep = createMock(BuildRule.class);
@@ -98,6 +114,8 @@ public class AbstractCachingBuildRuleTest extends EasyMockSupport {
     String output = "some_file";
     File outputFile = new File(output);
     List<Step> buildSteps = Lists.newArrayList();
+    File buildMetadataFile = new File(tmp.getRoot(), "build_metadata");
+    BuildMetadataStore buildMetadataStore = new BuildMetadataStore(buildMetadataFile);
     AbstractCachingBuildRule cachingRule = createRule(
         ImmutableSet.of(dep),
         visibilityPatterns,
@@ -109,7 +127,8 @@ public class AbstractCachingBuildRuleTest extends EasyMockSupport {
         }),
         buildSteps,
         /* ruleKeyOnDisk */ Optional.<RuleKey>absent(),
-        output);
+        output,
+        buildMetadataStore);
     verifyAll();
     resetAll();
 
@@ -148,27 +167,32 @@ public class AbstractCachingBuildRuleTest extends EasyMockSupport {
 
     // The EventBus should be updated with events indicating how the rule was built.
     EventBus eventBus = createMock(EventBus.class);
+    eventBus.post(BuildEvents.ruleKeyCalculated(cachingRule,
+        new RuleKey(expectedRuleKeyHash),
+        /* elapsedNanos */ 0L));
     eventBus.post(BuildEvents.buildRuleStarted(cachingRule));
+    eventBus.post(BuildEvents.artifactCacheFetched(cachingRule,
+        CacheResult.MISS,
+        /* elapsedNanos */ 0L));
     eventBus.post(BuildEvents.buildRuleFinished(cachingRule, BuildRuleStatus.SUCCESS, CacheResult.MISS));
 
     // The BuildContext that will be used by the rule's build() method.
     BuildContext context = createMock(BuildContext.class);
-    expect(context.getExecutor()).andReturn(MoreExecutors.sameThreadExecutor());
-    expect(context.getEventBus()).andReturn(eventBus).times(2);
+    expect(context.isTopDownBuild()).andReturn(false);
+    expect(context.getExecutorFor(cachingRule)).andReturn(MoreExecutors.sameThreadExecutor());
+    expect(context.getEventBus()).andReturn(eventBus).times(4);
     context.logBuildInfo("[BUILDING %s]", "//src/com/facebook/orca:orca");
     StepRunner stepRunner = createMock(StepRunner.class);
     expect(context.getStepRunner()).andReturn(stepRunner);
     ProjectFilesystem projectFilesystem = createMock(ProjectFilesystem.class);
-    expect(context.getProjectFilesystem()).andReturn(projectFilesystem).times(2);
-    String pathToSuccessFile = cachingRule.getPathToSuccessFile();
-    projectFilesystem.createParentDirs(pathToSuccessFile);
-    Capture<Iterable<String>> linesCapture = new Capture<Iterable<String>>();
-    projectFilesystem.writeLinesToPath(capture(linesCapture), eq(pathToSuccessFile));
+    expect(context.getProjectFilesystem()).andReturn(projectFilesystem).times(3);
+    File artifactFile = new File(tmp.getRoot(), "artifact/orca");
+    expect(projectFilesystem.getFileForRelativePath(ARTIFACT_PATH)).andReturn(artifactFile);
     expect(projectFilesystem.getFileForRelativePath(output)).andReturn(outputFile).times(2);
 
     // There will initially be a cache miss, later followed by a cache store.
     RuleKey expectedRuleKey = new RuleKey(expectedRuleKeyHash);
-    expect(artifactCache.fetch(expectedRuleKey, outputFile)).andReturn(false);
+    expect(artifactCache.fetch(expectedRuleKey, artifactFile)).andReturn(false);
     artifactCache.store(expectedRuleKey, outputFile);
     expect(context.getArtifactCache()).andReturn(artifactCache).times(2);
 
@@ -188,10 +212,229 @@ public class AbstractCachingBuildRuleTest extends EasyMockSupport {
     assertEquals(BuildRuleSuccess.Type.BUILT_LOCALLY, result.getType());
     verifyAll();
 
-    // Verify that the correct value was written to the .success file.
-    String firstLineInSuccessFile = Iterables.getFirst(linesCapture.getValue(),
-        /* defaultValue */ null);
-    assertEquals(expectedRuleKeyHash, firstLineInSuccessFile);
+    // Verify that the RuleKey was recorded, and that it is read back by the next build.
+    assertEquals(expectedRuleKeyHash,
+        buildMetadataStore.get(cachingRule.getFullyQualifiedName()).get("rule_key"));
+    BuildMetadataStore nextBuildMetadataStore = new BuildMetadataStore(buildMetadataFile);
+    nextBuildMetadataStore.refresh();
+    assertEquals(expectedRuleKeyHash,
+        nextBuildMetadataStore.get(cachingRule.getFullyQualifiedName()).get("rule_key"));
+    buildMetadataStore.close();
+  }
+
+  /**
+   * Tests that in a top-down build, a rule whose output is in the ArtifactCache is fetched without
+   * building any of its deps.
+   */
+  @Test
+  public void testTopDownBuildDoesNotBuildDepsOfCachedRule()
+      throws InterruptedException, ExecutionException, IOException {
+    // The dep contributes its RuleKey, but it must never be built.
+    BuildRule dep = createMock(BuildRule.class);
+    expect(dep.isVisibleTo(buildTarget)).andReturn(true);
+    replayAll();
+    String output = "some_file";
+    File outputFile = new File(tmp.getRoot(), output);
+    AbstractCachingBuildRule cachingRule = createRule(
+        ImmutableSet.of(dep),
+        ImmutableSet.<BuildTargetPattern>of(),
+        ImmutableList.<InputRule>of(),
+        ImmutableList.<Step>of(),
+        /* ruleKeyOnDisk */ Optional.<RuleKey>absent(),
+        output,
+        /* buildMetadataStore */ null);
+    verifyAll();
+    resetAll();
+
+    expect(dep.getRuleKey()).andReturn(new RuleKey("19d2558a6bd3a34fb3f95412de9da27ed32fe208"));
+
+    EventBus eventBus = createMock(EventBus.class);
+    eventBus.post(anyObject());
+    expectLastCall().times(4);
+
+    ProjectFilesystem projectFilesystem = createMock(ProjectFilesystem.class);
+    File artifactFile = new File(tmp.getRoot(), "artifact/orca");
+    expect(projectFilesystem.getFileForRelativePath(ARTIFACT_PATH)).andReturn(artifactFile);
+    expect(projectFilesystem.getFileForRelativePath(output)).andReturn(outputFile);
+
+    ArtifactCache artifactCache = createMock(ArtifactCache.class);
+    expect(artifactCache.fetch(anyObject(RuleKey.class), eq(artifactFile)))
+        .andAnswer(new FetchAnswer("cached".getBytes(Charsets.UTF_8)));
+
+    BuildContext context = createMock(BuildContext.class);
+    expect(context.isTopDownBuild()).andReturn(true);
+    expect(context.getExecutorFor(cachingRule)).andReturn(MoreExecutors.sameThreadExecutor());
+    expect(context.getEventBus()).andReturn(eventBus).times(4);
+    expect(context.getProjectFilesystem()).andReturn(projectFilesystem).times(2);
+    expect(context.getArtifactCache()).andReturn(artifactCache).times(2);
+
+    replayAll();
+    BuildRuleSuccess result = cachingRule.build(context).get();
+    assertEquals(BuildRuleSuccess.Type.FETCHED_FROM_CACHE, result.getType());
+    verifyAll();
+    assertEquals("cached", Files.toString(outputFile, Charsets.UTF_8));
+  }
+
+  /**
+   * Tests that an output directory that already exists and is not empty is replaced by the one
+   * that is fetched from the ArtifactCache.
+   */
+  @Test
+  public void testFetchReplacesAPopulatedOutputDirectory()
+      throws InterruptedException, ExecutionException, IOException {
+    String output = "some_dir";
+    File sourceRoot = tmp.newFolder("source");
+    Files.createParentDirs(new File(sourceRoot, "some_dir/new.txt"));
+    Files.write("new", new File(sourceRoot, "some_dir/new.txt"), Charsets.UTF_8);
+    File packedArtifact = new File(tmp.getRoot(), "packed");
+    ArtifactArchive.pack(sourceRoot, ImmutableSortedSet.of(output), packedArtifact);
+
+    File projectRoot = tmp.newFolder("project");
+    File outputDir = new File(projectRoot, output);
+    Files.createParentDirs(new File(outputDir, "stale/stale.txt"));
+    Files.write("stale", new File(outputDir, "stale/stale.txt"), Charsets.UTF_8);
+
+    AbstractCachingBuildRule cachingRule = createRule(
+        ImmutableSet.<BuildRule>of(),
+        ImmutableSet.<BuildTargetPattern>of(),
+        ImmutableList.<InputRule>of(),
+        ImmutableList.<Step>of(),
+        /* ruleKeyOnDisk */ Optional.<RuleKey>absent(),
+        output,
+        /* buildMetadataStore */ null);
+
+    EventBus eventBus = createMock(EventBus.class);
+    eventBus.post(anyObject());
+    expectLastCall().times(4);
+
+    ProjectFilesystem projectFilesystem = createMock(ProjectFilesystem.class);
+    File artifactFile = new File(projectRoot, ARTIFACT_PATH);
+    expect(projectFilesystem.getFileForRelativePath(ARTIFACT_PATH)).andReturn(artifactFile);
+    expect(projectFilesystem.getProjectRoot()).andReturn(projectRoot);
+
+    ArtifactCache artifactCache = createMock(ArtifactCache.class);
+    expect(artifactCache.fetch(anyObject(RuleKey.class), eq(artifactFile)))
+        .andAnswer(new FetchAnswer(Files.toByteArray(packedArtifact)));
+
+    BuildContext context = createMock(BuildContext.class);
+    expect(context.isTopDownBuild()).andReturn(true);
+    expect(context.getExecutorFor(cachingRule)).andReturn(MoreExecutors.sameThreadExecutor());
+    expect(context.getEventBus()).andReturn(eventBus).times(4);
+    expect(context.getProjectFilesystem()).andReturn(projectFilesystem).times(2);
+    expect(context.getArtifactCache()).andReturn(artifactCache).times(2);
+
+    replayAll();
+    BuildRuleSuccess result = cachingRule.build(context).get();
+    assertEquals(BuildRuleSuccess.Type.FETCHED_FROM_CACHE, result.getType());
+    verifyAll();
+    assertEquals("new", Files.toString(new File(outputDir, "new.txt"), Charsets.UTF_8));
+    assertFalse(new File(outputDir, "stale").exists());
+    assertFalse(artifactFile.exists());
+  }
+
+  /**
+   * Tests that an output that was fetched from a {@link DirArtifactCache}, and so is a hardlink to
+   * its entry, is not written through when the rule is built again.
+   */
+  @Test
+  public void testRebuildDoesNotWriteThroughToTheDirArtifactCache()
+      throws InterruptedException, ExecutionException, IOException, StepFailedException {
+    File projectRoot = tmp.newFolder("project");
+    ProjectFilesystem projectFilesystem = new ProjectFilesystem(projectRoot);
+    String output = "some_file";
+    final File outputFile = new File(projectRoot, output);
+    Step buildStep = createMock(Step.class);
+    ImmutableList<InputRule> inputs = ImmutableList.<InputRule>of(new InputRule("/dev/null") {
+      @Override
+      public RuleKey getRuleKey() {
+        return new RuleKey("ae8c0f860a0ecad94ecede79b69460434eddbfbc");
+      }
+    });
+
+    AbstractCachingBuildRule fetchedRule = createRule(
+        ImmutableSet.<BuildRule>of(),
+        ImmutableSet.<BuildTargetPattern>of(),
+        inputs,
+        ImmutableList.of(buildStep),
+        /* ruleKeyOnDisk */ Optional.<RuleKey>absent(),
+        output,
+        /* buildMetadataStore */ null);
+    File cacheDir = tmp.newFolder("cache");
+    DirArtifactCache dirArtifactCache = new DirArtifactCache(cacheDir);
+    File cached = tmp.newFile("cached");
+    Files.write("cached", cached, Charsets.UTF_8);
+    dirArtifactCache.store(fetchedRule.getRuleKey(), cached);
+    File cacheEntry = new File(cacheDir, fetchedRule.getRuleKey().toString());
+
+    BuildContext fetchContext = createBuildContext(fetchedRule,
+        projectFilesystem,
+        dirArtifactCache,
+        createMock(StepRunner.class));
+    replayAll();
+    assertEquals(BuildRuleSuccess.Type.FETCHED_FROM_CACHE,
+        fetchedRule.build(fetchContext).get().getType());
+    verifyAll();
+    resetAll();
+
+    // The same rule in the next build misses the cache, and its step writes the output in place.
+    AbstractCachingBuildRule builtRule = createRule(
+        ImmutableSet.<BuildRule>of(),
+        ImmutableSet.<BuildTargetPattern>of(),
+        inputs,
+        ImmutableList.of(buildStep),
+        /* ruleKeyOnDisk */ Optional.<RuleKey>absent(),
+        output,
+        /* buildMetadataStore */ null);
+    StepRunner stepRunner = createMock(StepRunner.class);
+    stepRunner.runStepForBuildTarget(buildStep, buildTarget);
+    expectLastCall().andAnswer(new IAnswer<Void>() {
+      @Override
+      public Void answer() throws IOException {
+        Files.write("built", outputFile, Charsets.UTF_8);
+        return null;
+      }
+    });
+    BuildContext buildContext = createBuildContext(builtRule,
+        projectFilesystem,
+        new DirArtifactCache(tmp.newFolder("other_cache")),
+        stepRunner);
+    replayAll();
+    assertEquals(BuildRuleSuccess.Type.BUILT_LOCALLY,
+        builtRule.build(buildContext).get().getType());
+    verifyAll();
+
+    assertEquals("built", Files.toString(outputFile, Charsets.UTF_8));
+    assertEquals("cached", Files.toString(cacheEntry, Charsets.UTF_8));
+  }
+
+  private BuildContext createBuildContext(BuildRule buildRule,
+      ProjectFilesystem projectFilesystem,
+      ArtifactCache artifactCache,
+      StepRunner stepRunner) {
+    BuildContext context = createNiceMock(BuildContext.class);
+    expect(context.getExecutorFor(buildRule))
+        .andReturn(MoreExecutors.sameThreadExecutor())
+        .anyTimes();
+    expect(context.getEventBus()).andReturn(new EventBus()).anyTimes();
+    expect(context.getProjectFilesystem()).andReturn(projectFilesystem).anyTimes();
+    expect(context.getArtifactCache()).andReturn(artifactCache).anyTimes();
+    expect(context.getStepRunner()).andReturn(stepRunner).anyTimes();
+    return context;
+  }
+
+  /** Writes the given contents to the file passed to {@link ArtifactCache#fetch}, as a hit. */
+  private static class FetchAnswer implements IAnswer<Boolean> {
+    private final byte[] contents;
+
+    private FetchAnswer(byte[] contents) {
+      this.contents = contents;
+    }
+
+    @Override
+    public Boolean answer() throws IOException {
+      Files.write(contents, (File) EasyMock.getCurrentArguments()[1]);
+      return true;
+    }
   }
 
   @Test
@@ -203,7 +446,8 @@ public class AbstractCachingBuildRuleTest extends EasyMockSupport {
     TestAbstractCachingBuildRule buildRule = new TestAbstractCachingBuildRule(buildRuleParams);
 
     BuildContext buildContext = createMock(BuildContext.class);
-    expect(buildContext.getExecutor()).andReturn(MoreExecutors.sameThreadExecutor());
+    expect(buildContext.isTopDownBuild()).andReturn(false);
+    expect(buildContext.getExecutorFor(buildRule)).andReturn(MoreExecutors.sameThreadExecutor());
 
     replayAll();
 
@@ -219,10 +463,76 @@ public class AbstractCachingBuildRuleTest extends EasyMockSupport {
   }
 
 
-  // TODO(mbolin): Test that when the success files match, nothing is built and nothing is written
-  // back to the cache.
+  @Test
+  public void testAbiRuleRecordsAbiKeysInBuildMetadata() {
+    BuildRuleParams buildRuleParams = new BuildRuleParams(buildTarget,
+        /* sortedDeps */ ImmutableSortedSet.<BuildRule>of(),
+        /* visibilityPatterns */ ImmutableSet.<BuildTargetPattern>of(),
+        /* pathRelativizer */ Functions.<String>identity());
+    TestAbstractCachingBuildRule buildRule = new TestAbstractCachingBuildRule(buildRuleParams);
+    ImmutableMap<String, String> builtLocally = buildRule.getBuildMetadata(/* fromCache */ false);
+    ImmutableMap<String, String> fetchedFromCache =
+        buildRule.getBuildMetadata(/* fromCache */ true);
+
+    assertEquals(
+        ImmutableMap.of(
+            "rule_key", buildRule.getRuleKey().toString(),
+            "rule_key_without_deps", "efd7d450d9f1c3d9e43392dec63b1f31692305b9",
+            "abi_key_for_deps", "92d6de0a59080284055bcde5d2923f144b216a59",
+            "abi_key", "3ac2b55aa7bbc1a06a0d3d1f0e3e2ad2f7bcd6a0"),
+        builtLocally);
+
+    assertEquals("The ABI of an output fetched from the cache is unknown, so it is not recorded.",
+        ImmutableMap.of(
+            "rule_key", buildRule.getRuleKey().toString(),
+            "rule_key_without_deps", "efd7d450d9f1c3d9e43392dec63b1f31692305b9",
+            "abi_key_for_deps", "92d6de0a59080284055bcde5d2923f144b216a59"),
+        fetchedFromCache);
+  }
+
+  @Test
+  public void testDependencyFileRuleCanAvoidRebuildWhenTheAbiOfItsDepsChanged()
+      throws InterruptedException, ExecutionException, IOException {
+    BuildMetadataStore buildMetadataStore = new BuildMetadataStore(tmp.newFile("build_metadata"));
+    BuildRuleParams buildRuleParams = new BuildRuleParams(buildTarget,
+        /* sortedDeps */ ImmutableSortedSet.<BuildRule>of(),
+        /* visibilityPatterns */ ImmutableSet.<BuildTargetPattern>of(),
+        /* pathRelativizer */ Functions.<String>identity(),
+        /* ruleKeyCache */ null,
+        buildMetadataStore);
+    TestDependencyFileRule buildRule = new TestDependencyFileRule(buildRuleParams,
+        ImmutableMap.of("file:com/example/A.class", "a1"));
+    buildMetadataStore.put(buildRule.getFullyQualifiedName(), ImmutableMap.of(
+        "rule_key", "0000000000000000000000000000000000000000",
+        "rule_key_without_deps", "efd7d450d9f1c3d9e43392dec63b1f31692305b9",
+        "abi_key_for_deps", "0000000000000000000000000000000000000000",
+        "dep_file:file:com/example/A.class", "a1"));
+
+    BuildContext buildContext = createMock(BuildContext.class);
+    expect(buildContext.isTopDownBuild()).andReturn(false);
+    expect(buildContext.getExecutorFor(buildRule)).andReturn(MoreExecutors.sameThreadExecutor());
+    expect(buildContext.getEventBus()).andReturn(new EventBus());
+    buildContext.logBuildInfo("[UNCHANGED DEP FILE %s]", buildRule.getFullyQualifiedName());
+
+    replayAll();
+    BuildRuleSuccess success = buildRule.build(buildContext).get();
+    assertEquals(BuildRuleSuccess.Type.MATCHING_DEP_FILE_AND_RULE_KEY_NO_DEPS, success.getType());
+    verifyAll();
 
-  // TODO(mbolin): Test that when the value in the success file does not agree with the current
+    assertEquals("The output is recorded as up to date, along with the same dependency file.",
+        ImmutableMap.of(
+            "rule_key", buildRule.getRuleKey().toString(),
+            "rule_key_without_deps", "efd7d450d9f1c3d9e43392dec63b1f31692305b9",
+            "abi_key_for_deps", "92d6de0a59080284055bcde5d2923f144b216a59",
+            "abi_key", "3ac2b55aa7bbc1a06a0d3d1f0e3e2ad2f7bcd6a0",
+            "dep_file:file:com/example/A.class", "a1"),
+        buildMetadataStore.get(buildRule.getFullyQualifiedName()));
+  }
+
+  // TODO(mbolin): Test that when the recorded RuleKey matches, nothing is built and nothing is
+  // written back to the cache.
+
+  // TODO(mbolin): Test that when the recorded RuleKey does not agree with the current
   // value, the rule is rebuilt and the result is written back to the cache.
 
   // TODO(mbolin): Test that if there is a cache hit, nothing is built and nothing is written back
@@ -238,14 +548,17 @@ public class AbstractCachingBuildRuleTest extends EasyMockSupport {
       final Iterable<InputRule> inputRules,
       final List<Step> buildSteps,
       final Optional<RuleKey> ruleKeyOnDisk,
-      @Nullable final String output) {
+      @Nullable final String output,
+      @Nullable BuildMetadataStore buildMetadataStore) {
     Comparator<BuildRule> comparator = RetainOrderComparator.createComparator(deps);
     ImmutableSortedSet<BuildRule> sortedDeps = ImmutableSortedSet.copyOf(comparator, deps);
 
     BuildRuleParams buildRuleParams = new BuildRuleParams(buildTarget,
         sortedDeps,
         visibilityPatterns,
-        /* pathRelativizer */ Functions.<String>identity());
+        /* pathRelativizer */ Functions.<String>identity(),
+        /* ruleKeyCache */ null,
+        buildMetadataStore);
     return new AbstractCachingBuildRule(buildRuleParams) {
 
       private Iterable<InputRule> inputs = inputRules;
@@ -266,7 +579,7 @@ public class AbstractCachingBuildRuleTest extends EasyMockSupport {
       }
 
       @Override
-      Optional<RuleKey> getRuleKeyOnDisk(ProjectFilesystem projectFilesystem) {
+      Optional<RuleKey> getRuleKeyOnDisk() {
         return ruleKeyOnDisk;
       }
 
@@ -305,7 +618,7 @@ public class AbstractCachingBuildRuleTest extends EasyMockSupport {
 
     @Override
     public BuildRuleType getType() {
-      throw new UnsupportedOperationException("method should not be called");
+      return BuildRuleType.JAVA_LIBRARY;
     }
 
     @Override
@@ -327,5 +640,47 @@ public class AbstractCachingBuildRuleTest extends EasyMockSupport {
     public String getAbiKeyForDepsOnDisk() {
       return "92d6de0a59080284055bcde5d2923f144b216a59";
     }
+
+    @Override
+    public String getAbiKey() {
+      return "3ac2b55aa7bbc1a06a0d3d1f0e3e2ad2f7bcd6a0";
+    }
+
+    @Override
+    public Iterable<InputRule> getInputs() {
+      return ImmutableList.of();
+    }
+  }
+
+  /**
+   * {@link TestAbstractCachingBuildRule} that implements {@link DependencyFileRule}, whose
+   * dependency file on disk is unchanged if it is {@code currentDependencyFile}.
+   */
+  private static class TestDependencyFileRule extends TestAbstractCachingBuildRule
+      implements DependencyFileRule {
+
+    private final ImmutableMap<String, String> currentDependencyFile;
+
+    TestDependencyFileRule(BuildRuleParams buildRuleParams,
+        ImmutableMap<String, String> currentDependencyFile) {
+      super(buildRuleParams);
+      this.currentDependencyFile = currentDependencyFile;
+    }
+
+    @Override
+    public String getAbiKeyForDepsOnDisk() {
+      return readAbiKeyForDepsFromBuildMetadata();
+    }
+
+    @Override
+    public ImmutableMap<String, String> getDependencyFile() {
+      return readDependencyFileFromBuildMetadata();
+    }
+
+    @Override
+    public boolean isDependencyFileUnchanged(BuildContext context,
+        ImmutableMap<String, String> dependencyFile) {
+      return currentDependencyFile.equals(dependencyFile);
+    }
   }
 }
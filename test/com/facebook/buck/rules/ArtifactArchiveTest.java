@@ -0,0 +1,123 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.facebook.buck.util.MoreFiles;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.io.Files;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+public class ArtifactArchiveTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private File root;
+
+  @Before
+  public void setUp() throws IOException {
+    root = tmp.newFolder("project");
+    write("buck-out/gen/lib.jar", "jar");
+    write("buck-out/gen/__lib_gen__/com/example/Generated.java", "class Generated {}");
+    write("buck-out/gen/__lib_gen__/com/example/run.sh", "#!/bin/sh");
+    new File(root, "buck-out/gen/__lib_gen__/com/example/run.sh").setExecutable(true);
+    new File(root, "buck-out/gen/__lib_gen__/empty").mkdirs();
+  }
+
+  @Test
+  public void testUnpackRestoresFilesAndDirectories() throws IOException {
+    ImmutableSortedSet<String> outputs =
+        ImmutableSortedSet.of("buck-out/gen/lib.jar", "buck-out/gen/__lib_gen__");
+    File archive = tmp.newFile("archive");
+    ArtifactArchive.pack(root, outputs, archive);
+    assertTrue(ArtifactArchive.isArchive(archive));
+
+    MoreFiles.deleteRecursively(new File(root, "buck-out/gen/__lib_gen__").toPath());
+    write("buck-out/gen/lib.jar", "stale jar");
+    write("buck-out/gen/__lib_gen__/Stale.java", "class Stale {}");
+    ArtifactArchive.unpack(archive, root, outputs);
+
+    assertEquals("jar", read("buck-out/gen/lib.jar"));
+    assertEquals("class Generated {}", read("buck-out/gen/__lib_gen__/com/example/Generated.java"));
+    assertTrue(new File(root, "buck-out/gen/__lib_gen__/com/example/run.sh").canExecute());
+    assertFalse(new File(root, "buck-out/gen/lib.jar").canExecute());
+    assertTrue(new File(root, "buck-out/gen/__lib_gen__/empty").isDirectory());
+    assertFalse("Outputs that are not in the archive should be deleted.",
+        new File(root, "buck-out/gen/__lib_gen__/Stale.java").exists());
+  }
+
+  @Test
+  public void testArchiveIsDeterministic() throws IOException {
+    ImmutableSortedSet<String> outputs =
+        ImmutableSortedSet.of("buck-out/gen/lib.jar", "buck-out/gen/__lib_gen__");
+    File archive = tmp.newFile("archive");
+    ArtifactArchive.pack(root, outputs, archive);
+
+    // Writing the same files again changes their timestamps, but not the archive.
+    write("buck-out/gen/lib.jar", "jar");
+    new File(root, "buck-out/gen/lib.jar").setLastModified(0);
+    File otherArchive = tmp.newFile("otherArchive");
+    ArtifactArchive.pack(root, outputs, otherArchive);
+
+    assertArrayEquals(Files.toByteArray(archive), Files.toByteArray(otherArchive));
+  }
+
+  @Test
+  public void testUnpackRejectsEntriesOutsideOfTheOutputs() throws IOException {
+    File archive = tmp.newFile("archive");
+    ArtifactArchive.pack(root, ImmutableSortedSet.of("buck-out/gen/lib.jar"), archive);
+
+    try {
+      ArtifactArchive.unpack(archive, root, ImmutableSortedSet.of("buck-out/gen/other.jar"));
+      fail("The archive should only be able to write the outputs that it is unpacked to.");
+    } catch (IOException e) {
+      assertEquals("Artifact archive entry is not an output of the rule: buck-out/gen/lib.jar",
+          e.getMessage());
+    }
+  }
+
+  @Test
+  public void testSingleFileIsNotAnArchive() throws IOException {
+    assertFalse(ArtifactArchive.isArchive(new File(root, "buck-out/gen/lib.jar")));
+    assertFalse(ArtifactArchive.isArchive(new File(root, "buck-out/gen/__lib_gen__")));
+    assertFalse(ArtifactArchive.isArchive(new File(root, "missing")));
+  }
+
+  private void write(String path, String contents) throws IOException {
+    File file = new File(root, path);
+    Files.createParentDirs(file);
+    Files.write(contents, file, Charsets.UTF_8);
+  }
+
+  private String read(String path) throws IOException {
+    return Files.toString(new File(root, path), Charsets.UTF_8);
+  }
+}
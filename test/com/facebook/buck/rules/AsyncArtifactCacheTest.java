@@ -0,0 +1,268 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.eventbus.EventBus;
+import com.google.common.eventbus.Subscribe;
+import com.google.common.io.Files;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class AsyncArtifactCacheTest {
+
+  private static final RuleKey ruleKey = RuleKey.builder(new InputRule(new File(""))).build();
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private EventBus eventBus;
+  private List<BuildEvent> events;
+  private BlockingArtifactCache delegate;
+
+  @Before
+  public void setUp() {
+    eventBus = new EventBus();
+    events = Lists.newArrayList();
+    eventBus.register(new Object() {
+      @Subscribe
+      public void buildEvent(BuildEvent event) {
+        synchronized (events) {
+          events.add(event);
+        }
+      }
+    });
+    delegate = new BlockingArtifactCache();
+  }
+
+  @Test
+  public void testStoreReturnsBeforeTheUploadFinishes() throws IOException {
+    AsyncArtifactCache cache = new AsyncArtifactCache(delegate,
+        eventBus,
+        /* numUploadThreads */ 1,
+        /* maxPendingBytes */ 1024,
+        /* flushTimeoutMillis */ 10000);
+    File output = createOutput("output", 8);
+
+    cache.store(ruleKey, output);
+    assertEquals(8, cache.getNumPendingBytes());
+
+    delegate.uploadsMayFinish.countDown();
+    assertTrue(cache.flush());
+    assertEquals(ImmutableList.of("xxxxxxxx"), delegate.storedContents);
+    assertEquals(0, cache.getNumPendingBytes());
+
+    assertEquals(2, events.size());
+    ArtifactCacheStored stored = (ArtifactCacheStored) events.get(0);
+    assertEquals(ruleKey, stored.getRuleKey());
+    assertEquals(8, stored.getSizeBytes());
+    ArtifactCacheUploadsFinished finished = (ArtifactCacheUploadsFinished) events.get(1);
+    assertEquals(1, finished.getNumUploads());
+    assertEquals(8, finished.getNumBytesUploaded());
+    assertEquals(0, finished.getNumAbandonedUploads());
+  }
+
+  @Test
+  public void testStoreBlocksWhileThePendingUploadsTakeUpTheLimit()
+      throws IOException, InterruptedException {
+    final AsyncArtifactCache cache = new AsyncArtifactCache(delegate,
+        eventBus,
+        /* numUploadThreads */ 2,
+        /* maxPendingBytes */ 10,
+        /* flushTimeoutMillis */ 10000);
+    cache.store(ruleKey, createOutput("first", 8));
+
+    final File second = createOutput("second", 8);
+    Thread storeThread = new Thread() {
+      @Override
+      public void run() {
+        cache.store(ruleKey, second);
+      }
+    };
+    storeThread.start();
+    storeThread.join(100);
+    assertTrue("The second artifact should wait for the first one to be uploaded.",
+        storeThread.isAlive());
+    assertEquals(8, cache.getNumPendingBytes());
+
+    delegate.uploadsMayFinish.countDown();
+    storeThread.join();
+    assertTrue(cache.flush());
+    assertEquals(2, delegate.storedContents.size());
+  }
+
+  @Test
+  public void testArtifactLargerThanTheLimitIsUploadedAlone() throws IOException {
+    AsyncArtifactCache cache = new AsyncArtifactCache(delegate,
+        eventBus,
+        /* numUploadThreads */ 1,
+        /* maxPendingBytes */ 4,
+        /* flushTimeoutMillis */ 10000);
+
+    cache.store(ruleKey, createOutput("large", 8));
+    assertEquals(8, cache.getNumPendingBytes());
+
+    delegate.uploadsMayFinish.countDown();
+    assertTrue(cache.flush());
+  }
+
+  @Test
+  public void testFlushAbandonsUploadsThatDoNotFinishInTime() throws IOException {
+    AsyncArtifactCache cache = new AsyncArtifactCache(delegate,
+        eventBus,
+        /* numUploadThreads */ 1,
+        /* maxPendingBytes */ 1024,
+        /* flushTimeoutMillis */ 10);
+    cache.store(ruleKey, createOutput("first", 8));
+    cache.store(ruleKey, createOutput("second", 8));
+
+    try {
+      assertFalse(cache.flush());
+      ArtifactCacheUploadsFinished finished = getUploadsFinishedEvent();
+      assertEquals(2, finished.getNumAbandonedUploads());
+    } finally {
+      delegate.uploadsMayFinish.countDown();
+    }
+  }
+
+  @Test
+  public void testAbandonedUploadsDeleteTheirCopies() throws IOException, InterruptedException {
+    AsyncArtifactCache cache = new AsyncArtifactCache(delegate,
+        eventBus,
+        /* numUploadThreads */ 1,
+        /* maxPendingBytes */ 1024,
+        /* flushTimeoutMillis */ 10);
+    File first = createOutput("first", 8);
+    File second = createOutput("second", 8);
+    cache.store(ruleKey, first);
+    cache.store(ruleKey, second);
+
+    // The first upload is interrupted while it is running, and the second one never starts.
+    assertFalse(cache.flush());
+    long deadlineNanoTime = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (cache.getNumPendingBytes() > 0 && System.nanoTime() < deadlineNanoTime) {
+      Thread.sleep(10);
+    }
+    assertEquals(0, cache.getNumPendingBytes());
+    assertEquals("The copies of the abandoned uploads should have been deleted.",
+        ImmutableSet.of(first, second),
+        ImmutableSet.copyOf(tmp.getRoot().listFiles()));
+    assertTrue(delegate.storedContents.isEmpty());
+  }
+
+  @Test
+  public void testStoreAfterFlushUploadsOnTheCallingThread() throws IOException {
+    AsyncArtifactCache cache = new AsyncArtifactCache(delegate,
+        eventBus,
+        /* numUploadThreads */ 1,
+        /* maxPendingBytes */ 1024,
+        /* flushTimeoutMillis */ 10000);
+    delegate.uploadsMayFinish.countDown();
+    assertTrue(cache.flush());
+
+    File output = createOutput("output", 8);
+    cache.store(ruleKey, output);
+    assertEquals(ImmutableList.of("xxxxxxxx"), delegate.storedContents);
+  }
+
+  @Test
+  public void testUploadIsNotAffectedByTheOutputBeingWrittenAgain() throws IOException {
+    AsyncArtifactCache cache = new AsyncArtifactCache(delegate,
+        eventBus,
+        /* numUploadThreads */ 1,
+        /* maxPendingBytes */ 1024,
+        /* flushTimeoutMillis */ 10000);
+    File output = createOutput("output", 8);
+    cache.store(ruleKey, output);
+
+    // Such as by the next build, after the last one abandoned this upload.
+    Files.write("rewritten", output, Charsets.UTF_8);
+    delegate.uploadsMayFinish.countDown();
+    assertTrue(cache.flush());
+
+    assertEquals(ImmutableList.of("xxxxxxxx"), delegate.storedContents);
+    assertEquals("The copy that was uploaded should have been deleted.",
+        ImmutableList.of(output),
+        ImmutableList.copyOf(tmp.getRoot().listFiles()));
+  }
+
+  private ArtifactCacheUploadsFinished getUploadsFinishedEvent() {
+    synchronized (events) {
+      for (BuildEvent event : events) {
+        if (event instanceof ArtifactCacheUploadsFinished) {
+          return (ArtifactCacheUploadsFinished) event;
+        }
+      }
+    }
+    throw new AssertionError("No ArtifactCacheUploadsFinished was posted.");
+  }
+
+  private File createOutput(String name, int sizeBytes) throws IOException {
+    File output = tmp.newFile(name);
+    Files.write(new String(new char[sizeBytes]).replace('\0', 'x'), output, Charsets.UTF_8);
+    return output;
+  }
+
+  /** Cache whose uploads do not finish until {@link #uploadsMayFinish} is counted down. */
+  private static class BlockingArtifactCache implements ArtifactCache {
+    private final CountDownLatch uploadsMayFinish = new CountDownLatch(1);
+    private final List<String> storedContents = Lists.newCopyOnWriteArrayList();
+
+    @Override
+    public boolean fetch(RuleKey ruleKey, File output) {
+      return false;
+    }
+
+    @Override
+    public void store(RuleKey ruleKey, File output) {
+      try {
+        if (!uploadsMayFinish.await(10, TimeUnit.SECONDS)) {
+          throw new IllegalStateException("The test never let the upload finish.");
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+      try {
+        storedContents.add(Files.toString(output, Charsets.UTF_8));
+      } catch (IOException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+
+    @Override
+    public void prefetch(Iterable<RuleKey> ruleKeys) {
+      // Nothing to prefetch.
+    }
+  }
+}
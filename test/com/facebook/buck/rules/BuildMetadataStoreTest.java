@@ -0,0 +1,204 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+public class BuildMetadataStoreTest {
+
+  private static final ImmutableMap<String, String> FIRST_METADATA =
+      ImmutableMap.of("rule_key", "a1b2c3d4e5f60718293a4b5c6d7e8f9012345678");
+  private static final ImmutableMap<String, String> SECOND_METADATA =
+      ImmutableMap.of("rule_key", "0123456789abcdef0123456789abcdef01234567", "abi_key", "abc");
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private File file;
+  private BuildMetadataStore store;
+
+  @Before
+  public void setUp() {
+    file = new File(tmp.getRoot(), "buck-out/bin/.build_metadata");
+    store = new BuildMetadataStore(file);
+    store.refresh();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    store.close();
+  }
+
+  @Test
+  public void testMetadataIsReadBackByTheNextBuild() throws IOException {
+    assertEquals(ImmutableMap.of(), store.get("//java/com/example:lib"));
+    store.put("//java/com/example:lib", FIRST_METADATA);
+    store.put("//java/com/example:other", FIRST_METADATA);
+    store.put("//java/com/example:lib", SECOND_METADATA);
+    store.put("//java/com/example:other", ImmutableMap.<String, String>of());
+    assertEquals(SECOND_METADATA, store.get("//java/com/example:lib"));
+
+    BuildMetadataStore nextStore = new BuildMetadataStore(file);
+    nextStore.refresh();
+    assertEquals("The last record of a key replaces the earlier ones.",
+        SECOND_METADATA,
+        nextStore.get("//java/com/example:lib"));
+    assertEquals("An empty record removes a key.",
+        ImmutableMap.of(),
+        nextStore.get("//java/com/example:other"));
+  }
+
+  @Test
+  public void testPartlyWrittenRecordIsDropped() throws IOException {
+    store.put("//java/com/example:lib", FIRST_METADATA);
+    store.close();
+    long validLength = file.length();
+
+    // Simulate a build that was killed while it was appending a record.
+    byte[] record = BuildMetadataStore.encodeRecord("//java/com/example:lib", SECOND_METADATA);
+    FileOutputStream output = new FileOutputStream(file, /* append */ true);
+    try {
+      output.write(Arrays.copyOf(record, record.length - 3));
+    } finally {
+      output.close();
+    }
+
+    BuildMetadataStore nextStore = new BuildMetadataStore(file);
+    nextStore.refresh();
+    assertEquals(FIRST_METADATA, nextStore.get("//java/com/example:lib"));
+
+    // The partial record is dropped before anything else is appended.
+    nextStore.put("//java/com/example:other", FIRST_METADATA);
+    nextStore.close();
+    assertEquals(validLength + BuildMetadataStore.encodeRecord(
+            "//java/com/example:other", FIRST_METADATA).length,
+        file.length());
+    BuildMetadataStore lastStore = new BuildMetadataStore(file);
+    lastStore.refresh();
+    assertEquals(FIRST_METADATA, lastStore.get("//java/com/example:lib"));
+    assertEquals(FIRST_METADATA, lastStore.get("//java/com/example:other"));
+  }
+
+  @Test
+  public void testCorruptRecordIsDropped() throws IOException {
+    store.put("//java/com/example:lib", FIRST_METADATA);
+    long validLength = file.length();
+    store.put("//java/com/example:other", FIRST_METADATA);
+    store.close();
+
+    // Flip a byte in the contents of the second record, which its checksum no longer matches.
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+    try {
+      randomAccessFile.seek(file.length() - 1);
+      byte lastByte = randomAccessFile.readByte();
+      randomAccessFile.seek(file.length() - 1);
+      randomAccessFile.writeByte(lastByte ^ 1);
+    } finally {
+      randomAccessFile.close();
+    }
+
+    BuildMetadataStore nextStore = new BuildMetadataStore(file);
+    nextStore.refresh();
+    assertEquals(FIRST_METADATA, nextStore.get("//java/com/example:lib"));
+    assertEquals(ImmutableMap.of(), nextStore.get("//java/com/example:other"));
+    nextStore.put("//java/com/example:lib", SECOND_METADATA);
+    nextStore.close();
+    assertEquals(validLength + BuildMetadataStore.encodeRecord(
+            "//java/com/example:lib", SECOND_METADATA).length,
+        file.length());
+  }
+
+  @Test
+  public void testRefreshReadsRecordsOfOtherProcessesAndNoticesDeletion() throws IOException {
+    BuildMetadataStore otherStore = new BuildMetadataStore(file);
+    otherStore.put("//java/com/example:lib", FIRST_METADATA);
+    otherStore.close();
+
+    assertEquals(ImmutableMap.of(), store.get("//java/com/example:lib"));
+    store.refresh();
+    assertEquals(FIRST_METADATA, store.get("//java/com/example:lib"));
+
+    // Such as by `buck clean`.
+    assertTrue(file.delete());
+    store.refresh();
+    assertEquals(ImmutableMap.of(), store.get("//java/com/example:lib"));
+
+    store.put("//java/com/example:lib", SECOND_METADATA);
+    store.close();
+    BuildMetadataStore nextStore = new BuildMetadataStore(file);
+    nextStore.refresh();
+    assertEquals(SECOND_METADATA, nextStore.get("//java/com/example:lib"));
+  }
+
+  @Test
+  public void testReplacedRecordsAreCompacted() throws IOException {
+    for (int i = 0; i < 5000; i++) {
+      store.put("//java/com/example:lib", i % 2 == 0 ? FIRST_METADATA : SECOND_METADATA);
+    }
+    store.close();
+    long uncompactedLength = file.length();
+
+    BuildMetadataStore nextStore = new BuildMetadataStore(file);
+    nextStore.refresh();
+    nextStore.put("//java/com/example:other", FIRST_METADATA);
+    nextStore.close();
+    assertTrue(file.length() < uncompactedLength / 100);
+
+    BuildMetadataStore lastStore = new BuildMetadataStore(file);
+    lastStore.refresh();
+    assertEquals(SECOND_METADATA, lastStore.get("//java/com/example:lib"));
+    assertEquals(FIRST_METADATA, lastStore.get("//java/com/example:other"));
+  }
+
+  @Test
+  public void testRecordsAreAppendedToAFileThatAnotherProcessCompacted() throws IOException {
+    for (int i = 0; i < 5000; i++) {
+      store.put("//java/com/example:lib", i % 2 == 0 ? FIRST_METADATA : SECOND_METADATA);
+    }
+
+    BuildMetadataStore otherStore = new BuildMetadataStore(file);
+    otherStore.refresh();
+    otherStore.put("//java/com/example:other", FIRST_METADATA);
+    otherStore.close();
+
+    // The file that this store had opened to append to has been replaced.
+    store.put("//java/com/example:third", SECOND_METADATA);
+    assertEquals(FIRST_METADATA, store.get("//java/com/example:other"));
+    store.close();
+
+    BuildMetadataStore nextStore = new BuildMetadataStore(file);
+    nextStore.refresh();
+    assertEquals(SECOND_METADATA, nextStore.get("//java/com/example:lib"));
+    assertEquals(FIRST_METADATA, nextStore.get("//java/com/example:other"));
+    assertEquals(SECOND_METADATA, nextStore.get("//java/com/example:third"));
+  }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.model.BuildTargetFactory;
+import com.facebook.buck.model.BuildTargetPattern;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedSet;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+public class BuildRuleDurationsTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private final BuildRule rule = new FakeBuildRule(BuildRuleType.JAVA_LIBRARY,
+      BuildTargetFactory.newInstance("//java/com/example:lib"),
+      ImmutableSortedSet.<BuildRule>of(),
+      ImmutableSet.<BuildTargetPattern>of());
+
+  @Test
+  public void testSavedDurationsAreLoaded() throws IOException {
+    File durationsFile = new File(tmp.getRoot(), "buck-out/.buildruledurations");
+    BuildRuleDurations durations = new BuildRuleDurations();
+    durations.recordDuration(rule, 42L);
+    durations.save(durationsFile);
+
+    BuildRuleDurations loadedDurations = new BuildRuleDurations();
+    loadedDurations.load(durationsFile);
+    assertEquals(Optional.of(42L), loadedDurations.getDuration(rule));
+  }
+
+  @Test
+  public void testFailedSaveIsRetried() throws IOException {
+    File notADirectory = tmp.newFile("not-a-directory");
+
+    BuildRuleDurations durations = new BuildRuleDurations();
+    durations.recordDuration(rule, 42L);
+    IOException saveFailure = null;
+    try {
+      durations.save(new File(notADirectory, ".buildruledurations"));
+    } catch (IOException e) {
+      saveFailure = e;
+    }
+    assertNotNull("Saving under a file should fail.", saveFailure);
+
+    File durationsFile = new File(tmp.getRoot(), "buck-out/.buildruledurations");
+    durations.save(durationsFile);
+    assertTrue(durationsFile.isFile());
+  }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+import com.facebook.buck.graph.MutableDirectedGraph;
+import com.facebook.buck.model.BuildTargetFactory;
+import com.facebook.buck.model.BuildTargetPattern;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
+public class CriticalPathSchedulerTest {
+
+  private BuildRule libB;
+  private BuildRule libA;
+  private BuildRule leafC;
+  private BuildRule binary;
+  private DependencyGraph graph;
+  private BuildRuleDurations durations;
+
+  /**
+   * Creates the graph {@code binary -> libA -> libB} and {@code binary -> leafC}, where libA and
+   * libB are slow to build.
+   */
+  @Before
+  public void setUp() {
+    libB = createRule("//:libB");
+    libA = createRule("//:libA", libB);
+    leafC = createRule("//:leafC");
+    binary = createRule("//:binary", libA, leafC);
+
+    MutableDirectedGraph<BuildRule> mutableGraph = new MutableDirectedGraph<>();
+    mutableGraph.addEdge(binary, libA);
+    mutableGraph.addEdge(libA, libB);
+    mutableGraph.addEdge(binary, leafC);
+    graph = new DependencyGraph(mutableGraph);
+
+    durations = new BuildRuleDurations();
+    durations.recordDuration(binary, 10);
+    durations.recordDuration(libA, 100);
+    durations.recordDuration(libB, 50);
+    durations.recordDuration(leafC, 5);
+  }
+
+  @Test
+  public void testPriorityIsLengthOfLongestPathToRequestedRule() {
+    CriticalPathScheduler scheduler = new CriticalPathScheduler(graph,
+        durations,
+        MoreExecutors.sameThreadExecutor(),
+        /* maxConcurrency */ 1,
+        /* isPrioritized */ true);
+
+    assertEquals(10, scheduler.getPriority(binary));
+    assertEquals(110, scheduler.getPriority(libA));
+    assertEquals(160, scheduler.getPriority(libB));
+    assertEquals(15, scheduler.getPriority(leafC));
+  }
+
+  @Test
+  public void testReadyRulesRunInPriorityOrder() {
+    QueueingExecutor delegate = new QueueingExecutor();
+    CriticalPathScheduler scheduler = new CriticalPathScheduler(graph,
+        durations,
+        delegate,
+        /* maxConcurrency */ 1,
+        /* isPrioritized */ true);
+    final List<BuildRule> runOrder = Lists.newArrayList();
+
+    // The first rule to become ready runs straight away, so the others have to wait for it.
+    for (BuildRule rule : ImmutableList.of(binary, leafC, libA, libB)) {
+      scheduler.getExecutorFor(rule).execute(createRunnable(rule, runOrder));
+    }
+    assertEquals("Only one rule may be handed to the delegate at a time.", 1, delegate.size());
+
+    delegate.runAll();
+    assertEquals(ImmutableList.of(binary, libB, libA, leafC), runOrder);
+  }
+
+  @Test
+  public void testUnprioritizedSchedulerRunsRulesOnDelegate() {
+    Executor delegate = MoreExecutors.sameThreadExecutor();
+    CriticalPathScheduler scheduler = new CriticalPathScheduler(graph,
+        durations,
+        delegate,
+        /* maxConcurrency */ 1,
+        /* isPrioritized */ false);
+
+    assertSame(delegate, scheduler.getExecutorFor(libB));
+  }
+
+  @Test
+  public void testCriticalPathAndDurationsAreRecordedFromEvents() {
+    BuildRuleDurations recordedDurations = new BuildRuleDurations();
+    CriticalPathScheduler scheduler = new CriticalPathScheduler(graph,
+        recordedDurations,
+        MoreExecutors.sameThreadExecutor(),
+        /* maxConcurrency */ 1,
+        /* isPrioritized */ true);
+
+    postEvents(scheduler, libB, 0, 30, CacheResult.MISS);
+    postEvents(scheduler, leafC, 0, 40, CacheResult.MISS);
+    postEvents(scheduler, libA, 30, 50, CacheResult.HIT);
+    // The finish event may be delivered before the start event.
+    scheduler.ruleFinished(createFinishedEvent(binary, 60, CacheResult.MISS));
+    scheduler.ruleStarted(createStartedEvent(binary, 50));
+
+    assertEquals(ImmutableList.of(binary, libA, libB), scheduler.getCriticalPath());
+    assertEquals(20, scheduler.getElapsedTime(libA));
+    assertEquals(Optional.of(30L), recordedDurations.getDuration(libB));
+    assertEquals(Optional.of(10L), recordedDurations.getDuration(binary));
+    assertFalse("A cache hit says nothing about how long the rule takes to build.",
+        recordedDurations.getDuration(libA).isPresent());
+  }
+
+  private static BuildRule createRule(String target, BuildRule... deps) {
+    return new FakeBuildRule(BuildRuleType.JAVA_LIBRARY,
+        BuildTargetFactory.newInstance(target),
+        ImmutableSortedSet.copyOf(deps),
+        ImmutableSet.<BuildTargetPattern>of());
+  }
+
+  private static Runnable createRunnable(final BuildRule rule, final List<BuildRule> runOrder) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        runOrder.add(rule);
+      }
+    };
+  }
+
+  private static void postEvents(CriticalPathScheduler scheduler,
+      BuildRule rule,
+      long startTime,
+      long finishTime,
+      CacheResult cacheResult) {
+    scheduler.ruleStarted(createStartedEvent(rule, startTime));
+    scheduler.ruleFinished(createFinishedEvent(rule, finishTime, cacheResult));
+  }
+
+  private static BuildRuleStarted createStartedEvent(BuildRule rule, final long timestamp) {
+    return new BuildRuleStarted(rule) {
+      @Override
+      public long getTimestamp() {
+        return timestamp;
+      }
+    };
+  }
+
+  private static BuildRuleFinished createFinishedEvent(BuildRule rule,
+      final long timestamp,
+      CacheResult cacheResult) {
+    return new BuildRuleFinished(rule, BuildRuleStatus.SUCCESS, cacheResult) {
+      @Override
+      public long getTimestamp() {
+        return timestamp;
+      }
+    };
+  }
+
+  /** {@link Executor} that only runs its tasks when asked to. */
+  private static class QueueingExecutor implements Executor {
+    private final Queue<Runnable> tasks = Lists.newLinkedList();
+
+    @Override
+    public void execute(Runnable command) {
+      tasks.add(command);
+    }
+
+    int size() {
+      return tasks.size();
+    }
+
+    void runAll() {
+      while (!tasks.isEmpty()) {
+        tasks.poll().run();
+      }
+    }
+  }
+}
@@ -21,6 +21,10 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
 import com.google.common.io.Files;
 
 import org.junit.Rule;
@@ -29,6 +33,7 @@ import org.junit.rules.TemporaryFolder;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.List;
 
 public class DirArtifactCacheTest {
   @Rule public TemporaryFolder tmpDir = new TemporaryFolder();
@@ -139,4 +144,55 @@ public class DirArtifactCacheTest {
     assertEquals(inputRuleY, new InputRule(fileY));
     assertEquals(inputRuleZ, new InputRule(fileZ));
   }
+
+  @Test
+  public void testFetchHardLinksTheArtifactAndMissUnlinksIt() throws IOException {
+    File cacheDir = tmpDir.newFolder();
+    File fileX = tmpDir.newFile("x");
+
+    DirArtifactCache dirArtifactCache = new DirArtifactCache(cacheDir);
+
+    Files.write("x", fileX, Charsets.UTF_8);
+    RuleKey ruleKeyX = RuleKey.builder(new InputRule(fileX)).build();
+    dirArtifactCache.store(ruleKeyX, fileX);
+
+    assertTrue(dirArtifactCache.fetch(ruleKeyX, fileX));
+    assertEquals(2, getNumLinks(fileX));
+
+    // The output is about to be built again, so it must not be written through to the entry.
+    RuleKey ruleKeyY = new RuleKey("a3b2c1d0e9f8a7b6c5d4e3f2a1b0c9d8e7f6a5b4");
+    assertFalse(dirArtifactCache.fetch(ruleKeyY, fileX));
+    assertFalse(fileX.exists());
+    assertEquals(1, getNumLinks(new File(cacheDir, ruleKeyX.toString())));
+  }
+
+  @Test
+  public void testStoreEvictsLeastRecentlyUsedEntries() throws IOException {
+    File cacheDir = tmpDir.newFolder();
+    DirArtifactCache dirArtifactCache = new DirArtifactCache(cacheDir, Optional.of(30L));
+
+    List<RuleKey> ruleKeys = Lists.newArrayList();
+    for (String name : ImmutableList.of("w", "x", "y", "z")) {
+      File file = tmpDir.newFile(name);
+      Files.write(Strings.repeat(name, 10), file, Charsets.UTF_8);
+      RuleKey ruleKey = RuleKey.builder(new InputRule(file)).build();
+      ruleKeys.add(ruleKey);
+      dirArtifactCache.store(ruleKey, file);
+
+      // Each entry was used after the previous one, except for the first, which is used last.
+      long lastModifiedTime = name.equals("w") ? 5000L : ruleKeys.size() * 1000L;
+      assertTrue(new File(cacheDir, ruleKey.toString()).setLastModified(lastModifiedTime));
+    }
+
+    // With z, the cache grew to 40 bytes, so it was shrunk to 90% of 30 bytes by evicting the least
+    // recently used entries: x and y. z was stored just now, so it was used most recently.
+    assertTrue(new File(cacheDir, ruleKeys.get(0).toString()).exists());
+    assertFalse(new File(cacheDir, ruleKeys.get(1).toString()).exists());
+    assertFalse(new File(cacheDir, ruleKeys.get(2).toString()).exists());
+    assertTrue(new File(cacheDir, ruleKeys.get(3).toString()).exists());
+  }
+
+  private static int getNumLinks(File file) throws IOException {
+    return (Integer) java.nio.file.Files.getAttribute(file.toPath(), "unix:nlink");
+  }
 }
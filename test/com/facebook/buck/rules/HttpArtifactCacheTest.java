@@ -0,0 +1,104 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.base.Optional;
+import com.google.common.io.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Random;
+
+/** Runs {@link HttpArtifactCache} against a local {@link HttpArtifactCacheServer}. */
+public class HttpArtifactCacheTest {
+
+  private static final RuleKey ruleKey = new RuleKey("a1b2c3d4e5f60718293a4b5c6d7e8f9012345678");
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private HttpArtifactCacheServer server;
+  private URL url;
+
+  @Before
+  public void setUp() throws IOException {
+    server = new HttpArtifactCacheServer(/* port */ 0,
+        tmp.newFolder("cache"),
+        Optional.<Long>absent(),
+        /* numThreads */ 2);
+    server.start();
+    url = new URL("http://localhost:" + server.getPort());
+  }
+
+  @After
+  public void tearDown() {
+    server.stop();
+  }
+
+  @Test
+  public void testStoredArtifactIsFetched() throws IOException {
+    HttpArtifactCache artifactCache = new HttpArtifactCache(url, /* timeoutMillis */ 5000);
+    File output = tmp.newFile("output");
+    byte[] contents = new byte[3 * 1024 * 1024 + 17];
+    new Random(0).nextBytes(contents);
+    Files.write(contents, output);
+
+    assertFalse(artifactCache.fetch(ruleKey, output));
+    artifactCache.store(ruleKey, output);
+
+    File fetchedOutput = new File(tmp.getRoot(), "fetched/output");
+    assertTrue(artifactCache.fetch(ruleKey, fetchedOutput));
+    assertArrayEquals(contents, Files.toByteArray(fetchedOutput));
+    assertEquals("No temporary file should be left next to the output.",
+        1,
+        fetchedOutput.getParentFile().list().length);
+  }
+
+  @Test
+  public void testFetchFromAnUnreachableServerIsAMiss() throws IOException {
+    server.stop();
+    HttpArtifactCache artifactCache = new HttpArtifactCache(url, /* timeoutMillis */ 5000);
+    File output = tmp.newFile("output");
+
+    assertFalse(artifactCache.fetch(ruleKey, output));
+    artifactCache.store(ruleKey, output);
+  }
+
+  @Test
+  public void testServerOnlyServesRuleKeys() throws IOException {
+    HttpURLConnection connection =
+        (HttpURLConnection) new URL(url, "/artifacts/..%2F..%2Fetc%2Fpasswd").openConnection();
+    assertEquals(HttpURLConnection.HTTP_NOT_FOUND, connection.getResponseCode());
+
+    connection = (HttpURLConnection) new URL(url, "/artifacts/" + ruleKey).openConnection();
+    connection.setRequestMethod("DELETE");
+    assertEquals(HttpURLConnection.HTTP_BAD_METHOD, connection.getResponseCode());
+  }
+}
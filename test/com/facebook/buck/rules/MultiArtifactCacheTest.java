@@ -20,27 +20,48 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import com.google.common.base.Charsets;
+import com.google.common.base.Ticker;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
 
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.Nullable;
 
 public class MultiArtifactCacheTest {
   private static final RuleKey dummyRuleKey = RuleKey.builder(new InputRule(new File(""))).build();
+  private static final RuleKey ruleKey = new RuleKey("a1b2c3d4e5f60718293a4b5c6d7e8f9012345678");
   private static final File dummyFile = new File("dummy");
 
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
   class DummyArtifactCache implements ArtifactCache {
     @Nullable public RuleKey storeKey;
+    @Nullable public Iterable<RuleKey> prefetchKeys;
+    public int numFetches;
 
     public void reset() {
       storeKey = null;
+      prefetchKeys = null;
+      numFetches = 0;
     }
 
     @Override
     public boolean fetch(RuleKey ruleKey, File output) {
+      numFetches++;
       return ruleKey.equals(storeKey);
     }
 
@@ -48,6 +69,11 @@ public class MultiArtifactCacheTest {
     public void store(RuleKey ruleKey, File output) {
       storeKey = ruleKey;
     }
+
+    @Override
+    public void prefetch(Iterable<RuleKey> ruleKeys) {
+      prefetchKeys = ruleKeys;
+    }
   }
 
   @Test
@@ -89,4 +115,175 @@ public class MultiArtifactCacheTest {
         dummyArtifactCache2.storeKey,
         dummyRuleKey);
   }
+
+  @Test
+  public void testCachePrefetch() {
+    DummyArtifactCache dummyArtifactCache1 = new DummyArtifactCache();
+    DummyArtifactCache dummyArtifactCache2 = new DummyArtifactCache();
+    MultiArtifactCache multiArtifactCache = new MultiArtifactCache(ImmutableList.<ArtifactCache>of(
+        dummyArtifactCache1,
+        dummyArtifactCache2));
+
+    ImmutableList<RuleKey> ruleKeys = ImmutableList.of(dummyRuleKey);
+    multiArtifactCache.prefetch(ruleKeys);
+
+    assertEquals("MultiArtifactCache.prefetch() should prefetch from all contained ArtifactCaches",
+        ruleKeys,
+        dummyArtifactCache1.prefetchKeys);
+    assertEquals("MultiArtifactCache.prefetch() should prefetch from all contained ArtifactCaches",
+        ruleKeys,
+        dummyArtifactCache2.prefetchKeys);
+  }
+
+  @Test
+  public void testMissesAreRememberedUntilTheyExpire() {
+    DummyArtifactCache dummyArtifactCache1 = new DummyArtifactCache();
+    DummyArtifactCache dummyArtifactCache2 = new DummyArtifactCache();
+    FakeTicker ticker = new FakeTicker();
+    MultiArtifactCache multiArtifactCache = new MultiArtifactCache(
+        ImmutableList.<ArtifactCache>of(dummyArtifactCache1, dummyArtifactCache2),
+        /* missTtlMillis */ 1000,
+        ticker);
+
+    assertFalse(multiArtifactCache.fetch(ruleKey, dummyFile));
+    assertFalse(multiArtifactCache.fetch(ruleKey, dummyFile));
+    assertEquals("The second miss should have been remembered.",
+        1,
+        dummyArtifactCache2.numFetches);
+
+    ticker.nanoTime += TimeUnit.SECONDS.toNanos(1);
+    assertFalse(multiArtifactCache.fetch(ruleKey, dummyFile));
+    assertEquals("The miss should have expired.", 2, dummyArtifactCache2.numFetches);
+
+    MultiArtifactCache.TierStats stats = multiArtifactCache.getTierStats().get(1);
+    assertEquals(2, stats.getNumFetches());
+    assertEquals(0, stats.getNumHits());
+    assertEquals(1, stats.getNumRememberedMisses());
+  }
+
+  @Test
+  public void testNumberOfRememberedMissesIsBounded() {
+    DummyArtifactCache dummyArtifactCache = new DummyArtifactCache();
+    MultiArtifactCache multiArtifactCache = new MultiArtifactCache(
+        ImmutableList.<ArtifactCache>of(dummyArtifactCache),
+        /* missTtlMillis */ 1000,
+        new FakeTicker());
+
+    assertFalse(multiArtifactCache.fetch(ruleKey, dummyFile));
+    for (int i = 0; i < 2 * MultiArtifactCache.MAX_REMEMBERED_MISSES_PER_TIER; i++) {
+      multiArtifactCache.fetch(new RuleKey(Hashing.sha1().hashInt(i).toString()), dummyFile);
+    }
+    int numFetches = dummyArtifactCache.numFetches;
+    assertFalse(multiArtifactCache.fetch(ruleKey, dummyFile));
+    assertEquals("The oldest miss should have been forgotten.",
+        numFetches + 1,
+        dummyArtifactCache.numFetches);
+  }
+
+  @Test
+  public void testStoreForgetsRememberedMisses() {
+    DummyArtifactCache dummyArtifactCache = new DummyArtifactCache();
+    MultiArtifactCache multiArtifactCache = new MultiArtifactCache(
+        ImmutableList.<ArtifactCache>of(dummyArtifactCache),
+        /* missTtlMillis */ 1000,
+        new FakeTicker());
+
+    assertFalse(multiArtifactCache.fetch(ruleKey, dummyFile));
+    multiArtifactCache.store(ruleKey, dummyFile);
+    assertTrue(multiArtifactCache.fetch(ruleKey, dummyFile));
+
+    MultiArtifactCache.TierStats stats = multiArtifactCache.getTierStats().get(0);
+    assertEquals(2, stats.getNumFetches());
+    assertEquals(1, stats.getNumHits());
+  }
+
+  @Test
+  public void testSlowerTiersAreLookedUpAtOnce() throws IOException {
+    DummyArtifactCache fastArtifactCache = new DummyArtifactCache();
+    CountDownLatch lookups = new CountDownLatch(2);
+    SlowArtifactCache slowMiss = new SlowArtifactCache(lookups, /* isHit */ false);
+    SlowArtifactCache slowHit = new SlowArtifactCache(lookups, /* isHit */ true);
+    MultiArtifactCache multiArtifactCache = new MultiArtifactCache(
+        ImmutableList.<ArtifactCache>of(fastArtifactCache, slowMiss, slowHit),
+        /* missTtlMillis */ 0);
+
+    File output = new File(tmp.getRoot(), "output");
+    assertTrue(multiArtifactCache.fetch(ruleKey, output));
+    assertEquals("artifact", Files.toString(output, Charsets.UTF_8));
+    assertEquals("The hit should have been written back to the faster tier.",
+        ruleKey,
+        fastArtifactCache.storeKey);
+  }
+
+  @Test
+  public void testEachSlowerTierLookupWritesAFileOfItsOwn() throws IOException {
+    final List<File> lookupFiles = Collections.synchronizedList(Lists.<File>newArrayList());
+    ArtifactCache recordingCache = new DummyArtifactCache() {
+      @Override
+      public boolean fetch(RuleKey ruleKey, File output) {
+        lookupFiles.add(output);
+        return false;
+      }
+    };
+    MultiArtifactCache multiArtifactCache = new MultiArtifactCache(
+        ImmutableList.<ArtifactCache>of(
+            new DummyArtifactCache(),
+            recordingCache,
+            new DummyArtifactCache()),
+        /* missTtlMillis */ 0);
+
+    File output = new File(tmp.getRoot(), "output");
+    assertFalse(multiArtifactCache.fetch(ruleKey, output));
+    assertFalse(multiArtifactCache.fetch(ruleKey, output));
+
+    assertEquals(2, lookupFiles.size());
+    assertFalse("An abandoned lookup could write the file of the next one.",
+        lookupFiles.get(0).equals(lookupFiles.get(1)));
+    for (File lookupFile : lookupFiles) {
+      assertEquals(tmp.getRoot(), lookupFile.getParentFile());
+      assertFalse("The lookup's file should have been deleted.", lookupFile.exists());
+    }
+  }
+
+  /** Cache whose lookups only return once as many lookups as the latch counts have started. */
+  private static class SlowArtifactCache implements ArtifactCache {
+    private final CountDownLatch lookups;
+    private final boolean isHit;
+
+    SlowArtifactCache(CountDownLatch lookups, boolean isHit) {
+      this.lookups = lookups;
+      this.isHit = isHit;
+    }
+
+    @Override
+    public boolean fetch(RuleKey ruleKey, File output) {
+      lookups.countDown();
+      try {
+        if (!lookups.await(10, TimeUnit.SECONDS)) {
+          return false;
+        }
+        if (isHit) {
+          Files.write("artifact", output, Charsets.UTF_8);
+        }
+      } catch (InterruptedException | IOException e) {
+        return false;
+      }
+      return isHit;
+    }
+
+    @Override
+    public void store(RuleKey ruleKey, File output) {}
+
+    @Override
+    public void prefetch(Iterable<RuleKey> ruleKeys) {}
+  }
+
+  private static class FakeTicker extends Ticker {
+    private long nanoTime;
+
+    @Override
+    public long read() {
+      return nanoTime;
+    }
+  }
 }
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import com.facebook.buck.model.BuildTargetFactory;
+import com.facebook.buck.model.BuildTargetPattern;
+import com.facebook.buck.util.DefaultDirectoryTraverser;
+import com.facebook.buck.util.DirectoryTraversers;
+import com.facebook.buck.util.ProjectFilesystem;
+import com.google.common.base.Charsets;
+import com.google.common.base.Functions;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.io.Files;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+public class RuleKeyCacheTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private RuleKeyCache ruleKeyCache;
+  private File libSource;
+  private File binSource;
+
+  @Before
+  public void setUp() throws IOException {
+    ruleKeyCache = new RuleKeyCache(
+        new ProjectFilesystem(tmp.getRoot(), ImmutableSet.of("buck-out")));
+    libSource = tmp.newFile("Lib.java");
+    binSource = tmp.newFile("Bin.java");
+    Files.write("class Lib {}", libSource, Charsets.UTF_8);
+    Files.write("class Bin {}", binSource, Charsets.UTF_8);
+  }
+
+  @Test
+  public void testUnchangedRuleKeyIsNotComputedAgain() {
+    RuleKey ruleKey = createRules().bin.getRuleKey();
+
+    Rules rules = createRules();
+    assertEquals(ruleKey, rules.bin.getRuleKey());
+    assertEquals(0, rules.lib.numTimesRuleKeyComputed);
+    assertEquals(0, rules.bin.numTimesRuleKeyComputed);
+  }
+
+  @Test
+  public void testChangedInputInvalidatesTheRuleKeysOfTheRuleAndItsDependents()
+      throws IOException {
+    RuleKey ruleKey = createRules().bin.getRuleKey();
+
+    Files.write("class Lib { int x; }", libSource, Charsets.UTF_8);
+    ruleKeyCache.invalidatePath(libSource.toPath());
+
+    Rules rules = createRules();
+    assertFalse(ruleKey.equals(rules.bin.getRuleKey()));
+    assertEquals(1, rules.lib.numTimesRuleKeyComputed);
+    assertEquals(1, rules.bin.numTimesRuleKeyComputed);
+  }
+
+  @Test
+  public void testRemovedDirectoryInvalidatesTheRuleKeysOfFilesUnderIt() throws IOException {
+    tmp.newFolder("src");
+    File source = tmp.newFile("src/Lib.java");
+    new SourceRule("//src:lib", source, ImmutableSortedSet.<BuildRule>of()).getRuleKey();
+    assertEquals(1, ruleKeyCache.size());
+
+    ruleKeyCache.invalidatePath(tmp.getRoot().toPath().resolve("src"));
+    assertEquals(0, ruleKeyCache.size());
+  }
+
+  @Test
+  public void testFileAddedUnderAListedDirectoryInvalidatesTheRuleKey() throws IOException {
+    File res = tmp.newFolder("res");
+    tmp.newFolder("res", "values");
+    Files.write("<resources />", tmp.newFile("res/values/strings.xml"), Charsets.UTF_8);
+    RuleKey ruleKey = new DirectoryRule("//:res", res).getRuleKey();
+
+    File addedFile = tmp.newFile("res/values/colors.xml");
+    Files.write("<resources />", addedFile, Charsets.UTF_8);
+    ruleKeyCache.invalidatePath(addedFile.toPath());
+    assertEquals("No RuleKey was computed from the file that was added.",
+        1,
+        ruleKeyCache.size());
+    ruleKeyCache.invalidateDirectoryListings(addedFile.toPath());
+
+    DirectoryRule rule = new DirectoryRule("//:res", res);
+    assertFalse(ruleKey.equals(rule.getRuleKey()));
+    assertEquals(1, rule.numTimesRuleKeyComputed);
+  }
+
+  @Test
+  public void testRedefinedRuleInvalidatesTheRuleKeysOfItsDependents() {
+    createRules().bin.getRuleKey();
+
+    ruleKeyCache.invalidate(BuildTargetFactory.newInstance("//:lib"));
+
+    Rules rules = createRules();
+    rules.bin.getRuleKey();
+    assertEquals(1, rules.lib.numTimesRuleKeyComputed);
+    assertEquals("The RuleKey of lib is unchanged, so that of bin can be reused.",
+        0, rules.bin.numTimesRuleKeyComputed);
+  }
+
+  @Test
+  public void testRuleKeysOfIgnoredInputsAreNotMemoized() throws IOException {
+    tmp.newFolder("buck-out");
+    File generatedSource = tmp.newFile("buck-out/Gen.java");
+    new SourceRule("//:gen", generatedSource, ImmutableSortedSet.<BuildRule>of()).getRuleKey();
+
+    assertEquals(0, ruleKeyCache.size());
+  }
+
+  private Rules createRules() {
+    SourceRule lib = new SourceRule("//:lib", libSource, ImmutableSortedSet.<BuildRule>of());
+    SourceRule bin = new SourceRule("//:bin", binSource, ImmutableSortedSet.<BuildRule>of(lib));
+    return new Rules(lib, bin);
+  }
+
+  private static class Rules {
+    private final SourceRule lib;
+    private final SourceRule bin;
+
+    Rules(SourceRule lib, SourceRule bin) {
+      this.lib = lib;
+      this.bin = bin;
+    }
+  }
+
+  /** A rule whose RuleKey is a function of the contents of a single source file. */
+  private class SourceRule extends FakeBuildRule {
+    private final File source;
+    private int numTimesRuleKeyComputed;
+
+    SourceRule(String target, File source, ImmutableSortedSet<BuildRule> deps) {
+      super(BuildRuleType.JAVA_LIBRARY, new BuildRuleParams(
+          BuildTargetFactory.newInstance(target),
+          deps,
+          ImmutableSet.of(BuildTargetPattern.MATCH_ALL),
+          Functions.<String>identity(),
+          ruleKeyCache,
+          /* buildMetadataStore */ null));
+      this.source = source;
+    }
+
+    @Override
+    protected RuleKey.Builder appendToRuleKey(RuleKey.Builder builder) {
+      numTimesRuleKeyComputed++;
+      return builder.set("source", source);
+    }
+  }
+
+  /** A rule whose RuleKey is a function of the contents of the files under a directory. */
+  private class DirectoryRule extends FakeBuildRule {
+    private final File directory;
+    private int numTimesRuleKeyComputed;
+
+    DirectoryRule(String target, File directory) {
+      super(BuildRuleType.ANDROID_RESOURCE, new BuildRuleParams(
+          BuildTargetFactory.newInstance(target),
+          ImmutableSortedSet.<BuildRule>of(),
+          ImmutableSet.of(BuildTargetPattern.MATCH_ALL),
+          Functions.<String>identity(),
+          ruleKeyCache,
+          /* buildMetadataStore */ null));
+      this.directory = directory;
+    }
+
+    @Override
+    protected RuleKey.Builder appendToRuleKey(RuleKey.Builder builder) {
+      numTimesRuleKeyComputed++;
+      builder.addInputDirectory(directory.getPath());
+      for (String path : DirectoryTraversers.getInstance().findFiles(
+          ImmutableSet.of(directory.getPath()), new DefaultDirectoryTraverser())) {
+        builder.set(path, new File(path));
+      }
+      return builder;
+    }
+  }
+}
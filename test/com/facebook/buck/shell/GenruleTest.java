@@ -43,6 +43,7 @@ import com.facebook.buck.step.Step;
 import com.facebook.buck.step.fs.MakeCleanDirectoryStep;
 import com.facebook.buck.step.fs.MkdirAndSymlinkFileStep;
 import com.facebook.buck.step.fs.MkdirStep;
+import com.facebook.buck.step.fs.RmStep;
 import com.facebook.buck.testutil.TestConsole;
 import com.facebook.buck.util.AndroidPlatformTarget;
 import com.facebook.buck.util.Ansi;
@@ -140,24 +141,21 @@ public class GenruleTest {
     assertEquals(7, steps.size());
 
     Step firstStep = steps.get(0);
-    assertTrue(firstStep instanceof ShellStep);
-    ShellStep rmCommand = (ShellStep) firstStep;
+    assertTrue(firstStep instanceof RmStep);
+    RmStep rmCommand = (RmStep) firstStep;
     ExecutionContext executionContext = newEmptyExecutionContext();
     assertEquals(
         "First command should delete the output file to be written by the genrule.",
-        ImmutableList.of(
-            "rm",
-            "-f",
-            GEN_DIR + "/src/com/facebook/katana/AndroidManifest.xml"),
-        rmCommand.getShellCommand(executionContext));
+        "rm -f " + GEN_DIR + "/src/com/facebook/katana/AndroidManifest.xml",
+        rmCommand.getDescription(executionContext));
 
     Step secondStep = steps.get(1);
     assertTrue(secondStep instanceof MkdirStep);
     MkdirStep mkdirCommand = (MkdirStep) secondStep;
     assertEquals(
         "Second command should make sure the output directory exists.",
-        ImmutableList.of("mkdir", "-p", GEN_DIR + "/src/com/facebook/katana/"),
-        mkdirCommand.getShellCommand(executionContext));
+        "mkdir -p " + GEN_DIR + "/src/com/facebook/katana/",
+        mkdirCommand.getDescription(executionContext));
 
     Step mkTmpDir = steps.get(2);
     assertTrue(mkTmpDir instanceof MakeCleanDirectoryStep);
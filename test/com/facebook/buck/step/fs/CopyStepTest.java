@@ -19,8 +19,6 @@ package com.facebook.buck.step.fs;
 import static org.junit.Assert.assertEquals;
 
 import com.facebook.buck.step.ExecutionContext;
-import com.facebook.buck.testutil.MoreAsserts;
-import com.google.common.collect.ImmutableList;
 
 import org.easymock.EasyMock;
 import org.junit.After;
@@ -43,23 +41,23 @@ public class CopyStepTest {
   }
 
   @Test
-  public void testGetShellCommandInternal() {
+  public void testGetDescription() {
     String source = "path/to/source.txt";
     String destination = "path/to/destination.txt";
     CopyStep copyCommand = new CopyStep(source, destination);
-    MoreAsserts.assertListEquals(
-        ImmutableList.of("cp", "path/to/source.txt", "path/to/destination.txt"),
-        copyCommand.getShellCommand(context));
+    assertEquals(
+        "cp path/to/source.txt path/to/destination.txt",
+        copyCommand.getDescription(context));
   }
 
   @Test
-  public void testGetShellCommandInternalWithRecurse() {
+  public void testGetDescriptionWithRecurse() {
     String source = "path/to/source";
     String destination = "path/to/destination";
     CopyStep copyCommand = new CopyStep(source, destination, /* shouldRecurse */ true);
-    MoreAsserts.assertListEquals(
-        ImmutableList.of("cp", "-R", "path/to/source", "path/to/destination"),
-        copyCommand.getShellCommand(context));
+    assertEquals(
+        "cp -R path/to/source path/to/destination",
+        copyCommand.getDescription(context));
   }
 
   @Test
@@ -17,24 +17,18 @@
 package com.facebook.buck.step.fs;
 
 import static org.easymock.EasyMock.createMock;
-import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.verify;
 import static org.junit.Assert.assertEquals;
 
 import com.facebook.buck.step.ExecutionContext;
-import com.facebook.buck.shell.ShellStep;
-import com.facebook.buck.testutil.MoreAsserts;
-import com.facebook.buck.util.Verbosity;
-import com.google.common.collect.ImmutableList;
+import com.facebook.buck.step.Step;
 import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.Iterators;
 
 import org.junit.Test;
 
 import java.io.File;
 import java.util.Iterator;
-import java.util.List;
 
 public class RepackZipEntriesStepTest {
 
@@ -47,30 +41,16 @@ public class RepackZipEntriesStepTest {
     final File dir = new File("/tmp/mydir");
 
     ExecutionContext context = createMock(ExecutionContext.class);
-    expect(context.getVerbosity()).andReturn(Verbosity.ALL).times(2);
     replay(context);
 
-    List<String> unzipExpected = new ImmutableList.Builder<String>()
-        .add("unzip")
-        .add("-o")
-        .add("-d").add(dir.getPath())
-        .add(inApk)
-        .addAll(entries)
-        .build();
+    String unzipExpected = "unzip -o -d " + dir.getPath() + " " + inApk + " resources.arsc";
 
-    List<String> copyExpected = ImmutableList.of(
-        "cp",
-        inApk,
-        outApk);
+    String copyExpected = "cp " + inApk + " " + outApk;
 
-    List<String> zipExpected = new ImmutableList.Builder<String>()
-        .add("zip")
-        .add("-X")
-        .add("-r")
-        .add("-"+compressionLevel)
-        .add(new File(outApk).getAbsolutePath())
-        .addAll(entries)
-        .build();
+    String zipExpected = String.format("(cd %s && zip -X -r -%d %s resources.arsc)",
+        dir.getPath(),
+        compressionLevel,
+        new File(outApk).getAbsolutePath());
 
     RepackZipEntriesStep command = new RepackZipEntriesStep(
         inApk,
@@ -80,18 +60,17 @@ public class RepackZipEntriesStepTest {
         dir);
 
     // Go over the subcommands.
-    Iterator<ShellStep> iter = Iterators.filter(command.iterator(),
-        ShellStep.class);
+    Iterator<Step> iter = command.iterator();
 
     // First entries are unzipped.
-    MoreAsserts.assertListEquals(unzipExpected, iter.next().getShellCommand(context));
+    assertEquals(unzipExpected, iter.next().getDescription(context));
 
     // A copy of the archive would be created.
-    MoreAsserts.assertListEquals(copyExpected, iter.next().getShellCommand(context));
+    assertEquals(copyExpected, iter.next().getDescription(context));
 
     // And then the entries would be zipped back in.
-    ShellStep zipCommand = iter.next();
-    MoreAsserts.assertListEquals(zipExpected, zipCommand.getShellCommand(context));
+    ZipStep zipCommand = (ZipStep) iter.next();
+    assertEquals(zipExpected, zipCommand.getDescription(context));
     assertEquals(zipCommand.getWorkingDirectory(), dir);
 
     verify(context);
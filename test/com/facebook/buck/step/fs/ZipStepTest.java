@@ -17,53 +17,60 @@
 package com.facebook.buck.step.fs;
 
 import static org.easymock.EasyMock.createMock;
-import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 
 import com.facebook.buck.step.ExecutionContext;
-import com.facebook.buck.testutil.MoreAsserts;
-import com.facebook.buck.util.Verbosity;
+import com.facebook.buck.testutil.TestConsole;
+import com.facebook.buck.util.ProjectFilesystem;
+import com.facebook.buck.util.RawZipFile;
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
 
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Enumeration;
 import java.util.List;
 import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
 
 public class ZipStepTest {
 
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
   @Test
-  public void testGetShellCommandInternalOnZipCommandWithSpecifiedDirectory() {
+  public void testGetDescriptionOnZipCommandWithSpecifiedDirectory() {
     final String zipFile = "/path/to/file.zip";
     final int compressionLevel = ZipStep.DEFAULT_COMPRESSION_LEVEL;
 
     final File directory = new File("/some/other/path");
 
     ExecutionContext context = createMock(ExecutionContext.class);
-    // This will trigger having the -q argument.
-    expect(context.getVerbosity()).andReturn(Verbosity.STANDARD_INFORMATION);
     replay(context);
 
-    List<String> expectedShellCommand = new ImmutableList.Builder<String>()
-        .add("zip")
-        .add("-q")
-        .add("-X")
-        .add("-r")
-        .add("-" + compressionLevel)
-        .add(zipFile)
-        .add("-i*")
-        .add(".")
-        .build();
-
     ZipStep command = new ZipStep(zipFile, directory);
 
-    // Assert that the command has been constructed with the right arguments.
-    MoreAsserts.assertListEquals(expectedShellCommand,
-        command.getShellCommand(context));
+    // Assert that the command has been described with the right arguments.
+    assertEquals(
+        "(cd /some/other/path && zip -X -r -" + compressionLevel + " " + zipFile + " -i* .)",
+        command.getDescription(context));
 
     // Assert that the desired directory is saved with the ZipCommand as a working directory.
     assertEquals(directory, command.getWorkingDirectory());
@@ -72,28 +79,15 @@ public class ZipStepTest {
   }
 
   @Test
-  public void testGetShellCommandInternalOnZipCommandWithSpecifiedPaths() {
+  public void testGetDescriptionOnZipCommandWithSpecifiedPaths() {
     final String zipFile = "/path/to/file.zip";
     final Set<String> paths = ImmutableSet.of("a/path", "another.path");
     final int compressionLevel = 7;
     final File workingDirectory = new File("/some/other/path");
 
     ExecutionContext context = createMock(ExecutionContext.class);
-    expect(context.getVerbosity()).andReturn(Verbosity.SILENT);
     replay(context);
 
-    List<String> expectedShellCommand = new ImmutableList.Builder<String>()
-        .add("zip")
-        .add("-u")
-        .add("-qq")
-        .add("-X")
-        .add("-r")
-        .add("-" + compressionLevel)
-        .add("-j")
-        .add(zipFile)
-        .addAll(paths)
-        .build();
-
     ZipStep command = new ZipStep(
         ZipStep.Mode.UPDATE,
         zipFile,
@@ -102,13 +96,123 @@ public class ZipStepTest {
         compressionLevel,
         workingDirectory);
 
-    // Assert that the command has been constructed with the right arguments.
-    MoreAsserts.assertListEquals(expectedShellCommand,
-        command.getShellCommand(context));
+    // Assert that the command has been described with the right arguments.
+    assertEquals(
+        "(cd /some/other/path && zip -u -X -r -7 -j /path/to/file.zip a/path another.path)",
+        command.getDescription(context));
 
     // Assert that the desired working directory is saved with the command.
     assertEquals(workingDirectory, command.getWorkingDirectory());
 
     verify(context);
   }
+
+  @Test
+  public void testAddDirectoryThenReplaceEntryWithoutCompression() throws IOException {
+    File directory = tmp.newFolder("dir");
+    Files.write("a", new File(directory, "a.txt"), Charsets.UTF_8);
+    new File(directory, "sub").mkdir();
+    Files.write("b", new File(directory, "sub/b.txt"), Charsets.UTF_8);
+    ExecutionContext context = ExecutionContext.builder()
+        .setConsole(new TestConsole())
+        .setProjectFilesystem(new ProjectFilesystem(tmp.getRoot()))
+        .build();
+
+    assertEquals(0, new ZipStep("out.zip", directory).execute(context));
+    assertEquals(
+        ImmutableList.of("a.txt", "sub/", "sub/b.txt"),
+        getEntryNames(new File(tmp.getRoot(), "out.zip")));
+
+    Files.write("changed", new File(directory, "sub/b.txt"), Charsets.UTF_8);
+    ZipStep update = new ZipStep(
+        ZipStep.Mode.ADD,
+        "out.zip",
+        ImmutableSet.of("sub/b.txt"),
+        /* junkPaths */ false,
+        ZipStep.MIN_COMPRESSION_LEVEL,
+        directory);
+    assertEquals(0, update.execute(context));
+
+    ZipFile zipFile = new ZipFile(new File(tmp.getRoot(), "out.zip"));
+    try {
+      ZipEntry entry = zipFile.getEntry("sub/b.txt");
+      assertEquals(ZipEntry.STORED, entry.getMethod());
+      assertEquals("changed".length(), entry.getSize());
+      assertEquals(ZipEntry.DEFLATED, zipFile.getEntry("a.txt").getMethod());
+    } finally {
+      zipFile.close();
+    }
+    assertEquals(
+        "Replaced entries should keep their position.",
+        ImmutableList.of("a.txt", "sub/", "sub/b.txt"),
+        getEntryNames(new File(tmp.getRoot(), "out.zip")));
+  }
+
+  @Test
+  public void testKeptEntriesAreCopiedWithoutBeingCompressedAgain() throws IOException {
+    File archive = tmp.newFile("out.zip");
+    ZipOutputStream output = new ZipOutputStream(new FileOutputStream(archive));
+    try {
+      // Deflated differently than this step would deflate it.
+      output.setLevel(Deflater.BEST_SPEED);
+      output.putNextEntry(new ZipEntry("kept.txt"));
+      output.write(Strings.repeat("kept", 100).getBytes(Charsets.UTF_8));
+      output.closeEntry();
+    } finally {
+      output.close();
+    }
+    byte[] keptData = getRawData(archive, "kept.txt");
+
+    File directory = tmp.newFolder("dir");
+    Files.write("added", new File(directory, "added.txt"), Charsets.UTF_8);
+    ZipStep add = new ZipStep(
+        ZipStep.Mode.ADD,
+        "out.zip",
+        ImmutableSet.of("added.txt"),
+        /* junkPaths */ false,
+        ZipStep.MAX_COMPRESSION_LEVEL,
+        directory);
+    ExecutionContext context = ExecutionContext.builder()
+        .setConsole(new TestConsole())
+        .setProjectFilesystem(new ProjectFilesystem(tmp.getRoot()))
+        .build();
+    assertEquals(0, add.execute(context));
+
+    assertEquals(ImmutableList.of("kept.txt", "added.txt"), getEntryNames(archive));
+    assertArrayEquals(keptData, getRawData(archive, "kept.txt"));
+  }
+
+  /** @return the data of the entry {@code name} of {@code file}, as it is stored there. */
+  private static byte[] getRawData(File file, String name) throws IOException {
+    RawZipFile zipFile = RawZipFile.open(file);
+    try {
+      for (RawZipFile.Entry entry : zipFile.getEntries()) {
+        if (entry.getName().equals(name)) {
+          InputStream rawData = zipFile.getRawInputStream(entry);
+          try {
+            return ByteStreams.toByteArray(rawData);
+          } finally {
+            rawData.close();
+          }
+        }
+      }
+    } finally {
+      zipFile.close();
+    }
+    throw new AssertionError("No entry named " + name);
+  }
+
+  private static List<String> getEntryNames(File file) throws IOException {
+    List<String> names = Lists.newArrayList();
+    ZipFile zipFile = new ZipFile(file);
+    try {
+      for (Enumeration<? extends ZipEntry> entries = zipFile.entries();
+           entries.hasMoreElements();) {
+        names.add(entries.nextElement().getName());
+      }
+    } finally {
+      zipFile.close();
+    }
+    return names;
+  }
 }
@@ -130,8 +130,11 @@ public final class MoreAsserts {
   }
 
   /**
-   * Asserts that every {@link com.facebook.buck.step.Step} in the observed list is a {@link com.facebook.buck.shell.ShellStep} whose shell
-   * command arguments match those of the corresponding entry in the expected list.
+   * Asserts that the shell command arguments of every {@link com.facebook.buck.shell.ShellStep} in
+   * the observed list match those of the corresponding entry in the expected list. Any other
+   * {@link com.facebook.buck.step.Step} must be described by its entry instead, as the steps that
+   * run in process, such as {@link com.facebook.buck.step.fs.MkdirStep}, describe themselves by the
+   * equivalent shell command.
    */
   public static void assertShellCommands(
       String userMessage,
@@ -144,11 +147,13 @@ public final class MoreAsserts {
     while (expectedIter.hasNext() && observedIter.hasNext()) {
       String expectedShellCommand = expectedIter.next();
       Step observedStep = observedIter.next();
-      if (!(observedStep instanceof ShellStep)) {
-        failWith(userMessage, "Observed command must be a shell command: " + observedStep);
+      String observedShellCommand;
+      if (observedStep instanceof ShellStep) {
+        ShellStep shellCommand = (ShellStep) observedStep;
+        observedShellCommand = joiner.join(shellCommand.getShellCommand(context));
+      } else {
+        observedShellCommand = observedStep.getDescription(context);
       }
-      ShellStep shellCommand = (ShellStep) observedStep;
-      String observedShellCommand = joiner.join(shellCommand.getShellCommand(context));
       assertEquals(userMessage, expectedShellCommand, observedShellCommand);
     }
 
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import com.google.common.base.Charsets;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+public class DeterministicZipOutputStreamTest {
+
+  @Test
+  public void testArchiveOnlyDependsOnTheNamesAndContentsOfItsEntries() throws IOException {
+    assertArrayEquals(
+        writeArchive(/* time */ 1000000000000L, "first comment", new byte[] {1, 2, 3, 4}),
+        writeArchive(/* time */ System.currentTimeMillis(), "second comment", null));
+  }
+
+  @Test
+  public void testEntriesHaveAFixedTimeAndNoExtraFieldOrComment() throws IOException {
+    ZipInputStream input = new ZipInputStream(new ByteArrayInputStream(
+        writeArchive(System.currentTimeMillis(), "comment", new byte[] {1, 2, 3, 4})));
+    try {
+      for (ZipEntry entry = input.getNextEntry(); entry != null; entry = input.getNextEntry()) {
+        assertEquals(DeterministicZipOutputStream.ENTRY_TIME, entry.getTime());
+        assertNull(entry.getExtra());
+        assertNull(entry.getComment());
+      }
+    } finally {
+      input.close();
+    }
+  }
+
+  private static byte[] writeArchive(long time, String comment, byte[] extra) throws IOException {
+    byte[] contents = "contents".getBytes(Charsets.UTF_8);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DeterministicZipOutputStream output = new DeterministicZipOutputStream(bytes);
+    try {
+      ZipEntry deflated = new ZipEntry("deflated.txt");
+      deflated.setTime(time);
+      deflated.setComment(comment);
+      deflated.setExtra(extra);
+      output.putNextEntry(deflated);
+      output.write(contents);
+      output.closeEntry();
+
+      ZipEntry stored = new ZipEntry("stored.txt");
+      stored.setTime(time);
+      stored.setMethod(ZipEntry.STORED);
+      stored.setSize(contents.length);
+      CRC32 crc = new CRC32();
+      crc.update(contents);
+      stored.setCrc(crc.getValue());
+      output.putNextEntry(stored);
+      output.write(contents);
+      output.closeEntry();
+    } finally {
+      output.close();
+    }
+    return bytes.toByteArray();
+  }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+public class FileHashCacheTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  @Test
+  public void testUnchangedFileIsOnlyHashedOnce() throws IOException {
+    File file = createFileModifiedInThePast("a.txt", "Hello, world!");
+    FileHashCache cache = new FileHashCache();
+
+    assertEquals(Hashing.sha1().hashString("Hello, world!", Charsets.UTF_8), cache.get(file));
+    assertEquals(Hashing.sha1().hashString("Hello, world!", Charsets.UTF_8), cache.get(file));
+    assertEquals(1, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+  }
+
+  @Test
+  public void testModifiedFileIsRehashed() throws IOException {
+    File file = createFileModifiedInThePast("a.txt", "Hello, world!");
+    FileHashCache cache = new FileHashCache();
+    cache.get(file);
+
+    Files.write("Goodbye, world!", file, Charsets.UTF_8);
+    assertTrue(file.setLastModified(file.lastModified() - 10000L));
+
+    assertEquals(Hashing.sha1().hashString("Goodbye, world!", Charsets.UTF_8), cache.get(file));
+    assertEquals(0, cache.getHitCount());
+    assertEquals(2, cache.getMissCount());
+  }
+
+  @Test
+  public void testRecentlyModifiedFileIsNotMemoized() throws IOException {
+    File file = tmp.newFile("a.txt");
+    Files.write("Hello, world!", file, Charsets.UTF_8);
+    FileHashCache cache = new FileHashCache();
+
+    cache.get(file);
+    cache.get(file);
+    assertEquals(0, cache.getHitCount());
+    assertEquals(2, cache.getMissCount());
+    assertEquals(0, cache.size());
+  }
+
+  @Test(expected = IOException.class)
+  public void testMissingFileThrows() throws IOException {
+    new FileHashCache().get(new File(tmp.getRoot(), "does-not-exist"));
+  }
+
+  @Test
+  public void testSaveAndLoad() throws IOException {
+    File file = createFileModifiedInThePast("a.txt", "Hello, world!");
+    File cacheFile = new File(tmp.getRoot(), "buck-out/.filehashcache");
+
+    FileHashCache cache = new FileHashCache();
+    cache.get(file);
+    cache.save(cacheFile);
+    assertTrue(cacheFile.isFile());
+
+    FileHashCache loadedCache = new FileHashCache();
+    loadedCache.load(cacheFile);
+    assertEquals(1, loadedCache.size());
+    assertEquals(Hashing.sha1().hashString("Hello, world!", Charsets.UTF_8),
+        loadedCache.get(file));
+    assertEquals(1, loadedCache.getHitCount());
+    assertEquals(0, loadedCache.getMissCount());
+  }
+
+  @Test
+  public void testFailedSaveIsRetried() throws IOException {
+    File file = createFileModifiedInThePast("a.txt", "Hello, world!");
+    File notADirectory = tmp.newFile("not-a-directory");
+
+    FileHashCache cache = new FileHashCache();
+    cache.get(file);
+    IOException saveFailure = null;
+    try {
+      cache.save(new File(notADirectory, ".filehashcache"));
+    } catch (IOException e) {
+      saveFailure = e;
+    }
+    assertNotNull("Saving under a file should fail.", saveFailure);
+
+    File cacheFile = new File(tmp.getRoot(), "buck-out/.filehashcache");
+    cache.save(cacheFile);
+    assertTrue(cacheFile.isFile());
+  }
+
+  @Test
+  public void testHashesOfDeletedFilesAreNotSaved() throws IOException {
+    File kept = createFileModifiedInThePast("kept.txt", "Hello, world!");
+    File deleted = createFileModifiedInThePast("deleted.txt", "Goodbye, world!");
+    FileHashCache cache = new FileHashCache();
+    cache.get(kept);
+    cache.get(deleted);
+    assertEquals(2, cache.size());
+
+    assertTrue(deleted.delete());
+    File cacheFile = new File(tmp.getRoot(), "buck-out/.filehashcache");
+    cache.save(cacheFile);
+    assertEquals(1, cache.size());
+
+    FileHashCache loadedCache = new FileHashCache();
+    loadedCache.load(cacheFile);
+    assertEquals(1, loadedCache.size());
+    loadedCache.get(kept);
+    assertEquals(1, loadedCache.getHitCount());
+  }
+
+  @Test
+  public void testCorruptCacheFileIsIgnored() throws IOException {
+    File cacheFile = tmp.newFile(".filehashcache");
+    Files.write(new byte[] {0, 0, 0, 1, 0, 0, 0, 5, 42}, cacheFile);
+
+    FileHashCache cache = new FileHashCache();
+    cache.load(cacheFile);
+    assertEquals(0, cache.size());
+  }
+
+  private File createFileModifiedInThePast(String name, String contents) throws IOException {
+    File file = tmp.newFile(name);
+    Files.write(contents, file, Charsets.UTF_8);
+    assertTrue(file.setLastModified(
+        System.currentTimeMillis() - FileStamp.RACY_WINDOW_MILLIS * 10));
+    return file;
+  }
+}
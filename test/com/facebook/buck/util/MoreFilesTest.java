@@ -17,7 +17,9 @@
 package com.facebook.buck.util;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 import com.google.common.base.Charsets;
 import com.google.common.collect.ImmutableList;
@@ -51,6 +53,23 @@ public class MoreFilesTest {
     assertNull(tmp.getRoot().listFiles());
   }
 
+  @Test
+  public void testRmdirDeletesSymlinksRatherThanTheirTargets() throws IOException {
+    File target = tmp.newFolder("target");
+    tmp.newFile("target/file");
+    tmp.newFolder("dir");
+    java.nio.file.Files.createSymbolicLink(
+        new File(tmp.getRoot(), "dir/link").toPath(),
+        target.toPath());
+
+    MoreFiles.rmdir(new File(tmp.getRoot(), "dir").toPath());
+    assertFalse(new File(tmp.getRoot(), "dir").exists());
+    assertTrue(new File(target, "file").exists());
+
+    // As with rm -rf, a path that does not exist is not an error.
+    MoreFiles.rmdir(new File(tmp.getRoot(), "dir").toPath());
+  }
+
   @Test
   public void testWriteLinesToFile() throws IOException {
     File outputFile = tmp.newFile("output.txt");
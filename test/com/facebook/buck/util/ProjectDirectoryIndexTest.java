@@ -0,0 +1,120 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.List;
+
+public class ProjectDirectoryIndexTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private ProjectDirectoryIndex index;
+
+  @Before
+  public void setUp() throws IOException {
+    tmp.newFolder("java", "com", "example", "util");
+    tmp.newFile("java/com/example/BUCK");
+    tmp.newFile("java/com/example/Main.java");
+    tmp.newFile("java/com/example/MainTest.java");
+    tmp.newFile("java/com/example/util/Util.java");
+    tmp.newFile("java/com/example/util/README");
+    index = new ProjectDirectoryIndex(new ProjectFilesystem(tmp.getRoot()));
+  }
+
+  @Test
+  public void testGlobMatchesFilesInSubdirectories() {
+    List<String> listedDirectories = Lists.newArrayList();
+    List<String> paths = index.glob("java/com/example",
+        ImmutableList.of("**/*.java"),
+        ImmutableList.of("**/*Test.java"),
+        listedDirectories);
+
+    assertEquals(ImmutableList.of("Main.java", "util/Util.java"), paths);
+    assertEquals(
+        ImmutableList.of(
+            new File(tmp.getRoot(), "java/com/example").getAbsolutePath(),
+            new File(tmp.getRoot(), "java/com/example/util").getAbsolutePath()),
+        listedDirectories);
+  }
+
+  @Test
+  public void testGlobWithSingleStarDoesNotMatchFilesInSubdirectories() {
+    List<String> paths = index.glob("java/com/example",
+        ImmutableList.of("*.java"),
+        ImmutableList.<String>of(),
+        Lists.<String>newArrayList());
+
+    assertEquals(ImmutableList.of("Main.java", "MainTest.java"), paths);
+  }
+
+  @Test
+  public void testIsFile() {
+    assertTrue(index.isFile("java/com/example/Main.java"));
+    assertTrue(index.isFile("java/com/example/util/../Main.java"));
+    assertFalse(index.isFile("java/com/example/util"));
+    assertFalse(index.isFile("java/com/example/Missing.java"));
+    assertFalse(index.isFile("java/com/missing/Main.java"));
+    assertFalse(index.isFile("../Main.java"));
+  }
+
+  @Test
+  public void testOnPathChangedRereadsTheListingOfTheParentDirectory() throws IOException {
+    assertFalse(index.isFile("java/com/example/util/Added.java"));
+    tmp.newFile("java/com/example/util/Added.java");
+    assertFalse("The listing should be cached until a change is reported.",
+        index.isFile("java/com/example/util/Added.java"));
+
+    index.onPathChanged(Paths.get("java/com/example/util/Added.java"));
+    assertTrue(index.isFile("java/com/example/util/Added.java"));
+  }
+
+  @Test
+  public void testOnPathChangedForADirectoryForgetsTheListingsUnderIt() throws IOException {
+    assertTrue(index.isFile("java/com/example/util/Util.java"));
+    File util = new File(tmp.getRoot(), "java/com/example/util");
+    MoreFiles.deleteRecursively(util.toPath());
+
+    index.onPathChanged(Paths.get("java/com/example/util"));
+    assertFalse(index.isFile("java/com/example/util/Util.java"));
+  }
+
+  @Test
+  public void testGlobPatternToRegexMatchesBuckPy() {
+    assertEquals("^src/(.*)\\.java$",
+        ProjectDirectoryIndex.globPatternToRegex("src/**/*.java"));
+    assertEquals("^src/com/facebook/bookmark/client/[^/]*\\.java$",
+        ProjectDirectoryIndex.globPatternToRegex("src/com/facebook/bookmark/client/*.java"));
+    assertEquals("^[^/]*\\.java$", ProjectDirectoryIndex.globPatternToRegex("*.java"));
+    assertEquals("^(.*)Test\\.java$", ProjectDirectoryIndex.globPatternToRegex("**/*Test.java"));
+  }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2013-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+public class RawZipWriterTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  @Test
+  public void testCompressedEntriesAreReadableByZipFile() throws IOException {
+    byte[] contents = Strings.repeat("contents", 100).getBytes(Charsets.UTF_8);
+    File archive = tmp.newFile("archive.zip");
+    RawZipWriter writer = new RawZipWriter(new FileOutputStream(archive));
+    try {
+      writer.putEntry(RawZipWriter.compress("dir/", new byte[0]));
+      writer.putEntry(RawZipWriter.compress("dir/file.txt", contents));
+    } finally {
+      writer.close();
+    }
+
+    ZipFile zip = new ZipFile(archive);
+    try {
+      ZipEntry directory = zip.getEntry("dir/");
+      assertEquals(ZipEntry.STORED, directory.getMethod());
+      assertEquals(0, directory.getSize());
+
+      ZipEntry file = zip.getEntry("dir/file.txt");
+      assertEquals(ZipEntry.DEFLATED, file.getMethod());
+      assertEquals(DeterministicZipOutputStream.ENTRY_TIME, file.getTime());
+      InputStream stream = zip.getInputStream(file);
+      try {
+        assertArrayEquals(contents, ByteStreams.toByteArray(stream));
+      } finally {
+        stream.close();
+      }
+    } finally {
+      zip.close();
+    }
+  }
+
+  @Test
+  public void testRawEntriesAreCopiedWithoutBeingCompressedAgain() throws IOException {
+    byte[] contents = Strings.repeat("contents", 100).getBytes(Charsets.UTF_8);
+    File input = tmp.newFile("input.zip");
+    ZipOutputStream output = new ZipOutputStream(new FileOutputStream(input));
+    try {
+      // Deflated differently than RawZipWriter.compress() would deflate it.
+      output.setLevel(Deflater.BEST_SPEED);
+      output.putNextEntry(new ZipEntry("deflated.txt"));
+      output.write(contents);
+      output.closeEntry();
+
+      ZipEntry stored = new ZipEntry("stored.txt");
+      stored.setMethod(ZipEntry.STORED);
+      stored.setSize(contents.length);
+      CRC32 crc = new CRC32();
+      crc.update(contents);
+      stored.setCrc(crc.getValue());
+      output.putNextEntry(stored);
+      output.write(contents);
+      output.closeEntry();
+    } finally {
+      output.close();
+    }
+
+    File copy = tmp.newFile("copy.zip");
+    RawZipFile inputZip = RawZipFile.open(input);
+    try {
+      RawZipWriter writer = new RawZipWriter(new FileOutputStream(copy));
+      try {
+        for (RawZipFile.Entry entry : inputZip.getEntries()) {
+          InputStream rawData = inputZip.getRawInputStream(entry);
+          try {
+            writer.putRawEntry(entry.getName(),
+                entry.getMethod(),
+                entry.getCrc(),
+                entry.getSize(),
+                entry.getCompressedSize(),
+                rawData);
+          } finally {
+            rawData.close();
+          }
+        }
+      } finally {
+        writer.close();
+      }
+      assertEquals(readRawEntries(inputZip), readRawEntries(copy));
+    } finally {
+      inputZip.close();
+    }
+
+    ZipFile zip = new ZipFile(copy);
+    try {
+      for (String name : ImmutableList.of("deflated.txt", "stored.txt")) {
+        InputStream stream = zip.getInputStream(zip.getEntry(name));
+        try {
+          assertArrayEquals(contents, ByteStreams.toByteArray(stream));
+        } finally {
+          stream.close();
+        }
+      }
+    } finally {
+      zip.close();
+    }
+  }
+
+  @Test
+  public void testEntryTimesAreReadAsZipFileReadsThem() throws IOException {
+    File archive = tmp.newFile("archive.zip");
+    ZipOutputStream output = new ZipOutputStream(new FileOutputStream(archive));
+    try {
+      ZipEntry entry = new ZipEntry("file.txt");
+      entry.setTime(new GregorianCalendar(2013, Calendar.JUNE, 15, 10, 20, 31).getTimeInMillis());
+      output.putNextEntry(entry);
+      output.closeEntry();
+    } finally {
+      output.close();
+    }
+
+    long time;
+    ZipFile zip = new ZipFile(archive);
+    try {
+      time = zip.getEntry("file.txt").getTime();
+    } finally {
+      zip.close();
+    }
+    RawZipFile rawZip = RawZipFile.open(archive);
+    try {
+      assertEquals(time, rawZip.getEntries().get(0).getTime());
+    } finally {
+      rawZip.close();
+    }
+  }
+
+  @Test(expected = ZipException.class)
+  public void testOpeningAFileThatIsNotAnArchiveFails() throws IOException {
+    File notAnArchive = tmp.newFile("not-an-archive.zip");
+    Files.write("not an archive", notAnArchive, Charsets.UTF_8);
+    RawZipFile.open(notAnArchive).close();
+  }
+
+  private static List<String> readRawEntries(File file) throws IOException {
+    RawZipFile zip = RawZipFile.open(file);
+    try {
+      return readRawEntries(zip);
+    } finally {
+      zip.close();
+    }
+  }
+
+  /** @return the name, method and compressed data of each entry of {@code zip}. */
+  private static List<String> readRawEntries(RawZipFile zip) throws IOException {
+    List<String> entries = Lists.newArrayList();
+    for (RawZipFile.Entry entry : zip.getEntries()) {
+      InputStream rawData = zip.getRawInputStream(entry);
+      try {
+        entries.add(String.format("%s %d %s",
+            entry.getName(),
+            entry.getMethod(),
+            new String(ByteStreams.toByteArray(rawData), Charsets.ISO_8859_1)));
+      } finally {
+        rawData.close();
+      }
+    }
+    return entries;
+  }
+}